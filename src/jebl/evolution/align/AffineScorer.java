@@ -0,0 +1,475 @@
+package jebl.evolution.align;
+
+import jebl.evolution.align.scores.Scores;
+import jebl.evolution.sequences.SequenceType;
+import jebl.evolution.sequences.State;
+
+import java.util.Arrays;
+
+/**
+ * Score of the best global or local alignment with affine gap costs, computed one row at a time with no traceback,
+ * so in O(m) memory. Optionally the numbers of matches, mismatches and gaps along a best alignment are counted as
+ * well, without a traceback: each cell carries the counts of the best path reaching it, copied forward from the cell
+ * the path comes from.
+ *
+ * Global alignments are scored as by {@link NeedlemanWunschAffine} and {@link NeedlemanWunschLinearSpaceAffine},
+ * local alignments as by {@link SmithWatermanLinearSpaceAffine}. Work space is kept between calls, so one scorer
+ * should be used by one thread at a time (see {@link AlignerPool}).
+ *
+ * When the scores and gap costs are all whole numbers, scores alone are computed in integer arithmetic, on the
+ * residue codes of the sequences and the dense table of {@link Scores#getCodedIntegerScores()}.
+ *
+ * @version $Id$
+ */
+public final class AffineScorer {
+
+    /**
+     * Composition of a best alignment.
+     */
+    public static final class Counts {
+        private final float score;
+        private final int matches;
+        private final int mismatches;
+        private final int ambiguous;
+        private final int gaps;
+
+        private Counts(float score, int[] counts, int offset) {
+            this.score = score;
+            matches = counts[offset + MATCHES];
+            mismatches = counts[offset + MISMATCHES];
+            ambiguous = counts[offset + AMBIGUOUS];
+            gaps = counts[offset + GAPS];
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        /**
+         * @return number of columns with the same residue in both sequences, ignoring case, or with residues of
+         * the same state of the sequence type given to the scorer
+         */
+        public int getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return number of columns with different residues
+         */
+        public int getMismatches() {
+            return mismatches;
+        }
+
+        /**
+         * @return number of columns with a residue which is ambiguous (or not a state) in the sequence type given
+         * to the scorer, counted neither as matches nor as mismatches
+         */
+        public int getAmbiguous() {
+            return ambiguous;
+        }
+
+        /**
+         * @return number of columns with a gap
+         */
+        public int getGaps() {
+            return gaps;
+        }
+
+        /**
+         * @return number of columns
+         */
+        public int getLength() {
+            return matches + mismatches + ambiguous + gaps;
+        }
+
+        /**
+         * @return proportion of mismatches among columns with residues in both sequences, ambiguous ones excluded
+         */
+        public double getMismatchProportion() {
+            return mismatches / (double) (matches + mismatches);
+        }
+    }
+
+    private static final int MATCHES = 0;
+    private static final int MISMATCHES = 1;
+    private static final int AMBIGUOUS = 2;
+    private static final int GAPS = 3;
+
+    private final Scores sub;
+    private final float d;
+    private final float e;
+    private final boolean local;
+    private final boolean freeGapsAtEnds;
+    private final SequenceType sequenceType;
+
+    // by character, the number of the residue compared for matches and mismatches, or -1 if it is not counted
+    private final int[] residues = new int[128];
+
+    // scores of the previous and current row, and counts of the best paths to them, four per cell
+    private float[] pM, pX, pY, cM, cX, cY;
+    private int[] pMc, pXc, pYc, cMc, cXc, cYc;
+
+    // scores between residue codes, if they and the gap costs are whole numbers, else null
+    private final int[] integerScores;
+    private final int codeCount;
+    // rows of integer scores
+    private int[] pMi, pXi, pYi, cMi, cXi, cYi;
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost: a gap of length k costs d + (k - 1) e
+     * @param e gap extension cost
+     * @param local score local alignments rather than global ones
+     * @param freeGapsAtEnds for global alignments, if true gaps at the start and end of either sequence cost nothing
+     */
+    public AffineScorer(Scores sub, float d, float e, boolean local, boolean freeGapsAtEnds) {
+        this(sub, d, e, local, freeGapsAtEnds, null);
+    }
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost: a gap of length k costs d + (k - 1) e
+     * @param e gap extension cost
+     * @param local score local alignments rather than global ones
+     * @param freeGapsAtEnds for global alignments, if true gaps at the start and end of either sequence cost nothing
+     * @param sequenceType if not null, residues are compared as states of this type, and columns with a gap or
+     * ambiguous state are counted neither as matches nor as mismatches, as by
+     * {@link jebl.evolution.distances.JukesCantorDistanceMatrix}
+     */
+    public AffineScorer(Scores sub, float d, float e, boolean local, boolean freeGapsAtEnds, SequenceType sequenceType) {
+        this.sub = sub;
+        this.d = d;
+        this.e = e;
+        this.local = local;
+        this.freeGapsAtEnds = freeGapsAtEnds && !local;
+        this.sequenceType = sequenceType;
+        for (char c = 0; c < 128; c++) {
+            if (sequenceType == null) {
+                residues[c] = c == '-' ? -1 : Character.toUpperCase(c);
+            } else {
+                final State state = sequenceType.getState(c);
+                residues[c] = state == null || state.isAmbiguous() || state.isGap() ? -1 : state.getIndex();
+            }
+        }
+        final boolean integralGaps = d == Math.rint(d) && e == Math.rint(e) &&
+                Math.abs(d) <= Short.MAX_VALUE && Math.abs(e) <= Short.MAX_VALUE;
+        integerScores = integralGaps ? sub.getCodedIntegerScores() : null;
+        codeCount = sub.getCodeCount();
+    }
+
+    boolean hasSettings(Scores sub, float d, float e, boolean local, boolean freeGapsAtEnds, SequenceType sequenceType) {
+        return this.sub == sub && this.d == d && this.e == e && this.local == local &&
+                this.freeGapsAtEnds == (freeGapsAtEnds && !local) && this.sequenceType == sequenceType;
+    }
+
+    /**
+     * @param sq1 first sequence
+     * @param sq2 second sequence
+     * @return score of the best alignment
+     */
+    public float getScore(String sq1, String sq2) {
+        if (integerScores != null) {
+            return scoreIntegral(sub.encode(sq1), sub.encode(sq2));
+        }
+        return align(sq1, sq2, false).score;
+    }
+
+    /**
+     * @param sq1 first sequence
+     * @param sq2 second sequence
+     * @return score and composition of a best alignment
+     */
+    public Counts getCounts(String sq1, String sq2) {
+        return align(sq1, sq2, true);
+    }
+
+    private void allocate(int m, boolean counting) {
+        if (pM == null || pM.length < m + 1) {
+            pM = new float[m + 1];
+            pX = new float[m + 1];
+            pY = new float[m + 1];
+            cM = new float[m + 1];
+            cX = new float[m + 1];
+            cY = new float[m + 1];
+            pMc = null;
+        }
+        if (counting && (pMc == null || pMc.length < 4 * (m + 1))) {
+            pMc = new int[4 * (m + 1)];
+            pXc = new int[4 * (m + 1)];
+            pYc = new int[4 * (m + 1)];
+            cMc = new int[4 * (m + 1)];
+            cXc = new int[4 * (m + 1)];
+            cYc = new int[4 * (m + 1)];
+        }
+    }
+
+    private static char code(char c) {
+        return c < 127 ? c : 0;
+    }
+
+    private Counts align(String sq1, String sq2, boolean counting) {
+        final int n = sq1.length();
+        final int m = sq2.length();
+        allocate(m, counting);
+        final float[][] scores = sub.score;
+        final float minusInfinity = Float.NEGATIVE_INFINITY;
+        final float startGap = freeGapsAtEnds ? 0 : d;
+        final float startExtend = freeGapsAtEnds ? 0 : e;
+
+        float[] pM = this.pM, pX = this.pX, pY = this.pY, cM = this.cM, cX = this.cX, cY = this.cY;
+        int[] pMc = this.pMc, pXc = this.pXc, pYc = this.pYc, cMc = this.cMc, cXc = this.cXc, cYc = this.cYc;
+        if (counting) {
+            Arrays.fill(pMc, 0, 4 * (m + 1), 0);
+            Arrays.fill(pXc, 0, 4 * (m + 1), 0);
+            Arrays.fill(pYc, 0, 4 * (m + 1), 0);
+        }
+
+        // row 0
+        pM[0] = pX[0] = pY[0] = 0;
+        for (int j = 1; j <= m; j++) {
+            if (local) {
+                pM[j] = pX[j] = pY[j] = 0;
+            } else {
+                pM[j] = pX[j] = minusInfinity;
+                pY[j] = -startGap - startExtend * (j - 1);
+                if (counting) {
+                    pYc[4 * j + GAPS] = j;
+                }
+            }
+        }
+
+        float best = 0;
+        final int[] bestCounts = new int[4];
+
+        for (int i = 1; i <= n; i++) {
+            final char a = sq1.charAt(i - 1);
+            final float[] row = scores[code(a)];
+            final int aResidue = a < 128 ? residues[a] : -1;
+            final boolean lastRow = i == n;
+
+            // column 0
+            if (local) {
+                cM[0] = cX[0] = cY[0] = 0;
+                if (counting) {
+                    Arrays.fill(cMc, 0, 4, 0);
+                    Arrays.fill(cXc, 0, 4, 0);
+                    Arrays.fill(cYc, 0, 4, 0);
+                }
+            } else {
+                cM[0] = cY[0] = minusInfinity;
+                cX[0] = -startGap - startExtend * (i - 1);
+                if (counting) {
+                    cXc[MATCHES] = cXc[MISMATCHES] = cXc[AMBIGUOUS] = 0;
+                    cXc[GAPS] = i;
+                }
+            }
+
+            for (int j = 1; j <= m; j++) {
+                final char b = sq2.charAt(j - 1);
+
+                // match or mismatch, from the previous row and column
+                float va = pM[j - 1], vb = pX[j - 1], vc = pY[j - 1];
+                float val;
+                int[] from;
+                if (va >= vb && va >= vc) {
+                    val = va;
+                    from = pMc;
+                } else if (vb >= vc) {
+                    val = vb;
+                    from = pXc;
+                } else {
+                    val = vc;
+                    from = pYc;
+                }
+                val += row[code(b)];
+                if (local && val <= 0) {
+                    cM[j] = 0;
+                    from = null;
+                } else {
+                    cM[j] = val;
+                }
+                if (counting) {
+                    final int to = 4 * j;
+                    if (from == null) {
+                        cMc[to] = cMc[to + 1] = cMc[to + 2] = cMc[to + 3] = 0;
+                    } else {
+                        final int at = 4 * (j - 1);
+                        cMc[to] = from[at];
+                        cMc[to + 1] = from[at + 1];
+                        cMc[to + 2] = from[at + 2];
+                        cMc[to + 3] = from[at + 3];
+                        final int bResidue = b < 128 ? residues[b] : -1;
+                        if (aResidue < 0 || bResidue < 0) {
+                            cMc[to + AMBIGUOUS]++;
+                        } else if (aResidue == bResidue) {
+                            cMc[to + MATCHES]++;
+                        } else {
+                            cMc[to + MISMATCHES]++;
+                        }
+                    }
+                }
+
+                // gap in the second sequence, from the previous row
+                final float xd = freeGapsAtEnds && j == m ? 0 : d;
+                final float xe = freeGapsAtEnds && j == m ? 0 : e;
+                va = pM[j] - xd;
+                vb = pX[j] - xe;
+                vc = local ? minusInfinity : pY[j] - xd;
+                if (va >= vb && va >= vc) {
+                    cX[j] = va;
+                    from = pMc;
+                } else if (vb >= vc) {
+                    cX[j] = vb;
+                    from = pXc;
+                } else {
+                    cX[j] = vc;
+                    from = pYc;
+                }
+                if (counting) {
+                    copyGap(from, 4 * j, cXc, 4 * j);
+                }
+
+                // gap in the first sequence, from the previous column
+                final float yd = freeGapsAtEnds && lastRow ? 0 : d;
+                final float ye = freeGapsAtEnds && lastRow ? 0 : e;
+                va = cM[j - 1] - yd;
+                vb = cY[j - 1] - ye;
+                vc = local ? minusInfinity : cX[j - 1] - yd;
+                if (va >= vb && va >= vc) {
+                    cY[j] = va;
+                    from = cMc;
+                } else if (vb >= vc) {
+                    cY[j] = vb;
+                    from = cYc;
+                } else {
+                    cY[j] = vc;
+                    from = cXc;
+                }
+                if (counting) {
+                    copyGap(from, 4 * (j - 1), cYc, 4 * j);
+                }
+
+                if (local && cM[j] > best) {
+                    best = cM[j];
+                    if (counting) {
+                        System.arraycopy(cMc, 4 * j, bestCounts, 0, 4);
+                    }
+                }
+            }
+
+            float[] swap;
+            swap = pM; pM = cM; cM = swap;
+            swap = pX; pX = cX; cX = swap;
+            swap = pY; pY = cY; cY = swap;
+            if (counting) {
+                int[] swapCounts;
+                swapCounts = pMc; pMc = cMc; cMc = swapCounts;
+                swapCounts = pXc; pXc = cXc; cXc = swapCounts;
+                swapCounts = pYc; pYc = cYc; cYc = swapCounts;
+            }
+        }
+        this.pM = pM; this.pX = pX; this.pY = pY; this.cM = cM; this.cX = cX; this.cY = cY;
+        this.pMc = pMc; this.pXc = pXc; this.pYc = pYc; this.cMc = cMc; this.cXc = cXc; this.cYc = cYc;
+
+        if (local) {
+            return new Counts(best, bestCounts, 0);
+        }
+
+        // last cell, the row after the last swap
+        int[] last = pMc;
+        float score = pM[m];
+        if (pX[m] > score) {
+            score = pX[m];
+            last = pXc;
+        }
+        if (pY[m] > score) {
+            score = pY[m];
+            last = pYc;
+        }
+        return new Counts(score, counting ? last : bestCounts, counting ? 4 * m : 0);
+    }
+
+    /**
+     * Computes the score as {@link #align} does without counting, in integer arithmetic.
+     */
+    private int scoreIntegral(byte[] sq1, byte[] sq2) {
+        final int n = sq1.length;
+        final int m = sq2.length;
+        if (pMi == null || pMi.length < m + 1) {
+            pMi = new int[m + 1];
+            pXi = new int[m + 1];
+            pYi = new int[m + 1];
+            cMi = new int[m + 1];
+            cXi = new int[m + 1];
+            cYi = new int[m + 1];
+        }
+        final int[] scores = integerScores;
+        final int d = (int) this.d;
+        final int e = (int) this.e;
+        // far enough below any score for nothing added to it to overflow or win
+        final int minusInfinity = Integer.MIN_VALUE / 2;
+        final int startGap = freeGapsAtEnds ? 0 : d;
+        final int startExtend = freeGapsAtEnds ? 0 : e;
+
+        int[] pM = pMi, pX = pXi, pY = pYi, cM = cMi, cX = cXi, cY = cYi;
+
+        // row 0
+        pM[0] = pX[0] = pY[0] = 0;
+        for (int j = 1; j <= m; j++) {
+            if (local) {
+                pM[j] = pX[j] = pY[j] = 0;
+            } else {
+                pM[j] = pX[j] = minusInfinity;
+                pY[j] = -startGap - startExtend * (j - 1);
+            }
+        }
+
+        int best = 0;
+        for (int i = 1; i <= n; i++) {
+            final int row = sq1[i - 1] * codeCount;
+            final boolean lastRow = i == n;
+            if (local) {
+                cM[0] = cX[0] = cY[0] = 0;
+            } else {
+                cM[0] = cY[0] = minusInfinity;
+                cX[0] = -startGap - startExtend * (i - 1);
+            }
+            // gap costs in the first sequence, free along the last row
+            final int yd = freeGapsAtEnds && lastRow ? 0 : d;
+            final int ye = freeGapsAtEnds && lastRow ? 0 : e;
+            for (int j = 1; j <= m; j++) {
+                int val = Math.max(pM[j - 1], Math.max(pX[j - 1], pY[j - 1])) + scores[row + sq2[j - 1]];
+                if (local) {
+                    val = Math.max(val, 0);
+                    best = Math.max(best, val);
+                }
+                cM[j] = val;
+
+                final int xd = freeGapsAtEnds && j == m ? 0 : d;
+                final int xe = freeGapsAtEnds && j == m ? 0 : e;
+                int gap = Math.max(pM[j] - xd, pX[j] - xe);
+                cX[j] = local ? gap : Math.max(gap, pY[j] - xd);
+
+                gap = Math.max(cM[j - 1] - yd, cY[j - 1] - ye);
+                cY[j] = local ? gap : Math.max(gap, cX[j - 1] - yd);
+            }
+            int[] swap;
+            swap = pM; pM = cM; cM = swap;
+            swap = pX; pX = cX; cX = swap;
+            swap = pY; pY = cY; cY = swap;
+        }
+        pMi = pM; pXi = pX; pYi = pY; cMi = cM; cXi = cX; cYi = cY;
+
+        if (local) {
+            return best;
+        }
+        return Math.max(pM[m], Math.max(pX[m], pY[m]));
+    }
+
+    private static void copyGap(int[] from, int at, int[] to, int offset) {
+        to[offset] = from[at];
+        to[offset + 1] = from[at + 1];
+        to[offset + 2] = from[at + 2];
+        to[offset + 3] = from[at + 3] + 1;
+    }
+}
@@ -165,6 +165,19 @@ public abstract class Align {
      */
     public abstract float getScore();
 
+    /**
+     * Score of the best alignment of two sequences. Aligners which can score without a traceback override this to
+     * do so in linear memory; the match found by the last alignment is then unchanged.
+     *
+     * @param sq1 first sequence
+     * @param sq2 second sequence
+     * @return the score of the best alignment of sq1 and sq2
+     */
+    public float getScore(String sq1, String sq2) {
+        doAlignment(sq1, sq2);
+        return getScore();
+    }
+
     /**
      * Print the matrix (matrices) used to compute the alignment
      *
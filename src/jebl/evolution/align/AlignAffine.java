@@ -1,6 +1,7 @@
 package jebl.evolution.align;
 
 import jebl.evolution.align.scores.Scores;
+import jebl.evolution.sequences.SequenceType;
 
 
 /**
@@ -14,6 +15,7 @@ abstract class AlignAffine extends Align {
     TracebackAffine[][][] B = null;     // the traceback matrix
     private int oldn = 0;
     private int oldm = 0;
+    private AffineScorer scorer = null;     // for alignments scored without traceback
 
     public AlignAffine(Scores sub, float openGapPenalty, float extendGapPenalty) {
         super(sub, openGapPenalty);
@@ -72,6 +74,16 @@ abstract class AlignAffine extends Align {
         this.e = e;
     }
 
+    /**
+     * @return a scorer with the current scores and gap costs, kept for later calls with the same arguments
+     */
+    AffineScorer getScorer(boolean local, boolean freeGapsAtEnds, SequenceType sequenceType) {
+        if (scorer == null || !scorer.hasSettings(sub, d, e, local, freeGapsAtEnds, sequenceType)) {
+            scorer = new AffineScorer(sub, d, e, local, freeGapsAtEnds, sequenceType);
+        }
+        return scorer;
+    }
+
     /**
      * Get the next state in the traceback
      * 
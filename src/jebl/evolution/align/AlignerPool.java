@@ -0,0 +1,113 @@
+package jebl.evolution.align;
+
+import jebl.evolution.align.scores.Scores;
+import jebl.evolution.sequences.Sequence;
+import jebl.util.ProgressListener;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Aligners of one configuration, for use by many threads at once. Aligners keep their dynamic programming matrices
+ * between alignments and grow them as needed, so an aligner can be neither shared between threads nor cheaply
+ * created for each alignment. A pool holds the configuration, as a {@link Factory}, and lends aligners: a thread
+ * takes one with {@link #get()}, aligns, and gives it back with {@link #release(Object)}, so it is reused by the
+ * next thread that asks. New aligners are created only when all are in use, so a pool holds about as many as there
+ * were threads aligning at once.
+ *
+ * Idle aligners are kept, with their matrices, until {@link #clear()} is called; code which uses a pool for one
+ * computation should clear it at the end.
+ *
+ * @version $Id$
+ */
+public final class AlignerPool<A> {
+
+    /**
+     * Creates aligners of one configuration.
+     */
+    public interface Factory<A> {
+        A create();
+    }
+
+    private final Factory<? extends A> factory;
+
+    private final Queue<A> idle = new ConcurrentLinkedQueue<A>();
+
+    public AlignerPool(final Factory<? extends A> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return an aligner not in use by any other thread, to be given back with {@link #release(Object)}
+     */
+    public A get() {
+        final A aligner = idle.poll();
+        return aligner != null ? aligner : factory.create();
+    }
+
+    /**
+     * Gives back an aligner taken with {@link #get()}, which must no longer be used by the caller.
+     * @param aligner the aligner
+     */
+    public void release(A aligner) {
+        idle.add(aligner);
+    }
+
+    /**
+     * Drops all idle aligners with their matrices; aligners in use are kept if they are given back later.
+     */
+    public void clear() {
+        idle.clear();
+    }
+
+    /**
+     * @return a pool of {@link NeedlemanWunschLinearSpaceAffine} aligners
+     */
+    public static AlignerPool<NeedlemanWunschLinearSpaceAffine> needlemanWunschLinearSpaceAffine(
+            final Scores sub, final float d, final float e, final boolean freeGapsAtEnds) {
+        return new AlignerPool<NeedlemanWunschLinearSpaceAffine>(new Factory<NeedlemanWunschLinearSpaceAffine>() {
+            public NeedlemanWunschLinearSpaceAffine create() {
+                return new NeedlemanWunschLinearSpaceAffine(sub, d, e, freeGapsAtEnds);
+            }
+        });
+    }
+
+    /**
+     * @return a pool of {@link NeedlemanWunschAffine} aligners
+     */
+    public static AlignerPool<NeedlemanWunschAffine> needlemanWunschAffine(final Scores sub, final float d,
+                                                                          final float e) {
+        return new AlignerPool<NeedlemanWunschAffine>(new Factory<NeedlemanWunschAffine>() {
+            public NeedlemanWunschAffine create() {
+                return new NeedlemanWunschAffine(sub, d, e);
+            }
+        });
+    }
+
+    /**
+     * @param pool pool of pairwise aligners
+     * @return a pairwise aligner which may be used by many threads at once, each alignment being done by an
+     * aligner borrowed from the pool
+     */
+    public static <A extends PairwiseAligner> PairwiseAligner asPairwiseAligner(final AlignerPool<A> pool) {
+        return new PairwiseAligner() {
+            public Result doAlignment(Sequence seq1, Sequence seq2, ProgressListener progress) {
+                final A aligner = pool.get();
+                try {
+                    return aligner.doAlignment(seq1, seq2, progress);
+                } finally {
+                    pool.release(aligner);
+                }
+            }
+
+            public double getScore(Sequence seq1, Sequence seq2) {
+                final A aligner = pool.get();
+                try {
+                    return aligner.getScore(seq1, seq2);
+                } finally {
+                    pool.release(aligner);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,430 @@
+package jebl.evolution.align;
+
+import jebl.evolution.align.scores.Scores;
+import jebl.evolution.alignments.BasicAlignment;
+import jebl.evolution.sequences.BasicSequence;
+import jebl.evolution.sequences.Sequence;
+import jebl.util.ProgressListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Global alignment of long similar sequences, such as whole viral or bacterial genomes, by seed and extend.
+ *
+ * Seeds are k-mers which occur exactly once in each sequence. Seeds on the same diagonal are merged and extended
+ * both ways to maximal exact matches, and the matches are chained by weighted longest increasing subsequence: the
+ * chain of matches in the same order in both sequences which covers the most residues, each match counting only the
+ * residues it does not share with the match before it in the chain. Matches in the chain are trimmed so they do not
+ * overlap and become anchors of the alignment, and only the regions between anchors are aligned, with
+ * {@link NeedlemanWunschLinearSpaceAffine}. Finding and chaining seeds takes time about linear in the
+ * length of the sequences, so for similar sequences the whole alignment does.
+ *
+ * The alignment is optimal within each region, but not necessarily overall, as anchors are taken as given. Gaps of
+ * length k cost d + (k - 1) e, as in {@link NeedlemanWunschLinearSpaceAffine}. Sequences are aligned, and the
+ * alignment returned, in upper case.
+ *
+ * @version $Id$
+ */
+public class AnchoredAligner implements PairwiseAligner {
+
+    private final Scores sub;
+    private final float d;
+    private final float e;
+    private final int k;
+
+    private final NeedlemanWunschLinearSpaceAffine aligner;
+
+    private String seq1;
+    private String seq2;
+    private String[] match;
+    private float score;
+    // start in the first sequence, start in the second sequence and length of each anchor
+    private int[] anchors = new int[0];
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost
+     * @param e gap extension cost
+     * @param k length of seeds, 15 to 20 say for nucleotides and 5 to 8 for amino acids
+     */
+    public AnchoredAligner(Scores sub, float d, float e, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Seed length must be positive, not " + k);
+        }
+        this.sub = sub;
+        this.d = d;
+        this.e = e;
+        this.k = k;
+        aligner = new NeedlemanWunschLinearSpaceAffine(sub, d, e);
+    }
+
+    public void doAlignment(String sq1, String sq2) {
+        doAlignment(sq1, sq2, null, false);
+    }
+
+    /**
+     * @param sq1 first sequence; characters not in the alphabet of the scores are removed, and the rest upper cased
+     * @param sq2 second sequence; characters not in the alphabet of the scores are removed, and the rest upper cased
+     * @param progress progress listener, or null
+     * @param scoreOnly if true, only the score is computed and {@link #getMatch()} returns null
+     * @return false if cancelled by progress
+     */
+    public boolean doAlignment(String sq1, String sq2, ProgressListener progress, boolean scoreOnly) {
+        seq1 = Align.strip(sq1, sub.getAlphabet()).toUpperCase();
+        seq2 = Align.strip(sq2, sub.getAlphabet()).toUpperCase();
+        final int n = seq1.length();
+        final int m = seq2.length();
+        match = null;
+        anchors = chain(findMatches(seq1, seq2));
+
+        final StringBuilder res1 = scoreOnly ? null : new StringBuilder(n + m / 8);
+        final StringBuilder res2 = scoreOnly ? null : new StringBuilder(m + n / 8);
+        score = 0;
+        int end1 = 0;
+        int end2 = 0;
+        final float[][] scores = sub.score;
+        for (int a = 0; a <= anchors.length; a += 3) {
+            final int start1 = a < anchors.length ? anchors[a] : n;
+            final int start2 = a < anchors.length ? anchors[a + 1] : m;
+            alignRegion(end1, start1, end2, start2, res1, res2, scoreOnly);
+            if (a == anchors.length) {
+                break;
+            }
+
+            final int length = anchors[a + 2];
+            for (int x = 0; x < length; x++) {
+                score += scores[seq1.charAt(start1 + x)][seq2.charAt(start2 + x)];
+            }
+            if (!scoreOnly) {
+                res1.append(seq1, start1, start1 + length);
+                res2.append(seq2, start2, start2 + length);
+            }
+            end1 = start1 + length;
+            end2 = start2 + length;
+            if (progress != null && progress.setProgress(end1, n)) {
+                return false;
+            }
+        }
+        if (!scoreOnly) {
+            match = new String[]{res1.toString(), res2.toString()};
+        }
+        return true;
+    }
+
+    private void alignRegion(int start1, int end1, int start2, int end2, StringBuilder res1, StringBuilder res2,
+                             boolean scoreOnly) {
+        final int length1 = end1 - start1;
+        final int length2 = end2 - start2;
+        if (length1 == 0 && length2 == 0) {
+            return;
+        }
+        if (length1 == 0 || length2 == 0) {
+            score -= d + (length1 + length2 - 1) * e;
+            if (!scoreOnly) {
+                res1.append(length1 == 0 ? gaps(length2) : seq1.substring(start1, end1));
+                res2.append(length2 == 0 ? gaps(length1) : seq2.substring(start2, end2));
+            }
+            return;
+        }
+        aligner.doAlignment(seq1.substring(start1, end1), seq2.substring(start2, end2), null, scoreOnly);
+        score += aligner.getScore();
+        if (!scoreOnly) {
+            final String[] regionMatch = aligner.getMatch();
+            res1.append(regionMatch[0]);
+            res2.append(regionMatch[1]);
+        }
+    }
+
+    private static String gaps(int length) {
+        final char[] gaps = new char[length];
+        Arrays.fill(gaps, '-');
+        return new String(gaps);
+    }
+
+    /**
+     * Finds maximal exact matches containing k-mers which occur once in each sequence.
+     * @return start in s1, start in s2 and length of each match
+     */
+    private int[] findMatches(String s1, String s2) {
+        final KmerTable table1 = new KmerTable(s1);
+        final KmerTable table2 = new KmerTable(s2);
+        final long[] hashes1 = table1.hashes;
+
+        int[] matches = new int[48];
+        int count = 0;
+        int lastDiagonal = Integer.MIN_VALUE;
+        int lastEnd1 = -1;
+        for (int i = 0; i < hashes1.length; i++) {
+            final long hash = hashes1[i];
+            if (table1.find(hash) != i) {
+                continue;
+            }
+            final int j = table2.find(hash);
+            if (j < 0 || !s1.regionMatches(i, s2, j, k)) {
+                continue;
+            }
+            if (j - i == lastDiagonal && i <= lastEnd1) {
+                // within the match found last
+                continue;
+            }
+
+            // extend both ways
+            int start1 = i;
+            int start2 = j;
+            while (start1 > 0 && start2 > 0 && s1.charAt(start1 - 1) == s2.charAt(start2 - 1)) {
+                start1--;
+                start2--;
+            }
+            int end1 = i + k;
+            int end2 = j + k;
+            while (end1 < s1.length() && end2 < s2.length() && s1.charAt(end1) == s2.charAt(end2)) {
+                end1++;
+                end2++;
+            }
+            if (count + 3 > matches.length) {
+                matches = Arrays.copyOf(matches, 2 * matches.length);
+            }
+            matches[count++] = start1;
+            matches[count++] = start2;
+            matches[count++] = end1 - start1;
+            lastDiagonal = j - i;
+            lastEnd1 = end1 - k;
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * Chains matches by weighted longest increasing subsequence, with a Fenwick tree of the best chain ending
+     * before each start in the second sequence, and trims them so they do not overlap. A match is weighted by its
+     * length once trimmed against the end of that best chain, and starts a new chain if this weighs more.
+     * @param unsorted start in the first sequence, start in the second sequence and length of each match
+     * @return anchors in the same form
+     */
+    private static int[] chain(int[] unsorted) {
+        final int count = unsorted.length / 3;
+        if (count == 0) {
+            return unsorted;
+        }
+
+        // order by start in the first sequence
+        final long[] keys = new long[count];
+        for (int c = 0; c < count; c++) {
+            keys[c] = ((long) unsorted[3 * c] << 32) | c;
+        }
+        Arrays.sort(keys);
+        final int[] matches = new int[unsorted.length];
+        for (int c = 0; c < count; c++) {
+            System.arraycopy(unsorted, 3 * (int) keys[c], matches, 3 * c, 3);
+        }
+
+        // rank of start in the second sequence, matches with the same start sharing a rank
+        for (int c = 0; c < count; c++) {
+            keys[c] = ((long) matches[3 * c + 1] << 32) | c;
+        }
+        Arrays.sort(keys);
+        final int[] ranks = new int[count];
+        int rank = 0;
+        for (int r = 0; r < count; r++) {
+            if (r > 0 && (keys[r] >>> 32) != (keys[r - 1] >>> 32)) {
+                rank++;
+            }
+            ranks[(int) keys[r]] = rank + 1;
+        }
+
+        final long[] treeScore = new long[rank + 2];
+        final int[] treeBest = new int[rank + 2];
+        final long[] chainScore = new long[count];
+        final int[] previous = new int[count];
+        int c = 0;
+        while (c < count) {
+            // matches starting at the same position of the first sequence cannot chain to each other
+            int next = c;
+            while (next < count && matches[3 * next] == matches[3 * c]) {
+                long best = 0;
+                int bestMatch = -1;
+                for (int r = ranks[next] - 1; r > 0; r -= r & -r) {
+                    if (treeScore[r] > best) {
+                        best = treeScore[r];
+                        bestMatch = treeBest[r];
+                    }
+                }
+                final int length = matches[3 * next + 2];
+                int trimmed = length;
+                if (bestMatch >= 0) {
+                    final int overlap = Math.max(
+                            matches[3 * bestMatch] + matches[3 * bestMatch + 2] - matches[3 * next],
+                            matches[3 * bestMatch + 1] + matches[3 * bestMatch + 2] - matches[3 * next + 1]);
+                    trimmed -= Math.max(overlap, 0);
+                }
+                if (trimmed > 0 && best + trimmed > length) {
+                    chainScore[next] = best + trimmed;
+                    previous[next] = bestMatch;
+                } else {
+                    chainScore[next] = length;
+                    previous[next] = -1;
+                }
+                next++;
+            }
+            for (; c < next; c++) {
+                for (int r = ranks[c]; r < treeScore.length; r += r & -r) {
+                    if (chainScore[c] > treeScore[r]) {
+                        treeScore[r] = chainScore[c];
+                        treeBest[r] = c;
+                    }
+                }
+            }
+        }
+
+        int last = 0;
+        for (c = 1; c < count; c++) {
+            if (chainScore[c] > chainScore[last]) {
+                last = c;
+            }
+        }
+        int length = 0;
+        for (c = last; c >= 0; c = previous[c]) {
+            length++;
+        }
+        final int[] chain = new int[length];
+        for (c = last; c >= 0; c = previous[c]) {
+            chain[--length] = c;
+        }
+
+        final int[] anchors = new int[3 * chain.length];
+        int size = 0;
+        int end1 = 0;
+        int end2 = 0;
+        for (int match : chain) {
+            int start1 = matches[3 * match];
+            int start2 = matches[3 * match + 1];
+            int matchLength = matches[3 * match + 2];
+            final int overlap = Math.max(end1 - start1, end2 - start2);
+            if (overlap > 0) {
+                start1 += overlap;
+                start2 += overlap;
+                matchLength -= overlap;
+            }
+            if (matchLength > 0) {
+                anchors[size++] = start1;
+                anchors[size++] = start2;
+                anchors[size++] = matchLength;
+                end1 = start1 + matchLength;
+                end2 = start2 + matchLength;
+            }
+        }
+        return Arrays.copyOf(anchors, size);
+    }
+
+    /**
+     * Open addressing table of the k-mers of a sequence, keyed by a rolling hash: the position of each k-mer which
+     * occurs once, -1 for those which occur more than once.
+     */
+    private final class KmerTable {
+        private final long[] hashes;
+        private final long[] keys;
+        private final int[] positions;    // position + 1, -1 if repeated, 0 if empty
+        private final int mask;
+
+        private KmerTable(String s) {
+            final int count = Math.max(s.length() - k + 1, 0);
+            hashes = new long[count];
+            int capacity = 16;
+            while (capacity < 2 * count) {
+                capacity <<= 1;
+            }
+            keys = new long[capacity];
+            positions = new int[capacity];
+            mask = capacity - 1;
+            if (count == 0) {
+                return;
+            }
+
+            final long base = 0x100000001b3L;
+            long power = 1;
+            long hash = 0;
+            for (int x = 0; x < k; x++) {
+                hash = hash * base + s.charAt(x);
+                power *= base;
+            }
+            for (int x = 0; ; x++) {
+                hashes[x] = hash;
+                add(hash, x);
+                if (x + 1 == count) {
+                    break;
+                }
+                hash = hash * base - power * s.charAt(x) + s.charAt(x + k);
+            }
+        }
+
+        private int slot(long hash) {
+            int slot = (int) ((hash * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+            while (positions[slot] != 0 && keys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void add(long hash, int position) {
+            final int slot = slot(hash);
+            if (positions[slot] == 0) {
+                keys[slot] = hash;
+                positions[slot] = position + 1;
+            } else {
+                positions[slot] = -1;
+            }
+        }
+
+        /**
+         * @return position of the only k-mer with this hash, or -1 if there is none or more than one
+         */
+        private int find(long hash) {
+            final int position = positions[slot(hash)];
+            return position > 0 ? position - 1 : -1;
+        }
+    }
+
+    /**
+     * @return two-element array containing the alignment
+     */
+    public String[] getMatch() {
+        return match;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    /**
+     * @return number of anchors of the last alignment, 0 before the first
+     */
+    public int getAnchorCount() {
+        return anchors.length / 3;
+    }
+
+    /**
+     * @return number of residues of the first sequence in anchors of the last alignment, 0 before the first
+     */
+    public int getAnchoredLength() {
+        int length = 0;
+        for (int a = 2; a < anchors.length; a += 3) {
+            length += anchors[a];
+        }
+        return length;
+    }
+
+    public Result doAlignment(Sequence seq1, Sequence seq2, ProgressListener progress) {
+        if (!doAlignment(seq1.getString(), seq2.getString(), progress, false)) return null;
+        if (progress != null && progress.setProgress(1)) return null;
+        List<Sequence> seqs = new ArrayList<Sequence>(2);
+        seqs.add(new BasicSequence(seq1.getSequenceType(), seq1.getTaxon(), match[0]));
+        seqs.add(new BasicSequence(seq2.getSequenceType(), seq2.getTaxon(), match[1]));
+        return new Result(new BasicAlignment(seqs), getScore());
+    }
+
+    public double getScore(Sequence seq1, Sequence seq2) {
+        doAlignment(seq1.getString(), seq2.getString(), null, true);
+        return getScore();
+    }
+}
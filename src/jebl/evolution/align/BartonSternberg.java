@@ -23,6 +23,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * @author Matt Kearse
@@ -35,11 +39,21 @@ import java.util.List;
  *
  * Also, after creating the profile, it just removes and adds each sequence back into
  * the profile a fixed number of times(currently two).
+ *
+ * Sibling subtrees of the guide tree are aligned in parallel, each alignment with an aligner borrowed from a pool.
+ * Refinement realigns as many consecutive sequences at once as there are processors, each against the profile as
+ * it was before the batch. The realignments are accepted in sequence order, and one is redone if an earlier one in its
+ * batch changed the profile, so the result does not depend on the number of processors.
  */
 public class BartonSternberg implements MultipleAligner {
 
     Scores scores;
     NeedlemanWunschLinearSpaceAffine aligner;
+    private AlignerPool<NeedlemanWunschLinearSpaceAffine> alignerPool;
+    // score of the last alignment made by align() or doAlign()
+    private double score;
+    // most sequences realigned at once during refinement
+    private final int maximumRefinementBatchSize = Runtime.getRuntime().availableProcessors();
     private int refinementIterations;
     private float gapOpen,gapExtend;
     private boolean freeGapsAtEnds;
@@ -51,6 +65,7 @@ public class BartonSternberg implements MultipleAligner {
         this.scores = scores;
         this.scores = Scores.includeGaps(scores, -gapExtend, 0);
         aligner = new NeedlemanWunschLinearSpaceAffine(this.scores, gapOpen, gapExtend, freeGapsAtEnds);
+        alignerPool = AlignerPool.needlemanWunschLinearSpaceAffine(this.scores, gapOpen, gapExtend, freeGapsAtEnds);
     }
 
     public Scores getEstimatedScores() {
@@ -87,30 +102,76 @@ public class BartonSternberg implements MultipleAligner {
 
     private Profile align(RootedTree tree, Node node, List<Sequence> seqs,
                           CompoundAlignmentProgressListener compoundProgress) {
-        if( tree.isExternal(node) ) {
-            final Taxon tax = tree.getTaxon(node);
-            final int iSeq = Integer.parseInt(tax.getName());
+        final ProgressiveAlignmentTask task = new ProgressiveAlignmentTask(tree, node, seqs, compoundProgress);
+        final Profile profile = ForkJoinPool.commonPool().invoke(task);
+        score = task.score;
+        return profile;
+    }
 
-            final Profile profile = new Profile(scores.getAlphabet().length());
-            profile.addSequence(iSeq, seqs.get(iSeq).getString());
-            return profile;
+    /**
+     * Aligns the sequences below a node of the guide tree, forking the alignment of the left subtree so that
+     * it runs in parallel with that of the right.
+     */
+    private final class ProgressiveAlignmentTask extends RecursiveTask<Profile> {
+        private static final long serialVersionUID = 1L;
+
+        private final RootedTree tree;
+        private final Node node;
+        private final List<Sequence> seqs;
+        private final CompoundAlignmentProgressListener compoundProgress;
+        private float score;
+
+        ProgressiveAlignmentTask(RootedTree tree, Node node, List<Sequence> seqs,
+                                 CompoundAlignmentProgressListener compoundProgress) {
+            this.tree = tree;
+            this.node = node;
+            this.seqs = seqs;
+            this.compoundProgress = compoundProgress;
         }
 
-        List<Node> children = tree.getChildren(node);                            assert( children.size() == 2 );
-        final Profile left = align(tree, children.get(0), seqs, compoundProgress);
-        if( compoundProgress.isCanceled() ) return null;
+        protected Profile compute() {
+            if( tree.isExternal(node) ) {
+                final Taxon tax = tree.getTaxon(node);
+                final int iSeq = Integer.parseInt(tax.getName());
 
-        final Profile right = align(tree, children.get(1), seqs, compoundProgress);
-        if( compoundProgress.isCanceled() ) return null;
+                final Profile profile = new Profile(scores.getAlphabet().length());
+                profile.addSequence(iSeq, seqs.get(iSeq).getString());
+                return profile;
+            }
 
-        compoundProgress.setSectionSize(1);
-        AlignmentResult results[] = aligner.doAlignment(left, right, compoundProgress.getMinorProgress(), false);
-        compoundProgress.incrementSectionsCompleted(1);
-        if(compoundProgress.isCanceled()) return null;
-        return Profile.combine(left, right, results[0], results[1]);
+            List<Node> children = tree.getChildren(node);                            assert( children.size() == 2 );
+            final ProgressiveAlignmentTask leftTask =
+                    new ProgressiveAlignmentTask(tree, children.get(0), seqs, compoundProgress);
+            leftTask.fork();
+            final Profile right = new ProgressiveAlignmentTask(tree, children.get(1), seqs, compoundProgress).compute();
+            final Profile left = leftTask.join();
+            if( left == null || right == null || compoundProgress.isCanceled() ) return null;
+
+            // Nothing else is running while the root is aligned, so only then can the minor progress be reported.
+            // Other merges can still be canceled part way.
+            final boolean isRoot = tree.getParent(node) == null;
+            final NeedlemanWunschLinearSpaceAffine aligner = alignerPool.get();
+            AlignmentResult results[];
+            try {
+                if (isRoot) {
+                    compoundProgress.setSectionSize(1);
+                    results = aligner.doAlignment(left, right, compoundProgress.getMinorProgress(), false);
+                } else {
+                    results = aligner.doAlignment(left, right, compoundProgress.getCancelOnlyProgress(), false);
+                }
+                score = aligner.getScore();
+            } finally {
+                alignerPool.release(aligner);
+            }
+            synchronized (compoundProgress) {
+                compoundProgress.incrementSectionsCompleted(1);
+                if (!isRoot) compoundProgress.getMinorProgress().setProgress(0.0);
+            }
+            if(compoundProgress.isCanceled()) return null;
+            return Profile.combine(left, right, results[0], results[1]);
+        }
     }
 
-
     /**
      *
      * @param sourceSequences
@@ -121,6 +182,18 @@ public class BartonSternberg implements MultipleAligner {
     public final String[] align(List<Sequence> sourceSequences, ProgressListener progress, boolean refineOnly,
                           boolean estimateMatchMismatchCosts)
             throws CannotBuildDistanceMatrixException
+    {
+        try {
+            return alignSequences(sourceSequences, progress, refineOnly, estimateMatchMismatchCosts);
+        } finally {
+            // drop the aligners used by the worker threads, with their matrices
+            alignerPool.clear();
+        }
+    }
+
+    private String[] alignSequences(List<Sequence> sourceSequences, ProgressListener progress, boolean refineOnly,
+                                    boolean estimateMatchMismatchCosts)
+            throws CannotBuildDistanceMatrixException
     {
         if( origScores != null ) {
             establishScores(origScores);
@@ -128,7 +201,7 @@ public class BartonSternberg implements MultipleAligner {
 
         final int numSequences = sourceSequences.size();
 
-        Profile[] sequenceProfilesWithoutGaps = new Profile[numSequences];
+        final Profile[] sequenceProfilesWithoutGaps = new Profile[numSequences];
         String[] sequencesWithoutGaps = new String[numSequences];
         for (int i = 0; i < numSequences; i++) {
             sequencesWithoutGaps[i] = Align.stripIllegalCharacters(sourceSequences.get(i).getString(), scores.getAlphabet(), false);
@@ -202,41 +275,59 @@ public class BartonSternberg implements MultipleAligner {
         }
 
         //now remove a single sequence, and we
+        // Realignments speculated past one that changes the profile are wasted, so batches grow while the
+        // profile stays as it is and shrink when speculation fails.
+        int refinementBatchSize = 1;
         for (int j = 0; j < refinementIterations; j++) {
             String message = "Refining alignment";
             if(refinementIterations> 1) {
                 message = message + " (iteration " +(j+1) + " of " + refinementIterations+ ")";
             }
             progress.setMessage(message);
-            for (int i = 0; i < numSequences; ++i) {
-//                if(j> 0&& i!= 8) continue;
-//                Profile sequenceProfile = sequenceProfiles[i];
-                boolean display = false;
-
-                String sequence = profile.getSequence(i);
-                if(j>= 0 && i== 8) {
-//                    display = true;
-                }
-                if(display) {
-                    System.out.println("remove sequence =" + sequence);
-                    profile.print (true);
-                }
-                Profile sequenceProfile = new Profile(i, sequence);
-                profile.remove(sequenceProfile);
-//                aligner.setDebug(display);
-
-                AlignmentResult results[] = aligner.doAlignment(profile, sequenceProfilesWithoutGaps[i], compoundProgress.getMinorProgress(), false);
-//                aligner.setDebug(false);
+            for (int i = 0; i < numSequences; ) {
+                final Profile base = profile;
+                final int first = i;
+                final int batchSize = Math.min(refinementBatchSize, numSequences - first);
+                final Profile[] remaining = new Profile[batchSize];
+                final AlignmentResult[][] alignments = new AlignmentResult[batchSize][];
+                final float[] batchScores = new float[batchSize];
+                final ProgressListener minorProgress = batchSize == 1 ?
+                        compoundProgress.getMinorProgress() : compoundProgress.getCancelOnlyProgress();
+                if (batchSize == 1) compoundProgress.setSectionSize(1);
+                IntStream.range(0, batchSize).parallel().forEach(new IntConsumer() {
+                    public void accept(int k) {
+                        if (compoundProgress.isCanceled()) return;
+                        final int index = first + k;
+                        remaining[k] = base.copy();
+                        remaining[k].remove(index);
+                        final NeedlemanWunschLinearSpaceAffine aligner = alignerPool.get();
+                        try {
+                            alignments[k] = aligner.doAlignment(remaining[k], sequenceProfilesWithoutGaps[index],
+                                    minorProgress, false);
+                            batchScores[k] = aligner.getScore();
+                        } finally {
+                            alignerPool.release(aligner);
+                        }
+                    }
+                });
                 if (compoundProgress.isCanceled()) return null;
-                compoundProgress.incrementSectionsCompleted(1);
-                if(display){
-                    profile.print(false);
 
-                    System.out.println("result =" + results[0].size + "," + results[1].size + " from " + profile.length() + "," + sequenceProfile.length());
+                // Accept in sequence order. Every realignment of the batch started from base, so a later one is
+                // only valid while the earlier ones have left the profile as it was; the rest are redone.
+                for (int k = 0; k < batchSize && profile == base; ++k, ++i) {
+                    final Profile realigned = Profile.combine(remaining[k], sequenceProfilesWithoutGaps[i],
+                            alignments[k][0], alignments[k][1]);
+                    if (!realigned.hasSameSequences(base)) {
+                        profile = realigned;
+                    }
+                    score = batchScores[k];
+                    compoundProgress.incrementSectionsCompleted(1);
+                    compoundProgress.getMinorProgress().setProgress(0.0);
                 }
-                profile = Profile.combine(profile, sequenceProfilesWithoutGaps[i], results[0], results[1]);
-                if(display) {
-                    profile.print(true);
+                if (profile == base) {
+                    refinementBatchSize = Math.min(2 * refinementBatchSize, maximumRefinementBatchSize);
+                } else if (i < first + batchSize) {
+                    refinementBatchSize = Math.max(refinementBatchSize / 2, 1);
                 }
             }
         }
@@ -320,6 +411,7 @@ public class BartonSternberg implements MultipleAligner {
         if (progress.isCanceled()) {
             return null;
         }
+        score = aligner.getScore();
         Profile profile = Profile.combine(profile1, profile2, results[0], results[1]);
 
         final int count = size1 + size2;
@@ -346,6 +438,7 @@ public class BartonSternberg implements MultipleAligner {
         sprofile.addSequence(0, sequence.getString());
 
         AlignmentResult results[] = aligner.doAlignment(aprofile, sprofile, progress, false);
+        score = aligner.getScore();
         Profile profile = Profile.combine(aprofile, sprofile, results[0], results[1]);
 
         List<Sequence> seqs1 = alignment.getSequenceList();
@@ -365,6 +458,6 @@ public class BartonSternberg implements MultipleAligner {
     }
 
     public double getScore() {
-        return aligner.getScore();
+        return score;
     }
 }
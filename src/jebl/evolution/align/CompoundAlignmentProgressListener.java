@@ -35,6 +35,29 @@ class CompoundAlignmentProgressListener  {
         return minorProgress;
     }
 
+    /**
+     * @return a listener for work running alongside other work, which cannot report its own progress: progress and
+     * messages are ignored, but it is canceled when the overall progress is.
+     */
+    public ProgressListener getCancelOnlyProgress() {
+        return cancelOnlyProgress;
+    }
+
+    private final ProgressListener cancelOnlyProgress = new ProgressListener() {
+        protected void _setProgress(double fractionCompleted) {
+        }
+
+        protected void _setIndeterminateProgress() {
+        }
+
+        protected void _setMessage(String message) {
+        }
+
+        public boolean isCanceled() {
+            return progress.isCanceled();
+        }
+    };
+
     private ProgressListener minorProgress = new ProgressListener() {
         protected void _setProgress(double fractionCompleted) {
             assert fractionCompleted>=0 && fractionCompleted<=1;
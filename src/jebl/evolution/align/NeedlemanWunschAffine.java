@@ -164,7 +164,7 @@ public class NeedlemanWunschAffine extends AlignAffine {
 //                s = score[s1[i-1]][s2[j-1]];
 //                s = score[s1[i-1]][s2[j-1]];
 //                s= sub.score [ sequence1.profile [i-1].characters[0]][ sequence2.profile [j-1].characters [0]];
-                s = ProfileCharacter.score(sequence1.profile[offset1 + i - 1], sequence2.profile[offset2 + j - 1], sub);
+                s = Profile.score(sequence1, offset1 + i - 1, sequence2, offset2 + j - 1, sub);
                 a = M[i - 1][j - 1] + s;
                 b = Ix[i - 1][j - 1] + s;
                 c = Iy[i - 1][j - 1] + s;
@@ -322,6 +322,10 @@ public class NeedlemanWunschAffine extends AlignAffine {
         return F[B0k][B0i][B0j];
     }
 
+    public float getScore(String sq1, String sq2) {
+        return getScorer(false, false, null).getScore(sq1, sq2);
+    }
+
     private static final int TYPE_ANY = 0;
     private static final int TYPE_X = 1;
     private static final int TYPE_Y = 2;
@@ -0,0 +1,380 @@
+package jebl.evolution.align;
+
+import jebl.evolution.align.scores.Scores;
+import jebl.evolution.alignments.BasicAlignment;
+import jebl.evolution.sequences.BasicSequence;
+import jebl.evolution.sequences.Sequence;
+import jebl.util.ProgressListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Global alignment with affine gap costs restricted to a band of diagonals, for sequences which differ little,
+ * such as consensus genomes aligned to a reference. The band holds the diagonals from the one through the first
+ * cell to the one through the last cell, widened by the band width on either side, so sequences of different
+ * length are always aligned end to end. Time is O(n w) and memory O(n w) bytes, w being the number of diagonals:
+ * only two rows of scores are kept, and one byte per cell of traceback.
+ *
+ * An alignment confined to the band is optimal only if the best alignment does not leave the band. If the
+ * alignment found touches an edge of the band the band is doubled and the alignment repeated, until it does not or
+ * the band covers the whole matrix; {@link #setAdaptive(boolean)} turns this off for a fixed band.
+ *
+ * Scores are those of {@link NeedlemanWunschAffine}: a gap of length k costs d + (k - 1) e.
+ *
+ * @version $Id$
+ */
+public class NeedlemanWunschBandedAffine extends Align implements PairwiseAligner {
+
+    float e;                    // gap extension cost
+
+    private int bandWidth;
+    private boolean adaptive = true;
+    private final boolean freeGapsAtEnds;
+
+    private int lowDiagonal;    // band holds cells (i, j) with lowDiagonal <= j - i <= highDiagonal
+    private int highDiagonal;
+    private int rowWidth;       // highDiagonal - lowDiagonal + 1
+
+    // scores of the previous and current row, indexed by j - i - lowDiagonal, one spare cell beyond the band
+    private float[] pM, pX, pY, cM, cX, cY;
+
+    // traceback: for each cell the state preceding M (bits 0-1), Ix (bits 2-3) and Iy (bits 4-5)
+    private byte[] trace;
+
+    private float score;
+    private int lastState;      // state of the last cell on the best alignment
+    private String[] match;
+    private boolean cancelled;
+
+    private static final int STATE_M = 0;
+    private static final int STATE_X = 1;
+    private static final int STATE_Y = 2;
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost
+     * @param e gap extension cost
+     * @param bandWidth number of diagonals added to the band on either side
+     */
+    public NeedlemanWunschBandedAffine(Scores sub, float d, float e, int bandWidth) {
+        this(sub, d, e, bandWidth, false);
+    }
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost
+     * @param e gap extension cost
+     * @param bandWidth number of diagonals added to the band on either side
+     * @param freeGapsAtEnds if true, gaps at the start and end of either sequence cost nothing
+     */
+    public NeedlemanWunschBandedAffine(Scores sub, float d, float e, int bandWidth, boolean freeGapsAtEnds) {
+        super(sub, d);
+        this.e = e;
+        this.freeGapsAtEnds = freeGapsAtEnds;
+        setBandWidth(bandWidth);
+    }
+
+    public void setGapExtend(float e) {
+        this.e = e;
+    }
+
+    /**
+     * @param bandWidth number of diagonals added to the band on either side
+     */
+    public void setBandWidth(int bandWidth) {
+        if (bandWidth < 0) {
+            throw new IllegalArgumentException("Negative band width " + bandWidth);
+        }
+        this.bandWidth = bandWidth;
+    }
+
+    public int getBandWidth() {
+        return bandWidth;
+    }
+
+    /**
+     * @param adaptive if true (the default), the band is widened until the alignment found does not touch its edges
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public void doAlignment(String sq1, String sq2) {
+        doAlignment(sq1, sq2, null);
+    }
+
+    /**
+     * @param sq1 first sequence; characters not in the alphabet of the scores are removed
+     * @param sq2 second sequence; characters not in the alphabet of the scores are removed
+     * @param progress progress listener, or null
+     */
+    public void doAlignment(String sq1, String sq2, ProgressListener progress) {
+        prepareAlignment(strip(sq1), strip(sq2));
+        final char[] s1 = seq1.toCharArray();
+        final char[] s2 = seq2.toCharArray();
+
+        int width = bandWidth;
+        while (true) {
+            setBand(width);
+            fill(s1, s2, progress);
+            if (cancelled) {
+                return;
+            }
+            final boolean touches = traceback(s1, s2);
+            final boolean coversAll = lowDiagonal <= -n && highDiagonal >= m;
+            if (!adaptive || !touches || coversAll) {
+                break;
+            }
+            width = Math.max(2 * width, 1);
+        }
+    }
+
+    public void prepareAlignment(String sq1, String sq2) {
+        seq1 = sq1;
+        seq2 = sq2;
+        n = sq1.length();
+        m = sq2.length();
+        match = null;
+        cancelled = false;
+    }
+
+    private void setBand(int width) {
+        lowDiagonal = Math.max(Math.min(0, m - n) - width, -n);
+        highDiagonal = Math.min(Math.max(0, m - n) + width, m);
+        rowWidth = highDiagonal - lowDiagonal + 1;
+
+        final long cells = (long) (n + 1) * rowWidth;
+        if (cells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Band of " + rowWidth + " diagonals is too wide for sequences of length " + n);
+        }
+        if (trace == null || trace.length < cells) {
+            trace = new byte[(int) cells];
+        }
+        if (pM == null || pM.length < rowWidth + 1) {
+            pM = new float[rowWidth + 1];
+            pX = new float[rowWidth + 1];
+            pY = new float[rowWidth + 1];
+            cM = new float[rowWidth + 1];
+            cX = new float[rowWidth + 1];
+            cY = new float[rowWidth + 1];
+        }
+    }
+
+    private void fill(char[] s1, char[] s2, ProgressListener progress) {
+        final float[][] scores = sub.score;
+        final float minusInfinity = Float.NEGATIVE_INFINITY;
+        final float startGap = freeGapsAtEnds ? 0 : d;
+        final float startExtend = freeGapsAtEnds ? 0 : e;
+        final int w = rowWidth;
+
+        float[] pM = this.pM, pX = this.pX, pY = this.pY;
+        float[] cM = this.cM, cX = this.cX, cY = this.cY;
+
+        // row 0: only gaps in the first sequence
+        Arrays.fill(pM, minusInfinity);
+        Arrays.fill(pX, minusInfinity);
+        Arrays.fill(pY, minusInfinity);
+        int t0 = -lowDiagonal;
+        pM[t0] = pX[t0] = pY[t0] = 0;
+        trace[t0] = 0;
+        for (int j = 1; j <= highDiagonal; j++) {
+            pY[t0 + j] = -startGap - startExtend * (j - 1);
+            trace[t0 + j] = (byte) (STATE_Y << 4);
+        }
+
+        for (int i = 1; i <= n; i++) {
+            final int jLow = Math.max(0, i + lowDiagonal);
+            final int jHigh = Math.min(m, i + highDiagonal);
+            final int offset = i + lowDiagonal;     // j - offset is the index of column j in the row
+            final int rowStart = i * w;
+            final float[] row = scores[code(s1[i - 1])];
+            final boolean lastRow = i == n;
+
+            // cells left of the band
+            for (int t = 0; t < jLow - offset; t++) {
+                cM[t] = cX[t] = cY[t] = minusInfinity;
+            }
+            int j = jLow;
+            if (j == 0) {
+                final int t = -offset;
+                cM[t] = cY[t] = minusInfinity;
+                cX[t] = -startGap - startExtend * (i - 1);
+                trace[rowStart + t] = (byte) (STATE_X << 2);
+                j = 1;
+            }
+            for (; j <= jHigh; j++) {
+                final int t = j - offset;
+                int tb;
+
+                // match, from the previous row at the same index
+                final float s = row[code(s2[j - 1])];
+                float a = pM[t], b = pX[t], c = pY[t];
+                float val;
+                if (a >= b && a >= c) {
+                    val = a;
+                    tb = STATE_M;
+                } else if (b >= c) {
+                    val = b;
+                    tb = STATE_X;
+                } else {
+                    val = c;
+                    tb = STATE_Y;
+                }
+                cM[t] = val + s;
+
+                // gap in the second sequence, from the previous row one index on
+                final float xd = freeGapsAtEnds && j == m ? 0 : d;
+                final float xe = freeGapsAtEnds && j == m ? 0 : e;
+                a = pM[t + 1] - xd;
+                b = pX[t + 1] - xe;
+                c = pY[t + 1] - xd;
+                if (a >= b && a >= c) {
+                    val = a;
+                    tb |= STATE_M << 2;
+                } else if (b >= c) {
+                    val = b;
+                    tb |= STATE_X << 2;
+                } else {
+                    val = c;
+                    tb |= STATE_Y << 2;
+                }
+                cX[t] = val;
+
+                // gap in the first sequence, from the current row one index back
+                final float yd = freeGapsAtEnds && lastRow ? 0 : d;
+                final float ye = freeGapsAtEnds && lastRow ? 0 : e;
+                if (t > 0) {
+                    a = cM[t - 1] - yd;
+                    b = cY[t - 1] - ye;
+                    c = cX[t - 1] - yd;
+                } else {
+                    a = b = c = minusInfinity;
+                }
+                if (a >= b && a >= c) {
+                    val = a;
+                    tb |= STATE_M << 4;
+                } else if (b >= c) {
+                    val = b;
+                    tb |= STATE_Y << 4;
+                } else {
+                    val = c;
+                    tb |= STATE_X << 4;
+                }
+                cY[t] = val;
+
+                trace[rowStart + t] = (byte) tb;
+            }
+            // cells right of the band, read by the next row
+            for (int t = jHigh - offset + 1; t <= w; t++) {
+                cM[t] = cX[t] = cY[t] = minusInfinity;
+            }
+
+            float[] swap;
+            swap = pM; pM = cM; cM = swap;
+            swap = pX; pX = cX; cX = swap;
+            swap = pY; pY = cY; cY = swap;
+
+            if (progress != null && (i & 255) == 0 && progress.setProgress(i, n)) {
+                cancelled = true;
+                return;
+            }
+        }
+
+        // the last cell
+        final int t = m - n - lowDiagonal;
+        score = pM[t];
+        if (pX[t] > score) {
+            score = pX[t];
+        }
+        if (pY[t] > score) {
+            score = pY[t];
+        }
+        lastState = pM[t] >= pX[t] && pM[t] >= pY[t] ? STATE_M : (pX[t] >= pY[t] ? STATE_X : STATE_Y);
+    }
+
+    /**
+     * Builds the alignment from the traceback.
+     * @return true if the alignment touches an edge of the band which does not lie on the edge of the matrix
+     */
+    private boolean traceback(char[] s1, char[] s2) {
+        final StringBuilder res1 = new StringBuilder(n + m);
+        final StringBuilder res2 = new StringBuilder(n + m);
+        final int w = rowWidth;
+        final boolean lowEdge = lowDiagonal > -n;
+        final boolean highEdge = highDiagonal < m;
+        boolean touches = false;
+
+        int i = n;
+        int j = m;
+        int state = lastState;
+        while (i > 0 || j > 0) {
+            final int diagonal = j - i;
+            if ((lowEdge && diagonal == lowDiagonal) || (highEdge && diagonal == highDiagonal)) {
+                touches = true;
+            }
+            final int tb = trace[i * w + diagonal - lowDiagonal];
+            switch (state) {
+                case STATE_M:
+                    state = tb & 3;
+                    res1.append(s1[--i]);
+                    res2.append(s2[--j]);
+                    break;
+                case STATE_X:
+                    state = (tb >> 2) & 3;
+                    res1.append(s1[--i]);
+                    res2.append('-');
+                    break;
+                default:
+                    state = (tb >> 4) & 3;
+                    res1.append('-');
+                    res2.append(s2[--j]);
+                    break;
+            }
+        }
+        match = new String[]{res1.reverse().toString(), res2.reverse().toString()};
+        return touches;
+    }
+
+    private static char code(char c) {
+        return c < 127 ? c : 0;
+    }
+
+    /**
+     * @return two-element array containing an alignment with maximal score within the band
+     */
+    public String[] getMatch() {
+        return match;
+    }
+
+    /**
+     * @return the score of the best alignment within the band
+     */
+    public float getScore() {
+        return score;
+    }
+
+    /**
+     * No matrix is kept, so prints only the score and the band.
+     *
+     * @param out output to print to
+     */
+    public void printf(Output out) {
+        out.println("score " + formatScore(score) + " in band of diagonals " + lowDiagonal + " to " + highDiagonal);
+    }
+
+    public Result doAlignment(Sequence seq1, Sequence seq2, ProgressListener progress) {
+        doAlignment(seq1.getString(), seq2.getString(), progress);
+        if (cancelled || (progress != null && progress.setProgress(1))) return null;
+        List<Sequence> seqs = new ArrayList<Sequence>(2);
+        seqs.add(new BasicSequence(seq1.getSequenceType(), seq1.getTaxon(), match[0]));
+        seqs.add(new BasicSequence(seq2.getSequenceType(), seq2.getTaxon(), match[1]));
+        return new Result(new BasicAlignment(seqs), getScore());
+    }
+
+    public double getScore(Sequence seq1, Sequence seq2) {
+        doAlignment(seq1.getString(), seq2.getString(), null);
+        return getScore();
+    }
+}
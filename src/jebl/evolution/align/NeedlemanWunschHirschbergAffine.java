@@ -0,0 +1,513 @@
+package jebl.evolution.align;
+
+import jebl.evolution.align.scores.Scores;
+import jebl.evolution.alignments.BasicAlignment;
+import jebl.evolution.sequences.BasicSequence;
+import jebl.evolution.sequences.Sequence;
+import jebl.util.ProgressListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global alignment with affine gap costs in linear memory, by divide and conquer (Hirschberg, as extended to affine
+ * gaps by Myers and Miller), using all processors. The rows of each sub-problem are split in half: scores are
+ * computed forward from the start to the middle row and backward from the end to it, the cell and state through
+ * which a best alignment crosses the middle row is found, and the two halves on either side of it are aligned in
+ * turn. The forward and backward passes of a split run in parallel, as do the two halves it leaves, so time on p
+ * processors is about 2 n m / p. Sub-problems of few cells are aligned directly, with a traceback.
+ *
+ * Scores are those of {@link NeedlemanWunschLinearSpaceAffine}: a gap of length k costs d + (k - 1) e, and with
+ * free gaps at ends, gaps at the start and end of either sequence cost nothing. Work space is allocated for each
+ * alignment, as the passes of many sub-problems may run at once.
+ *
+ * @version $Id$
+ */
+public class NeedlemanWunschHirschbergAffine extends Align implements PairwiseAligner {
+
+    float e;                    // gap extension cost
+
+    private final boolean freeGapsAtEnds;
+
+    // the sequences being aligned, as residue codes, and the scores between codes
+    private byte[] s1, s2;
+    private float[] codedScores;
+    private int codeCount;
+
+    private float score;
+    private String[] match;
+    private volatile boolean cancelled;
+    private ProgressListener progress;
+    private long totalWork;
+    private final AtomicLong workDone = new AtomicLong();
+    private AffineScorer scorer;    // for scores without alignments
+
+    private static final int STATE_M = 0;
+    private static final int STATE_X = 1;
+    private static final int STATE_Y = 2;
+    private static final int STATE_ANY = -1;
+
+    // sub-problems of at most this many cells are aligned directly, with a traceback
+    private static final long DIRECT_CELLS = 1 << 16;
+    // sub-problems of fewer cells do their passes and halves one after the other
+    private static final long PARALLEL_CELLS = 1 << 20;
+    // cells computed between reports of progress
+    private static final long PROGRESS_CELLS = 1 << 20;
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost
+     * @param e gap extension cost
+     */
+    public NeedlemanWunschHirschbergAffine(Scores sub, float d, float e) {
+        this(sub, d, e, false);
+    }
+
+    /**
+     * @param sub scores
+     * @param d gap opening cost
+     * @param e gap extension cost
+     * @param freeGapsAtEnds if true, gaps at the start and end of either sequence cost nothing
+     */
+    public NeedlemanWunschHirschbergAffine(Scores sub, float d, float e, boolean freeGapsAtEnds) {
+        super(sub, d);
+        this.e = e;
+        this.freeGapsAtEnds = freeGapsAtEnds;
+    }
+
+    public void setGapExtend(float e) {
+        this.e = e;
+    }
+
+    public void doAlignment(String sq1, String sq2) {
+        doAlignment(sq1, sq2, null);
+    }
+
+    /**
+     * @param sq1 first sequence; characters not in the alphabet of the scores are removed
+     * @param sq2 second sequence; characters not in the alphabet of the scores are removed
+     * @param progress progress listener, or null
+     */
+    public void doAlignment(String sq1, String sq2, ProgressListener progress) {
+        prepareAlignment(strip(sq1), strip(sq2));
+        this.progress = progress;
+        totalWork = Math.max(2L * n * m, 1);
+        workDone.set(0);
+        s1 = sub.encode(seq1);
+        s2 = sub.encode(seq2);
+        codedScores = sub.getCodedScores();
+        codeCount = sub.getCodeCount();
+
+        final SubProblem all = new SubProblem(0, 0, n, m, STATE_M, STATE_ANY);
+        final byte[] path = ForkJoinPool.commonPool().invoke(all);
+        s1 = s2 = null;
+        this.progress = null;
+        if (cancelled) {
+            return;
+        }
+        score = all.score;
+
+        final StringBuilder res1 = new StringBuilder(path.length);
+        final StringBuilder res2 = new StringBuilder(path.length);
+        int i = 0;
+        int j = 0;
+        for (byte state : path) {
+            res1.append(state == STATE_Y ? '-' : seq1.charAt(i++));
+            res2.append(state == STATE_X ? '-' : seq2.charAt(j++));
+        }
+        match = new String[]{res1.toString(), res2.toString()};
+    }
+
+    public void prepareAlignment(String sq1, String sq2) {
+        seq1 = sq1;
+        seq2 = sq2;
+        n = sq1.length();
+        m = sq2.length();
+        match = null;
+        cancelled = false;
+    }
+
+    private boolean isFreeRow(int i) {
+        return freeGapsAtEnds && (i == 0 || i == n);
+    }
+
+    private boolean isFreeColumn(int j) {
+        return freeGapsAtEnds && (j == 0 || j == m);
+    }
+
+    /**
+     * Counts work done and reports progress, noting if the alignment has been canceled.
+     */
+    private void addWork(long cells) {
+        final long done = workDone.addAndGet(cells);
+        if (progress != null) {
+            synchronized (progress) {
+                if (progress.setProgress(Math.min(1.0, ((double) done) / totalWork))) {
+                    cancelled = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Alignment of rows i0 to i1 of the first sequence with columns j0 to j1 of the second, from the cell (i0, j0)
+     * reached in the start state to the cell (i1, j1) left in the end state. The result is the state of each
+     * column of the alignment.
+     */
+    private final class SubProblem extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int i0, j0, i1, j1;
+        private final int startState;
+        private final int endState;
+        private float score;
+
+        SubProblem(int i0, int j0, int i1, int j1, int startState, int endState) {
+            this.i0 = i0;
+            this.j0 = j0;
+            this.i1 = i1;
+            this.j1 = j1;
+            this.startState = startState;
+            this.endState = endState;
+        }
+
+        protected byte[] compute() {
+            if (cancelled) return new byte[0];
+            final long cells = ((long) (i1 - i0)) * (j1 - j0);
+            if (i1 - i0 <= 1 || cells <= DIRECT_CELLS) {
+                return align();
+            }
+            final boolean parallel = cells >= PARALLEL_CELLS;
+
+            final int mid = (i0 + i1) >>> 1;
+            final float[][] forward;
+            final float[][] backward;
+            if (parallel) {
+                final RecursiveTask<float[][]> forwardTask = new RecursiveTask<float[][]>() {
+                    protected float[][] compute() {
+                        return forward(mid);
+                    }
+                };
+                forwardTask.fork();
+                backward = backward(mid);
+                forward = forwardTask.join();
+            } else {
+                forward = forward(mid);
+                backward = backward(mid);
+            }
+            if (cancelled) return new byte[0];
+
+            // the first cell and state of the middle row with the best total score
+            float best = Float.NEGATIVE_INFINITY;
+            int bestColumn = j0;
+            int bestState = STATE_M;
+            for (int t = 0; t <= j1 - j0; t++) {
+                for (int state = STATE_M; state <= STATE_Y; state++) {
+                    final float total = forward[state][t] + backward[state][t];
+                    if (total > best) {
+                        best = total;
+                        bestColumn = j0 + t;
+                        bestState = state;
+                    }
+                }
+            }
+            score = best;
+
+            final SubProblem first = new SubProblem(i0, j0, mid, bestColumn, startState, bestState);
+            final SubProblem second = new SubProblem(mid, bestColumn, i1, j1, bestState, endState);
+            final byte[] path1;
+            final byte[] path2;
+            if (parallel) {
+                first.fork();
+                path2 = second.compute();
+                path1 = first.join();
+            } else {
+                path1 = first.compute();
+                path2 = second.compute();
+            }
+            final byte[] path = Arrays.copyOf(path1, path1.length + path2.length);
+            System.arraycopy(path2, 0, path, path1.length, path2.length);
+            return path;
+        }
+
+        /**
+         * @return the best scores of paths from the start to each cell of a row, by state
+         */
+        private float[][] forward(int lastRow) {
+            final int w = j1 - j0;
+            final float minusInfinity = Float.NEGATIVE_INFINITY;
+            float[] pM = new float[w + 1], pX = new float[w + 1], pY = new float[w + 1];
+            float[] cM = new float[w + 1], cX = new float[w + 1], cY = new float[w + 1];
+
+            Arrays.fill(pM, minusInfinity);
+            Arrays.fill(pX, minusInfinity);
+            Arrays.fill(pY, minusInfinity);
+            start(pM, pX, pY);
+            gapsAlongRow(i0, pM, pX, pY);
+
+            long work = 0;
+            for (int i = i0 + 1; i <= lastRow; i++) {
+                if (cancelled) break;
+                final int row = s1[i - 1] * codeCount;
+                final float yd = isFreeRow(i) ? 0 : d;
+                final float ye = isFreeRow(i) ? 0 : e;
+                float xd = isFreeColumn(j0) ? 0 : d;
+                float xe = isFreeColumn(j0) ? 0 : e;
+                cM[0] = cY[0] = minusInfinity;
+                cX[0] = max(pM[0] - xd, pX[0] - xe, pY[0] - xd);
+                for (int t = 1; t <= w; t++) {
+                    final int j = j0 + t;
+                    cM[t] = max(pM[t - 1], pX[t - 1], pY[t - 1]) + codedScores[row + s2[j - 1]];
+                    xd = isFreeColumn(j) ? 0 : d;
+                    xe = isFreeColumn(j) ? 0 : e;
+                    cX[t] = max(pM[t] - xd, pX[t] - xe, pY[t] - xd);
+                    cY[t] = max(cM[t - 1] - yd, cY[t - 1] - ye, cX[t - 1] - yd);
+                }
+                float[] swap;
+                swap = pM; pM = cM; cM = swap;
+                swap = pX; pX = cX; cX = swap;
+                swap = pY; pY = cY; cY = swap;
+                work += w;
+                if (work >= PROGRESS_CELLS) {
+                    addWork(work);
+                    work = 0;
+                }
+            }
+            addWork(work);
+            return new float[][]{pM, pX, pY};
+        }
+
+        /**
+         * @return the best scores of paths from each cell of a row, in each state, to the end
+         */
+        private float[][] backward(int firstRow) {
+            final int w = j1 - j0;
+            final float minusInfinity = Float.NEGATIVE_INFINITY;
+            float[] nM = new float[w + 1], nX = new float[w + 1], nY = new float[w + 1];
+            float[] cM = new float[w + 1], cX = new float[w + 1], cY = new float[w + 1];
+
+            // last row: only gaps in the first sequence lead to the end
+            for (int state = STATE_M; state <= STATE_Y; state++) {
+                final float value = endState == STATE_ANY || endState == state ? 0 : minusInfinity;
+                (state == STATE_M ? nM : state == STATE_X ? nX : nY)[w] = value;
+            }
+            float yd = isFreeRow(i1) ? 0 : d;
+            float ye = isFreeRow(i1) ? 0 : e;
+            for (int t = w - 1; t >= 0; t--) {
+                nM[t] = nX[t] = nY[t + 1] - yd;
+                nY[t] = nY[t + 1] - ye;
+            }
+
+            long work = 0;
+            for (int i = i1 - 1; i >= firstRow; i--) {
+                if (cancelled) break;
+                final int row = s1[i] * codeCount;
+                yd = isFreeRow(i) ? 0 : d;
+                ye = isFreeRow(i) ? 0 : e;
+                float xd = isFreeColumn(j1) ? 0 : d;
+                float xe = isFreeColumn(j1) ? 0 : e;
+                cM[w] = cY[w] = nX[w] - xd;
+                cX[w] = nX[w] - xe;
+                for (int t = w - 1; t >= 0; t--) {
+                    final int j = j0 + t;
+                    final float diagonal = nM[t + 1] + codedScores[row + s2[j]];
+                    xd = isFreeColumn(j) ? 0 : d;
+                    xe = isFreeColumn(j) ? 0 : e;
+                    final float down = nX[t];
+                    final float right = cY[t + 1];
+                    cM[t] = max(diagonal, down - xd, right - yd);
+                    cX[t] = max(diagonal, down - xe, right - yd);
+                    cY[t] = max(diagonal, down - xd, right - ye);
+                }
+                float[] swap;
+                swap = nM; nM = cM; cM = swap;
+                swap = nX; nX = cX; cX = swap;
+                swap = nY; nY = cY; cY = swap;
+                work += w;
+                if (work >= PROGRESS_CELLS) {
+                    addWork(work);
+                    work = 0;
+                }
+            }
+            addWork(work);
+            return new float[][]{nM, nX, nY};
+        }
+
+        /**
+         * Scores of the first cell: zero in the start state, unreachable in the others.
+         */
+        private void start(float[] M, float[] X, float[] Y) {
+            (startState == STATE_M ? M : startState == STATE_X ? X : Y)[0] = 0;
+        }
+
+        /**
+         * Fills the first row, which can only be reached by gaps in the first sequence.
+         */
+        private void gapsAlongRow(int i, float[] M, float[] X, float[] Y) {
+            final float yd = isFreeRow(i) ? 0 : d;
+            final float ye = isFreeRow(i) ? 0 : e;
+            for (int t = 1; t <= j1 - j0; t++) {
+                M[t] = X[t] = Float.NEGATIVE_INFINITY;
+                Y[t] = max(M[t - 1] - yd, Y[t - 1] - ye, X[t - 1] - yd);
+            }
+        }
+
+        /**
+         * Aligns the sub-problem with a full matrix of tracebacks: for each cell the state preceding M
+         * (bits 0-1), X (bits 2-3) and Y (bits 4-5).
+         */
+        private byte[] align() {
+            final int h = i1 - i0;
+            final int w = j1 - j0;
+            final float minusInfinity = Float.NEGATIVE_INFINITY;
+            final byte[] trace = new byte[(h + 1) * (w + 1)];
+            float[] pM = new float[w + 1], pX = new float[w + 1], pY = new float[w + 1];
+            float[] cM = new float[w + 1], cX = new float[w + 1], cY = new float[w + 1];
+
+            Arrays.fill(pM, minusInfinity);
+            Arrays.fill(pX, minusInfinity);
+            Arrays.fill(pY, minusInfinity);
+            start(pM, pX, pY);
+            gapsAlongRow(i0, pM, pX, pY);
+            for (int t = 1; t <= w; t++) {
+                trace[t] = (byte) ((t == 1 ? startState : STATE_Y) << 4);
+            }
+
+            for (int i = i0 + 1; i <= i1; i++) {
+                final int row = s1[i - 1] * codeCount;
+                final int rowStart = (i - i0) * (w + 1);
+                final float yd = isFreeRow(i) ? 0 : d;
+                final float ye = isFreeRow(i) ? 0 : e;
+                float xd = isFreeColumn(j0) ? 0 : d;
+                float xe = isFreeColumn(j0) ? 0 : e;
+                cM[0] = cY[0] = minusInfinity;
+                cX[0] = max(pM[0] - xd, pX[0] - xe, pY[0] - xd);
+                trace[rowStart] = (byte) (argMax(pM[0] - xd, pX[0] - xe, pY[0] - xd, STATE_X) << 2);
+                for (int t = 1; t <= w; t++) {
+                    final int j = j0 + t;
+                    final int fromM = argMax(pM[t - 1], pX[t - 1], pY[t - 1], STATE_M);
+                    cM[t] = (fromM == STATE_M ? pM[t - 1] : fromM == STATE_X ? pX[t - 1] : pY[t - 1])
+                            + codedScores[row + s2[j - 1]];
+                    xd = isFreeColumn(j) ? 0 : d;
+                    xe = isFreeColumn(j) ? 0 : e;
+                    final int fromX = argMax(pM[t] - xd, pX[t] - xe, pY[t] - xd, STATE_X);
+                    cX[t] = max(pM[t] - xd, pX[t] - xe, pY[t] - xd);
+                    final int fromY = argMax(cM[t - 1] - yd, cX[t - 1] - yd, cY[t - 1] - ye, STATE_Y);
+                    cY[t] = max(cM[t - 1] - yd, cY[t - 1] - ye, cX[t - 1] - yd);
+                    trace[rowStart + t] = (byte) (fromM | (fromX << 2) | (fromY << 4));
+                }
+                float[] swap;
+                swap = pM; pM = cM; cM = swap;
+                swap = pX; pX = cX; cX = swap;
+                swap = pY; pY = cY; cY = swap;
+            }
+            addWork(2L * h * w);
+
+            int state = endState;
+            if (state == STATE_ANY) {
+                state = argMax(pM[w], pX[w], pY[w], STATE_M);
+            }
+            score = state == STATE_M ? pM[w] : state == STATE_X ? pX[w] : pY[w];
+
+            final byte[] path = new byte[h + w];
+            int length = 0;
+            int i = h;
+            int t = w;
+            while (i > 0 || t > 0) {
+                final int tb = trace[i * (w + 1) + t];
+                path[length++] = (byte) state;
+                switch (state) {
+                    case STATE_M:
+                        state = tb & 3;
+                        i--;
+                        t--;
+                        break;
+                    case STATE_X:
+                        state = (tb >> 2) & 3;
+                        i--;
+                        break;
+                    default:
+                        state = (tb >> 4) & 3;
+                        t--;
+                        break;
+                }
+            }
+            final byte[] result = new byte[length];
+            for (int k = 0; k < length; k++) {
+                result[k] = path[length - 1 - k];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the state whose score is greatest, the one of the given state first among equals, then M, X, Y
+     */
+    private static int argMax(float m, float x, float y, int preferred) {
+        final float best = max(m, x, y);
+        switch (preferred) {
+            case STATE_X:
+                if (x == best) return STATE_X;
+                break;
+            case STATE_Y:
+                if (y == best) return STATE_Y;
+                break;
+            default:
+                break;
+        }
+        if (m == best) return STATE_M;
+        if (x == best) return STATE_X;
+        return STATE_Y;
+    }
+
+    /**
+     * @return two-element array containing an alignment with maximal score
+     */
+    public String[] getMatch() {
+        return match;
+    }
+
+    /**
+     * @return the score of the best alignment
+     */
+    public float getScore() {
+        return score;
+    }
+
+    /**
+     * Scores in linear memory without traceback; the match of the last alignment is unchanged.
+     */
+    @Override
+    public float getScore(String sq1, String sq2) {
+        if (scorer == null || !scorer.hasSettings(sub, d, e, false, freeGapsAtEnds, null)) {
+            scorer = new AffineScorer(sub, d, e, false, freeGapsAtEnds);
+        }
+        return scorer.getScore(strip(sq1), strip(sq2));
+    }
+
+    /**
+     * No matrix is kept, so prints only the score.
+     *
+     * @param out output to print to
+     */
+    public void printf(Output out) {
+        out.println("score " + formatScore(score));
+    }
+
+    public Result doAlignment(Sequence seq1, Sequence seq2, ProgressListener progress) {
+        doAlignment(seq1.getString(), seq2.getString(), progress);
+        if (cancelled || (progress != null && progress.setProgress(1))) return null;
+        List<Sequence> seqs = new ArrayList<Sequence>(2);
+        seqs.add(new BasicSequence(seq1.getSequenceType(), seq1.getTaxon(), match[0]));
+        seqs.add(new BasicSequence(seq2.getSequenceType(), seq2.getTaxon(), match[1]));
+        return new Result(new BasicAlignment(seqs), getScore());
+    }
+
+    public double getScore(Sequence seq1, Sequence seq2) {
+        return getScore(seq1.getString(), seq2.getString());
+    }
+}
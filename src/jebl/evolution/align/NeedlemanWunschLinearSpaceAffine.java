@@ -7,6 +7,7 @@ import jebl.evolution.alignments.BasicAlignment;
 import jebl.evolution.sequences.BasicSequence;
 import jebl.evolution.sequences.Sequence;
 import jebl.evolution.sequences.SequenceTester;
+import jebl.evolution.sequences.SequenceType;
 import jebl.util.ProgressListener;
 
 import java.util.ArrayList;
@@ -163,6 +164,9 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
     public AlignmentResult[] doAlignment(Profile profile1, Profile profile2,
                                          ProgressListener progress, boolean scoreOnly) {
         this.progress = progress;
+        // prepared before taking the free end gap copies, so that the tables stay with the profiles for reuse
+        profile1.prepareScoreTable(sub);
+        profile2.prepareScoreTable(sub);
         if (freeGapsAtEnds && (profile1.getNumberOfSequences()>1 || profile2.getNumberOfSequences()>1)) {
             profile1 = profile1.supportFreeEndGaps();
             profile2 = profile2.supportFreeEndGaps();
@@ -194,13 +198,6 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
         return matchResult;
     }
 
-    private static float gapFraction(ProfileCharacter character) {
-        float result = character.gapFraction();
-        //assert result < 1.0; //should not be calling this function on a profile that contains all gap Characters at one location.
-        // We do want to support stand-alone sequences with gaps. And it is possible for an extracted alignment to have all gaps. So this assertion has been removed. 
-        return result;
-    }
-
     private float doAlignment(Profile profile1, Profile profile2,
                               int offset1, int offset2, int n, int m, int startType, int endType,
                               AlignmentResult result1, AlignmentResult result2, boolean scoreOnly, boolean freeStartGap, boolean freeEndGap) {
@@ -252,6 +249,8 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
         }
 
         int u = n / 2;
+        final float[] gapFractions1 = profile1.getGapFractions();
+        final float[] gapFractions2 = profile2.getGapFractions();
 
         if (debug) {
             System.out.println(" u=" + u);
@@ -323,10 +322,10 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
             cx[1][0] = 0;
             for (int j = 1; j <= m; j++) {
                 if (cancelled) return 0;
-                s = ProfileCharacter.score(profile1.profile[offset1 + i - 1], profile2.profile[offset2 + j - 1], sub);
+                s = Profile.score(profile1, offset1 + i - 1, profile2, offset2 + j - 1, sub);
                 if (debug) {
-                    System.out.println("loc=" + j + "," + i + " p1=" + profile1.profile[offset1 + i - 1] +
-                            " p2=" + profile2.profile[offset2 + j - 1] + " score=" + s);
+                    System.out.println("loc=" + j + "," + i + " p1=" + profile1.toString(offset1 + i - 1, 1) +
+                            " p2=" + profile2.toString(offset2 + j - 1, 1) + " score=" + s);
                 }
                 /* char c1= s1[i - 1];
               char c2= s2[j - 1];
@@ -371,8 +370,8 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
                     xd = 0;
                     xe = 0;
                 }
-                float gapFraction = gapFraction(profile1.profile[offset1 + i - 1]);
-                float ownGapFraction = gapFraction(profile2.profile[offset2 + j - 1]);
+                float gapFraction = gapFractions1[offset1 + i - 1];
+                float ownGapFraction = gapFractions2[offset2 + j - 1];
                 if (gapCostProduction && gapFraction > 0) {
                     // if the other sequence that we are aligning a gap to
                     // already had some gaps in it, proportionally reduce the gap cost.
@@ -425,8 +424,8 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
                     yd = 0;
                     ye = 0;
                 }
-                ownGapFraction = gapFraction(profile1.profile[offset1 + i - 1]);
-                gapFraction = gapFraction(profile2.profile[offset2 + j - 1]);
+                ownGapFraction = gapFractions1[offset1 + i - 1];
+                gapFraction = gapFractions2[offset2 + j - 1];
                 if (gapCostProduction && gapFraction > 0) {
                     // if the other sequence that we are aligning a gap to
                     // already had some gaps in it, proportionally reduce the gap cost.
@@ -623,6 +622,25 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
         return resultScore;
     }
 
+    /**
+     * Scores in linear memory without traceback; the match of the last alignment is unchanged.
+     */
+    @Override
+    public float getScore(String sq1, String sq2) {
+        return getScorer(false, freeGapsAtEnds, null).getScore(strip(sq1), strip(sq2));
+    }
+
+    /**
+     * @param sq1 first sequence
+     * @param sq2 second sequence
+     * @param sequenceType type of the sequences: only columns of its canonical states are counted as matches or
+     * mismatches
+     * @return score and composition of a best alignment of sq1 and sq2, found in linear memory without traceback
+     */
+    public AffineScorer.Counts getCounts(String sq1, String sq2, SequenceType sequenceType) {
+        return getScorer(false, freeGapsAtEnds, sequenceType).getCounts(strip(sq1), strip(sq2));
+    }
+
     /* private void setScore(float resultScore) {
         this.resultScore=resultScore;
     }*/
@@ -722,8 +740,7 @@ public class NeedlemanWunschLinearSpaceAffine extends AlignLinearSpaceAffine imp
     }
 
     public double getScore(Sequence seq1, Sequence seq2) {
-        doAlignment(seq1.getString(), seq2.getString(), null, true);
-        return getScore();
+        return getScore(seq1.getString(), seq2.getString());
     }
 }
 
@@ -1,8 +1,10 @@
 package jebl.evolution.align;
 
+import jebl.evolution.align.scores.Scores;
 import jebl.evolution.alignments.Alignment;
 import jebl.evolution.sequences.Sequence;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,65 +15,138 @@ import java.util.Map;
  *
  * Represents a profile of a number of sequences to be used in a
  * multiple sequence alignment.
+ *
+ * The characters of each column are counted in a single array, column after column, with one slot per distinct
+ * character in the profile. Each sequence is kept as its residues without gaps plus the runs of gap columns, so
+ * that combining profiles and removing a sequence never build the padded sequences. A profile of one sequence
+ * keeps no counts, just the characters of the sequence.
+ *
+ * A profile of several sequences may also keep a score table: for each column, the sum over its characters of
+ * their scores against every residue code of the scores (see {@link Scores#getCode}), so the table is as wide as
+ * the alphabet. The score of a character against a column is then a single look up, and that of one column
+ * against another a sum over the characters of just one of them. The table is kept up to date as sequences are
+ * removed and profiles combined, so refinement does not rebuild it; it is held in doubles so that scores which
+ * are not integers (as estimated nucleotide scores are) do not drift as they are added and taken away. As the
+ * aligners already do, the table assumes that the scores are symmetric.
  */
 class Profile {
-    ProfileCharacter[] profile;
-    private final int alphabetSize;
-//    int length;
+    private static final char GAP = '-';
+    private static final char END_GAP = '_';
+
+    private int length;
     int sequenceCount;
-    private boolean automaticallyCalculatedAlphabetSize = false;
-    private Map<Integer, String> paddedSequences = new HashMap<Integer, String>();
+    // the character counted in each slot
+    private char[] characters;
+    private int width;
+    // slot of each ASCII character, or -1
+    private int[] slots = new int[128];
+    // counts[column * width + slot]; null while the profile holds a single sequence, which is then in row
+    private int[] counts;
+    private char[] row;
+    // scoreTable[column * scoreTableWidth + code], for the scores in scoreTableScores; null if not yet needed
+    private double[] scoreTable;
+    private Scores scoreTableScores;
+    private int scoreTableWidth;
+    // the residue code in scoreTableScores of the character counted in each slot, while there is a score table
+    private byte[] slotCodes;
+    // fraction of gaps in each column, built on first use and replaced (not changed) when the counts change
+    private float[] gapFractions;
+    private Map<Integer, Member> members = new HashMap<Integer, Member>();
     private boolean supportsFreeEndGaps=false;
     private boolean isImmutable = false;
 
+    /**
+     * A sequence of the profile, as its residues and the columns in which it has gaps.
+     */
+    private static final class Member {
+        final String residues;
+        // start column and length of each run of gaps, in column order
+        final int[] gaps;
+
+        Member(String residues, int[] gaps) {
+            this.residues = residues;
+            this.gaps = gaps;
+        }
+
+        static Member fromPadded(String sequence) {
+            StringBuilder residues = new StringBuilder(sequence.length());
+            int[] gaps = new int[8];
+            int runs = 0;
+            for (int i = 0; i < sequence.length(); i++) {
+                char character = sequence.charAt(i);
+                if (!isGap(character)) {
+                    residues.append(character);
+                    continue;
+                }
+                if (runs > 0 && gaps[2 * runs - 2] + gaps[2 * runs - 1] == i) {
+                    gaps[2 * runs - 1]++;
+                    continue;
+                }
+                if (2 * runs == gaps.length) gaps = Arrays.copyOf(gaps, 2 * gaps.length);
+                gaps[2 * runs] = i;
+                gaps[2 * runs + 1] = 1;
+                runs++;
+            }
+            return new Member(residues.toString(), Arrays.copyOf(gaps, 2 * runs));
+        }
+
+        char[] toPadded(int length, boolean endGaps) {
+            char[] padded = new char[length];
+            int column = 0;
+            int residue = 0;
+            for (int k = 0; k < gaps.length; k += 2) {
+                while (column < gaps[k]) padded[column++] = residues.charAt(residue++);
+                char gap = endGaps && (gaps[k] == 0 || gaps[k] + gaps[k + 1] == length) ? END_GAP : GAP;
+                Arrays.fill(padded, column, column + gaps[k + 1], gap);
+                column += gaps[k + 1];
+            }
+            while (column < length) padded[column++] = residues.charAt(residue++);
+            return padded;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Member)) return false;
+            Member other = (Member) o;
+            return residues.equals(other.residues) && Arrays.equals(gaps, other.gaps);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * residues.hashCode() + Arrays.hashCode(gaps);
+        }
+    }
+
+    private static boolean isGap(char character) {
+        return character == GAP || character == END_GAP;
+    }
+
     public String getSequence(int sequenceNumber) {
-        return paddedSequences.get(sequenceNumber);
+        Member member = members.get(sequenceNumber);
+        return member == null ? null : new String(member.toPadded(length, supportsFreeEndGaps));
     }
 
 
+    /**
+     * @param alphabetSize the number of distinct characters expected in the profile
+     */
     public Profile(int alphabetSize) {
-        this.alphabetSize = alphabetSize;
         if (alphabetSize < 0) {
             throw new IllegalArgumentException("Nonnegative alphabet size expected, got " + alphabetSize);
         }
+        characters = new char[Math.max(alphabetSize, 1) + 1];
+        Arrays.fill(slots, -1);
     }
 
     /**
-     * Should only be used for constructing a profile that will not
-     * have other sequences added.
-     *
-     * Correct usage in other cases is to do
-     * new Profile( calculateAlphabetSize(sequences));
+     * Creates a profile of a single sequence, which can not be changed.
      *
-     * @param sequenceNumber
-     * @param sequence
-     * @see #createImmutableProfile(int, String)
-     */
-    public Profile(int sequenceNumber,String sequence) {
-        this(calculateAlphabetSize(new String[] {sequence}));
-        addSequence(sequenceNumber,sequence);
-        automaticallyCalculatedAlphabetSize = true;
-    }
-
-    /**
-     * Just like {@link jebl.evolution.align.Profile#Profile(int, String)} except that the create profile is immutable.
-     * An immutable profile uses significantly less memory than a mutable profile.
-     * 
      * @return an immutable profile.
      */
     public static Profile createImmutableProfile(int sequenceNumber, String sequence) {
-        final int alphabetSize = calculateAlphabetSize(new String[]{sequence});
-        Profile profile = new Profile(alphabetSize);
+        Profile profile = new Profile(0);
+        profile.addSequence(sequenceNumber, sequence);
         profile.isImmutable = true;
-        profile.automaticallyCalculatedAlphabetSize = true;
-        profile.sequenceCount=1;
-        sequence = sequence.toUpperCase();
-        profile.paddedSequences.put(sequenceNumber, sequence);
-        int length = sequence.length();
-        profile.profile = new ProfileCharacter[length];
-        for (int i = 0; i < length; i++) {
-            profile.profile[i]= ProfileCharacter.getImmutableProfileCharacter(sequence.charAt(i));
-        }
         return profile;
     }
 
@@ -86,7 +161,7 @@ class Profile {
     }
 
     public Profile(Alignment alignment, int alphabetSize, int offset) {
-        this.alphabetSize = alphabetSize;
+        this(alphabetSize);
         final List<Sequence> sequenceList = alignment.getSequenceList();
         for(int i = 0; i < sequenceList.size(); ++i) {
             addSequence(i + offset, sequenceList.get(i).getString());
@@ -105,147 +180,507 @@ class Profile {
      * @return the number of residues in each sequence in the profile
      */
     public int length () {
-        return profile.length;
+        return length;
     }
 
-    private static ProfileCharacter[] createProfile(String sequence, int alphabetSize) {
-        int length = sequence.length();
-        ProfileCharacter results[] = new ProfileCharacter[length];
-        for (int i = 0; i < length; i++) {
-            ProfileCharacter profile = new ProfileCharacter(alphabetSize);
-            profile.addCharacter(sequence.charAt(i), 1);
-            results[i] = profile;
+    private int slot(char character) {
+        if (character < slots.length) return slots[character];
+        for (int i = 0; i < width; i++) {
+            if (characters[i] == character) return i;
         }
-        return results;
+        return -1;
+    }
+
+    /**
+     * @return the slot of the character, adding one (and widening the counts) if the profile has none
+     */
+    private int addSlot(char character) {
+        int slot = slot(character);
+        if (slot >= 0) return slot;
+        if (width == characters.length) characters = Arrays.copyOf(characters, 2 * width);
+        if (scoreTableScores != null) {
+            if (width == slotCodes.length) slotCodes = Arrays.copyOf(slotCodes, characters.length);
+            slotCodes[width] = scoreTableScores.getCode(character);
+        }
+        if (counts != null) {
+            int[] widened = new int[length * (width + 1)];
+            for (int column = 0; column < length; column++) {
+                System.arraycopy(counts, column * width, widened, column * (width + 1), width);
+            }
+            counts = widened;
+        }
+        characters[width] = character;
+        if (character < slots.length) slots[character] = width;
+        return width++;
+    }
+
+    /**
+     * Changes a profile of a single sequence to keep counts, so that it can have sequences added or removed.
+     */
+    private void countRow() {
+        if (counts != null || row == null) return;
+        for (char character : row) addSlot(isGap(character) ? GAP : character);
+        counts = new int[length * width];
+        for (int column = 0; column < length; column++) {
+            counts[column * width + slot(isGap(row[column]) ? GAP : row[column])] = 1;
+        }
+        row = null;
     }
 
     void addSequence(int sequenceNumber,String sequence) {
         assertMutable();
+        scoreTable = null;
+        scoreTableScores = null;
+        slotCodes = null;
+        gapFractions = null;
         sequence=sequence.toUpperCase();
-        if (automaticallyCalculatedAlphabetSize)
-            throw new IllegalStateException("if the constructor 'public Profile(int sequenceNumber,String sequence)'  is used, it's not safe to add new sequences");
-        if (supportsFreeEndGaps) sequence=supportFreeEndGaps( sequence);
-        sequenceCount++;
-        if (sequenceCount == 1) {
-            profile = createProfile(sequence, alphabetSize);
+        if (sequenceCount == 0) {
+            length = sequence.length();
+            row = sequence.toCharArray();
         }
         else {
-            assert(profile.length == sequence.length());
-            for (int i = 0; i < profile.length; i++) {
-                ProfileCharacter character = profile[i];
-                character.addCharacter(sequence.charAt(i), 1);
+            assert(length == sequence.length());
+            countRow();
+            for (int i = 0; i < length; i++) {
+                char character = sequence.charAt(i);
+                if (character == END_GAP) character = GAP;
+                int slot = addSlot(character);
+                counts[i * width + slot]++;
             }
         }
-        paddedSequences.put(sequenceNumber, sequence);
+        sequenceCount++;
+        members.put(sequenceNumber, Member.fromPadded(sequence));
+    }
 
-//        length = profile.length;
+    /**
+     * @return a mutable copy of this profile, which may have sequences removed without affecting this profile
+     */
+    Profile copy() {
+        Profile result = new Profile(0);
+        result.length = length;
+        result.sequenceCount = sequenceCount;
+        result.characters = characters.clone();
+        result.width = width;
+        result.slots = slots.clone();
+        result.counts = counts == null ? null : counts.clone();
+        result.row = row == null ? null : row.clone();
+        result.scoreTable = scoreTable == null ? null : scoreTable.clone();
+        result.scoreTableScores = scoreTableScores;
+        result.scoreTableWidth = scoreTableWidth;
+        result.slotCodes = slotCodes == null ? null : slotCodes.clone();
+        result.gapFractions = gapFractions;
+        result.members.putAll(members);
+        result.supportsFreeEndGaps = supportsFreeEndGaps;
+        return result;
+    }
+
+    /**
+     * @return true if the other profile holds the same sequences, aligned in the same way, as this profile
+     */
+    boolean hasSameSequences(Profile other) {
+        return members.equals(other.members);
     }
 
-    public void remove(Profile remove) {
+    /**
+     * Removes a sequence from this profile, along with the columns left holding only gaps.
+     *
+     * @param sequenceNumber number of the sequence to remove
+     */
+    public void remove(int sequenceNumber) {
         assertMutable();
-        int size = length();
-        assert(size == remove.length());
-        for (int i = 0; i < size; i++) {
-            profile[i].removeProfileCharacter(remove.profile[i]);
+        Member member = members.remove(sequenceNumber);
+        if (member == null) {
+            throw new IllegalArgumentException("Sequence " + sequenceNumber + " is not in this profile");
         }
-        sequenceCount-= remove.sequenceCount;
-        for (Integer sequenceNumber : remove.paddedSequences.keySet()) {
-            paddedSequences.remove(sequenceNumber);
+        countRow();
+        gapFractions = null;
+        int column = 0;
+        int residue = 0;
+        for (int k = 0; k <= member.gaps.length; k += 2) {
+            int end = k < member.gaps.length ? member.gaps[k] : length;
+            while (column < end) removeCharacter(column++, member.residues.charAt(residue++));
+            if (k == member.gaps.length) break;
+            end += member.gaps[k + 1];
+            while (column < end) removeCharacter(column++, GAP);
         }
+        sequenceCount--;
 
         trim();
 
     }
 
-    /* used after a sequence has been removed from a profile to remove profile characters
+    private void removeCharacter(int column, char character) {
+        int slot = slot(character);
+        counts[column * width + slot]--;
+        if (scoreTable != null) addScores(column, slotCodes[slot], -1);
+    }
+
+    /* used after a sequence has been removed from a profile to remove columns
     that are all gap characters in the remaining sequences profiled.
     */
     private void trim() {
         assertMutable();
-        int gapCount = 0;
-        int count = 0;
-        for (ProfileCharacter character : profile) {
-            if(character.isAllGaps ())
-                gapCount ++;
-            else
-                count ++;
-        }
-//        System.out.println("gaps =" + gapCount+ "," + count);
-        if(gapCount== 0) return;
-        ProfileCharacter characters[]=new ProfileCharacter[count];
-        char [][] sequences = new char[sequenceCount][];
-        char[][] newSequences = new char[sequenceCount][];
-        int[] sequenceNumbers =new int[sequenceCount];
-        for (int i = 0; i < sequenceCount; i++) {
-            newSequences[i]=new char[count];
-        }
-        int i = 0;
-        for (Map.Entry<Integer, String> entry : paddedSequences.entrySet()) {
-            sequenceNumbers[i]= entry.getKey();
-            sequences[i++] = entry.getValue ().toCharArray();
-        }
-        assert(i== sequenceCount);
-        int index = 0;
-        int sourceIndex = 0;
-        for (ProfileCharacter character : profile) {
-            if (character.isAllGaps()) {
-                sourceIndex++;
-                continue;
+        // dropped[c] is the number of columns before column c that are all gaps
+        int[] dropped = new int[length + 1];
+        for (int column = 0; column < length; column++) {
+            dropped[column + 1] = dropped[column] + (isAllGaps(column) ? 1 : 0);
+        }
+        if (dropped[length] == 0) return;
+        int count = length - dropped[length];
+        int[] trimmed = new int[count * width];
+        for (int column = 0; column < length; column++) {
+            if (dropped[column + 1] == dropped[column]) {
+                System.arraycopy(counts, column * width, trimmed, (column - dropped[column]) * width, width);
             }
-            characters [ index  ] = character;
-            for (int j = 0; j < sequenceCount; j++) {
-                newSequences[j][ index ] = sequences [j][ sourceIndex ];
+        }
+        // A dropped column is a gap in every sequence, so no two runs of gaps can meet
+        for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            int[] gaps = new int[member.gaps.length];
+            int runs = 0;
+            for (int k = 0; k < member.gaps.length; k += 2) {
+                int start = member.gaps[k];
+                int end = start + member.gaps[k + 1];
+                int runLength = (end - dropped[end]) - (start - dropped[start]);
+                if (runLength == 0) continue;
+                gaps[2 * runs] = start - dropped[start];
+                gaps[2 * runs + 1] = runLength;
+                runs++;
             }
-            sourceIndex++;
-            index ++;
+            entry.setValue(new Member(member.residues, Arrays.copyOf(gaps, 2 * runs)));
         }
-        for (int j = 0; j < sequenceCount; j++) {
-            String sequence = new String(newSequences[j]);
-            assert(sequence.length()== count);
-            paddedSequences.put(sequenceNumbers[j], sequence);
+        counts = trimmed;
+        if (scoreTable != null) {
+            double[] trimmedTable = new double[count * scoreTableWidth];
+            for (int column = 0; column < length; column++) {
+                if (dropped[column + 1] == dropped[column]) {
+                    System.arraycopy(scoreTable, column * scoreTableWidth, trimmedTable,
+                            (column - dropped[column]) * scoreTableWidth, scoreTableWidth);
+                }
+            }
+            scoreTable = trimmedTable;
         }
-        profile= characters;
+        length = count;
     }
 
-    public static Profile combine(Profile profile1, Profile profile2, AlignmentResult result1, AlignmentResult result2) {
-        int size = result1.size;
-        int alphabetSize = Math.max(profile1.alphabetSize,profile2.alphabetSize);
-        Profile result = new Profile(alphabetSize);
-        result.profile = new ProfileCharacter[size];
-        int index1= 0;
-        int index2= 0;
-        for (int i = 0; i < size; i++) {
-            ProfileCharacter character = new ProfileCharacter(alphabetSize);
-            if(result1.values[i]) {
-                character.addProfileCharacter(profile1.profile[index1++]);
+    private boolean isAllGaps(int column) {
+        if (counts == null) return isGap(row[column]);
+        int gaps = 0;
+        int gap = slot(GAP);
+        int endGap = slot(END_GAP);
+        if (gap >= 0) gaps += counts[column * width + gap];
+        if (endGap >= 0) gaps += counts[column * width + endGap];
+        return gaps == sequenceCount;
+    }
+
+    /**
+     * @return the fraction of characters in the column that are gap characters
+     */
+    public float gapFraction(int column) {
+        return getGapFractions()[column];
+    }
+
+    /**
+     * @return the fraction of characters in each column that are gap characters, which the aligners look up for
+     * every cell. The array is shared and must not be modified.
+     */
+    synchronized float[] getGapFractions() {
+        if (gapFractions != null) return gapFractions;
+        float[] fractions = new float[length];
+        if (sequenceCount == 0) {
+            // no characters, so no gaps
+        } else if (counts == null) {
+            for (int column = 0; column < length; column++) {
+                fractions[column] = isGap(row[column]) ? 1 : 0;
             }
-            else {
-                character.addGaps(profile1.sequenceCount);
+        } else {
+            int gap = slot(GAP);
+            int endGap = slot(END_GAP);
+            for (int column = 0; column < length; column++) {
+                int gaps = 0;
+                if (gap >= 0) gaps += counts[column * width + gap];
+                if (endGap >= 0) gaps += counts[column * width + endGap];
+                fractions[column] = ((float) gaps) / sequenceCount;
             }
-            if(result2.values[i]) {
-                character.addProfileCharacter(profile2.profile[index2++]);
+        }
+        gapFractions = fractions;
+        return fractions;
+    }
+
+    /**
+     * Makes sure that a profile of several sequences has a score table for the scores, which speeds up
+     * {@link #score}. Computing the table takes about as long as scoring each column against a few others.
+     */
+    synchronized void prepareScoreTable(Scores scores) {
+        if (counts == null || scoreTableScores == scores) return;
+        final int codeCount = scores.getCodeCount();
+        final float[] codedScores = scores.getCodedScores();
+        byte[] codes = getCodes(scores);
+        double[] table = new double[length * codeCount];
+        for (int column = 0; column < length; column++) {
+            for (int i = 0; i < width; i++) {
+                final int count = counts[column * width + i];
+                if (count == 0) continue;
+                final int row = codes[i] * codeCount;
+                final int base = column * codeCount;
+                for (int c = 0; c < codeCount; c++) {
+                    table[base + c] += codedScores[row + c] * count;
+                }
             }
-            else {
-                character.addGaps(profile2.sequenceCount);
+        }
+        slotCodes = codes;
+        scoreTableWidth = codeCount;
+        scoreTable = table;
+        scoreTableScores = scores;
+    }
+
+    /**
+     * @return the residue code of the character counted in each slot, in the scores
+     */
+    private byte[] getCodes(Scores scores) {
+        if (scoreTableScores == scores) return slotCodes;
+        byte[] codes = new byte[characters.length];
+        for (int i = 0; i < width; i++) {
+            codes[i] = scores.getCode(characters[i]);
+        }
+        return codes;
+    }
+
+    /**
+     * Adds the scores of a residue code, a number of times, to a column of the score table
+     */
+    private void addScores(int column, int code, int times) {
+        final float[] codedScores = scoreTableScores.getCodedScores();
+        final int base = column * scoreTableWidth;
+        final int row = code * scoreTableWidth;
+        for (int c = 0; c < scoreTableWidth; c++) {
+            scoreTable[base + c] += codedScores[row + c] * times;
+        }
+    }
+
+    /**
+     * @return the average score of the characters in a column of one profile against those in a column of another
+     */
+    public static float score(Profile profile1, int column1, Profile profile2, int column2, Scores scores) {
+        final float[][] score = scores.score;
+        if (profile1.counts == null) {
+            char character1 = profile1.row[column1];
+            if (profile2.counts == null) {
+                return score[character1][profile2.row[column2]];
+            }
+            if (profile2.scoreTableScores == scores) {
+                return (float) (profile2.scoreTable[column2 * profile2.scoreTableWidth + scores.getCode(character1)] /
+                        profile2.sequenceCount);
+            }
+            return profile2.score(column2, score[character1]);
+        }
+        if (profile2.counts == null) {
+            char character2 = profile2.row[column2];
+            if (profile1.scoreTableScores == scores) {
+                return (float) (profile1.scoreTable[column1 * profile1.scoreTableWidth + scores.getCode(character2)] /
+                        profile1.sequenceCount);
+            }
+            return profile1.score(column1, score[character2]);
+        }
+        if (profile2.scoreTableScores == scores) {
+            return profile1.score(column1, profile1.getCodes(scores), profile2.scoreTable,
+                    column2 * profile2.scoreTableWidth) / (((float) profile1.sequenceCount) * profile2.sequenceCount);
+        }
+        if (profile1.scoreTableScores == scores) {
+            return profile2.score(column2, profile2.getCodes(scores), profile1.scoreTable,
+                    column1 * profile1.scoreTableWidth) / (((float) profile1.sequenceCount) * profile2.sequenceCount);
+        }
+        final int[] counts1 = profile1.counts;
+        final int[] counts2 = profile2.counts;
+        final int base1 = column1 * profile1.width;
+        final int base2 = column2 * profile2.width;
+        float total = 0;
+        for (int i = 0; i < profile1.width; i++) {
+            final int count1 = counts1[base1 + i];
+            if (count1 == 0) continue;
+            final float[] row = score[profile1.characters[i]];
+            float sum = 0;
+            for (int j = 0; j < profile2.width; j++) {
+                final int count2 = counts2[base2 + j];
+                if (count2 != 0) sum += row[profile2.characters[j]] * count2;
             }
-            result.profile[i]= character;
+            total += sum * count1;
+        }
+        return total / (((float) profile1.sequenceCount) * profile2.sequenceCount);
+    }
+
+    /**
+     * @param codes the residue code of each slot, in the scores of the table
+     * @return the sum over the characters in the column of their entries in a column of another profile's
+     * score table
+     */
+    private float score(int column, byte[] codes, double[] table, int tableBase) {
+        final int base = column * width;
+        double total = 0;
+        for (int i = 0; i < width; i++) {
+            final int count = counts[base + i];
+            if (count != 0) total += table[tableBase + codes[i]] * count;
         }
-        for (Map.Entry<Integer, String> entry : profile1.paddedSequences.entrySet()) {
-            String sequence = entry.getValue();
-            sequence = buildAlignmentString(sequence, result1);
-            result.paddedSequences.put(entry.getKey(), sequence);
+        return (float) total;
+    }
+
+    /**
+     * @param scores the scores of one character against every other
+     * @return the average score of the characters in the column against the one character
+     */
+    private float score(int column, float[] scores) {
+        final int base = column * width;
+        float total = 0;
+        for (int i = 0; i < width; i++) {
+            final int count = counts[base + i];
+            if (count != 0) total += scores[characters[i]] * count;
         }
-        for (Map.Entry<Integer, String> entry : profile2.paddedSequences.entrySet()) {
-            String sequence = entry.getValue();
-            sequence = buildAlignmentString(sequence, result2);
-            result.paddedSequences.put(entry.getKey(), sequence);
+        return total / sequenceCount;
+    }
+
+    public static Profile combine(Profile profile1, Profile profile2, AlignmentResult result1, AlignmentResult result2) {
+        int size = result1.size;
+        Profile result = new Profile(profile1.width + profile2.width);
+        result.length = size;
+        result.sequenceCount = profile1.sequenceCount + profile2.sequenceCount;
+        int[] slots1 = result.addSlots(profile1);
+        int[] slots2 = result.addSlots(profile2);
+        int gap = result.addSlot(GAP);
+        result.counts = new int[size * result.width];
+        result.addColumns(profile1, slots1, result1, gap);
+        result.addColumns(profile2, slots2, result2, gap);
+        Scores scores = profile1.scoreTableScores != null ? profile1.scoreTableScores : profile2.scoreTableScores;
+        if (scores != null && (profile1.counts == null || profile1.scoreTableScores == scores)
+                && (profile2.counts == null || profile2.scoreTableScores == scores)) {
+            result.slotCodes = result.getCodes(scores);
+            result.scoreTableScores = scores;
+            result.scoreTableWidth = scores.getCodeCount();
+            result.scoreTable = new double[size * result.scoreTableWidth];
+            result.addScoreTable(profile1, result1);
+            result.addScoreTable(profile2, result2);
         }
-        result.sequenceCount= profile1.sequenceCount + profile2.sequenceCount;
-        assert(result.sequenceCount == result.paddedSequences.size());
-//        result.length = size;
+        result.addMembers(profile1, result1);
+        result.addMembers(profile2, result2);
+        assert(result.sequenceCount == result.members.size());
         return result;
     }
 
+    /**
+     * @return the slot in this profile of each slot of the other, or of each character if the other profile
+     * holds a single sequence
+     */
+    private int[] addSlots(Profile other) {
+        if (other.counts == null) {
+            for (char character : other.row) addSlot(isGap(character) ? GAP : character);
+            return null;
+        }
+        int[] result = new int[other.width];
+        for (int i = 0; i < other.width; i++) {
+            result[i] = addSlot(isGap(other.characters[i]) ? GAP : other.characters[i]);
+        }
+        return result;
+    }
+
+    private void addColumns(Profile other, int[] otherSlots, AlignmentResult alignment, int gap) {
+        int index = 0;
+        for (int i = 0; i < alignment.size; i++) {
+            int base = i * width;
+            if (!alignment.values[i]) {
+                counts[base + gap] += other.sequenceCount;
+            } else if (otherSlots == null) {
+                char character = other.row[index++];
+                counts[base + slot(isGap(character) ? GAP : character)]++;
+            } else {
+                int otherBase = (index++) * other.width;
+                for (int j = 0; j < other.width; j++) {
+                    counts[base + otherSlots[j]] += other.counts[otherBase + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the score table of another profile, or the scores of its characters if it has a single sequence,
+     * to the columns it is aligned to.
+     */
+    private void addScoreTable(Profile other, AlignmentResult alignment) {
+        final int gap = scoreTableScores.getCode(GAP);
+        int index = 0;
+        for (int i = 0; i < alignment.size; i++) {
+            if (!alignment.values[i]) {
+                addScores(i, gap, other.sequenceCount);
+            } else if (other.counts == null) {
+                char character = other.row[index++];
+                addScores(i, isGap(character) ? gap : scoreTableScores.getCode(character), 1);
+            } else {
+                final int otherBase = (index++) * scoreTableWidth;
+                final int base = i * scoreTableWidth;
+                for (int c = 0; c < scoreTableWidth; c++) {
+                    scoreTable[base + c] += other.scoreTable[otherBase + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the sequences of another profile, with the gaps inserted into it by an alignment.
+     */
+    private void addMembers(Profile other, AlignmentResult alignment) {
+        // column of the alignment for each column of the other profile, and the runs of inserted gaps
+        int[] columns = new int[other.length + 1];
+        int[] inserted = new int[8];
+        int runs = 0;
+        int index = 0;
+        for (int i = 0; i < alignment.size; i++) {
+            if (alignment.values[i]) {
+                columns[index++] = i;
+            } else if (runs > 0 && inserted[2 * runs - 2] + inserted[2 * runs - 1] == i) {
+                inserted[2 * runs - 1]++;
+            } else {
+                if (2 * runs == inserted.length) inserted = Arrays.copyOf(inserted, 2 * inserted.length);
+                inserted[2 * runs] = i;
+                inserted[2 * runs + 1] = 1;
+                runs++;
+            }
+        }
+        assert(index == other.length);
+        for (Map.Entry<Integer, Member> entry : other.members.entrySet()) {
+            Member member = entry.getValue();
+            members.put(entry.getKey(), new Member(member.residues, mapGaps(member.gaps, columns, inserted, runs)));
+        }
+    }
+
+    /**
+     * Merges the gap runs of a sequence, moved to the columns of the alignment, with the gaps inserted by it.
+     */
+    private static int[] mapGaps(int[] gaps, int[] columns, int[] inserted, int insertedRuns) {
+        int[] result = new int[gaps.length + 2 * insertedRuns];
+        int runs = 0;
+        int k = 0;
+        int l = 0;
+        while (k < gaps.length || l < 2 * insertedRuns) {
+            int start;
+            int end;
+            if (l == 2 * insertedRuns || (k < gaps.length && columns[gaps[k]] < inserted[l])) {
+                start = columns[gaps[k]];
+                end = columns[gaps[k] + gaps[k + 1] - 1] + 1;
+                k += 2;
+            } else {
+                start = inserted[l];
+                end = start + inserted[l + 1];
+                l += 2;
+            }
+            if (runs > 0 && result[2 * runs - 2] + result[2 * runs - 1] >= start) {
+                result[2 * runs - 1] = Math.max(result[2 * runs - 1], end - result[2 * runs - 2]);
+            } else {
+                result[2 * runs] = start;
+                result[2 * runs + 1] = end - start;
+                runs++;
+            }
+        }
+        return runs == result.length / 2 ? result : Arrays.copyOf(result, 2 * runs);
+    }
+
     public static int calculateAlphabetSize(String[] sequences) {
         int total = 0;
         boolean found[] = new boolean[127];
@@ -279,26 +714,16 @@ class Profile {
 
     public void print(boolean displaySequences) {
         if(displaySequences) {
-            int maximum = 0;
-            for (int k = 0; k < paddedSequences.size(); k++) {
-                String sequence = paddedSequences.get(k);
-                maximum = Math.max(maximum, sequence.length ());
-                System.out.println(sequence);
+            for (Member member : members.values()) {
+                System.out.println(new String(member.toPadded(length, supportsFreeEndGaps)));
             }
-            for (int i = 0; i < maximum; i++) {
+            for (int i = 0; i < length; i++) {
                 System.out.print(i % 10);
             }
         }
         System.out.println ();
-        int count = 0;
-        int index = 0;
-        for (ProfileCharacter character : profile) {
-            System.out.print(" " +(index ++) + ":");
-            count +=character.print ();
-            if(count> 800000) {
-                count = 0;
-                System.out.println ();
-            }
+        for (int i = 0; i < length; i++) {
+            System.out.print(" " + i + ":" + toString(i, 1));
         }
         System.out.println();
     }
@@ -312,38 +737,20 @@ class Profile {
      */
     public String toString(int offset, int count) {
         StringBuilder result =new StringBuilder();
-        for (int i = 0; i < count; i++) {
-            ProfileCharacter character = profile[ offset +i];
-            result.append(character.toString());
-        }
-        return result.toString();
-    }
-
-    static String supportFreeEndGaps( String sequence) {
-        char[] characters =sequence.toCharArray();
-        int count = characters.length;
-        int highestNonGapIndex = 0;
-        int lowestNonGapIndex = count;
-        for (int i = 0; i<count;i++) {
-            if ( characters [i] !='-') {
-                lowestNonGapIndex=i;
-                break;
+        for (int column = offset; column < offset + count; column++) {
+            if (counts == null) {
+                result.append(row[column]);
+                continue;
             }
-        }
-        for (int i = count-1; i >=0 ; i--) {
-            if (characters[i] != '-') {
-                highestNonGapIndex = i;
-                break;
+            result.append("(");
+            for (int i = 0; i < width; i++) {
+                if (counts[column * width + i] > 0) {
+                    result.append(String.format("%c: %d ", characters[i], counts[column * width + i]));
+                }
             }
+            result.append(")");
         }
-        StringBuilder result =new StringBuilder(count);
-        for (int i = 0; i < count; i++) {
-            if (i<lowestNonGapIndex || i>highestNonGapIndex)
-                result.append('_');
-            else
-                result.append (characters[i]);
-        }
-         return result.toString();
+        return result.toString();
     }
 
     /**
@@ -356,12 +763,33 @@ class Profile {
     public Profile supportFreeEndGaps() {
         if (supportsFreeEndGaps) return this;
         if (sequenceCount<2) return this;
-        Profile result =new Profile(alphabetSize+1);
+        Profile result = copy();
         result.supportsFreeEndGaps=true;
-        for (Map.Entry<Integer, String> entry : paddedSequences.entrySet()) {
-             String sequence =entry.getValue();
-             result.addSequence(entry.getKey(), sequence);
+        result.isImmutable = true;
+        int gap = result.slot(GAP);
+        int endGap = result.addSlot(END_GAP);
+        for (Member member : members.values()) {
+            int[] gaps = member.gaps;
+            if (gaps.length == 0) continue;
+            result.moveEndGaps(gaps[0], gaps[1], gap, endGap);
+            int last = gaps.length - 2;
+            if (last > 0) result.moveEndGaps(gaps[last], gaps[last + 1], gap, endGap);
         }
         return result;
     }
+
+    /**
+     * Counts a run of gaps as end gaps, if it is at either end of the profile
+     */
+    private void moveEndGaps(int start, int runLength, int gap, int endGap) {
+        if (start != 0 && start + runLength != length) return;
+        for (int column = start; column < start + runLength; column++) {
+            counts[column * width + gap]--;
+            counts[column * width + endGap]++;
+            if (scoreTable != null) {
+                addScores(column, slotCodes[gap], -1);
+                addScores(column, slotCodes[endGap], 1);
+            }
+        }
+    }
 }
@@ -9,7 +9,10 @@ import jebl.evolution.align.scores.Scores;
  * Represents a single residue in a multiple alignment profile
  * It can represent character frequencies inside an alignment column
  * as a fraction of the total number of characters in that column.
+ *
+ * @deprecated {@link Profile} no longer uses this class; it keeps the counts of all columns in one array.
  */
+@Deprecated
 public class ProfileCharacter {
     /*
     'characters' contains the actual residue character, and a parallel array called
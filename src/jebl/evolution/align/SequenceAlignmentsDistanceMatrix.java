@@ -2,6 +2,7 @@ package jebl.evolution.align;
 
 import jebl.evolution.distances.*;
 import jebl.evolution.sequences.Sequence;
+import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.TreeBuilderFactory;
 import jebl.util.CompositeProgressListener;
@@ -9,6 +10,10 @@ import jebl.util.ProgressListener;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -16,6 +21,11 @@ import java.util.List;
  * specified sequences (unlike the methods in jebl.evolution.distances, which
  * extract the pairwise distances from a multiple sequence alignment).
  *
+ * Given an {@link AlignerPool}, the alignments are done on all available cores, each thread with an aligner borrowed
+ * from the pool; the pool is cleared when the matrix is built.
+ * Jukes-Cantor distances with a {@link NeedlemanWunschLinearSpaceAffine} aligner need only the numbers of matches
+ * and mismatches, which are counted in linear memory without building alignments.
+ *
  * @author Joseph Heled
  * @version $Id: SequenceAlignmentsDistanceMatrix.java 1057 2010-05-24 03:20:46Z matt_kearse $
  *
@@ -38,6 +48,22 @@ public class SequenceAlignmentsDistanceMatrix extends BasicDistanceMatrix {
         }
     }
 
+    public SequenceAlignmentsDistanceMatrix(List<Sequence> seqs, AlignerPool<? extends PairwiseAligner> aligners, ProgressListener progress)
+            throws CannotBuildDistanceMatrixException
+    {
+        this(seqs, aligners, progress, getDefaultDistanceModel(seqs));
+    }
+
+    public SequenceAlignmentsDistanceMatrix(List<Sequence> seqs, AlignerPool<? extends PairwiseAligner> aligners, ProgressListener progress, TreeBuilderFactory.DistanceModel model)
+            throws CannotBuildDistanceMatrixException
+    {
+        super(getTaxa(seqs), getDistances(seqs, aligners, model, progress));
+        boolean isProtein = seqs.get(0).getSequenceType().getCanonicalStateCount() > 4;
+        if (model != TreeBuilderFactory.DistanceModel.JukesCantor && isProtein) {
+            throw new IllegalArgumentException("Model " + model + " does not support protein sequences");
+        }
+    }
+
     static List<Taxon> getTaxa(List<Sequence> seqs) {
         List<Taxon> t = new ArrayList<Taxon>();
         for( Sequence s : seqs ) {
@@ -60,10 +86,7 @@ public class SequenceAlignmentsDistanceMatrix extends BasicDistanceMatrix {
         return "Not enough memory to build distance matrix. " + String.format("%,d", memoryRequired / 1000 / 1000) + " MB required";
     }
 
-    private static double[][] getDistances(List<Sequence> seqs, PairwiseAligner aligner, TreeBuilderFactory.DistanceModel model, final ProgressListener progressListener) throws CannotBuildDistanceMatrixException {
-        final int n = seqs.size();
-        double [][] d;
-
+    private static double[][] allocateDistances(int n) throws CannotBuildDistanceMatrixException {
         final long memoryRequired = ((long)n)*n*8;
         if (n>100) {
             final long maxMemory = Runtime.getRuntime().maxMemory();
@@ -72,39 +95,104 @@ public class SequenceAlignmentsDistanceMatrix extends BasicDistanceMatrix {
             }
         }
         try {
-            d = new double[n][n];
+            return new double[n][n];
         } catch (OutOfMemoryError e) {
             throw new CannotBuildDistanceMatrixException(getNotEnoughMemoryMessage(memoryRequired));
         }
+    }
+
+    private static double getDistance(PairwiseAligner.Result result, TreeBuilderFactory.DistanceModel model, ProgressListener progress) {
+        BasicDistanceMatrix matrix;
+        switch( model ) {
+            case F84:
+                matrix = new F84DistanceMatrix(result.alignment, progress);
+                break;
+            case HKY:
+                matrix = new HKYDistanceMatrix(result.alignment, progress);
+                break;
+            case TamuraNei:
+                matrix = new TamuraNeiDistanceMatrix(result.alignment, progress);
+                break;
+            case JukesCantor:
+            default:
+                matrix = new JukesCantorDistanceMatrix(result.alignment, progress);
+        }
+        return matrix.getDistances()[0][1];
+    }
+
+    /**
+     * @return distance between sequences i and j
+     */
+    private static double getDistance(List<Sequence> seqs, int i, int j, PairwiseAligner aligner, TreeBuilderFactory.DistanceModel model, ProgressListener progress) {
+        final Sequence seq1 = seqs.get(i);
+        final Sequence seq2 = seqs.get(j);
+        if (model == TreeBuilderFactory.DistanceModel.JukesCantor && aligner instanceof NeedlemanWunschLinearSpaceAffine) {
+            final SequenceType type = seq1.getSequenceType();
+            final AffineScorer.Counts counts = ((NeedlemanWunschLinearSpaceAffine) aligner).getCounts(seq1.getString(), seq2.getString(), type);
+            if (counts.getMatches() + counts.getMismatches() == 0) {
+                throw new CannotBuildDistanceMatrixException("Jukes-Cantor", seq1.getTaxon().getName(), seq2.getTaxon().getName());
+            }
+            return JukesCantorDistanceMatrix.getDistance(counts.getMismatchProportion(), type.getCanonicalStateCount());
+        }
+        PairwiseAligner.Result result = aligner.doAlignment(seq1, seq2, progress);
+        if (result == null) {
+            return 0;
+        }
+        return getDistance(result, model, progress);
+    }
+
+    private static double[][] getDistances(List<Sequence> seqs, PairwiseAligner aligner, TreeBuilderFactory.DistanceModel model, final ProgressListener progressListener) throws CannotBuildDistanceMatrixException {
+        final int n = seqs.size();
+        double [][] d = allocateDistances(n);
 
         CompositeProgressListener compositeProgressListener = new CompositeProgressListener(progressListener,n*(n-1));
 
         for(int i = 0; i < n; ++i) {
             for(int j = i+1; j < n; ++j) {
                 compositeProgressListener.beginSubtask();
-                PairwiseAligner.Result result = aligner.doAlignment(seqs.get(i), seqs.get(j), compositeProgressListener);
+                final double distance = getDistance(seqs, i, j, aligner, model, compositeProgressListener);
                 if(progressListener.isCanceled()) return d;
 
                 compositeProgressListener.beginSubtask();
-                BasicDistanceMatrix matrix;
-                switch( model ) {
-                    case F84:
-                        matrix = new F84DistanceMatrix(result.alignment, compositeProgressListener);
-                        break;
-                    case HKY:
-                        matrix = new HKYDistanceMatrix(result.alignment, compositeProgressListener);
-                        break;
-                    case TamuraNei:
-                        matrix = new TamuraNeiDistanceMatrix(result.alignment, compositeProgressListener);
-                        break;
-                    case JukesCantor:
-                    default:
-                        matrix = new JukesCantorDistanceMatrix(result.alignment, compositeProgressListener);
-                }
-                d[i][j] = matrix.getDistances()[0][1];
+                d[i][j] = distance;
                 d[j][i] = d[i][j];
             }
         }
         return d;
     }
+
+    private static <A extends PairwiseAligner> double[][] getDistances(final List<Sequence> seqs, final AlignerPool<A> aligners, final TreeBuilderFactory.DistanceModel model, final ProgressListener progressListener) throws CannotBuildDistanceMatrixException {
+        final int n = seqs.size();
+        final double [][] d = allocateDistances(n);
+        final int pairs = n*(n-1)/2;
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean(progressListener.isCanceled());
+
+        // rows have different numbers of pairs, so rows are taken from both ends to balance the work
+        // the aligners, and their matrices, are only needed while the distances are computed
+        try {
+            IntStream.range(0, n).parallel().forEach(new IntConsumer() {
+                public void accept(int k) {
+                    final int i = (k % 2 == 0) ? k/2 : n - 1 - k/2;
+                    final A aligner = aligners.get();
+                    try {
+                        for(int j = i+1; j < n; ++j) {
+                            if(cancelled.get()) return;
+                            d[i][j] = getDistance(seqs, i, j, aligner, model, ProgressListener.EMPTY);
+                            d[j][i] = d[i][j];
+                            final int completed = done.incrementAndGet();
+                            synchronized (progressListener) {
+                                if(progressListener.setProgress(completed, pairs)) cancelled.set(true);
+                            }
+                        }
+                    } finally {
+                        aligners.release(aligner);
+                    }
+                }
+            });
+        } finally {
+            aligners.clear();
+        }
+        return d;
+    }
 }
\ No newline at end of file
@@ -33,9 +33,8 @@ public class SequenceShuffler {
         float sumScores = 0;
         for(int i = 0; i < numShuffles; i++) {
             String shuffled2 = shuffleSeq(sq2);
-            algorithm.doAlignment(sq1,shuffled2);
-            scores[i] = algorithm.getScore();
-            sumScores += algorithm.getScore();
+            scores[i] = algorithm.getScore(sq1, shuffled2);
+            sumScores += scores[i];
             final int j = i;
             if (monitor != null) {
                 Runnable runnable = new Runnable() {
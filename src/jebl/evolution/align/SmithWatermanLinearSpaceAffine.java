@@ -89,6 +89,10 @@ public class SmithWatermanLinearSpaceAffine extends AlignLinearSpaceAffine {
      */
     public float getScore() { return maxval; }
 
+    public float getScore(String sq1, String sq2) {
+        return getScorer(true, false, null).getScore(sq1, sq2);
+    }
+
     /**
      * @return two-element array containing an alignment with maximal score
      */
@@ -0,0 +1,546 @@
+package jebl.evolution.align;
+
+import jebl.evolution.align.scores.Scores;
+import jebl.util.ProgressListener;
+
+/**
+ * Local alignment with affine gap costs which computes the best score in linear space with Farrar's striped
+ * query profile, and finds an optimal alignment only when asked for, from the region the best score came from.
+ * The scores are those of {@link SmithWatermanLinearSpaceAffine}.
+ *
+ * The query (the first sequence) is split into stripes, and the cells of several stripes are packed as lanes of a
+ * long word and computed together with a few bit operations: eight 7 bit lanes first, then four 15 bit lanes if a
+ * score overflows, and a plain float kernel if that overflows as well or the scores or gap costs are not whole
+ * numbers. Gaps along the query are corrected afterwards in a loop which seldom runs more than once over the
+ * stripes (the "lazy F loop"). Scoring profiles of the query are kept, so for screening many targets against one
+ * query use {@link #setQuery(String)} once and {@link #getScore(String)} for each target.
+ *
+ * After a target has been scored {@link #getMatch()} finds where the best alignment starts, by scoring again only
+ * the part of the target which an alignment with the best score could span, and aligns that region globally with
+ * {@link NeedlemanWunschLinearSpaceAffine}.
+ *
+ * @version $Id$
+ */
+public class SmithWatermanStriped extends Align {
+
+    float e;                    // gap extension cost
+
+    private char[] query = null;
+    private boolean integral;   // scores used by the query and gap costs are whole numbers
+    private int bias;           // added to scores to make them positive
+    private int maxScore;       // largest score plus bias
+
+    private long[][] profiles8 = null;
+    private long[][] profiles16 = null;
+
+    // Work space of the striped kernel: H of the current and previous column, E and M of the current column
+    private long[] hStore, hLoad, eStore, mStore;
+
+    private float maxval;       // score of best alignment
+    private int end1, end2;     // best alignment ends at (end1, end2)
+    private int start1, start2; // and starts at (start1, start2), or -1 when not found yet
+    private int laneBits;       // lane width of the kernel which gave the score, 0 for the float kernel
+
+    public SmithWatermanStriped(Scores sub, float d, float e) {
+        super(sub, d);
+        this.e = e;
+    }
+
+    public void setGapOpen(float d) {
+        super.setGapOpen(d);
+        query = null;
+    }
+
+    public void setGapExtend(float e) {
+        this.e = e;
+        query = null;
+    }
+
+    public void setScores(Scores sub) {
+        super.setScores(sub);
+        query = null;
+    }
+
+    /**
+     * Sets the first sequence, and prepares its scoring profiles.
+     * @param sq1 the query
+     */
+    public void setQuery(String sq1) {
+        seq1 = sq1;
+        n = sq1.length();
+        query = new char[n];
+        for (int i = 0; i < n; i++) {
+            query[i] = code(sq1.charAt(i));
+        }
+
+        final float[][] score = sub.score;
+        integral = d == Math.rint(d) && e == Math.rint(e) && e > 0 && d >= 0;
+        float min = 0;
+        float max = 0;
+        for (int i = 0; i < n && integral; i++) {
+            for (float s : score[query[i]]) {
+                if (s != Math.rint(s)) {
+                    integral = false;
+                    break;
+                }
+                min = Math.min(min, s);
+                max = Math.max(max, s);
+            }
+        }
+        bias = (int) -Math.max(min, -Integer.MAX_VALUE / 4);
+        maxScore = (int) Math.min(max + bias, Integer.MAX_VALUE / 4);
+        profiles8 = null;
+        profiles16 = null;
+    }
+
+    /**
+     * @param sq2 the target, aligned to the query set with {@link #setQuery(String)}
+     * @return score of the best local alignment
+     */
+    public float getScore(String sq2) {
+        align(sq2, null);
+        return maxval;
+    }
+
+    public void doAlignment(String sq1, String sq2, ProgressListener progress) {
+        if (query == null || !sq1.equals(seq1)) {
+            setQuery(sq1);
+        }
+        align(sq2, progress);
+    }
+
+    public void doAlignment(String sq1, String sq2) {
+        doAlignment(sq1, sq2, null);
+    }
+
+    public void prepareAlignment(String sq1, String sq2) {
+        if (query == null || !sq1.equals(seq1)) {
+            setQuery(sq1);
+        }
+        seq2 = sq2;
+        m = sq2.length();
+    }
+
+    /**
+     * @return the score of the best alignment
+     */
+    public float getScore() {
+        return maxval;
+    }
+
+    /**
+     * @return position in the query after the end of the best alignment
+     */
+    public int getQueryEnd() {
+        return end1;
+    }
+
+    /**
+     * @return position in the target after the end of the best alignment
+     */
+    public int getTargetEnd() {
+        return end2;
+    }
+
+    /**
+     * @return two-element array containing an alignment with maximal score
+     */
+    public String[] getMatch() {
+        findStart();
+        NeedlemanWunschLinearSpaceAffine nwa1 = new NeedlemanWunschLinearSpaceAffine(sub, d, e);
+        nwa1.doAlignment(seq1.substring(start1, end1), seq2.substring(start2, end2));
+        return nwa1.getMatch();
+    }
+
+    public void traceback(TracebackPlotter plotter) {
+        findStart();
+        NeedlemanWunschAffine nwa1 = new NeedlemanWunschAffine(sub, d, e);
+        nwa1.doAlignment(seq1.substring(start1, end1), seq2.substring(start2, end2));
+        nwa1.traceback(plotter);
+    }
+
+    /**
+     * No matrix is kept, so prints only the score and where the best alignment ends.
+     *
+     * @param out output to print to
+     */
+    public void printf(Output out) {
+        out.println("score " + formatScore(maxval) + " ending at (" + end1 + ", " + end2 + "), " +
+                (laneBits == 0 ? "float kernel" : laneBits + " bit lanes"));
+    }
+
+    private static char code(char c) {
+        return c < 127 ? c : 0;
+    }
+
+    private void align(String sq2, ProgressListener progress) {
+        if (query == null) {
+            throw new IllegalStateException("No query set");
+        }
+        seq2 = sq2;
+        m = sq2.length();
+        final char[] target = new char[m];
+        for (int j = 0; j < m; j++) {
+            target[j] = code(sq2.charAt(j));
+        }
+
+        maxval = 0;
+        end1 = end2 = 0;
+        start1 = start2 = -1;
+        if (n == 0 || m == 0) {
+            laneBits = 0;
+            return;
+        }
+
+        if (integral && fits(8) && alignStriped(target, 8, progress)) {
+            laneBits = 8;
+        } else if (integral && fits(16) && alignStriped(target, 16, progress)) {
+            laneBits = 16;
+        } else {
+            laneBits = 0;
+            alignScalar(target, progress);
+        }
+    }
+
+    /**
+     * @param bits lane width
+     * @return true if scores and gap costs fit in lanes of this width
+     */
+    private boolean fits(int bits) {
+        final int laneMax = (1 << (bits - 1)) - 1;
+        return maxScore <= laneMax && d <= laneMax && e <= laneMax;
+    }
+
+    /**
+     * Scores the target with lanes of the given width.
+     * @return false if some score does not fit in a lane
+     */
+    private boolean alignStriped(char[] target, int bits, ProgressListener progress) {
+        final int lanes = 64 / bits;
+        final int segLen = (n + lanes - 1) / lanes;
+
+        // top bit of each lane, a guard against borrows and carries between lanes
+        long high = 0;
+        for (int k = 0; k < lanes; k++) {
+            high |= 1L << (k * bits + bits - 1);
+        }
+        final long vBias = broadcast(bias, bits, lanes);
+        final long vOpen = broadcast((int) d, bits, lanes);
+        final long vExtend = broadcast((int) e, bits, lanes);
+
+        long[][] profiles = bits == 8 ? profiles8 : profiles16;
+        if (profiles == null) {
+            profiles = new long[127][];
+            if (bits == 8) {
+                profiles8 = profiles;
+            } else {
+                profiles16 = profiles;
+            }
+        }
+        if (hStore == null || hStore.length < segLen) {
+            hStore = new long[segLen];
+            hLoad = new long[segLen];
+            eStore = new long[segLen];
+            mStore = new long[segLen];
+        }
+        long[] hStore = this.hStore, hLoad = this.hLoad;
+        final long[] eStore = this.eStore, mStore = this.mStore;
+        for (int s = 0; s < segLen; s++) {
+            hStore[s] = eStore[s] = 0;
+        }
+
+        int best = 0;
+        end1 = end2 = 0;
+        for (int j = 0; j < m; j++) {
+            if (progress != null && progress.setProgress((double) j / m)) {
+                break;
+            }
+            long[] profile = profiles[target[j]];
+            if (profile == null) {
+                profile = profiles[target[j]] = buildProfile(target[j], bits, lanes, segLen);
+            }
+
+            // cell s of a lane gets its diagonal from cell s - 1 of the previous column, and the first cell from
+            // the last cell of the previous lane
+            long vH = hStore[segLen - 1] << bits;
+            final long[] swap = hLoad;
+            hLoad = hStore;
+            hStore = swap;
+
+            long vF = 0;
+            long vMax = 0;
+            long overflow = 0;
+            for (int s = 0; s < segLen; s++) {
+                final long sum = vH + profile[s];
+                overflow |= sum;
+                final long vM = subtract(sum, vBias, high, bits);
+                vMax = max(vMax, vM, high, bits);
+                mStore[s] = vM;
+
+                final long vE = eStore[s];
+                vH = max(max(vM, vE, high, bits), vF, high, bits);
+                hStore[s] = vH;
+
+                // gaps open from M only
+                final long vGap = subtract(vM, vOpen, high, bits);
+                eStore[s] = max(subtract(vE, vExtend, high, bits), vGap, high, bits);
+                vF = max(subtract(vF, vExtend, high, bits), vGap, high, bits);
+
+                vH = hLoad[s];
+            }
+            if ((overflow & high) != 0) {
+                this.hStore = hStore;
+                this.hLoad = hLoad;
+                return false;
+            }
+
+            // carry gaps along the query across stripes until they can no longer raise H, or be longer than gaps
+            // opened within the stripes
+            vF <<= bits;
+            int s = 0;
+            while (greater(vF, hStore[s], high) ||
+                    greater(subtract(vF, vExtend, high, bits), subtract(mStore[s], vOpen, high, bits), high)) {
+                hStore[s] = max(hStore[s], vF, high, bits);
+                vF = subtract(vF, vExtend, high, bits);
+                if (++s == segLen) {
+                    s = 0;
+                    vF <<= bits;
+                }
+            }
+
+            final int columnMax = horizontalMax(vMax, bits, lanes);
+            if (columnMax > best) {
+                best = columnMax;
+                end2 = j + 1;
+                end1 = findRow(mStore, best, bits, lanes, segLen);
+            }
+        }
+        this.hStore = hStore;
+        this.hLoad = hLoad;
+        maxval = best;
+        return true;
+    }
+
+    /**
+     * @return first query position + 1 whose M value in the column is value
+     */
+    private int findRow(long[] mStore, int value, int bits, int lanes, int segLen) {
+        final long laneMask = (1L << bits) - 1;
+        int row = n;
+        for (int s = 0; s < segLen; s++) {
+            for (int k = 0; k < lanes; k++) {
+                final int i = k * segLen + s;
+                if (i < row && ((mStore[s] >>> (k * bits)) & laneMask) == value) {
+                    row = i;
+                }
+            }
+        }
+        return row + 1;
+    }
+
+    private long[] buildProfile(char residue, int bits, int lanes, int segLen) {
+        final float[][] score = sub.score;
+        final long[] profile = new long[segLen];
+        for (int s = 0; s < segLen; s++) {
+            long v = 0;
+            for (int k = 0; k < lanes; k++) {
+                final int i = k * segLen + s;
+                // past the end of the query M is at most the diagonal less the bias, never above a real cell
+                final long value = i < n ? (long) score[query[i]][residue] + bias : 0;
+                v |= value << (k * bits);
+            }
+            profile[s] = v;
+        }
+        return profile;
+    }
+
+    private static long broadcast(int value, int bits, int lanes) {
+        long v = 0;
+        for (int k = 0; k < lanes; k++) {
+            v |= (long) value << (k * bits);
+        }
+        return v;
+    }
+
+    /**
+     * @return a - b in each lane, or 0 where b is larger
+     */
+    private static long subtract(long a, long b, long high, int bits) {
+        final long x = (a | high) - b;
+        final long ge = x & high;
+        return x & (ge - (ge >>> (bits - 1)));
+    }
+
+    /**
+     * @return the larger of a and b in each lane
+     */
+    private static long max(long a, long b, long high, int bits) {
+        final long ge = ((a | high) - b) & high;
+        final long mask = ge - (ge >>> (bits - 1));
+        return (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * @return true if a is larger than b in some lane
+     */
+    private static boolean greater(long a, long b, long high) {
+        return (((b | high) - a) & high) != high;
+    }
+
+    private static int horizontalMax(long v, int bits, int lanes) {
+        final long laneMask = (1L << bits) - 1;
+        int max = 0;
+        for (int k = 0; k < lanes; k++) {
+            max = Math.max(max, (int) ((v >>> (k * bits)) & laneMask));
+        }
+        return max;
+    }
+
+    /**
+     * Scores the target one cell at a time, in floats.
+     */
+    private void alignScalar(char[] target, ProgressListener progress) {
+        final float[][] score = sub.score;
+        final float[] mPrev = new float[n + 1], mCur = new float[n + 1];
+        final float[] hPrev = new float[n + 1], hCur = new float[n + 1];
+        final float[] gapE = new float[n + 1];
+        float[] M0 = mPrev, M1 = mCur, H0 = hPrev, H1 = hCur;
+        end1 = end2 = 0;
+        for (int i = 0; i <= n; i++) {
+            gapE[i] = Float.NEGATIVE_INFINITY;
+        }
+
+        for (int j = 1; j <= m; j++) {
+            if (progress != null && progress.setProgress((double) j / m)) {
+                break;
+            }
+            final char residue = target[j - 1];
+            float gapF = Float.NEGATIVE_INFINITY;
+            for (int i = 1; i <= n; i++) {
+                // M from the best of the diagonal cell, gaps from M only
+                final float valm = max(0, H0[i - 1] + score[query[i - 1]][residue]);
+                gapE[i] = max(M0[i] - d, gapE[i] - e);
+                gapF = max(M1[i - 1] - d, gapF - e);
+                M1[i] = valm;
+                H1[i] = max(valm, gapE[i], gapF);
+                if (valm > maxval) {
+                    maxval = valm;
+                    end1 = i;
+                    end2 = j;
+                }
+            }
+            float[] swap = M0; M0 = M1; M1 = swap;
+            swap = H0; H0 = H1; H1 = swap;
+        }
+    }
+
+    /**
+     * Finds the start of an alignment with the best score ending at (end1, end2), by scoring again the part of the
+     * target such an alignment could span, following the start of the best path into each cell.
+     */
+    private void findStart() {
+        if (start1 >= 0) {
+            return;
+        }
+        if (maxval <= 0) {
+            start1 = end1;
+            start2 = end2;
+            return;
+        }
+
+        // An alignment spanning more target than query has gaps costing at least min(d, e) per extra residue.
+        final float[][] score = sub.score;
+        float largest = 0;
+        for (int i = 0; i < end1; i++) {
+            for (float s : score[code(seq1.charAt(i))]) {
+                largest = Math.max(largest, s);
+            }
+        }
+        final float gapCost = Math.min(d, e);
+        int first = 0;
+        if (gapCost > 0) {
+            final double span = end1 + Math.floor((end1 * (double) largest - maxval) / gapCost) + 1;
+            first = (int) Math.max(0, end2 - Math.min(span, end2));
+        }
+        if (!scoreRegion(first) && !(first > 0 && scoreRegion(0))) {
+            throw new IllegalStateException("BUG: no alignment with the best score ends at (" + end1 + ", " + end2 + ")");
+        }
+    }
+
+    /**
+     * Scores query[0, end1) against target[first, end2) with the recurrences of
+     * {@link SmithWatermanLinearSpaceAffine}, keeping the start of the best path into each state of each cell.
+     * @return true if the cell (end1, end2) has the best score, when start1 and start2 are set
+     */
+    private boolean scoreRegion(int first) {
+        final float[][] score = sub.score;
+        final int rows = end1;
+        final int cols = end2 - first;
+        // states of the previous and current row, and starts encoded as (i << 32) | j
+        float[] M0 = new float[cols + 1], M1 = new float[cols + 1];
+        float[] X0 = new float[cols + 1], X1 = new float[cols + 1];
+        float[] Y0 = new float[cols + 1], Y1 = new float[cols + 1];
+        long[] SM0 = new long[cols + 1], SM1 = new long[cols + 1];
+        long[] SX0 = new long[cols + 1], SX1 = new long[cols + 1];
+        long[] SY0 = new long[cols + 1], SY1 = new long[cols + 1];
+        for (int c = 0; c <= cols; c++) {
+            SM0[c] = SX0[c] = SY0[c] = (long) (first + c);
+        }
+
+        for (int i = 1; i <= rows; i++) {
+            final char residue = code(seq1.charAt(i - 1));
+            M1[0] = X1[0] = Y1[0] = 0;
+            SM1[0] = SX1[0] = SY1[0] = ((long) i << 32) | first;
+            for (int c = 1; c <= cols; c++) {
+                final int j = first + c;
+                final float s = score[residue][code(seq2.charAt(j - 1))];
+
+                float valm = M0[c - 1];
+                long startm = SM0[c - 1];
+                if (X0[c - 1] > valm) {
+                    valm = X0[c - 1];
+                    startm = SX0[c - 1];
+                }
+                if (Y0[c - 1] > valm) {
+                    valm = Y0[c - 1];
+                    startm = SY0[c - 1];
+                }
+                valm += s;
+                if (valm <= 0) {
+                    valm = 0;
+                    startm = ((long) i << 32) | j;
+                }
+                M1[c] = valm;
+                SM1[c] = startm;
+
+                if (M0[c] - d >= X0[c] - e) {
+                    X1[c] = M0[c] - d;
+                    SX1[c] = SM0[c];
+                } else {
+                    X1[c] = X0[c] - e;
+                    SX1[c] = SX0[c];
+                }
+                if (M1[c - 1] - d >= Y1[c - 1] - e) {
+                    Y1[c] = M1[c - 1] - d;
+                    SY1[c] = SM1[c - 1];
+                } else {
+                    Y1[c] = Y1[c - 1] - e;
+                    SY1[c] = SY1[c - 1];
+                }
+            }
+            float[] f = M0; M0 = M1; M1 = f;
+            f = X0; X0 = X1; X1 = f;
+            f = Y0; Y0 = Y1; Y1 = f;
+            long[] l = SM0; SM0 = SM1; SM1 = l;
+            l = SX0; SX0 = SX1; SX1 = l;
+            l = SY0; SY0 = SY1; SY1 = l;
+        }
+
+        if (M0[cols] < maxval) {
+            return false;
+        }
+        start1 = (int) (SM0[cols] >>> 32);
+        start2 = (int) SM0[cols];
+        return true;
+    }
+}
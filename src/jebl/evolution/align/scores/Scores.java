@@ -13,6 +13,64 @@ public abstract class Scores implements ScoreMatrix {
 
     public float[][] score;
     private String extraResidues = "";
+    // residue codes and the scores between codes, built from score when first asked for
+    private volatile Coding coding;
+
+    /**
+     * Characters with the same scores against every character share a code; code 0 is shared by all characters
+     * which score zero against everything, including those outside the table.
+     */
+    private static final class Coding {
+        final byte[] codes = new byte[128];
+        final int count;
+        final float[] scores;
+        final int[] integerScores;
+
+        Coding(float[][] score) {
+            final int size = score.length;
+            char[] representatives = new char[size + 1];
+            int count = 1;
+            for (char c = 0; c < size; c++) {
+                if (isZero(score, c)) continue;
+                int code = 1;
+                while (code < count && !sameScores(score, representatives[code], c)) code++;
+                if (code == count) representatives[count++] = c;
+                codes[c] = (byte) code;
+            }
+            this.count = count;
+            scores = new float[count * count];
+            boolean integral = true;
+            for (int i = 1; i < count; i++) {
+                for (int j = 1; j < count; j++) {
+                    final float value = score[representatives[i]][representatives[j]];
+                    scores[i * count + j] = value;
+                    integral &= value == Math.rint(value) && Math.abs(value) <= Short.MAX_VALUE;
+                }
+            }
+            if (integral) {
+                integerScores = new int[count * count];
+                for (int i = 0; i < scores.length; i++) {
+                    integerScores[i] = (int) scores[i];
+                }
+            } else {
+                integerScores = null;
+            }
+        }
+
+        private static boolean isZero(float[][] score, char c) {
+            for (int i = 0; i < score.length; i++) {
+                if (score[c][i] != 0 || score[i][c] != 0) return false;
+            }
+            return true;
+        }
+
+        private static boolean sameScores(float[][] score, char a, char b) {
+            for (int i = 0; i < score.length; i++) {
+                if (score[a][i] != score[b][i] || score[i][a] != score[i][b]) return false;
+            }
+            return true;
+        }
+    }
 
     /**
      * @param scores float[][] with position [i][j] holding the score for
@@ -58,6 +116,62 @@ public abstract class Scores implements ScoreMatrix {
         return score[x][y];
     }
 
+    private Coding getCoding() {
+        Coding result = coding;
+        if (result == null) {
+            result = coding = new Coding(score);
+        }
+        return result;
+    }
+
+    /**
+     * Residue codes are small numbers standing for characters, made so that dynamic programming can look scores
+     * up in a small dense table instead of a table indexed by characters. The codes are built the first time
+     * they are asked for, so {@link #score} must not be changed after that.
+     *
+     * @return the number of residue codes, which are from 0 to this number less one
+     */
+    public final int getCodeCount() {
+        return getCoding().count;
+    }
+
+    /**
+     * @return the residue code of a character
+     */
+    public final byte getCode(char c) {
+        return c < 128 ? getCoding().codes[c] : 0;
+    }
+
+    /**
+     * @param sequence a sequence
+     * @return the residue code of each character of the sequence
+     */
+    public final byte[] encode(CharSequence sequence) {
+        final byte[] codes = getCoding().codes;
+        final int length = sequence.length();
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            final char c = sequence.charAt(i);
+            result[i] = c < 128 ? codes[c] : 0;
+        }
+        return result;
+    }
+
+    /**
+     * @return the scores between residue codes, the score of codes i and j at i * {@link #getCodeCount()} + j
+     */
+    public final float[] getCodedScores() {
+        return getCoding().scores;
+    }
+
+    /**
+     * @return the scores between residue codes as integers, laid out as by {@link #getCodedScores()}, or null
+     * if any score is not a whole number or does not fit in a short
+     */
+    public final int[] getCodedIntegerScores() {
+        return getCoding().integerScores;
+    }
+
     public String toString() {
         String name = getClass().getName();
         return name.substring(name.lastIndexOf(".")+1);
@@ -28,9 +28,29 @@ public class JukesCantorDistanceMatrix extends BasicDistanceMatrix {
         super(alignment.getTaxa(), new Initializer().getDistances(alignment, progress,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable));
     }
 
+    /**
+     * @param observed proportion of differing sites
+     * @param stateCount number of canonical states
+     * @return Jukes-Cantor corrected distance, at most 1000
+     */
+    public static double getDistance(double observed, int stateCount) {
+        if (observed == 0.0) return 0.0;
+
+        final double maxTheoreticalSubsRate = ((double)stateCount - 1) / stateCount;
+
+        // protect against log(negative number)
+        if (observed >= maxTheoreticalSubsRate) {
+            return Initializer.MAX_DISTANCE;
+        }
+
+        double expDist = -maxTheoreticalSubsRate * Math.log(1.0 - ((1/maxTheoreticalSubsRate) * observed));
+
+        return Math.min(expDist, Initializer.MAX_DISTANCE);
+    }
+
     private static class Initializer implements PairwiseDistanceCalculator {
         // Helpers during construction
-        private double maxTheoreticalSubsRate;
+        private int stateCount;
         private Alignment alignment;
         private static final double MAX_DISTANCE = 1000.0;
 
@@ -80,18 +100,7 @@ public class JukesCantorDistanceMatrix extends BasicDistanceMatrix {
          * @throws CannotBuildDistanceMatrixException
          */
         public double calculatePairwiseDistance(int taxon1, int taxon2) throws CannotBuildDistanceMatrixException {
-            double obsDist = anySubstitutionRatio(taxon1, taxon2);
-
-            if (obsDist == 0.0) return 0.0;
-
-            // protect against log(negative number)
-            if (obsDist >= maxTheoreticalSubsRate) {
-                return MAX_DISTANCE;
-            }
-
-            double expDist = -maxTheoreticalSubsRate * Math.log(1.0 - ((1/maxTheoreticalSubsRate) * obsDist));
-
-            return Math.min(expDist, MAX_DISTANCE);
+            return getDistance(anySubstitutionRatio(taxon1, taxon2), stateCount);
         }
 
         synchronized double[][] getDistances(Alignment alignment, ProgressListener progress, boolean useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable)
@@ -100,9 +109,7 @@ public class JukesCantorDistanceMatrix extends BasicDistanceMatrix {
             this.alignment = alignment;
 
             // ASK Alexei
-            int stateCount = alignment.getSequenceType().getCanonicalStateCount();
-
-            maxTheoreticalSubsRate = ((double)stateCount - 1) / stateCount;
+            stateCount = alignment.getSequenceType().getCanonicalStateCount();
 
             int dimension = alignment.getTaxa().size();
             return BasicDistanceMatrix.buildDistancesMatrix(this,dimension,useTwiceMaximumDistanceWhenPairwiseDistanceNotCalculatable,progress);
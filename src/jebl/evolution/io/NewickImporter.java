@@ -120,84 +120,85 @@ public class NewickImporter implements TreeImporter {
     }
 
     /**
-     * Reads a internal or external node along with its incoming branch and
-     * its complete subtree from helper and adds it to the tree. If the branch
+     * Reads the length of the incoming branch of a node just read. If the branch
      * length is not specified in the newick file, it is assumed to be 1.0.
-     * This method calls {@link #readInternalNode(jebl.evolution.trees.SimpleRootedTree)}
-     * or {@link #readExternalNode(jebl.evolution.trees.SimpleRootedTree)} to read
-     * the internal or external node and add it to the tree.
      *
-     * @param tree Tree to which to add the new node along with is incoming branch
-     * @return the internal or external node read from helper and added to the tree.
+     * @param tree Tree to which the node has been added
+     * @param branch the internal or external node just read from helper
      */
-    private Node readBranch(SimpleRootedTree tree) throws IOException, ImportException
+    private void readBranchEnd(SimpleRootedTree tree, Node branch) throws IOException, ImportException
     {
-        Node branch;
-
-        if (helper.nextCharacter() == '(') { // it's an internal node
-            branch = readInternalNode(tree);
-        } else { // it's an external node
-            branch = readExternalNode(tree);
-        }
-
         if (helper.getLastDelimiter() == ':') {
             double length = helper.readDouble(",():;");
             tree.setLength(branch, length);
         } else {
         	tree.setLength(branch, 1.0);
         }
-
-        return branch;
     }
 
     /**
-     * Reads a node in. This could be a polytomy. Calls readBranch on each branch
-     * in the node.
+     * Reads a node in. This could be a polytomy. Each branch in the node is either a tip or another
+     * node. Nested nodes are read with an explicit stack rather than by recursion, so very deep trees can be
+     * read. Nodes are created in post order, as each is completed.
      */
     private Node readInternalNode(SimpleRootedTree tree) throws IOException, ImportException
     {
-        List<Node> children = new ArrayList<>();
+        // children read so far of each node not yet completed, innermost last
+        final List<List<Node>> open = new ArrayList<>();
 
         // read the opening '('
         helper.readCharacter();
+        open.add(new ArrayList<Node>());
+
+        while (true) {
+            // read the next branch, which starts with '(' if it is an internal node
+            if (helper.nextCharacter() == '(') {
+                helper.readCharacter();
+                open.add(new ArrayList<Node>());
+                continue;
+            }
 
-        // read the first child
-        children.add(readBranch(tree));
+            Node node = readExternalNode(tree);
 
-        // We used to require that an internal node has at least 2 children, however this
-        // caused bug 4303 and I'm not sure if any other code depends on the outdegree 2
-        /*if (helper.getLastDelimiter() != ',') {
-            throw new ImportException.BadFormatException("Missing ',' in tree");
-        } */
+            // complete the node just read, and every node this closes
+            while (true) {
+                readBranchEnd(tree, node);
+                open.get(open.size() - 1).add(node);
 
-        // read subsequent children (recursively)
-        while (helper.getLastDelimiter() == ',') {
-            children.add(readBranch(tree));
-        }
+                // We used to require that an internal node has at least 2 children, however this
+                // caused bug 4303 and I'm not sure if any other code depends on the outdegree 2
+                if (helper.getLastDelimiter() == ',') {
+                    // read subsequent children
+                    break;
+                }
 
-        // should have had a closing ')'
-        if (helper.getLastDelimiter() != ')') {
-            throw new ImportException.BadFormatException("Missing closing ')' in tree" + (lastLabel != null ? " - after tip " + lastLabel : ""));
-        }
+                // should have had a closing ')'
+                if (helper.getLastDelimiter() != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree" + (lastLabel != null ? " - after tip " + lastLabel : ""));
+                }
 
-        final Node node = tree.createInternalNode(children);
+                node = tree.createInternalNode(open.remove(open.size() - 1));
 
-        try {
-          // find the next delimiter
-          String token = helper.readToken(":(),;");
+                try {
+                  // find the next delimiter
+                  String token = helper.readToken(":(),;");
 
-            if (token.length() > 0) {
-                node.setAttribute("label", NexusImporter.parseValue(token));
-            }
+                    if (token.length() > 0) {
+                        node.setAttribute("label", NexusImporter.parseValue(token));
+                    }
 
-            // If there is a metacomment before the branch length indicator (:), then it is a node attribute
-            NexusImporter.parseAndClearMetaComments(node, helper);
+                    // If there is a metacomment before the branch length indicator (:), then it is a node attribute
+                    NexusImporter.parseAndClearMetaComments(node, helper);
 
-        } catch( EOFException e) {
-            // Ok if we just finished
-        }
+                } catch( EOFException e) {
+                    // Ok if we just finished
+                }
 
-        return node;
+                if (open.isEmpty()) {
+                    return node;
+                }
+            }
+        }
     }
 
     /**
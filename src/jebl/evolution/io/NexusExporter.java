@@ -7,6 +7,7 @@ import jebl.evolution.sequences.Sequence;
 import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.RootedTreeTraversal;
 import jebl.evolution.trees.Tree;
 import jebl.evolution.trees.Utils;
 import jebl.util.Attributable;
@@ -365,32 +366,55 @@ public class NexusExporter implements AlignmentExporter, SequenceExporter, TreeE
             p = tree.getParent(p);
         }
 
-        if (tree.isExternal(node)) {
-            appendTaxonName(tree.getTaxon(node), builder);
-
-            appendAttributes(node, null, builder);
-
-            if( tree.hasLengths() ) {
-                builder.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(node)));
+        // Written in preorder without recursion: an internal node's bracket is opened when it is reached, and
+        // closed once the walk leaves its subtree.
+        final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+        final int[] parents = traversal.getParents();
+        final int first = traversal.getIndex(node);
+        final int end = first + traversal.getSubtreeSize(first);
+
+        // internal nodes with an open bracket, innermost last
+        final int[] open = new int[end - first];
+        int depth = 0;
+        for (int i = first; i < end; ++i) {
+            while (depth > 0 && open[depth - 1] != parents[i]) {
+                closeTree(tree, traversal, open[--depth], builder);
             }
-        } else {
-            builder.append('(');
-            List<Node> children = tree.getChildren(node);
-            final int last = children.size() - 1;
-            for (int i = 0; i < children.size(); i++) {
-                appendTree(tree, children.get(i), builder);
-                builder.append(i == last ? ')' : ',');
+            // a first child comes right after its parent
+            if (depth > 0 && i != parents[i] + 1) {
+                builder.append(',');
             }
 
-            appendAttributes(node, null, builder);
+            final Node n = traversal.getNode(i);
+            if (traversal.isExternal(i)) {
+                appendTaxonName(tree.getTaxon(n), builder);
 
-            Node parent = tree.getParent(node);
-            // Don't write root length. This is ignored elsewhere and the nexus importer fails
-            // whet it is present.
-            if (parent != null) {
-                if (tree.hasLengths()) {
-                    builder.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(node)));
+                appendAttributes(n, null, builder);
+
+                if( tree.hasLengths() ) {
+                    builder.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(n)));
                 }
+            } else {
+                builder.append('(');
+                open[depth++] = i;
+            }
+        }
+        while (depth > 0) {
+            closeTree(tree, traversal, open[--depth], builder);
+        }
+    }
+
+    private void closeTree(RootedTree tree, RootedTreeTraversal traversal, int index, StringBuilder builder) {
+        builder.append(')');
+
+        final Node node = traversal.getNode(index);
+        appendAttributes(node, null, builder);
+
+        // Don't write root length. This is ignored elsewhere and the nexus importer fails
+        // whet it is present.
+        if (traversal.getParent(index) >= 0) {
+            if (tree.hasLengths()) {
+                builder.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(node)));
             }
         }
     }
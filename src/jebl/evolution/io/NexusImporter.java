@@ -1233,24 +1233,10 @@ public class NexusImporter implements AlignmentImporter, SequenceImporter, TreeI
     }
 
     /**
-     * Reads a branch in. This could be a node or a tip (calls readNode or readTip
-     * accordingly). It then reads the branch length and SimpleNode that will
-     * point at the new node or tip.
+     * Reads the branch length and the metacomments following a node just read.
      */
-    private Node readBranch(SimpleRootedTree tree) throws IOException, ImportException
+    private void readBranchEnd(SimpleRootedTree tree, Node branch) throws IOException, ImportException
     {
-        Node branch;
-
-        helper.clearLastMetaComment();
-        if (helper.nextCharacter() == '(') {
-            // is an internal node
-            branch = readInternalNode(tree);
-
-        } else {
-            // is an external node
-            branch = readExternalNode(tree);
-        }
-
         if (helper.getLastDelimiter() == ':') {
             final double length = helper.readDouble(",():;");
             tree.setLength(branch, length);
@@ -1259,60 +1245,72 @@ public class NexusImporter implements AlignmentImporter, SequenceImporter, TreeI
         // If there is a metacomment after the branch length indicator (:), then it is a branch attribute
         // however, in the present implementation, this simply gets added to the node attributes.
         parseAndClearMetaComments(tree.getParentEdge(branch), helper);
-
-        return branch;
     }
 
     /**
-     * Reads a node in. This could be a polytomy. Calls readBranch on each branch
-     * in the node.
+     * Reads a node in. This could be a polytomy. Each branch in the node is either a tip or another
+     * node. Nested nodes are read with an explicit stack rather than by recursion, so very deep trees can be
+     * read. Nodes are created in post order, as each is completed.
      * @param tree
      * @return
      */
     private Node readInternalNode(SimpleRootedTree tree) throws IOException, ImportException
     {
-        List<Node> children = new ArrayList<Node>();
+        // children read so far of each node not yet completed, innermost last
+        final List<List<Node>> open = new ArrayList<List<Node>>();
 
         // read the opening '('
         helper.readCharacter();
+        open.add(new ArrayList<Node>());
 
-        // read the first child
-        children.add( readBranch(tree) );
+        while (true) {
+            // read the next branch, which starts with '(' if it is an internal node
+            helper.clearLastMetaComment();
+            if (helper.nextCharacter() == '(') {
+                helper.readCharacter();
+                open.add(new ArrayList<Node>());
+                continue;
+            }
 
-        if (helper.getLastDelimiter() != ',') {
-            //throw new ImportException.BadFormatException("Missing ',' in tree");
-        }
-        // MK: previously, an internal node must have at least 2 children.
-        // MK: We we now allow trees with a single child so that we can create proper taxonomy
-        // MK: trees with only a single child at a taxonomy level.
+            Node node = readExternalNode(tree);
 
-        // read subsequent children
+            // complete the node just read, and every node this closes
+            while (true) {
+                readBranchEnd(tree, node);
+                open.get(open.size() - 1).add(node);
 
-        while(helper.getLastDelimiter()==',') {
-            children.add( readBranch(tree) );
-        }
+                // MK: previously, an internal node must have at least 2 children.
+                // MK: We we now allow trees with a single child so that we can create proper taxonomy
+                // MK: trees with only a single child at a taxonomy level.
+                if (helper.getLastDelimiter() == ',') {
+                    // read subsequent children
+                    break;
+                }
 
-        //System.out.println("kids="+children.size());
-        // should have had a closing ')'
-        if (helper.getLastDelimiter() != ')') {
-            throw new ImportException.BadFormatException("Missing closing ')' in tree");
-        }
+                // should have had a closing ')'
+                if (helper.getLastDelimiter() != ')') {
+                    throw new ImportException.BadFormatException("Missing closing ')' in tree");
+                }
 
-        Node node = tree.createInternalNode(children);
+                node = tree.createInternalNode(open.remove(open.size() - 1));
 
-        // find the next delimiter
-        String token = helper.readToken(":(),;").trim();
+                // find the next delimiter
+                String token = helper.readToken(":(),;").trim();
 
-        // if there is a token before the branch length, treat it as a node label
-        // and store it as an attribute of the node...
-        if (token.length() > 0) {
-            node.setAttribute("label", parseValue(token));
-        }
+                // if there is a token before the branch length, treat it as a node label
+                // and store it as an attribute of the node...
+                if (token.length() > 0) {
+                    node.setAttribute("label", parseValue(token));
+                }
 
-        // If there is a metacomment before the branch length indicator (:), then it is a node attribute
-        parseAndClearMetaComments(node, helper);
+                // If there is a metacomment before the branch length indicator (:), then it is a node attribute
+                parseAndClearMetaComments(node, helper);
 
-        return node;
+                if (open.isEmpty()) {
+                    return node;
+                }
+            }
+        }
     }
 
     /**
@@ -1354,15 +1352,14 @@ public class NexusImporter implements AlignmentImporter, SequenceImporter, TreeI
         }
     }
 
+    // This regex should match key=value pairs, separated by commas
+    // This can match the following types of meta comment pairs:
+    // value=number, value="string", value={item1, item2, item3}
+    // (label must be quoted if it contains spaces (i.e. "my label"=label)
+    private static final Pattern META_COMMENT_PAIR = Pattern.compile("(\"[^\"]*\"+|[^,=\\s]+)\\s*(=\\s*(\\{(\\{[^\\}]+\\},?)+\\}|\\{[^\\}]+\\}|\"[^\"]*\"+|[^,]+))?");
+
     static void parseMetaCommentPairs(String meta, Attributable item) throws ImportException.BadFormatException {
-        // This regex should match key=value pairs, separated by commas
-        // This can match the following types of meta comment pairs:
-        // value=number, value="string", value={item1, item2, item3}
-        // (label must be quoted if it contains spaces (i.e. "my label"=label)
-
-//        Pattern pattern = Pattern.compile("(\"[^\"]*\"+|[^,=\\s]+)\\s*(=\\s*(\\{[^=}]*\\}|\"[^\"]*\"+|[^,]+))?");
-        Pattern pattern = Pattern.compile("(\"[^\"]*\"+|[^,=\\s]+)\\s*(=\\s*(\\{(\\{[^\\}]+\\},?)+\\}|\\{[^\\}]+\\}|\"[^\"]*\"+|[^,]+))?");
-        Matcher matcher = pattern.matcher(meta);
+        Matcher matcher = META_COMMENT_PAIR.matcher(meta);
 
         while (matcher.find()) {
             String label = matcher.group(1);
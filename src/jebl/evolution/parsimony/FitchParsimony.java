@@ -16,6 +16,7 @@ import jebl.evolution.sequences.SequenceType;
 import jebl.evolution.sequences.State;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.RootedTreeTraversal;
 import jebl.evolution.trees.Tree;
 import jebl.evolution.trees.Utils;
 
@@ -145,7 +146,7 @@ public class FitchParsimony implements ParsimonyCriterion {
 		getSiteScores(tree);
 
 		if (!hasRecontructedStates) {
-			reconstructStates(this.tree.getRootNode(), null);
+			reconstructStates();
 			hasRecontructedStates = true;
 		}
 
@@ -173,7 +174,7 @@ public class FitchParsimony implements ParsimonyCriterion {
 	private void calculateSteps(RootedTree tree) {
 
 		// nodes in pre-order
-		final List<Node> nodes = Utils.getNodes(tree, tree.getRootNode());
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
 
 		// used as locals in the loop below, allocated once
 		boolean[][] union = new boolean[patterns.size()][stateCount];
@@ -181,11 +182,11 @@ public class FitchParsimony implements ParsimonyCriterion {
 
 		// iterate in reverse - post order. State of child is gurantted to be reasy before parent
 
-		for (int k = nodes.size() - 1; k >= 0; --k) {
-			final Node node = nodes.get(k);
+		for (int k = traversal.getNodeCount() - 1; k >= 0; --k) {
+			final Node node = traversal.getNode(k);
 			final boolean[][] nodeStateSet = stateSets.get(node);
 
-			if (tree.isExternal(node)) {
+			if (traversal.isExternal(k)) {
 				boolean[][] stateSet = stateSets.get(node);
 				State[] stateArray = states.get(node);
 
@@ -210,8 +211,8 @@ public class FitchParsimony implements ParsimonyCriterion {
 				}
 			} else {
 				boolean first = true;
-				for (Node child : tree.getChildren(node)) {
-					boolean[][] childStateSet = stateSets.get(child);
+				for (int c = 0; c < traversal.getChildCount(k); ++c) {
+					boolean[][] childStateSet = stateSets.get(traversal.getNode(traversal.getChild(k, c)));
 					if (first) {
 						for (int i = 0; i < patterns.size(); i++) {
 							copyOf(childStateSet[i], union[i]);
@@ -268,30 +269,29 @@ public class FitchParsimony implements ParsimonyCriterion {
 
 	/**
 	 * The second pass of the Fitch algorithm. This reconstructs the ancestral states at
-	 * each node.
-	 *
-	 * @param node
-	 * @param parentStates
+	 * each node, going down from the root.
 	 */
-	private void reconstructStates(Node node, State[] parentStates) {
+	private void reconstructStates() {
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
 
-		if (!tree.isExternal(node)) {
-			boolean[][] nodeStateSet = stateSets.get(node);
-			State[] nodeStates = states.get(node);
+		// in pre-order the states of the parent are always ready
+		for (int k = 0; k < traversal.getNodeCount(); ++k) {
+			if (!traversal.isExternal(k)) {
+				final Node node = traversal.getNode(k);
+				final State[] parentStates = k == 0 ? null : states.get(traversal.getNode(traversal.getParent(k)));
+				boolean[][] nodeStateSet = stateSets.get(node);
+				State[] nodeStates = states.get(node);
 
-			for (int i = 0; i < patterns.size(); i++) {
+				for (int i = 0; i < patterns.size(); i++) {
 
-				if (parentStates != null && nodeStateSet[i][parentStates[i].getIndex()]) {
-					nodeStates[i] = parentStates[i];
-				} else {
-					int first = firstIndexOf(nodeStateSet[i]);
-					nodeStates[i] = sequenceType.getState(first);
+					if (parentStates != null && nodeStateSet[i][parentStates[i].getIndex()]) {
+						nodeStates[i] = parentStates[i];
+					} else {
+						int first = firstIndexOf(nodeStateSet[i]);
+						nodeStates[i] = sequenceType.getState(first);
+					}
 				}
 			}
-
-			for (Node child : tree.getChildren(node)) {
-				reconstructStates(child, nodeStates);
-			}
 		}
 	}
 
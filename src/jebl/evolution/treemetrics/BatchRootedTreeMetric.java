@@ -0,0 +1,29 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.trees.RootedTree;
+
+/**
+ * A tree metric computed in two phases: each tree is summarised once by a signature, and the metric between two
+ * trees is then computed from their signatures only. When comparing many pairs this avoids redoing the per tree
+ * work for every pair (see {@link TreeMetricDistanceMatrix}).
+ *
+ * Signatures are immutable, so signatures of many trees may be compared concurrently.
+ *
+ * @param <S> type of tree signature
+ * @version $Id$
+ */
+public interface BatchRootedTreeMetric<S> extends RootedTreeMetric {
+	/**
+	 * @param tree the tree
+	 * @return the per tree information the metric needs
+	 */
+	S getSignature(RootedTree tree);
+
+	/**
+	 * calculates the metric between two rooted trees from their signatures
+	 * @param signature1 signature of first tree
+	 * @param signature2 signature of second tree
+	 * @return the tree metric value
+	 */
+	double getMetricFromSignatures(S signature1, S signature2);
+}
@@ -6,21 +6,29 @@ import jebl.evolution.trees.TreeBiPartitionInfo;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
 
 /**
  * Billera tree distance - sum of change in branch lengths required to transform one tree to the second
  *
- * Note that this interface is not optimal for a large set where all pairs are required.
- * Creating TreeBiPartitionInfo's as a pre step is better unless memory is an issue.
+ * The signature of a tree is its TreeBiPartitionInfo, so for a large set where all pairs are required use
+ * {@link TreeMetricDistanceMatrix}, which creates them once per tree.
  * 
  * @author Joseph Heled
  * @version $Id$
  */
-public class BilleraMetric implements RootedTreeMetric {
+public class BilleraMetric implements BatchRootedTreeMetric<TreeBiPartitionInfo> {
     public double getMetric(RootedTree tree1, RootedTree tree2) {
-        List<Taxon> taxa = new ArrayList<Taxon>(tree1.getTaxa());
-        TreeBiPartitionInfo p1 = new TreeBiPartitionInfo(tree1, taxa);
-        TreeBiPartitionInfo p2 = new TreeBiPartitionInfo(tree2, taxa);
-        return TreeBiPartitionInfo.distance(p1, p2, TreeBiPartitionInfo.DistanceNorm.NORM1);
+        return getMetricFromSignatures(getSignature(tree1), getSignature(tree2));
+    }
+
+    public TreeBiPartitionInfo getSignature(RootedTree tree) {
+        // sorted, so the order is the same for any tree with these taxa
+        List<Taxon> taxa = new ArrayList<Taxon>(new TreeSet<Taxon>(tree.getTaxa()));
+        return new TreeBiPartitionInfo(tree, taxa);
+    }
+
+    public double getMetricFromSignatures(TreeBiPartitionInfo signature1, TreeBiPartitionInfo signature2) {
+        return TreeBiPartitionInfo.distance(signature1, signature2, TreeBiPartitionInfo.DistanceNorm.NORM1);
     }
 }
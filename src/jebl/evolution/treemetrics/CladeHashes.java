@@ -0,0 +1,115 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.RootedTreeTraversal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the clades of a rooted tree as 128 bit hashes. The hash of a clade is the exclusive or of two 64 bit
+ * keys of each of its taxa, where the keys depend only on the taxon index, so hashes are comparable between trees
+ * indexed with the same taxon map. With 128 bits, collisions are negligible even for millions of distinct clades.
+ *
+ * @version $Id$
+ */
+class CladeHashes {
+    private CladeHashes() { }
+
+    /**
+     * A fixed 64 bit mixing function (SplitMix64 finalizer).
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    static long key1(int taxonIndex) {
+        return mix(2L * taxonIndex + 1);
+    }
+
+    static long key2(int taxonIndex) {
+        return mix(2L * taxonIndex + 2 + 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * @param tree the tree
+     * @param taxonMap index of each taxon of the tree
+     * @return hashes of the clades of all internal nodes, as consecutive pairs, sorted and without duplicates
+     */
+    static long[] getCladeHashes(RootedTree tree, Map<Taxon, Integer> taxonMap) {
+        // preorder, so going backwards every node comes after its descendants
+        final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+        final int[] parents = traversal.getParents();
+
+        final int nNodes = parents.length;
+        final long[] hash1 = new long[nNodes];
+        final long[] hash2 = new long[nNodes];
+        final List<long[]> clades = new ArrayList<long[]>();
+        for (int i = nNodes - 1; i >= 0; i--) {
+            if (traversal.isExternal(i)) {
+                final Node node = traversal.getNode(i);
+                final Integer t = taxonMap.get(tree.getTaxon(node));
+                if (t == null) {
+                    throw new IllegalArgumentException("Taxon " + tree.getTaxon(node) + " is not in the taxon list");
+                }
+                hash1[i] = key1(t);
+                hash2[i] = key2(t);
+            } else {
+                clades.add(new long[] {hash1[i], hash2[i]});
+            }
+            final int parent = parents[i];
+            if (parent >= 0) {
+                hash1[parent] ^= hash1[i];
+                hash2[parent] ^= hash2[i];
+            }
+        }
+
+        final long[][] sorted = clades.toArray(new long[clades.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : (a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1));
+            }
+        });
+
+        // remove duplicates (from nodes with one child)
+        final long[] hashes = new long[2 * sorted.length];
+        int n = 0;
+        for (long[] clade : sorted) {
+            if (n == 0 || hashes[n - 2] != clade[0] || hashes[n - 1] != clade[1]) {
+                hashes[n++] = clade[0];
+                hashes[n++] = clade[1];
+            }
+        }
+        return Arrays.copyOf(hashes, n);
+    }
+
+    /**
+     * @param hashes1 sorted clade hashes
+     * @param hashes2 sorted clade hashes
+     * @return number of clades in both
+     */
+    static int countShared(long[] hashes1, long[] hashes2) {
+        int shared = 0;
+        int i = 0, j = 0;
+        while (i < hashes1.length && j < hashes2.length) {
+            final long a = hashes1[i], b = hashes2[j];
+            if (a == b && hashes1[i + 1] == hashes2[j + 1]) {
+                ++shared;
+                i += 2;
+                j += 2;
+            } else if (a < b || (a == b && hashes1[i + 1] < hashes2[j + 1])) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        return shared;
+    }
+}
@@ -1,9 +1,9 @@
 package jebl.evolution.treemetrics;
 
+import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
-import jebl.evolution.graphs.Node;
-import jebl.evolution.treemetrics.RootedTreeMetric;
+import jebl.evolution.trees.RootedTreeTraversal;
 
 import java.util.*;
 
@@ -64,10 +64,14 @@ import java.util.*;
  *
  * So the score is sqrt(8^2 + 10^2) = sqrt(164)
  *
+ * The signature of a tree keeps just its clades, as the parent of each node in preorder, and their heights. The
+ * MRCA in one tree of a clade of the other is the MRCA of the clade's first and last tips in the preorder of that
+ * tree, so the MRCAs of all clades are found in one pass over each tree, in near linear time.
+ *
  * @author Andrew Rambaut
  * @version $Id$
  */
-public class CladeHeightMetric implements RootedTreeMetric {
+public class CladeHeightMetric implements BatchRootedTreeMetric<CladeHeightMetric.Signature> {
 
 	public CladeHeightMetric() {
 		taxonMap = null;
@@ -81,137 +85,162 @@ public class CladeHeightMetric implements RootedTreeMetric {
 	}
 
 	public double getMetric(RootedTree tree1, RootedTree tree2) {
+		return getMetricFromSignatures(getSignature(tree1), getSignature(tree2));
+	}
 
-		if (!tree1.getTaxa().equals(tree2.getTaxa())) {
-		    throw new IllegalArgumentException("Trees contain different taxa");
-		}
-
+	public Signature getSignature(RootedTree tree) {
 		Map<Taxon, Integer> tm = taxonMap;
 
 		if (tm == null) {
-			List<Taxon> taxa = new ArrayList<Taxon>(tree1.getTaxa());
+			// sorted, so the indices are the same for any tree with these taxa
+			List<Taxon> taxa = new ArrayList<Taxon>(new TreeSet<Taxon>(tree.getTaxa()));
 
-			if (!tree2.getTaxa().equals(taxa))
 			tm = new HashMap<Taxon, Integer>();
 			for (int i = 0; i < taxa.size(); i++) {
 				tm.put(taxa.get(i), i);
 			}
 		}
 
-		List<Clade> clades1 = new ArrayList<Clade>();
-		getClades(tm, tree1, tree1.getRootNode(), clades1, null);
-		Collections.sort(clades1);
-
-		List<Clade> clades2 = new ArrayList<Clade>();
-		getClades(tm, tree2, tree2.getRootNode(), clades2, null);
-		Collections.sort(clades2);
-
-		return getDistance(clades1, clades2);
+		return new Signature(tree, tm);
 	}
 
-	private void getClades(Map<Taxon, Integer> taxonMap, RootedTree tree, Node node,
-	                       List<Clade> clades, BitSet bits) {
-
-	    BitSet bits2 = new BitSet();
-
-	    if (tree.isExternal(node)) {
-
-	        int index = taxonMap.get(tree.getTaxon(node));
-	        bits2.set(index);
-
-	    } else {
-
-	        for (Node child : tree.getChildren(node)) {
-	            getClades(taxonMap, tree, child, clades, bits2);
-	        }
-	        clades.add(new Clade(bits2, tree.getHeight(node)));
-	    }
+	public double getMetricFromSignatures(Signature signature1, Signature signature2) {
 
+		if (!signature1.taxonSet.equals(signature2.taxonSet)) {
+		    throw new IllegalArgumentException("Trees contain different taxa");
+		}
 
-	    if (bits != null) {
-	        bits.or(bits2);
-	    }
+		return Math.sqrt(getDistance(signature1, signature2) + getDistance(signature2, signature1));
 	}
 
-	private double getDistance(List<Clade> clades1, List<Clade> clades2) {
-
-	    double distance = 0.0;
-
-	    for (Clade clade1 : clades1) {
-	        double height1 = clade1.getHeight();
-
-	        Clade clade2 = findMRCA(clade1, clades2);
-	        double height2 = clade2.getHeight();
-
-	        distance += (height1 - height2) * (height1 - height2);
-	    }
-
-	    for (Clade clade2 : clades2) {
-	        double height2 = clade2.getHeight();
-
-	        Clade clade1 = findMRCA(clade2, clades1);
-	        double height1 = clade1.getHeight();
-
-	        distance += (height1 - height2) * (height1 - height2);
-	    }
-
-	    return Math.sqrt(distance);
-	}
+	/**
+	 * @return sum over clades of tree1 of the squared difference between the clade height and the height of
+	 * the MRCA of its taxa in tree2
+	 */
+	private double getDistance(Signature tree1, Signature tree2) {
+		final int nNodes1 = tree1.parents.length;
+		final int nNodes2 = tree2.parents.length;
+
+		// first and last node of tree2 (in preorder) among the tips below each node of tree1
+		final int[] first = new int[nNodes1];
+		final int[] last = new int[nNodes1];
+		Arrays.fill(first, Integer.MAX_VALUE);
+		Arrays.fill(last, -1);
+		// nodes are numbered in preorder, so going backwards every node is reached after its descendants
+		for (int i = nNodes1 - 1; i >= 0; i--) {
+			if (tree1.taxa[i] >= 0) {
+				first[i] = last[i] = tree2.tips[tree1.taxa[i]];
+			}
+			final int parent = tree1.parents[i];
+			if (parent >= 0) {
+				first[parent] = Math.min(first[parent], first[i]);
+				last[parent] = Math.max(last[parent], last[i]);
+			}
+		}
 
-	private Clade findMRCA(Clade clade1, List<Clade> clades) {
+		// clades of tree1 grouped by their last node in tree2
+		final int[] offsets = new int[nNodes2 + 1];
+		for (int i = 0; i < nNodes1; i++) {
+			if (tree1.taxa[i] < 0) {
+				offsets[last[i] + 1]++;
+			}
+		}
+		for (int u = 0; u < nNodes2; u++) {
+			offsets[u + 1] += offsets[u];
+		}
+		final int[] clades = new int[offsets[nNodes2]];
+		final int[] next = Arrays.copyOf(offsets, nNodes2);
+		for (int i = 0; i < nNodes1; i++) {
+			if (tree1.taxa[i] < 0) {
+				clades[next[last[i]]++] = i;
+			}
+		}
 
-	    for (Clade clade2 : clades) {
-	        if (isMRCA(clade1, clade2)) {
-	            return clade2;
-	        }
-	    }
+		// walk tree2 in preorder, linking each node to its parent once its subtree has been walked, so the
+		// representative of an earlier node is its lowest ancestor still on the path: at the last node of a clade,
+		// that of the first node is their MRCA
+		final double[] differences = new double[nNodes1];
+		final int[] links = new int[nNodes2];
+		final int[] path = new int[nNodes2];
+		int depth = 0;
+		for (int u = 0; u < nNodes2; u++) {
+			links[u] = u;
+			while (depth > 0 && path[depth - 1] != tree2.parents[u]) {
+				final int done = path[--depth];
+				links[done] = tree2.parents[done];
+			}
+			path[depth++] = u;
+			for (int c = offsets[u]; c < offsets[u + 1]; c++) {
+				final int i = clades[c];
+				differences[i] = tree1.heights[i] - tree2.heights[find(links, first[i])];
+			}
+		}
 
-	    return null;
+		double distance = 0.0;
+		for (int i = nNodes1 - 1; i >= 0; i--) {
+			distance += differences[i] * differences[i];
+		}
+		return distance;
 	}
 
-	private boolean isMRCA(Clade clade1, Clade clade2) {
-	    if (clade1.getSize() > clade2.getSize()) {
-	        return false;
-	    }
-
-	    tmpBits.clear();
-	    tmpBits.or(clade1.getBits());
-	    tmpBits.and(clade2.getBits());
-
-	    return tmpBits.cardinality() == clade1.getSize();
+	/**
+	 * @return representative of the node, compressing the path to it
+	 */
+	private static int find(int[] links, int node) {
+		int root = node;
+		while (links[root] != root) {
+			root = links[root];
+		}
+		while (links[node] != root) {
+			final int next = links[node];
+			links[node] = root;
+			node = next;
+		}
+		return root;
 	}
 
-	BitSet tmpBits = new BitSet();
-
-	private class Clade implements Comparable<Clade> {
-	    public Clade(final BitSet bits, final double height) {
-	        this.bits = bits;
-	        this.height = height;
-	        size = bits.cardinality();
-	    }
-
-	    public BitSet getBits() {
-	        return bits;
-	    }
+	/**
+	 * Clades, node heights and taxa of a tree, by node number of its {@link RootedTreeTraversal}.
+	 */
+	public static final class Signature {
+		private Signature(RootedTree tree, Map<Taxon, Integer> taxonMap) {
+			final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+			parents = traversal.getParents();
+			taxonSet = new HashSet<Taxon>(tree.getTaxa());
+
+			final int nNodes = parents.length;
+			heights = new double[nNodes];
+			taxa = new int[nNodes];
+			tips = new int[taxonMap.size()];
+			for (int i = 0; i < nNodes; i++) {
+				final Node node = traversal.getNode(i);
+				heights[i] = tree.getHeight(node);
+				if (traversal.isExternal(i)) {
+					final Integer t = taxonMap.get(tree.getTaxon(node));
+					if (t == null) {
+						throw new IllegalArgumentException("Taxon " + tree.getTaxon(node) + " is not in the taxon list");
+					}
+					taxa[i] = t;
+					tips[t] = i;
+				} else {
+					taxa[i] = -1;
+				}
+			}
+		}
 
-	    public double getHeight() {
-	        return height;
-	    }
+		private final Set<Taxon> taxonSet;
 
-	    public int getSize() {
-	        return size;
-	    }
+		// parent of each node, -1 for the root
+		private final int[] parents;
 
-	    public int compareTo(Clade clade) {
-	        int i = bits.cardinality();
-	        int j = clade.bits.cardinality();
-	        return (i < j ? -1 : (i > j ? 1 : 0));
-	    }
+		// height of each node
+		private final double[] heights;
 
-	    private final BitSet bits;
-	    private final double height;
-	    private final int size;
+		// taxon index of each node, -1 for internal nodes
+		private final int[] taxa;
 
+		// node of each taxon index
+		private final int[] tips;
 	}
 
 	private final Map<Taxon, Integer> taxonMap;
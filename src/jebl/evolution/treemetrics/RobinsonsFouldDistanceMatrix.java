@@ -0,0 +1,178 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.distances.BasicDistanceMatrix;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.util.ProgressListener;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Robinson-Foulds distances between all pairs of a set of rooted trees on the same taxa. Row and column i of the
+ * matrix correspond to tree i; the matrix "taxa" are named tree_1, tree_2, ...
+ *
+ * Follows the HashRF approach: each clade is encoded once as a 128 bit hash (see {@link CladeHashes}) and given an
+ * integer id, and for each clade the list of trees containing it is kept. The number of
+ * clades shared by tree i and every later tree is then counted by walking those lists, one matrix row per task,
+ * in parallel. Work is proportional to the sum over clades of the square of the number of trees containing it,
+ * rather than to the number of pairs times the number of taxa.
+ *
+ * The distance is half the size of the symmetric difference of the two clade sets, which for binary trees is
+ * the same as {@link RobinsonsFouldMetric#getMetric(RootedTree, RootedTree)}.
+ *
+ * @version $Id$
+ */
+public class RobinsonsFouldDistanceMatrix extends BasicDistanceMatrix {
+
+    public RobinsonsFouldDistanceMatrix(List<? extends RootedTree> trees, ProgressListener progress) {
+        super(TreeMetricDistanceMatrix.getTreeTaxa(trees.size()), getDistances(trees, progress));
+    }
+
+    private static double[][] getDistances(List<? extends RootedTree> trees, ProgressListener progress) {
+        final int nTrees = trees.size();
+        if (nTrees == 0) {
+            throw new IllegalArgumentException("Expected at least one tree, but got none");
+        }
+
+        final Set<Taxon> taxa = trees.get(0).getTaxa();
+        final Map<Taxon, Integer> taxonMap = new HashMap<Taxon, Integer>();
+        for (Taxon taxon : taxa) {
+            taxonMap.put(taxon, taxonMap.size());
+        }
+
+        // clade ids of each tree, sorted
+        final CladeTable table = new CladeTable();
+        final int[][] treeClades = new int[nTrees][];
+        for (int i = 0; i < nTrees; i++) {
+            final RootedTree tree = trees.get(i);
+            if (!tree.getTaxa().equals(taxa)) {
+                throw new IllegalArgumentException("Tree " + (i + 1) + " has different taxa from tree 1");
+            }
+            treeClades[i] = getClades(tree, taxonMap, table);
+            if (progress != null) {
+                progress.setProgress(0.5 * (i + 1) / nTrees);
+            }
+        }
+
+        // trees containing each clade, in increasing order
+        final int[] nTreesWithClade = new int[table.size()];
+        for (int[] clades : treeClades) {
+            for (int c : clades) {
+                nTreesWithClade[c]++;
+            }
+        }
+        final int[][] treesWithClade = new int[table.size()][];
+        for (int c = 0; c < treesWithClade.length; c++) {
+            treesWithClade[c] = new int[nTreesWithClade[c]];
+            nTreesWithClade[c] = 0;
+        }
+        for (int i = 0; i < nTrees; i++) {
+            for (int c : treeClades[i]) {
+                treesWithClade[c][nTreesWithClade[c]++] = i;
+            }
+        }
+
+        final double[][] distances = new double[nTrees][nTrees];
+
+        // row i holds the number of clades shared with each later tree, then the distance
+        IntStream.range(0, nTrees).parallel().forEach(new IntConsumer() {
+            public void accept(int i) {
+                final double[] row = distances[i];
+                for (int c : treeClades[i]) {
+                    final int[] others = treesWithClade[c];
+                    int k = Arrays.binarySearch(others, i) + 1;
+                    for (; k < others.length; k++) {
+                        row[others[k]] += 1;
+                    }
+                }
+                for (int j = i + 1; j < nTrees; j++) {
+                    row[j] = 0.5 * (treeClades[i].length + treeClades[j].length - 2 * row[j]);
+                }
+            }
+        });
+
+        for (int i = 0; i < nTrees; i++) {
+            for (int j = i + 1; j < nTrees; j++) {
+                distances[j][i] = distances[i][j];
+            }
+        }
+
+        if (progress != null) {
+            progress.setProgress(1.0);
+        }
+        return distances;
+    }
+
+    /**
+     * @return sorted ids of the clades of internal nodes of the tree
+     */
+    private static int[] getClades(RootedTree tree, Map<Taxon, Integer> taxonMap, CladeTable table) {
+        final long[] hashes = CladeHashes.getCladeHashes(tree, taxonMap);
+        final int[] clades = new int[hashes.length / 2];
+        for (int k = 0; k < clades.length; k++) {
+            clades[k] = table.getId(hashes[2 * k], hashes[2 * k + 1]);
+        }
+        Arrays.sort(clades);
+        return clades;
+    }
+
+    /**
+     * Assigns consecutive ids to 128 bit clade hashes. Open addressing hash table.
+     */
+    private static class CladeTable {
+        private long[] hashes1 = new long[1024];
+        private long[] hashes2 = new long[1024];
+        private int[] ids = new int[1024];
+        private int size = 0;
+
+        CladeTable() {
+            Arrays.fill(ids, -1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getId(long hash1, long hash2) {
+            final int mask = ids.length - 1;
+            int slot = (int) (hash1 ^ (hash1 >>> 32)) & mask;
+            while (ids[slot] >= 0) {
+                if (hashes1[slot] == hash1 && hashes2[slot] == hash2) {
+                    return ids[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashes1[slot] = hash1;
+            hashes2[slot] = hash2;
+            ids[slot] = size++;
+            if (2 * size > ids.length) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        private void grow() {
+            final long[] old1 = hashes1;
+            final long[] old2 = hashes2;
+            final int[] oldIds = ids;
+            hashes1 = new long[2 * old1.length];
+            hashes2 = new long[2 * old2.length];
+            ids = new int[2 * oldIds.length];
+            Arrays.fill(ids, -1);
+            final int mask = ids.length - 1;
+            for (int k = 0; k < oldIds.length; k++) {
+                if (oldIds[k] >= 0) {
+                    int slot = (int) (old1[k] ^ (old1[k] >>> 32)) & mask;
+                    while (ids[slot] >= 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashes1[slot] = old1[k];
+                    hashes2[slot] = old2[k];
+                    ids[slot] = oldIds[k];
+                }
+            }
+        }
+    }
+}
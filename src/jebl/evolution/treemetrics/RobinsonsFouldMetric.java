@@ -1,17 +1,18 @@
 package jebl.evolution.treemetrics;
 
-import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.RootedTree;
-import jebl.evolution.treemetrics.RootedTreeMetric;
 
 import java.util.*;
 
 /**
+ * The number of clades of the first tree which are not in the second. The signature of a tree is
+ * the sorted list of 128 bit hashes of its clades.
+ *
  * @author Andrew Rambaut
  * @version $Id$
  */
-public class RobinsonsFouldMetric implements RootedTreeMetric {
+public class RobinsonsFouldMetric implements BatchRootedTreeMetric<RobinsonsFouldMetric.Signature> {
 
 	public RobinsonsFouldMetric() {
 		taxonMap = null;
@@ -25,11 +26,15 @@ public class RobinsonsFouldMetric implements RootedTreeMetric {
 	}
 
 	public double getMetric(RootedTree tree1, RootedTree tree2) {
+		return getMetricFromSignatures(getSignature(tree1), getSignature(tree2));
+	}
 
+	public Signature getSignature(RootedTree tree) {
 		Map<Taxon, Integer> tm = taxonMap;
 
 		if (tm == null) {
-			List<Taxon> taxa = new ArrayList<Taxon>(tree1.getTaxa());
+			// sorted, so the indices are the same for any tree with these taxa
+			List<Taxon> taxa = new ArrayList<Taxon>(new TreeSet<Taxon>(tree.getTaxa()));
 
 			tm = new HashMap<Taxon, Integer>();
 			for (int i = 0; i < taxa.size(); i++) {
@@ -37,54 +42,29 @@ public class RobinsonsFouldMetric implements RootedTreeMetric {
 			}
 		}
 
-		Set<String> clades1 = getClades(tm, tree1);
-		Set<String> clades2 = getClades(tm, tree2);
-
-		clades1.removeAll(clades2);
-
-		return clades1.size();
+		return new Signature(CladeHashes.getCladeHashes(tree, tm));
 	}
 
-	private Set<String> getClades(Map<Taxon, Integer> taxa, RootedTree tree) {
-
-		Set<String> clades = new HashSet<String>();
-
-		getTips(taxa, tree, tree.getRootNode(), clades);
-
-		return clades;
+	public double getMetricFromSignatures(Signature signature1, Signature signature2) {
+		return signature1.getCladeCount() - CladeHashes.countShared(signature1.hashes, signature2.hashes);
 	}
 
-	private Set<Integer> getTips(Map<Taxon, Integer> taxa, RootedTree tree, Node node, Set<String> clades) {
-
-		Set<Integer> tips = new TreeSet<Integer>();
-
-		if (tree.isExternal(node)) {
-			tips.add(taxa.get(tree.getTaxon(node)));
-		} else {
-			Node child1 = tree.getChildren(node).get(0);
-			Set<Integer> tips1 = getTips(taxa, tree, child1, clades);
-
-			Node child2 = tree.getChildren(node).get(1);
-			Set<Integer> tips2 = getTips(taxa, tree, child2, clades);
-
-			tips.addAll(tips1);
-			tips.addAll(tips2);
-
-			clades.add(getCladeString(tips));
+	/**
+	 * The clades of a tree.
+	 */
+	public static final class Signature {
+		private Signature(long[] hashes) {
+			this.hashes = hashes;
 		}
 
-		return tips;
-	}
-
-	private static String getCladeString(Set<Integer> tips) {
-		Iterator<Integer> iter = tips.iterator();
-		StringBuffer buffer = new StringBuffer();
-		buffer.append(iter.next());
-		while (iter.hasNext()) {
-			buffer.append(",");
-			buffer.append(iter.next());
+		/**
+		 * @return number of distinct clades
+		 */
+		public int getCladeCount() {
+			return hashes.length / 2;
 		}
-		return buffer.toString();
+
+		private final long[] hashes;
 	}
 
 	private final Map<Taxon, Integer> taxonMap;
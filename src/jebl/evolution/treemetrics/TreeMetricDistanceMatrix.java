@@ -0,0 +1,74 @@
+package jebl.evolution.treemetrics;
+
+import jebl.evolution.distances.BasicDistanceMatrix;
+import jebl.evolution.taxa.Taxon;
+import jebl.evolution.trees.RootedTree;
+import jebl.util.ProgressListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * The metric between all pairs of a set of rooted trees. Row and column i of the matrix correspond to tree i;
+ * the matrix "taxa" are named tree_1, tree_2, ...
+ *
+ * The signature of each tree is computed once (sequentially, since trees need not be thread safe), and the matrix
+ * is then filled from the signatures using all available cores.
+ *
+ * @version $Id$
+ */
+public class TreeMetricDistanceMatrix extends BasicDistanceMatrix {
+
+    public <S> TreeMetricDistanceMatrix(List<? extends RootedTree> trees, BatchRootedTreeMetric<S> metric, ProgressListener progress) {
+        super(getTreeTaxa(trees.size()), getDistances(trees, metric, progress));
+    }
+
+    /**
+     * @param nTrees number of trees
+     * @return taxa naming trees in a matrix of distances between trees
+     */
+    static List<Taxon> getTreeTaxa(int nTrees) {
+        List<Taxon> taxa = new ArrayList<Taxon>(nTrees);
+        for (int i = 0; i < nTrees; i++) {
+            taxa.add(Taxon.getTaxon("tree_" + (i + 1)));
+        }
+        return taxa;
+    }
+
+    private static <S> double[][] getDistances(List<? extends RootedTree> trees, final BatchRootedTreeMetric<S> metric,
+                                               ProgressListener progress) {
+        final int nTrees = trees.size();
+        if (nTrees == 0) {
+            throw new IllegalArgumentException("Expected at least one tree, but got none");
+        }
+
+        final List<S> signatures = new ArrayList<S>(nTrees);
+        for (RootedTree tree : trees) {
+            signatures.add(metric.getSignature(tree));
+            if (progress != null) {
+                progress.setProgress(0.5 * signatures.size() / nTrees);
+            }
+        }
+
+        final double[][] distances = new double[nTrees][nTrees];
+
+        // metrics need not be symmetric, so every ordered pair is computed
+        IntStream.range(0, nTrees).parallel().forEach(new IntConsumer() {
+            public void accept(int i) {
+                final S signature = signatures.get(i);
+                for (int j = 0; j < nTrees; j++) {
+                    if (j != i) {
+                        distances[i][j] = metric.getMetricFromSignatures(signature, signatures.get(j));
+                    }
+                }
+            }
+        });
+
+        if (progress != null) {
+            progress.setProgress(1.0);
+        }
+        return distances;
+    }
+}
@@ -0,0 +1,470 @@
+package jebl.evolution.trees;
+
+import java.util.*;
+
+/**
+ * Attributes of a set of objects (the nodes or edges of a tree, say), identified by row number, stored as one
+ * column per attribute name rather than as one map per object. Trees use this to hold node attributes, so an
+ * annotated tree keeps one array per attribute instead of a map, map entries and boxed values per node.
+ *
+ * A column starts out typed by its first value: Double values are kept in a double[], Integer values in an int[],
+ * anything else in an Object[]. An Integer column given a Double becomes a double[] column remembering which rows
+ * hold integers (as "height=12" and "height=12.5" give in an annotated tree), and any other column is converted to
+ * an Object[] column the first time it is given a value of another type, so values always come back with the type
+ * they were set with. Which rows have a value is recorded in a bit set per column. Columns grow as rows beyond the
+ * current capacity are set. The names of a row come back in the order they were first set, as they would from a map
+ * per row: usually that is the order the columns were created, and only rows which were given attributes in another
+ * order keep a list of their names.
+ *
+ * Rows may be assigned by the caller, or handed out by {@link #addRow()} and returned with {@link #releaseRow(int)}
+ * when the object they belong to is discarded, so that they are used again.
+ *
+ * Attribute names are interned, so trees with the same attributes share the name strings.
+ * {@link #getDouble(int, String, double)} and {@link #getDoubles(String, double)} read numeric columns without boxing,
+ * for reductions over an attribute of all nodes; see also
+ * {@link RootedTreeTraversal#getAttributeValues(String, double)}.
+ *
+ * Not thread safe for modification.
+ *
+ * @version $Id$
+ */
+public final class AttributeColumns {
+
+    /**
+     * An object whose attributes are a row of some AttributeColumns
+     */
+    interface Row {
+        /**
+         * @return the columns, or null if there are no attributes
+         */
+        AttributeColumns getAttributeColumns();
+
+        int getAttributeRow();
+    }
+
+    public AttributeColumns() {
+        this(16);
+    }
+
+    /**
+     * @param capacity initial number of rows
+     */
+    public AttributeColumns(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        lastColumns = new int[this.capacity];
+    }
+
+    /**
+     * @return one more than the highest row which was given a value. Rows which were released, or never given a
+     * value, are counted if a higher row has one.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return a row with no values: one released earlier, or else one above all rows given values or handed out
+     */
+    public int addRow() {
+        if (freeRowCount > 0) {
+            return freeRows[--freeRowCount];
+        }
+        nextRow = Math.max(nextRow, rowCount);
+        return nextRow++;
+    }
+
+    /**
+     * Removes all values of a row handed out by {@link #addRow()}, and makes it available to addRow again.
+     * The row must not be used after this.
+     * @param row row number
+     */
+    public void releaseRow(int row) {
+        clear(row);
+        if (freeRowCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, Math.max(2 * freeRowCount, 16));
+        }
+        freeRows[freeRowCount++] = row;
+    }
+
+    public void set(int row, String name, Object value) {
+        if (row >= capacity) {
+            capacity = Math.max(row + 1, 2 * capacity);
+            for (Column column : columns.values()) {
+                column.grow(capacity);
+            }
+            lastColumns = Arrays.copyOf(lastColumns, capacity);
+        }
+        Column column = columns.get(name);
+        if (column == null) {
+            column = value instanceof Double ? new DoubleColumn(capacity) :
+                    (value instanceof Integer ? new IntColumn(capacity) : new ObjectColumn(capacity));
+            column.position = columns.size();
+            name = name.intern();
+            columns.put(name, column);
+        } else if (!column.accepts(value)) {
+            final Column typed = column;
+            column = column instanceof IntColumn && value instanceof Double ?
+                    new DoubleColumn((IntColumn) column, capacity) : new ObjectColumn(column, capacity);
+            column.position = typed.position;
+            columns.put(name, column);
+        }
+        if (!column.has(row)) {
+            addName(row, name, column.position);
+        }
+        column.set(row, value);
+        rowCount = Math.max(rowCount, row + 1);
+    }
+
+    public Object get(int row, String name) {
+        final Column column = columns.get(name);
+        return column != null && column.has(row) ? column.get(row) : null;
+    }
+
+    /**
+     * @param row row number
+     * @param name attribute name
+     * @param missing value returned if the row has no numeric value for the attribute
+     * @return the value of a numeric attribute, unboxed when the column is numeric
+     */
+    public double getDouble(int row, String name, double missing) {
+        final Column column = columns.get(name);
+        return column != null && column.has(row) ? column.getDouble(row, missing) : missing;
+    }
+
+    /**
+     * @param name attribute name
+     * @param missing value for rows with no numeric value for the attribute
+     * @return the values of the attribute for rows 0 .. getRowCount()-1. This may include rows which belong to no
+     * object (released rows of nodes removed from a tree, say), which are missing.
+     */
+    public double[] getDoubles(String name, double missing) {
+        final double[] values = new double[rowCount];
+        final Column column = columns.get(name);
+        for (int row = 0; row < rowCount; ++row) {
+            values[row] = column != null && column.has(row) ? column.getDouble(row, missing) : missing;
+        }
+        return values;
+    }
+
+    /**
+     * @param name attribute name
+     * @return true if all values of the attribute are Double or Integer, so they are stored unboxed
+     */
+    public boolean isNumeric(String name) {
+        final Column column = columns.get(name);
+        return column != null && !(column instanceof ObjectColumn);
+    }
+
+    /**
+     * @return names of all attributes any row has or had, in the order they were first set
+     */
+    public Set<String> getColumnNames() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    public void remove(int row, String name) {
+        final Column column = columns.get(name);
+        if (column != null && column.has(row)) {
+            column.clear(row);
+            if (rowOrders != null) {
+                final List<String> names = rowOrders.get(row);
+                if (names != null) {
+                    names.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all attributes of a row.
+     * @param row row number
+     */
+    public void clear(int row) {
+        if (row >= 0 && row < capacity) {
+            for (Column column : columns.values()) {
+                if (column.has(row)) {
+                    column.clear(row);
+                }
+            }
+            lastColumns[row] = 0;
+            if (rowOrders != null) {
+                rowOrders.remove(row);
+            }
+        }
+    }
+
+    /**
+     * Record a name newly given to a row, keeping a list of the row's names if they are no longer in column order
+     */
+    private void addName(int row, String name, int position) {
+        List<String> names = rowOrders == null ? null : rowOrders.get(row);
+        if (names == null && position < lastColumns[row]) {
+            // the row has a value in a later column, so its names are out of column order from now on
+            names = new ArrayList<String>();
+            for (Map.Entry<String, Column> e : columns.entrySet()) {
+                if (e.getValue().has(row)) {
+                    names.add(e.getKey());
+                }
+            }
+            if (rowOrders == null) {
+                rowOrders = new HashMap<Integer, List<String>>();
+            }
+            rowOrders.put(row, names);
+        }
+        if (names != null) {
+            names.add(name);
+        } else {
+            lastColumns[row] = position + 1;
+        }
+    }
+
+    /**
+     * @return names of the attributes the row has, in the order they were first set
+     */
+    public Set<String> getNames(int row) {
+        final List<Map.Entry<String, Column>> entries = getEntries(row);
+        if (entries.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<String> names = new LinkedHashSet<String>();
+        for (Map.Entry<String, Column> e : entries) {
+            names.add(e.getKey());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the attributes of the row, in the order they were first set
+     */
+    public Map<String, Object> getMap(int row) {
+        final List<Map.Entry<String, Column>> entries = getEntries(row);
+        if (entries.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Column> e : entries) {
+            map.put(e.getKey(), e.getValue().get(row));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return the columns the row has a value in, in the order the row's values were first set
+     */
+    private List<Map.Entry<String, Column>> getEntries(int row) {
+        final List<Map.Entry<String, Column>> entries = new ArrayList<Map.Entry<String, Column>>();
+        final List<String> names = rowOrders == null ? null : rowOrders.get(row);
+        if (names != null) {
+            for (String name : names) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, Column>(name, columns.get(name)));
+            }
+        } else {
+            for (Map.Entry<String, Column> e : columns.entrySet()) {
+                if (e.getValue().has(row)) {
+                    entries.add(e);
+                }
+            }
+        }
+        return entries;
+    }
+
+    public void putAll(int row, Map<String, Object> map) {
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            set(row, e.getKey(), e.getValue());
+        }
+    }
+
+    private int capacity;
+
+    private int rowCount = 0;
+
+    /** For each row in column order, one more than the position of the last column it was given a value in */
+    private int[] lastColumns;
+
+    /** Names of the rows which were given values out of column order, in the order they were given; null if none */
+    private Map<Integer, List<String>> rowOrders = null;
+
+    /** Released rows, for addRow to hand out again */
+    private int[] freeRows = new int[0];
+    private int freeRowCount = 0;
+
+    /** Lowest row addRow may hand out when no row is free */
+    private int nextRow = 0;
+
+    private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+    private static abstract class Column {
+        Column(int capacity) {
+            present = new long[(capacity + 63) >> 6];
+        }
+
+        final boolean has(int row) {
+            return row >= 0 && (row >> 6) < present.length && (present[row >> 6] & (1L << row)) != 0;
+        }
+
+        final void mark(int row) {
+            present[row >> 6] |= 1L << row;
+        }
+
+        void clear(int row) {
+            present[row >> 6] &= ~(1L << row);
+        }
+
+        void grow(int capacity) {
+            present = Arrays.copyOf(present, (capacity + 63) >> 6);
+        }
+
+        abstract boolean accepts(Object value);
+
+        abstract Object get(int row);
+
+        abstract double getDouble(int row, double missing);
+
+        abstract void set(int row, Object value);
+
+        long[] present;
+
+        /** Number of columns created before this one */
+        int position;
+    }
+
+    private static final class DoubleColumn extends Column {
+        DoubleColumn(int capacity) {
+            super(capacity);
+            values = new double[capacity];
+        }
+
+        /** A copy of an Integer column */
+        DoubleColumn(IntColumn column, int capacity) {
+            this(capacity);
+            for (int w = 0; w < present.length; w++) {
+                for (long word = column.present[w]; word != 0; word &= word - 1) {
+                    final int row = (w << 6) + Long.numberOfTrailingZeros(word);
+                    set(row, column.get(row));
+                }
+            }
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof Double || value instanceof Integer;
+        }
+
+        Object get(int row) {
+            if (integers != null && (integers[row >> 6] & (1L << row)) != 0) {
+                return (int) values[row];
+            }
+            return values[row];
+        }
+
+        double getDouble(int row, double missing) {
+            return values[row];
+        }
+
+        void set(int row, Object value) {
+            if (value instanceof Integer) {
+                if (integers == null) {
+                    integers = new long[present.length];
+                }
+                integers[row >> 6] |= 1L << row;
+                values[row] = (Integer) value;
+            } else {
+                if (integers != null) {
+                    integers[row >> 6] &= ~(1L << row);
+                }
+                values[row] = (Double) value;
+            }
+            mark(row);
+        }
+
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+            if (integers != null) {
+                integers = Arrays.copyOf(integers, present.length);
+            }
+        }
+
+        private double[] values;
+
+        /** Rows whose value was set as an Integer, null if none */
+        private long[] integers = null;
+    }
+
+    private static final class IntColumn extends Column {
+        IntColumn(int capacity) {
+            super(capacity);
+            values = new int[capacity];
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof Integer;
+        }
+
+        Object get(int row) {
+            return values[row];
+        }
+
+        double getDouble(int row, double missing) {
+            return values[row];
+        }
+
+        void set(int row, Object value) {
+            values[row] = (Integer) value;
+            mark(row);
+        }
+
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        private int[] values;
+    }
+
+    private static final class ObjectColumn extends Column {
+        ObjectColumn(int capacity) {
+            super(capacity);
+            values = new Object[capacity];
+        }
+
+        /** A copy of a typed column */
+        ObjectColumn(Column column, int capacity) {
+            this(capacity);
+            for (int w = 0; w < present.length; w++) {
+                for (long word = column.present[w]; word != 0; word &= word - 1) {
+                    final int row = (w << 6) + Long.numberOfTrailingZeros(word);
+                    set(row, column.get(row));
+                }
+            }
+        }
+
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        Object get(int row) {
+            return values[row];
+        }
+
+        double getDouble(int row, double missing) {
+            return values[row] instanceof Number ? ((Number) values[row]).doubleValue() : missing;
+        }
+
+        void set(int row, Object value) {
+            values[row] = value;
+            mark(row);
+        }
+
+        void clear(int row) {
+            super.clear(row);
+            values[row] = null;
+        }
+
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        private Object[] values;
+    }
+}
@@ -1,12 +1,16 @@
 package jebl.evolution.trees;
 
 import jebl.evolution.graphs.Node;
-import jebl.evolution.taxa.Taxon;
 
 import java.util.*;
 
 /**
- * Stores a set of unique clades for a tree
+ * Stores a set of unique clades for a set of trees, together with summaries of the node heights and of
+ * numeric node attributes of each clade over all trees containing it.
+ *
+ * Mean, variance and range are accumulated as trees are added, in constant space per clade. Highest posterior
+ * density intervals need every value, so values are only kept (as primitive arrays) when asked for, which takes
+ * space proportional to the number of trees containing each clade.
  *
  * @author Marc A. Suchard
  * @version $Id: CladeSystem.java 317 2006-05-04 11:42:12 +1200 (Thu, 04 May 2006) alexeidrummond $
@@ -18,85 +22,166 @@ public class AttributedCladeSystem extends CladeSystem {
 	//
 
 	public AttributedCladeSystem(String name) {
-		attributeName = name;
-
+		this(Collections.singletonList(name));
 	}
 
 	/**
 	 * @param tree
 	 */
 	public AttributedCladeSystem(String name, RootedTree tree) {
-		super(tree);
-		attributeName = name;
+		this(name);
+		add(tree);
+	}
 
+	/**
+	 * @param names names of numeric node attributes to summarise
+	 */
+	public AttributedCladeSystem(List<String> names) {
+		this(names, false);
 	}
 
-	private void addClades(RootedTree tree, Node node, Set<Taxon> cladeTaxa) {
+	/**
+	 * @param names names of numeric node attributes to summarise
+	 * @param keepValues whether to keep all values, so {@link Summary#getHPD(double)} can be used
+	 */
+	public AttributedCladeSystem(List<String> names, boolean keepValues) {
+		attributeNames = names.toArray(new String[names.size()]);
+		this.keepValues = keepValues;
+	}
 
-		if (tree.isExternal(node)) {
-			cladeTaxa.add(tree.getTaxon(node));
-		} else {
+	public List<String> getAttributeNames() {
+		return Collections.unmodifiableList(Arrays.asList(attributeNames));
+	}
 
-			Set<Taxon> childCladeTaxa = new LinkedHashSet<Taxon>();
-			for (Node child : tree.getChildren(node)) {
+	/**
+	 * @param index clade index
+	 * @return summary of the clade's node heights
+	 */
+	public Summary getHeightSummary(int index) {
+		return summaries.get(index)[0];
+	}
 
-				addClades(tree, child, childCladeTaxa);
+	/**
+	 * @param index clade index
+	 * @param name attribute name
+	 * @return summary of the attribute's values at the clade's node. Trees where the node
+	 * does not have a numeric value for the attribute do not contribute.
+	 */
+	public Summary getAttributeSummary(int index, String name) {
+		for (int i = 0; i < attributeNames.length; i++) {
+			if (attributeNames[i].equals(name)) {
+				return summaries.get(index)[i + 1];
 			}
-
-			clades.add(new AttributedClade("tmp", childCladeTaxa));
-
-			cladeTaxa.addAll(childCladeTaxa);
 		}
+		throw new IllegalArgumentException("Attribute " + name + " is not summarised");
 	}
 
-	private class AttributedClade {
-
-		private String attributeName;
-		private final List<Double> values = new ArrayList<Double>();
-
-		public AttributedClade(String name, Set<Taxon> taxa) {
-			this.attributeName = name;
-			this.taxa = taxa;
-			this.frequency = 1.0;
+	protected void addNode(int cladeIndex, RootedTree tree, Node node) {
+		if (cladeIndex == summaries.size()) {
+			Summary[] s = new Summary[attributeNames.length + 1];
+			for (int i = 0; i < s.length; i++) {
+				s[i] = new Summary(keepValues);
+			}
+			summaries.add(s);
 		}
 
-		public double getFrequency() {
-			return frequency;
+		final Summary[] s = summaries.get(cladeIndex);
+		s[0].add(tree.getHeight(node));
+		for (int i = 0; i < attributeNames.length; i++) {
+			final Object value = node.getAttribute(attributeNames[i]);
+			if (value instanceof Number) {
+				s[i + 1].add(((Number) value).doubleValue());
+			}
 		}
+	}
 
-		public void setFrequency(double frequency) {
-			this.frequency = frequency;
+	/**
+	 * Running summary of a sample of values.
+	 */
+	public static final class Summary {
+		private int count = 0;
+		private double mean = 0.0;
+		// sum of squared differences from the mean (Welford's method)
+		private double sumSquares = 0.0;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		// all values, or null if they are not kept
+		private double[] values;
+
+		Summary(boolean keepValues) {
+			values = keepValues ? new double[4] : null;
 		}
 
-		private double frequency;
-
-		public Set<Taxon> getTaxa() {
-			return taxa;
+		void add(double value) {
+			if (values != null) {
+				if (count == values.length) {
+					values = Arrays.copyOf(values, 2 * count);
+				}
+				values[count] = value;
+			}
+			count++;
+			final double delta = value - mean;
+			mean += delta / count;
+			sumSquares += delta * (value - mean);
+			min = Math.min(min, value);
+			max = Math.max(max, value);
 		}
 
-		private final Set<Taxon> taxa;
+		public int getCount() {
+			return count;
+		}
 
-		public boolean equals(Object o) {
-			if (this == o) return true;
-			if (o == null || getClass() != o.getClass()) return false;
+		public double getMean() {
+			return mean;
+		}
 
-			final AttributedClade clade = (AttributedClade) o;
+		/**
+		 * @return sample variance, 0 for fewer than two values
+		 */
+		public double getVariance() {
+			return count > 1 ? sumSquares / (count - 1) : 0.0;
+		}
 
-			if (!taxa.equals(clade.taxa)) return false;
+		public double getMin() {
+			return min;
+		}
 
-			return true;
+		public double getMax() {
+			return max;
 		}
 
-		public int hashCode() {
-			return taxa.hashCode();
+		/**
+		 * @param proportion proportion of values in the interval, e.g. 0.95
+		 * @return the shortest interval containing the given proportion of the values, as {lower, upper}
+		 * @throws IllegalStateException if there are no values, or the clade system was not asked to keep them
+		 */
+		public double[] getHPD(double proportion) {
+			if (values == null) {
+				throw new IllegalStateException("Values are not kept");
+			}
+			if (count == 0) {
+				throw new IllegalStateException("No values");
+			}
+			final double[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			final int width = Math.max(1, (int) Math.ceil(proportion * count));
+			int best = 0;
+			for (int i = 1; i + width - 1 < count; i++) {
+				if (sorted[i + width - 1] - sorted[i] < sorted[best + width - 1] - sorted[best]) {
+					best = i;
+				}
+			}
+			return new double[] {sorted[best], sorted[best + width - 1]};
 		}
 	}
 
-
 	//
 	// Private stuff
 	//
-	private final List<AttributedClade> clades = new ArrayList<AttributedClade>();
-	private String attributeName;
-}
+	private final String[] attributeNames;
 
+	private final boolean keepValues;
+
+	// for each clade, the height summary followed by one per attribute
+	private final List<Summary[]> summaries = new ArrayList<Summary[]>();
+}
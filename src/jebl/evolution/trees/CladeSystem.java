@@ -6,7 +6,12 @@ import jebl.evolution.taxa.Taxon;
 import java.util.*;
 
 /**
- * Stores a set of unique clades for a tree
+ * Stores the set of unique clades of a set of trees, and the number of trees containing each clade.
+ *
+ * Taxa are indexed once, and each clade is stored as a bit set over the taxa, with a cached hash code, in an open
+ * addressing hash table. Adding a tree only allocates for clades not seen before, so very large samples of trees
+ * can be summarised. The tips below a node are a range of the tree's preorder, so clades are built from those
+ * ranges in a single buffer of one clade's size.
  *
  * @version $Id: CladeSystem.java 892 2008-02-27 03:53:11Z twobeers $
  *
@@ -16,10 +21,25 @@ public class CladeSystem {
     //
     // Private stuff
     //
-    private Set<Taxon> taxa = null;
+    private List<Taxon> taxa = null;
+    private Map<Taxon, Integer> taxonIndices = null;
+
+    /** Number of 64 bit words in a clade */
+    private int nWords;
 
     private final List<Clade> clades = new ArrayList<Clade>();
 
+    /** Hash table of clade indices, -1 for an empty slot */
+    private int[] table = new int[0];
+
+    private int treeCount = 0;
+
+    /** Bits of the clade being built, reused between nodes and trees */
+    private long[] work = new long[0];
+
+    /** Taxon index of each node of the tree being added in preorder, -1 for internal nodes; reused between trees */
+    private int[] nodeTaxa = new int[0];
+
 	//
 	// Public stuff
 	//
@@ -32,19 +52,50 @@ public class CladeSystem {
 	 */
 	public CladeSystem(RootedTree tree)
 	{
-		this.taxa = new TreeSet<Taxon>(tree.getTaxa());
 		add(tree);
 	}
 
+	/**
+	 * @param taxa the taxa of all trees to be added
+	 */
+	public CladeSystem(Collection<Taxon> taxa)
+	{
+		setTaxa(taxa);
+	}
+
+	private void setTaxa(Collection<Taxon> taxa) {
+		this.taxa = new ArrayList<Taxon>(new TreeSet<Taxon>(taxa));
+		taxonIndices = new HashMap<Taxon, Integer>(2 * this.taxa.size());
+		for (int i = 0; i < this.taxa.size(); i++) {
+			taxonIndices.put(this.taxa.get(i), i);
+		}
+		nWords = (this.taxa.size() + 63) / 64;
+		table = new int[16];
+		Arrays.fill(table, -1);
+	}
+
 	/** get number of unique clades */
 	public int getCladeCount()
 	{
 		return clades.size();
 	}
 
+	/** get number of trees added */
+	public int getTreeCount()
+	{
+		return treeCount;
+	}
+
 	public Set<Taxon> getClade(int index)
 	{
-		return clades.get(index).getTaxa();
+		final long[] bits = clades.get(index).bits;
+		Set<Taxon> cladeTaxa = new LinkedHashSet<Taxon>();
+		for (int w = 0; w < nWords; w++) {
+			for (long word = bits[w]; word != 0; word &= word - 1) {
+				cladeTaxa.add(taxa.get(64 * w + Long.numberOfTrailingZeros(word)));
+			}
+		}
+		return cladeTaxa;
 	}
 
 	public String getCladeString(int index)
@@ -63,77 +114,218 @@ public class CladeSystem {
 		return buffer.toString();
 	}
 
-	/** get clade frequency */
+	/** get number of trees containing the clade */
+	public int getCladeTreeCount(int index)
+	{
+		return clades.get(index).count;
+	}
+
+	/** get clade frequency, the fraction of trees containing the clade */
 	public double getCladeFrequency(int index)
 	{
-		return clades.get(index).getFrequency();
+		return (double) clades.get(index).count / treeCount;
 	}
 
-	/** adds all the clades in the tree */
-	public void add(RootedTree tree)
+	/**
+	 * @param cladeTaxa taxa of the clade
+	 * @return fraction of trees containing the clade, 0 if it was never seen
+	 */
+	public double getCladeFrequency(Collection<Taxon> cladeTaxa)
+	{
+		final int index = getCladeIndex(cladeTaxa);
+		return index < 0 ? 0.0 : getCladeFrequency(index);
+	}
+
+	/**
+	 * @param cladeTaxa taxa of the clade
+	 * @return index of clade, or -1 if it was never seen
+	 */
+	public int getCladeIndex(Collection<Taxon> cladeTaxa)
 	{
 		if (taxa == null) {
-			taxa = new TreeSet<Taxon>(tree.getTaxa());
+			return -1;
 		}
+		final long[] bits = new long[nWords];
+		for (Taxon taxon : cladeTaxa) {
+			final Integer i = taxonIndices.get(taxon);
+			if (i == null) {
+				return -1;
+			}
+			bits[i >> 6] |= 1L << i;
+		}
+		return find(bits, 0, hash(bits, 0));
+	}
 
-		// Recurse over the tree and add all the clades (or increment their
-		// frequency if already present). The root clade is not added.
-		addClades(tree, tree.getRootNode(), new LinkedHashSet<Taxon>());
+	/**
+	 * @param tree a tree with the same taxa as the clade system
+	 * @param node a node of the tree
+	 * @return index of the clade below node, or -1 if it was never seen
+	 */
+	public int getCladeIndex(RootedTree tree, Node node)
+	{
+		final List<Taxon> cladeTaxa = new ArrayList<Taxon>();
+		for (Node tip : tree.getExternalNodes(node)) {
+			cladeTaxa.add(tree.getTaxon(tip));
+		}
+		return getCladeIndex(cladeTaxa);
 	}
 
-	private void addClades(RootedTree tree, Node node, Set<Taxon> cladeTaxa) {
-		if (tree.isExternal(node)) {
-			cladeTaxa.add(tree.getTaxon(node));
-		} else {
+	/** adds all the clades in the tree, including the root clade */
+	public void add(RootedTree tree)
+	{
+		if (taxa == null) {
+			setTaxa(tree.getTaxa());
+		}
 
-			Set<Taxon> childCladeTaxa= new LinkedHashSet<Taxon>();
-			for (Node child : tree.getChildren(node)) {
+		// Nodes are numbered in preorder, so the descendants of a node follow it
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+		final int nNodes = traversal.getNodeCount();
 
-				addClades(tree, child, childCladeTaxa);
+		// Check every taxon before counting anything, so a tree with an unknown taxon leaves the system unchanged
+		if (nodeTaxa.length < nNodes) {
+			nodeTaxa = new int[nNodes];
+		}
+		for (int i = 0; i < nNodes; i++) {
+			nodeTaxa[i] = -1;
+			if (traversal.isExternal(i)) {
+				final Taxon taxon = tree.getTaxon(traversal.getNode(i));
+				final Integer t = taxonIndices.get(taxon);
+				if (t == null) {
+					throw new IllegalArgumentException("Taxon " + taxon + " is not in the clade system");
+				}
+				nodeTaxa[i] = t;
 			}
+		}
+		if (work.length < nWords) {
+			work = new long[nWords];
+		} else {
+			Arrays.fill(work, 0, nWords, 0L);
+		}
 
-			clades.add(new Clade(childCladeTaxa));
+		// Nodes are counted in reverse preorder, so clades are numbered as they always have been. The last internal
+		// node reached before a node is its first internal child, if it has one, so the clade in the buffer is
+		// extended by the tips of the other children rather than built again.
+		int built = -1;
+		for (int i = nNodes - 1; i >= 0; i--) {
+			if (traversal.isExternal(i)) {
+				continue;
+			}
+			final int end = i + traversal.getSubtreeSize(i);
+			if (built > i && built < end) {
+				addTips(i + 1, built);
+				addTips(built + traversal.getSubtreeSize(built), end);
+			} else {
+				if (built >= 0) {
+					Arrays.fill(work, 0, nWords, 0L);
+				}
+				addTips(i + 1, end);
+			}
+			built = i;
 
-			cladeTaxa.addAll(childCladeTaxa);
+			// a node with a single internal child has that child's clade, which is counted once per tree
+			if (traversal.getChildCount(i) != 1 || traversal.isExternal(traversal.getChild(i, 0))) {
+				addNode(count(0), tree, traversal.getNode(i));
+			}
 		}
+		treeCount++;
 	}
 
-	private static class Clade {
-		public Clade(Set<Taxon> taxa) {
-			this.taxa = taxa;
-			this.frequency = 1.0;
+	/**
+	 * Add the taxa of the tips among nodes from .. to-1 (in preorder) to the clade being built
+	 */
+	private void addTips(int from, int to) {
+		for (int j = from; j < to; j++) {
+			final int t = nodeTaxa[j];
+			if (t >= 0) {
+				work[t >> 6] |= 1L << t;
+			}
 		}
+	}
 
-		public double getFrequency() {
-			return frequency;
-		}
+	/**
+	 * Called for each internal node of an added tree, after the clade frequency has been updated.
+	 * @param cladeIndex index of the node's clade
+	 * @param tree the tree being added
+	 * @param node the node
+	 */
+	protected void addNode(int cladeIndex, RootedTree tree, Node node) {
+	}
 
-		public void setFrequency(double frequency) {
-			this.frequency = frequency;
+	/**
+	 * Increment the count of the clade in work[offset .. offset + nWords), adding it if new.
+	 * @return clade index
+	 */
+	private int count(int offset) {
+		final int hash = hash(work, offset);
+		int index = find(work, offset, hash);
+		if (index < 0) {
+			if (2 * (clades.size() + 1) > table.length) {
+				rehash();
+			}
+			index = clades.size();
+			clades.add(new Clade(Arrays.copyOfRange(work, offset, offset + nWords), hash));
+			int slot = hash & (table.length - 1);
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = index;
 		}
+		clades.get(index).count++;
+		return index;
+	}
 
-		private double frequency;
-
-		public Set<Taxon> getTaxa() {
-			return taxa;
+	private int find(long[] bits, int offset, int hash) {
+		if (table.length == 0) {
+			return -1;
 		}
+		int slot = hash & (table.length - 1);
+		while (table[slot] >= 0) {
+			final Clade clade = clades.get(table[slot]);
+			if (clade.hash == hash && clade.matches(bits, offset)) {
+				return table[slot];
+			}
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return -1;
+	}
 
-		private final Set<Taxon> taxa;
-
-		public boolean equals(Object o) {
-			if (this == o) return true;
-			if (o == null || getClass() != o.getClass()) return false;
+	private void rehash() {
+		table = new int[2 * table.length];
+		Arrays.fill(table, -1);
+		for (int index = 0; index < clades.size(); index++) {
+			int slot = clades.get(index).hash & (table.length - 1);
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = index;
+		}
+	}
 
-			final Clade clade = (Clade) o;
+	private int hash(long[] bits, int offset) {
+		long h = 0;
+		for (int w = 0; w < nWords; w++) {
+			h = (h + bits[offset + w]) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 29;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
 
-			if (!taxa.equals(clade.taxa)) return false;
+	private final class Clade {
+		Clade(long[] bits, int hash) {
+			this.bits = bits;
+			this.hash = hash;
+			this.count = 0;
+		}
 
+		boolean matches(long[] other, int offset) {
+			for (int w = 0; w < nWords; w++) {
+				if (bits[w] != other[offset + w]) return false;
+			}
 			return true;
 		}
 
-		public int hashCode() {
-			return taxa.hashCode();
-		}
+		private final long[] bits;
+		private final int hash;
+		private int count;
 	}
 }
-
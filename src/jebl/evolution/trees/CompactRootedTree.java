@@ -3,22 +3,22 @@ package jebl.evolution.trees;
 import jebl.evolution.graphs.Edge;
 import jebl.evolution.graphs.Node;
 import jebl.evolution.taxa.Taxon;
-import jebl.util.Attributable;
+import jebl.util.AttributableHelper;
 
 import java.util.*;
 
 /**
  * A memory efficient rooted tree.
  *
- *   - Uses a compact representation for the tree structure based primarily on indices instead of pointers
- *     and objects
+ *   - Uses a compact representation for the tree structure based on int indices into primitive arrays instead
+ *     of pointers and objects. Node objects are flyweights holding only their index.
  *   - Minimize penalty for unused features. Trees not using attributes or edges do not require additional
- *     per node/edge memory.
+ *     per node/edge memory. Node and edge attributes are stored by column (one array per attribute name, see
+ *     {@link AttributeColumns}), so numeric attributes are not boxed and no map is kept per node.
  *
- * Limitations:
- *    - Maximun of 2^16 nodes and 2^15 external nodes. This should not be a problem with the current
- *      sizes of phlogenetic trees we currently handle.
+ * The number of nodes is limited only by the size of a java array, so trees with millions of tips can be held.
  *
+ * Limitations:
  *    - Some of the accessors are slower, typically the ones getting all nodes, all edges, all internal
  *      nodes etc. Traversing the tree and handling attributes speed should be fine (compared to SimpkeRootedTree)
  *
@@ -26,7 +26,7 @@ import java.util.*;
  * @version $Id: CompactRootedTree.java 935 2008-07-22 16:52:04Z rambaut $
  *
  */
-public class CompactRootedTree extends AttributableImp implements RootedTree {
+public class CompactRootedTree implements RootedTree {
     /**
      * Array of all nodes.
      *
@@ -37,8 +37,8 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
      *
      * where c = (e,f) and b = ((e,f), d)
      *
-     * The major advantage is that all decendents of a node are grouped together.
-     * In subsequent comments nodes will be reffered to by their index in the array above.
+     * The major advantage is that all decendents of a node are grouped together, and every node comes after
+     * its parent. In subsequent comments nodes will be reffered to by their index in the array above.
      */
     SimpleRootedNode[] nodes;
 
@@ -46,24 +46,23 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
      *  Index of parent node of x is parent[x].
      *  For the example tree, this would be (- 0 0 2 2 3 3)
      */
-    short[] parent;
+    int[] parent;
 
     /**
      *  Decendents of node x start at sons[x]
      *  For the example tree, this would be (1 - 3 5 - - -)
      */
-    short[] sons;
+    int[] sons;
 
     /**
      * Number of Decendents of node x is noSons[x]
      * For the example tree, this would be (2 0 2 2 0 0 0)
      *
      * Actually the above is true only for internal nodes. External nodes contain an index into
-     * the taxa array indicating where the taxon for this node is stored. A 1 bit is added at the most
-     * significant place to separate internal from external nodes. So in fact the array would look like
-     * that (2 0x8000|0 2 2 0x8000|1 0x8000|2 0x8000|3), where taxa[0] holds a's taxon etc.
+     * the taxa array indicating where the taxon for this node is stored, as -(index + 1). So in fact the
+     * array would look like that (2 -1 2 2 -2 -3 -4), where taxa[0] holds a's taxon etc.
      */
-    short[] noSons;
+    int[] noSons;
 
     /** Tree has node heights information */
     boolean hasHeights;
@@ -86,6 +85,11 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
      */
     Taxon[] taxa;
 
+    /**
+     * Node of each taxon, i.e. taxa[i] is the taxon of node taxonNodes[i].
+     */
+    int[] taxonNodes;
+
     /**
      * Graph edges.
      *
@@ -96,105 +100,118 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
 
     private boolean conceptuallyUnrooted = false;
 
-    /**
-     * Attributes for tree, nodes and edges.
-     *
-     * attributs for node x are in all.get(x), for tree in all.get(#nodes), and for edges
-     * in all.get(#nodes + edge index) (note that edge index always > 0)
-     */
-    Map<Short, Map<String, Object> > all = null;
+    /** Node attributes, null until one is set */
+    private AttributeColumns nodeAttributes = null;
 
-    /**
-     * Test if attribute map exists for index
-     * @param index
-     * @return true if map exists
-     */
-    private boolean hasAttributeMap(short index) {
-        return all != null && all.get(index) != null;
-    }
+    /** Edge attributes by index of the edge's child node, null until one is set */
+    private AttributeColumns edgeAttributes = null;
 
-    /**
-     * Attribute map for index (node, tree or edge).
-     *
-     * @param index
-     * @return attribute map
-     */
-    private Map<String, Object> aMap(short index) {
-        if( all == null ) {
-            all = new LinkedHashMap<Short, Map<String, Object>>();
-        }
+    /** Tree attributes */
+    private AttributableHelper helper = null;
 
-        Map<String, Object> map = all.get(index);
-        if( map == null ) {
-            map = new LinkedHashMap<String, Object>();
-            all.put(index, map);
-        }
-        return map;
-    }
+    /** Index of each taxon in taxa, built on first use */
+    private Map<Taxon, Integer> taxonIndices = null;
+
+    /** Number of external nodes below each node, built on first use */
+    private int[] externalNodeCounts = null;
+
+    /** Traversal of the tree, built on first use (the structure never changes) */
+    private RootedTreeTraversal traversal = null;
 
     /**
      * A minimal rooted node.
      */
-    private class SimpleRootedNode extends AttributableImp implements Node {
+    private class SimpleRootedNode implements Node, AttributeColumns.Row {
         // Index of node in tree nodes array.
-        private short index;
+        private final int index;
 
-        SimpleRootedNode(short index) {
+        SimpleRootedNode(int index) {
             this.index = index;
         }
 
         public int getDegree() {
-            return nSons(index) + (this==getRootNode()?0:1);
+            return nSons(index) + (index == 0 ? 0 : 1);
         }
 
-        Map<String, Object> getExistingMap() {
-            if( hasAttributeMap(index) ) {
-                return aMap(index);
+        public void setAttribute(String name, Object value) {
+            if( nodeAttributes == null ) {
+                nodeAttributes = new AttributeColumns(nodes.length);
             }
-            return null;
+            nodeAttributes.set(index, name, value);
         }
 
-        Map<String, Object> getMap() {
-            return aMap(index);
+        public Object getAttribute(String name) {
+            return nodeAttributes == null ? null : nodeAttributes.get(index, name);
+        }
+
+        public void removeAttribute(String name) {
+            if( nodeAttributes != null ) {
+                nodeAttributes.remove(index, name);
+            }
+        }
+
+        public Set<String> getAttributeNames() {
+            return nodeAttributes == null ? Collections.<String>emptySet() : nodeAttributes.getNames(index);
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return nodeAttributes == null ? Collections.<String, Object>emptyMap() : nodeAttributes.getMap(index);
+        }
+
+        public AttributeColumns getAttributeColumns() {
+            return nodeAttributes;
+        }
+
+        public int getAttributeRow() {
+            return index;
         }
     }
 
     // Number of decendents.
     private int nSons(int index) {
-        // Take care of external node bit.
-        final short n = noSons[index];
-        if( (n & 0x8000) == 0) {
-          return n;
-        }
-        return 0;
+        // Take care of external nodes.
+        return Math.max(noSons[index], 0);
     }
 
     /** Minimal edge object */
-    private class SimpleRootedEdge extends AttributableImp implements Edge {
+    private class SimpleRootedEdge implements Edge {
        /** edge is between node 'index' and it's parent
         *
         * As a consequence, index > 0 always.
         */
-       private short index;
+       private final int index;
 
-        SimpleRootedEdge(short index) {
+        SimpleRootedEdge(int index) {
             this.index = index;
         }
 
-        Map<String, Object> getExistingMap() {
-            final short i = (short)(nodes.length + index);
-            if( hasAttributeMap(i) ) {
-                return aMap(i);
+        public double getLength() {
+            return heights[parent[index]] - heights[index];
+        }
+
+        public void setAttribute(String name, Object value) {
+            if( edgeAttributes == null ) {
+                edgeAttributes = new AttributeColumns(nodes.length);
             }
-            return null;
+            edgeAttributes.set(index, name, value);
         }
 
-        Map<String, Object> getMap() {
-            return aMap((short)(nodes.length + index));
+        public Object getAttribute(String name) {
+            return edgeAttributes == null ? null : edgeAttributes.get(index, name);
         }
 
-        public double getLength() {
-            return heights[parent[index]] - heights[index];
+        public void removeAttribute(String name) {
+            if( edgeAttributes != null ) {
+                edgeAttributes.remove(index, name);
+            }
+        }
+
+        public Set<String> getAttributeNames() {
+            return edgeAttributes == null ? Collections.<String>emptySet() : edgeAttributes.getNames(index);
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return edgeAttributes == null ? Collections.<String, Object>emptyMap() : edgeAttributes.getMap(index);
         }
     }
 
@@ -205,89 +222,96 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
      */
     public CompactRootedTree(RootedTree t) {
         conceptuallyUnrooted = t.conceptuallyUnrooted();
-
-        final int nNodes = t.getNodes().size();
-        nodes = new SimpleRootedNode[nNodes];
-        parent = new short[nNodes];
-        sons = new short[nNodes];
-        noSons = new short[nNodes];
-        heights = new double[nNodes];
         hasHeights = t.hasHeights();
         hasLengths = t.hasLengths();
-        taxa = new Taxon[t.getTaxa().size()];
         edges = null;
 
-        final Node rootNode = t.getRootNode();
-        // nodes to be inserted to the tree, all the same distance from root.
-        List<Node> level = new ArrayList<Node>();
+        // Source nodes in level order: since decendents of a node are appended in turn, the position of a node
+        // in this list is its index.
+        final List<Node> order = new ArrayList<Node>();
+        order.add(t.getRootNode());
+        int[] nChildren = new int[16];
+        int nTax = 0;
+        for(int iNode = 0; iNode < order.size(); ++iNode) {
+            final List<Node> children = t.getChildren(order.get(iNode));
+            if( iNode == nChildren.length ) {
+                nChildren = Arrays.copyOf(nChildren, 2 * iNode);
+            }
+            nChildren[iNode] = children.size();
+            order.addAll(children);
+            if( children.size() == 0 ) {
+                ++nTax;
+            }
+        }
 
-        // nodes to be inserted in next iteration (decendents of nodes in 'level')
-        List<Node> nlevel = new ArrayList<Node>();
+        final int nNodes = order.size();
+        nodes = new SimpleRootedNode[nNodes];
+        parent = new int[nNodes];
+        sons = new int[nNodes];
+        noSons = new int[nNodes];
+        heights = new double[nNodes];
+        taxa = new Taxon[nTax];
+        taxonNodes = new int[nTax];
 
-        // start with roo node
-        level.add(rootNode);
-        // where next inserted node goes
-        int iNode = 0;
         // where decendents (if any) of next node goes
         int decendentslStart = 1;
         // where taxa (if external) of next node goes
-        int nTax = 0;
-
-        while( level.size() > 0 ) {
-            nlevel.clear();
-            for( Node n : level ) {
-                short ns = (short) t.getChildren(n).size();
+        nTax = 0;
 
-                if( hasHeights ) {
-                    heights[iNode] = t.getHeight(n);
-                } else if( hasLengths ) {
-                    heights[iNode] = ((iNode == 0) ? 0.0 : t.getLength(n));
-                }
-
-                nodes[iNode] = new SimpleRootedNode((short)iNode);
-                sons[iNode] = ns > 0 ? (short)decendentslStart : 0;
-                for(int l = 0; l < ns; ++l) {
-                    parent[decendentslStart + l] = (short)iNode;
-                }
+        for(int iNode = 0; iNode < nNodes; ++iNode) {
+            final Node n = order.get(iNode);
+            final int ns = nChildren[iNode];
 
-                decendentslStart += ns;
+            if( hasHeights ) {
+                heights[iNode] = t.getHeight(n);
+            } else if( hasLengths ) {
+                heights[iNode] = ((iNode == 0) ? 0.0 : t.getLength(n));
+            }
 
-                if( ns == 0 ) {
-                    // external, set taxon and mark it.
-                    assert t.isExternal(n);
-                    taxa[nTax] = t.getTaxon(n);
-                    ns = (short)(0x8000 | nTax);
-                    ++nTax;
-                }
+            nodes[iNode] = new SimpleRootedNode(iNode);
+            sons[iNode] = ns > 0 ? decendentslStart : 0;
+            for(int l = 0; l < ns; ++l) {
+                parent[decendentslStart + l] = iNode;
+            }
+            decendentslStart += ns;
+
+            if( ns == 0 ) {
+                // external, set taxon and mark it.
+                assert t.isExternal(n);
+                taxa[nTax] = t.getTaxon(n);
+                taxonNodes[nTax] = iNode;
+                noSons[iNode] = -(nTax + 1);
+                ++nTax;
+            } else {
                 noSons[iNode] = ns;
+            }
 
-                // set node attributes
-                final Map<String, Object> map = n.getAttributeMap();
-                if( map.size() > 0 ) {
-                   nodes[iNode].getMap().putAll(map);
-                }
-
-                // add decendents for next round
-                for( Node s : t.getChildren(n) ) {
-                    nlevel.add(s);
+            // set node attributes
+            final Map<String, Object> map = n.getAttributeMap();
+            if( map.size() > 0 ) {
+                if( nodeAttributes == null ) {
+                    nodeAttributes = new AttributeColumns(nNodes);
                 }
-
-                ++iNode;
+                nodeAttributes.putAll(iNode, map);
             }
-            // setup for next level
-            level.clear();
-            level.addAll(nlevel);
         }
+        parent[0] = -1;
 
         // add tree attributes
         final Map<String, Object> map = t.getAttributeMap();
         if( map.size() > 0 ) {
-           getMap().putAll(map);
+            for( Map.Entry<String, Object> e : map.entrySet() ) {
+                setAttribute(e.getKey(), e.getValue());
+            }
         }
     }
 
+    private static int index(Node node) {
+        return ((SimpleRootedNode) node).index;
+    }
+
     public List<Node> getChildren(Node node) {
-        final int index = ((SimpleRootedNode) node).index;
+        final int index = index(node);
         final int nSon = nSons(index);
         final ArrayList<Node> clist = new ArrayList<Node>(nSon);
         for(int k = sons[index]; k < sons[index] + nSon; ++k) {
@@ -298,14 +322,27 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
 
     @Override
     public int getExternalNodeCount(Node node) {
-        if (isExternal(node)) return 1;
-
-        int externalNodeCount = 0;
-        for (Node child :  getChildren(node)) {
-            externalNodeCount += getExternalNodeCount(child);
+        if( externalNodeCounts == null ) {
+            // every node comes after its parent, so going backwards counts are complete when reached
+            final int[] counts = new int[nodes.length];
+            for(int k = nodes.length - 1; k >= 0; --k) {
+                if( noSons[k] < 0 ) {
+                    counts[k] = 1;
+                }
+                if( k > 0 ) {
+                    counts[parent[k]] += counts[k];
+                }
+            }
+            externalNodeCounts = counts;
         }
+        return externalNodeCounts[index(node)];
+    }
 
-        return externalNodeCount;
+    RootedTreeTraversal getTraversal() {
+        if( traversal == null ) {
+            traversal = new RootedTreeTraversal(this);
+        }
+        return traversal;
     }
 
     /**
@@ -317,11 +354,25 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     public List<Node> getExternalNodes(Node node) {
         if (isExternal(node)) return Collections.singletonList(node);
 
+        // depth first, left to right, using an explicit stack
         List<Node> tips = new ArrayList<Node>();
-        for (Node child :  getChildren(node)) {
-            tips.addAll(getExternalNodes(child));
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = index(node);
+        while( top > 0 ) {
+            final int k = stack[--top];
+            final int ns = noSons[k];
+            if( ns < 0 ) {
+                tips.add(nodes[k]);
+            } else {
+                if( top + ns > stack.length ) {
+                    stack = Arrays.copyOf(stack, 2 * (top + ns));
+                }
+                for(int s = sons[k] + ns - 1; s >= sons[k]; --s) {
+                    stack[top++] = s;
+                }
+            }
         }
-
         return tips;
     }
 
@@ -332,7 +383,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     public double getHeight(Node node) {
         assert hasHeights;
 
-        return heights[((SimpleRootedNode)node).index];
+        return heights[index(node)];
     }
 
     public boolean hasLengths() {
@@ -342,7 +393,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     public double getLength(Node node) {
         assert hasLengths;
 
-        final int index = ((SimpleRootedNode) node).index;
+        final int index = index(node);
         if( hasHeights ) {
            if( index == 0 ) return 0;
            return heights[parent[index]] - heights[index];
@@ -365,7 +416,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     }
 
     public Node getParent(Node node) {
-        final int index = ((SimpleRootedNode) node).index;
+        final int index = index(node);
         return index == 0 ? null : nodes[parent[index]];
     }
 
@@ -386,14 +437,14 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     }
 
     public boolean isRoot(Node node) {
-        return ((SimpleRootedNode)node).index == 0;
+        return index(node) == 0;
     }
 
     // O(number of nodes)
     public Set<Node> getExternalNodes() {
         Set<Node> n = new LinkedHashSet<Node>();
         for(int i = 0; i < nodes.length; ++i) {
-            if( (noSons[i] & 0x8000) != 0 ) {
+            if( noSons[i] < 0 ) {
                 n.add(nodes[i]);
             }
         }
@@ -404,7 +455,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     public Set<Node> getInternalNodes() {
         Set<Node> n = new LinkedHashSet<Node>();
         for(int i = 0; i < nodes.length; ++i) {
-            if( (noSons[i] & 0x8000) == 0 ) {
+            if( noSons[i] >= 0 ) {
                 n.add(nodes[i]);
             }
         }
@@ -414,7 +465,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     public Set<Edge> getExternalEdges() {
         Set<Edge> edges = new LinkedHashSet<Edge>();
         for (Node node : getExternalNodes()) {
-            edges.add( establishEdge( ((SimpleRootedNode)node).index) ) ;
+            edges.add( establishEdge(index(node)) ) ;
         }
         return edges;
     }
@@ -423,7 +474,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
         Set<Edge> edges = new LinkedHashSet<Edge>();
         for (Node node : getInternalNodes()) {
             if (node != getRootNode()) {
-                edges.add( establishEdge( ((SimpleRootedNode)node).index) );
+                edges.add( establishEdge(index(node)) );
             }
         }
         return edges;
@@ -434,32 +485,34 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     }
 
     public Taxon getTaxon(Node node) {
-        final short index = ((SimpleRootedNode) node).index;
-        if( (noSons[index] & 0x8000) != 0 ) {
-            return taxa[noSons[index] & 0x7FFF];
+        final int ns = noSons[index(node)];
+        if( ns < 0 ) {
+            return taxa[-ns - 1];
         }
         return null;
     }
 
     public boolean isExternal(Node node) {
-        return nSons(((SimpleRootedNode)node).index) == 0;
+        return noSons[index(node)] <= 0;
     }
 
-    // O(number of nodes)
     public Node getNode(Taxon taxon) {
-        int i = Arrays.asList(taxa).indexOf(taxon);
-        for(int k = 0; k < nodes.length; ++k) {
-            if( noSons[k] == (short)(0x8000 | i) ) {
-                return nodes[k];
+        if( taxonIndices == null ) {
+            final Map<Taxon, Integer> indices = new HashMap<Taxon, Integer>(2 * taxa.length);
+            for(int n = taxa.length - 1; n >= 0; --n) {
+                indices.put(taxa[n], n);
             }
+            taxonIndices = indices;
         }
-        return null;
+        final Integer i = taxonIndices.get(taxon);
+        return i == null ? null : nodes[taxonNodes[i]];
     }
 
     public void renameTaxa(Taxon from, Taxon to) {
         for(int n = 0; n < taxa.length; ++n) {
             if( from.equals(taxa[n]) ) {
                 taxa[n] = to;
+                taxonIndices = null;
                 break;
             }
         }
@@ -467,22 +520,21 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
 
     public List<Edge> getEdges(Node node) {
         List<Edge> e = new ArrayList<Edge>();
-        final short index = ((SimpleRootedNode) node).index;
+        final int index = index(node);
         if( index != 0 ) {
             e.add(establishEdge(index));
         }
         for(int n = 0; n < nSons(index); ++n) {
-            final short sindex = (short) (sons[index] + n);
-            e.add(establishEdge(sindex));
+            e.add(establishEdge(sons[index] + n));
         }
         return e;
     }
 
     public List<Node> getAdjacencies(Node node) {
         List<Node> adjacencies = new ArrayList<Node>();
-        final short index = ((SimpleRootedNode) node).index;
+        final int index = index(node);
         final int nSon = nSons(index);
-        final short sonStart = sons[index];
+        final int sonStart = sons[index];
         for(int n = 0; n <  nSon; ++n) {
             adjacencies.add( nodes[sonStart + n] );
         }
@@ -492,7 +544,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
         return adjacencies;
     }
 
-    private Edge establishEdge(short index) {
+    private Edge establishEdge(int index) {
         if( edges == null ) {
             edges = new SimpleRootedEdge[nodes.length];
         }
@@ -503,8 +555,8 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     }
 
     public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
-        short index1 = ((SimpleRootedNode) node1).index;
-        short index2 = ((SimpleRootedNode) node2).index;
+        int index1 = index(node1);
+        int index2 = index(node2);
         // make index1 the parent of index2
         if( parent[index1] == index2 ) {
             index2 = index1;
@@ -517,8 +569,8 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
     }
 
     public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
-        final short index1 = ((SimpleRootedNode) node1).index;
-        final short index2 = ((SimpleRootedNode) node2).index;
+        final int index1 = index(node1);
+        final int index2 = index(node2);
         if( ! (parent[index1] == index2 || parent[index2] == index1) ) {
             throw new NoEdgeException();
         }
@@ -527,7 +579,7 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
 
     public Node[] getNodes(Edge edge) {
         Node[] ns = new Node[2];
-        final short index = ((SimpleRootedEdge) edge).index;
+        final int index = ((SimpleRootedEdge) edge).index;
         ns[0] = nodes[index];
         ns[1] = nodes[parent[index]];
 
@@ -540,9 +592,9 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
 
     public Set<Edge> getEdges() {
         for(int k = 1; k < nodes.length; ++k) {
-            establishEdge((short)k);
+            establishEdge(k);
         }
-        return new LinkedHashSet<Edge>( Arrays.asList(edges));
+        return new LinkedHashSet<Edge>( Arrays.<Edge>asList(edges).subList(1, edges.length));
     }
 
     public Set<Node> getNodes(int degree) {
@@ -559,65 +611,39 @@ public class CompactRootedTree extends AttributableImp implements RootedTree {
         return ns;
     }
 
-    Map<String, Object> getExistingMap() {
-        final short index = (short) nodes.length;
-        if( hasAttributeMap(index) ) {
-            return aMap(index);
-        }
-        return null;
-    }
-
-    Map<String, Object> getMap() {
-        final short index = (short) nodes.length;
-        return aMap(index);
-    }
-}
-
-/**
- * Helper in attribute handling for tree, nodes and edges.
- *
- * The object provides the map via the abstract methods.
- */
-abstract class AttributableImp implements Attributable {
-    /**
-     * Get attribute map for object.
-     * @return the map
-     */
-    abstract Map<String, Object>  getMap();
-
-    /**
-     * Used to avoid creating an attribute object when only querying for map elements.
-     *
-     * @return Attribute map for object if a none-empty one exists for object, null otherwise
-     */
-    abstract Map<String, Object> getExistingMap();
-
+    // Attributable IMPLEMENTATION
 
     public void setAttribute(String name, Object value) {
-        getMap().put(name, value);
+        if (helper == null) {
+            helper = new AttributableHelper();
+        }
+        helper.setAttribute(name, value);
     }
 
     public Object getAttribute(String name) {
-        return getMap().get(name);
+        if (helper == null) {
+            return null;
+        }
+        return helper.getAttribute(name);
     }
 
     public void removeAttribute(String name) {
-        getMap().remove(name);
+        if( helper != null ) {
+            helper.removeAttribute(name);
+        }
     }
 
     public Set<String> getAttributeNames() {
-        Map<String, Object> map = getExistingMap();
-        if( map != null ) {
-            return map.keySet();
+        if (helper == null) {
+            return Collections.emptySet();
         }
-        return Collections.emptySet();
+        return helper.getAttributeNames();
     }
 
     public Map<String, Object> getAttributeMap() {
-        Map<String, Object> map = getExistingMap();
-        if( map != null ) {
-            return map;
+        if (helper == null) {
+            return Collections.emptyMap();
         }
-        return Collections.emptyMap();
+        return helper.getAttributeMap();
     }
-}
\ No newline at end of file
+}
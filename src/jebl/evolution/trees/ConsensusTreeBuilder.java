@@ -80,6 +80,23 @@ public abstract class ConsensusTreeBuilder<T extends Tree> implements TreeBuilde
         Utils.assertAllTreesHaveTheSameTaxa(Arrays.asList(trees));
     }
 
+    /**
+     * For builders which receive their trees after construction.
+     * @param taxa the common taxa of all trees which are going to be used
+     * @param supportAttributeName name of attribute describing a tree's amount of support
+     * @param supportInPercent when true, support is in percent (0 - 100), otherwise in number of trees from the set.
+     * @throws IllegalArgumentException if taxa is empty
+     */
+    ConsensusTreeBuilder(List<Taxon> taxa, String supportAttributeName, boolean supportInPercent) throws IllegalArgumentException {
+        if (taxa.size() == 0) {
+            throw new IllegalArgumentException("Expected at least one taxon, but got none");
+        }
+        this.supportAttributeName = supportAttributeName;
+        this.supportAsPercent = supportInPercent;
+        this.nExternalNodes = taxa.size();
+        this.taxons = Collections.unmodifiableList(new ArrayList<Taxon>(taxa));
+    }
+
     /**
      * Returns a human readable name of this consensus tree building method
      * @return A human readable name of this consensus tree building method
@@ -1,6 +1,7 @@
 package jebl.evolution.trees;
 
 import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
 import jebl.util.FixedBitSet;
 
 import java.util.*;
@@ -15,11 +16,16 @@ import java.util.*;
  *          Implementation shares some code with GreedyUnrootedConsensusTreeBuilder (which preceded it), and perhaps I will
  *          find a way to merge the two at a later stage when I have the time.
  */
-class GreedyRootedConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
+class GreedyRootedConsensusTreeBuilder extends StreamingConsensusTreeBuilder {
     /**
-     * Set of trees.
+     * Set of trees given on construction, not yet added to the support. Released once added.
      */
-    private final RootedTree[] rtrees;
+    private RootedTree[] rtrees;
+
+    /**
+     * Number of trees from rtrees already added.
+     */
+    private int nAdded = 0;
 
 
     /**
@@ -27,10 +33,13 @@ class GreedyRootedConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree>
      */
     private final double supportThreshold;
 
+    /**
+     * Support of each clade seen so far.
+     */
+    private final Map<FixedBitSet, Support> support = new LinkedHashMap<FixedBitSet, Support>();
+
     public GreedyRootedConsensusTreeBuilder(RootedTree[] trees, double supportThreshold) {
-        super(trees);
-        this.rtrees = trees;
-        this.supportThreshold = supportThreshold;
+        this(trees, supportThreshold, DEFAULT_SUPPORT_ATTRIBUTE_NAME, true);
     }
 
 	public GreedyRootedConsensusTreeBuilder(RootedTree[] trees, double supportThreshold, String supportAttributeName, boolean asPercent) {
@@ -39,6 +48,15 @@ class GreedyRootedConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree>
 	    this.supportThreshold = supportThreshold;
 	}
 
+    /**
+     * Builder for trees which are {@link #add(Tree) added} after construction.
+     */
+    GreedyRootedConsensusTreeBuilder(List<Taxon> taxa, double supportThreshold, String supportAttributeName, boolean asPercent) {
+        super(taxa, supportAttributeName, asPercent);
+        this.rtrees = null;
+        this.supportThreshold = supportThreshold;
+    }
+
     public String getMethodDescription() {
         String supporDescription = getSupportDescription(supportThreshold);
         return supporDescription + " greedy clustering";
@@ -78,13 +96,20 @@ class GreedyRootedConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree>
         return names + ")";
     }
 
-    private FixedBitSet rootedSupport(RootedTree tree, Node node, Map<FixedBitSet, Support> support) {
+    protected void accumulate(RootedTree tree) {
+        if (debug) {
+            System.out.println("Tree: " + Utils.DEBUGsubTreeRep(tree, tree.getRootNode()));
+        }
+        rootedSupport(tree, tree.getRootNode());
+    }
+
+    private FixedBitSet rootedSupport(RootedTree tree, Node node) {
         FixedBitSet clade = new FixedBitSet(nExternalNodes);
         if (tree.isExternal(node)) {
-            clade.set(taxons.indexOf(tree.getTaxon(node)));
+            clade.set(taxonIndex(tree.getTaxon(node)));
         } else {
             for (Node n : tree.getChildren(node)) {
-                FixedBitSet childClade = rootedSupport(tree, n, support);
+                FixedBitSet childClade = rootedSupport(tree, n);
                 clade.union(childClade);
             }
         }
@@ -123,22 +148,22 @@ class GreedyRootedConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree>
 
     public final RootedTree build() {
 
-        // establish support
-        Map<FixedBitSet, Support> support = new LinkedHashMap<FixedBitSet, Support>();
-        int k = 0;
-        for (RootedTree tree : rtrees) {
-            if (debug) {
-                System.out.println("Tree: " + Utils.DEBUGsubTreeRep(tree, tree.getRootNode()));
+        // establish support of trees given on construction
+        if (rtrees != null) {
+            while (nAdded < rtrees.length) {
+                add(rtrees[nAdded]);
+                ++nAdded;
+                if (fireSetProgress( (0.9 * nAdded) / rtrees.length)) {
+                    return null;
+                }
             }
-            rootedSupport(tree, tree.getRootNode(), support);
-
-            ++k;
-            if (fireSetProgress( (0.9 * k) / rtrees.length)) {
-		        return null;
-	        }
+            rtrees = null;
         }
 
-        final int nTrees = rtrees.length;
+        final int nTrees = getTreeCount();
+        if (nTrees == 0) {
+            throw new IllegalStateException("No trees added");
+        }
 
         MutableRootedTree consTree = new MutableRootedTree();
 
@@ -233,7 +258,7 @@ class GreedyRootedConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree>
                     List<Node> children = consTree.getChildren(n);
                     for (Node ch : children) {
                         if (consTree.isExternal(ch)) {
-                            if (cladeTips.contains(taxons.indexOf(consTree.getTaxon(ch)))) {
+                            if (cladeTips.contains(taxonIndex(consTree.getTaxon(ch)))) {
                                 split.add(l);
                             }
                         } else {
@@ -1,11 +1,14 @@
 package jebl.evolution.trees;
 
 import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
 import jebl.util.FixedBitSet;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Construct a consensus tree for a set of rooted trees. The construction is done via clustering. For any two
@@ -19,10 +22,12 @@ import java.util.List;
 class MRCACConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
     RootedTree[] trees;
     private double supportThreshold;
-    private List<FixedBitSet> tipsInCluster;
+    private FixedBitSet[] tipsInCluster;
 
     private TreeInfo[] info;
 
+    private final Map<Taxon, Integer> taxonIndices;
+
     private boolean debug = false;
 
 	public MRCACConsensusTreeBuilder(Tree[] trees, double supportThreshold) {
@@ -37,12 +42,21 @@ class MRCACConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
         }
         this.supportThreshold = supportThreshold;
 
+        taxonIndices = new HashMap<Taxon, Integer>();
+        for(int k = 0; k < taxons.size(); ++k) {
+            taxonIndices.put(taxons.get(k), k);
+        }
+
         info = new TreeInfo[trees.length];
         for(int iTree = 0; iTree < trees.length; ++iTree) {
             info[iTree] = new TreeInfo(this.trees[iTree]);
         }
     }
 
+    private int taxonIndex(Taxon taxon) {
+        return taxonIndices.get(taxon);
+    }
+
     public RootedTree build() {
         return earliestCommonAncestorClustering(supportThreshold);
     }
@@ -52,68 +66,53 @@ class MRCACConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
     }
 
 
+    /**
+     * Per tree state: an MRCA index over the tree and, for each current cluster, the node number of the cluster's
+     * most recent common ancestor in the tree.
+     */
     class TreeInfo {
-        // for each tree, establish a postorder order, and in each internal node the subsets of decendentants
-        FixedBitSet[] nodesTipSet;
+        final RootedTreeIndex index;
 
-        int[] postorder;
-        int[][] nodeChildren;
+        // height of each node, by node number
+        final double[] heights;
 
-        private Node[] allNodes;
-        TreeInfo(RootedTree tree) {
+        // node number of each tip, by taxon index
+        final int[] tips;
 
-            allNodes = new Node[tree.getNodes().size()];
+        // MRCA node number of each cluster
+        final int[] clusterMRCA;
 
-            for( Node node : tree.getExternalNodes() ) {
-                int i = taxons.indexOf( tree.getTaxon(node) );
-                allNodes[i] = node;
-            }
+        TreeInfo(RootedTree tree) {
+            index = new RootedTreeIndex(tree);
 
-            int k = nExternalNodes;
-            for( Node node : tree.getInternalNodes() ) {
-                allNodes[k] = node;
-                ++k;
+            heights = new double[index.getNodeCount()];
+            for(int k = 0; k < heights.length; ++k) {
+                heights[k] = tree.getHeight(index.getNode(k));
             }
 
-            postorder = new int[allNodes.length - nExternalNodes];
-            nodesTipSet = new FixedBitSet[allNodes.length];
-            nodeChildren = new int [allNodes.length][];
-
-            inPostorder(tree, tree.getRootNode(), 0);
+            tips = new int[nExternalNodes];
+            for(int k = 0; k < nExternalNodes; ++k) {
+                tips[k] = index.getIndex(tree.getNode(taxons.get(k)));
+            }
+            clusterMRCA = tips.clone();
         }
 
-        private int inPostorder(RootedTree tree, Node node, int nPost) {
-            List<Node> all = Arrays.asList(allNodes);
-            FixedBitSet b = new FixedBitSet(allNodes.length);
-            final int c = all.indexOf(node);
-            if( tree.isExternal(node) ) {
-                b.set(c);
-            } else {
-
-                List<Node> children = tree.getChildren(node);
-                nodeChildren[c] = new int[children.size()];
-                int nc = 0;
-                for( Node child : children ) {
-                    nPost = inPostorder(tree, child, nPost);
-                    int c1 = all.indexOf(child);
-                    nodeChildren[c][nc] = c1;
-                    ++nc;
-                    b.union(nodesTipSet[c1]);
-                }
-                postorder[nPost] = c;
-                ++nPost;
-            }
-            nodesTipSet[c] = b;
-            return nPost;
+        // Start with each tip in it's own cluster
+        void reset() {
+            System.arraycopy(tips, 0, clusterMRCA, 0, nExternalNodes);
         }
     }
 
-    // Height of minimal clade containing clusters i&j (i < j) is height[i][j].
-    // (Only upper right of matrix is used)
-    double[][] height;
+    private static int pairIndex(int i, int j) {
+        return i < j ? (j * (j - 1)) / 2 + i : (i * (i - 1)) / 2 + j;
+    }
+
+    // Average height of minimal clade containing clusters i&j is height[pairIndex(i,j)]. Only entries of
+    // clusters in use are valid.
+    double[] height;
 
     void setupPairs() {
-        height = new double [nExternalNodes][nExternalNodes];
+        height = new double[pairIndex(0, nExternalNodes)];
 
         if( debug )  {
             for(int k = 0; k < taxons.size(); ++k) {
@@ -122,115 +121,79 @@ class MRCACConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
             System.out.println();
         }
 
-        for(int iTree = 0; iTree < trees.length; ++iTree) {
-            if( debug ) System.out.println("tree " + Utils.toNewick(trees[iTree]));
-
-            TreeInfo info = this.info[iTree];
-            for (final int nodeIndex : info.postorder) {
-                final int leftChildIndex = info.nodeChildren[nodeIndex][0];
-                final int rightChildIndex = info.nodeChildren[nodeIndex][1];
-                final FixedBitSet left = info.nodesTipSet[leftChildIndex];
-                final FixedBitSet right = info.nodesTipSet[rightChildIndex];
-
-                for (int lTip = left.nextOnBit(0); lTip >= 0; lTip = left.nextOnBit(lTip + 1)) {
-                    for (int rTip = right.nextOnBit(0); rTip >= 0; rTip = right.nextOnBit(rTip + 1)) {
-
-                        final double h = trees[iTree].getHeight(info.allNodes[nodeIndex]);
-                        height[Math.min(lTip, rTip)][Math.max(lTip, rTip)] += h;
+        // Each row of the triangle is summed over all trees independently, so rows are done in parallel. Summing in
+        // tree order keeps the result deterministic.
+        IntStream.range(1, nExternalNodes).parallel().forEach(new IntConsumer() {
+            public void accept(int j) {
+                final int row = pairIndex(0, j);
+                for (TreeInfo info : MRCACConsensusTreeBuilder.this.info) {
+                    final int tipj = info.tips[j];
+                    for(int i = 0; i < j; ++i) {
+                        height[row + i] += info.heights[info.index.getMRCA(info.tips[i], tipj)];
                     }
                 }
+                for(int i = 0; i < j; ++i) {
+                    height[row + i] /= trees.length;
+                }
             }
-        }
-
-        for(int d = 0; d < nExternalNodes; ++d) {
-            for(int d1 = d+1; d1 < nExternalNodes; ++d1) {
-                height[d][d1] /= trees.length;
-            }
-        }
+        });
     }
 
-    private double[] updateHeights(int i, int j) {
-        final int nClusters = tipsInCluster.size();
-        double[] distances = new double[nClusters +1];
-
-        // tips in clustes i & j
-        FixedBitSet joined = new FixedBitSet(tipsInCluster.get(i));
-        joined.union(tipsInCluster.get(j));
-
+    /**
+     * Join clusters i and j in all trees.
+     * @return support for joined clade
+     */
+    private double joinClusters(int i, int j) {
+        final int tipsInClusters = tipsInCluster[i].cardinality() + tipsInCluster[j].cardinality();
         int numberOfTreesSupportClade = 0;
-
-        if( nClusters == 2 ) {
-            for (RootedTree tree : trees) {
-                distances[1] += tree.getHeight(tree.getRootNode());
-            }
-            distances[2] = 1;
-        }   else {
-            for(int l = 0; l < nClusters; ++l) {
-                if( (l == i || l == j) ) {
-                    continue;
-                }
-
-                // Tips in i, j & l
-                FixedBitSet joinedWithL = new FixedBitSet(joined);
-                joinedWithL.union(tipsInCluster.get(l));
-
-                for(int iTree = 0; iTree < trees.length; ++iTree) {
-                    RootedTree tree = trees[iTree];
-                    TreeInfo info = this.info[iTree];
-                    boolean commonAnncestorFound = false;
-
-                    for (int nodeIndex : info.postorder) {
-                        FixedBitSet nodeBS = info.nodesTipSet[nodeIndex];
-
-                        if (!commonAnncestorFound && joined.setInclusion(nodeBS)) {
-
-                            final int tipsInSubtree = nodeBS.cardinality();
-                            final int tipsInClusters = joined.cardinality();
-
-                            numberOfTreesSupportClade += ((tipsInSubtree == tipsInClusters) ? 1 : 0);
-                            commonAnncestorFound = true;
-                        }
-
-                        if( joinedWithL.setInclusion(nodeBS) ) {
-                            distances[l] += tree.getHeight(info.allNodes[nodeIndex]);
-                            break;
-                        }
-                    }
-                }
+        for (TreeInfo info : this.info) {
+            final int mrca = info.index.getMRCA(info.clusterMRCA[i], info.clusterMRCA[j]);
+            if( info.index.getExternalNodeCount(mrca) == tipsInClusters ) {
+                ++numberOfTreesSupportClade;
             }
+            info.clusterMRCA[i] = mrca;
         }
+        return (double)numberOfTreesSupportClade / trees.length;
+    }
 
-        for(int l = 0; l < nClusters; ++l) {
-            distances[l] /= trees.length;
+    /**
+     * Average over trees of height of MRCA of clusters i and l.
+     */
+    private double clustersHeight(int i, int l) {
+        double h = 0;
+        for (TreeInfo info : this.info) {
+            h += info.heights[info.index.getMRCA(info.clusterMRCA[i], info.clusterMRCA[l])];
         }
-
-        distances[nClusters] = (double)numberOfTreesSupportClade / trees.length;
-        return distances;
+        return h / trees.length;
     }
 
     private RootedTree earliestCommonAncestorClustering(double supportThreshold) {
 
         MutableRootedTree consensus = new MutableRootedTree();
-        List<Node> subTrees = new ArrayList<Node>(nExternalNodes);
+        // Cluster k is kept at the position of it's lowest numbered tip. null for positions no longer in use.
+        Node[] subTrees = new Node[nExternalNodes];
 
         // compute average length of branch from tip over all trees
         double[] tipHeights = new double[taxons.size()];
         for (RootedTree tree : trees) {
             for (Node e : tree.getExternalNodes()) {
-                final int i = taxons.indexOf(tree.getTaxon(e));
+                final int i = taxonIndex(tree.getTaxon(e));
                 tipHeights[i] += tree.getHeight(e);
             }
         }
 
         // Start with each tip in it's own cluster
-        tipsInCluster = new ArrayList<FixedBitSet>(nExternalNodes);
+        tipsInCluster = new FixedBitSet[nExternalNodes];
         for(int k = 0; k < nExternalNodes; ++k) {
             FixedBitSet b = new FixedBitSet(nExternalNodes);
             b.set(k);
-            tipsInCluster.add(b);
+            tipsInCluster[k] = b;
             final Node externalNode = consensus.createExternalNode(taxons.get(k));
             consensus.setHeight(externalNode, tipHeights[k]/trees.length);
-            subTrees.add(externalNode);
+            subTrees[k] = externalNode;
+        }
+        for (TreeInfo treeInfo : info) {
+            treeInfo.reset();
         }
 
         // set up distances between all tips
@@ -241,20 +204,20 @@ class MRCACConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
             // Find most recent ancesstor of two clusters from distance matrix
             double mostRecentAnncestorHeight = Double.MAX_VALUE;
             int besti = 0, bestj = 0;
-            for(int d = 0; d < nClusters; ++d) {
-                for(int d1 = d+1; d1 < nClusters; ++d1) {
-                    if( height[d][d1] < mostRecentAnncestorHeight ) {
-                        mostRecentAnncestorHeight = height[d][d1];
+            for(int d = 0; d < nExternalNodes; ++d) {
+                if( subTrees[d] == null ) continue;
+                for(int d1 = d+1; d1 < nExternalNodes; ++d1) {
+                    if( subTrees[d1] != null && height[pairIndex(d, d1)] < mostRecentAnncestorHeight ) {
+                        mostRecentAnncestorHeight = height[pairIndex(d, d1)];
                         besti = d; bestj = d1;
                     }
                 }
             }
 
             // Join clusters
-            double[] newHeights = updateHeights(besti, bestj);
-            double supportForClade = newHeights[newHeights.length-1];
+            double supportForClade = joinClusters(besti, bestj);
 
-            final Node[] children = {subTrees.get(besti), subTrees.get(bestj)};
+            final Node[] children = {subTrees[besti], subTrees[bestj]};
             final double maxChild = Math.max(consensus.getHeight(children[0]), consensus.getHeight(children[1]));
             mostRecentAnncestorHeight = Math.max(mostRecentAnncestorHeight, maxChild);
 
@@ -265,23 +228,15 @@ class MRCACConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
             if( nClusters > 2 ) {
 	            sub.setAttribute(getSupportAttributeName(), isSupportAsPercent() ? 100 * supportForClade : supportForClade);
             }
-            subTrees.set(besti, sub);
-            tipsInCluster.get(besti).union(tipsInCluster.get(bestj));
-            tipsInCluster.remove(bestj);
-            subTrees.remove(bestj);
-
-            // compress distance matrix
-            for(int i = 0; i < nClusters; ++i) {
-                if( besti < i ) {
-                    height[besti][i] = newHeights[i];
-                } else {
-                    height[i][besti] = newHeights[i];
-                }
-            }
-
-            for(int i = 0; i < nClusters-1; ++i) {
-                for(int j = bestj; j < nClusters-1; ++j) {
-                    height[i][j] = height[i + (i >=bestj ? 1 : 0)][j+1];
+            subTrees[besti] = sub;
+            subTrees[bestj] = null;
+            tipsInCluster[besti].union(tipsInCluster[bestj]);
+            tipsInCluster[bestj] = null;
+
+            // update distances to joined cluster
+            for(int l = 0; l < nExternalNodes; ++l) {
+                if( subTrees[l] != null && l != besti ) {
+                    height[pairIndex(besti, l)] = clustersHeight(besti, l);
                 }
             }
         }
@@ -33,6 +33,11 @@ public class MostProbableTopology {
      */
     final private List<Taxon> taxa;
 
+    /**
+     * Index of each taxon in taxa
+     */
+    final private Map<Taxon, Integer> taxonIndices;
+
     final String consAttributeName = GreedyUnrootedConsensusTreeBuilder.DEFAULT_SUPPORT_ATTRIBUTE_NAME;
 
     /**
@@ -44,25 +49,9 @@ public class MostProbableTopology {
         Tree tree0 = this.trees.get(0);
         rootedSet = tree0 instanceof RootedTree && !((RootedTree)tree0).conceptuallyUnrooted();
         taxa = new ArrayList<Taxon>(trees.iterator().next().getTaxa());
-    }
-
-    /**
-     * Entry for each unique topology in the set
-     */
-    private class TopologyEntry {
-        // number of trees with this topology
-        int count;
-
-        // Index of one tree with topology
-        int representativeIndex;
-
-        /**
-         *
-         * @param nTree index of representative tree
-         */
-        public TopologyEntry(int nTree) {
-            representativeIndex = nTree;
-            count = 1;
+        taxonIndices = new HashMap<Taxon, Integer>(2 * taxa.size());
+        for (int k = 0; k < taxa.size(); ++k) {
+            taxonIndices.put(taxa.get(k), k);
         }
     }
 
@@ -158,7 +147,7 @@ public class MostProbableTopology {
             final FixedBitSet tipSet = new FixedBitSet(taxa.size());
 
             if( t.isExternal(n) ) {
-                tipSet.set( taxa.indexOf( t.getTaxon(n) ) );
+                tipSet.set( taxonIndices.get( t.getTaxon(n) ) );
             } else {
                 for( Node c : t.getAdjacencies(n) ) {
                     if( c == root ) continue;
@@ -256,7 +245,7 @@ public class MostProbableTopology {
             final FixedBitSet tipSet = new FixedBitSet(taxa.size());
 
             if( t.isExternal(n) ) {
-                tipSet.set( taxa.indexOf( t.getTaxon(n) ) );
+                tipSet.set( taxonIndices.get( t.getTaxon(n) ) );
             } else {
                 for( Node c : t.getChildren(n) ) {
                     final FixedBitSet cTips = traverse(call, c);
@@ -327,38 +316,25 @@ public class MostProbableTopology {
      */
     public List<Tree> get(final int max, final double threshold) {
         final int nTrees = trees.size();
-        // Generate a "standard" representation for each tree topology. For rooted trees this is the newick format
-        // (leaving out any branch information), where the children at each node are sorted.
-        // Unrooted trees are rooted at the internal node connected to the first tip (taxa[0]) and the rooted
-        // method is applied to that.
-
-        Map<String, TopologyEntry> m = new LinkedHashMap<String, TopologyEntry>(nTrees);
-        for(int nTree = 0; nTree < nTrees; ++ nTree) {
-            final Tree t = trees.get(nTree);
-            final String rep = standardTopologyRepresentation(t);
+        // Identify each topology by its hash. Unrooted trees are rooted at the internal node connected to the
+        // first tip (taxa[0]), see TopologyHash.
 
-            TopologyEntry e = m.get(rep);
-            if( e == null ) {
-                m.put(rep, new TopologyEntry(nTree));
-            } else {
-                e.count += 1;
-            }
+        final TopologyCache cache = new TopologyCache(taxa);
+        for (Tree t : trees) {
+            cache.add(t);
         }
 
         // sorts support from largest to smallest
-        final Comparator<Map.Entry<String, TopologyEntry>> comparator = new Comparator<Map.Entry<String, TopologyEntry>>() {
-            public int compare(Map.Entry<String, TopologyEntry> o1, Map.Entry<String, TopologyEntry> o2) {
-                return o2.getValue().count - o1.getValue().count;
+        final Comparator<TopologyCache.Entry> comparator = new Comparator<TopologyCache.Entry>() {
+            public int compare(TopologyCache.Entry o1, TopologyCache.Entry o2) {
+                return o2.getCount() - o1.getCount();
             }
         };
 
         // add everything to queue
-        PriorityQueue<Map.Entry<String, TopologyEntry>> queue =
-                new PriorityQueue<Map.Entry<String, TopologyEntry>>(m.size(), comparator);
-
-        for (Map.Entry<String, TopologyEntry> s : m.entrySet()) {
-            queue.add(s);
-        }
+        PriorityQueue<TopologyCache.Entry> queue =
+                new PriorityQueue<TopologyCache.Entry>(cache.getTopologyCount(), comparator);
+        queue.addAll(cache.getEntries());
 
         // collect candidates
         final List<Info> candidates = new ArrayList<Info>();
@@ -367,11 +343,10 @@ public class MostProbableTopology {
         final int th = (int)(threshold * nTrees);
 
         while (queue.peek() != null && candidates.size() <= th && !(max > 0 && candidates.size() >= max) ) {
-            Map.Entry<String, TopologyEntry> e = queue.poll();
-            final MostProbableTopology.TopologyEntry info = e.getValue();
+            final TopologyCache.Entry info = queue.poll();
 
             // make a copy
-            final Tree tree = trees.get(info.representativeIndex);
+            final Tree tree = info.getRepresentative();
 
             Info candidate;
             if( rootedSet ) {
@@ -384,7 +359,7 @@ public class MostProbableTopology {
 
             candidates.add(candidate);
             final Tree tree1 = candidate.getTree();
-            tree1.setAttribute("Frequency", (100.0 * info.count) / nTrees);
+            tree1.setAttribute("Frequency", (100.0 * info.getCount()) / nTrees);
             tree1.setAttribute(NexusExporter.treeNameAttributeKey, "topology_" + candidates.size());
         }
 
@@ -433,40 +408,4 @@ public class MostProbableTopology {
         }
         return results;
     }
-
-    // "Standard" string representation
-    private String standardTopologyRepresentation(Tree t) {
-        if( t instanceof RootedTree ) {
-            final RootedTree r = (RootedTree) t;
-            return standardTop(r, r.getRootNode());
-        }
-
-        // unrooted tree. Root at internal node near first taxa, call rooted method
-        final List<Node> adj = t.getAdjacencies(t.getNode(taxa.get(0)));           assert( adj.size() == 1 );
-        final RootedTree r = new RootedFromUnrooted(t, adj.get(0), true);
-        return standardTop(r, r.getRootNode());
-    }
-
-    // "Standard" string representation of a rooted tree
-    // Newick for taxa only, where children are sorted.
-    private String standardTop(RootedTree t, Node n) {
-        if( t.isExternal(n) ) {
-            return Integer.toString(taxa.indexOf( t.getTaxon(n) ));
-        }
-        final List<Node> dec = t.getChildren(n);
-        final String[] strings = new String[dec.size()];
-        for(int k = 0; k < dec.size(); ++k) {
-          strings[k] = standardTop(t, dec.get(k));
-        }
-        final List<String> list = Arrays.asList(strings);
-        Collections.sort(list);
-        StringBuilder sb = new StringBuilder();
-
-        for( String s : strings ) {           
-            sb.append(sb.length() == 0  ? '(' : ",");
-            sb.append(s);
-        }
-        sb.append(')');
-        return sb.toString();
-    }
 }
@@ -80,6 +80,7 @@ public class MutableRootedTree extends AbstractRootedTree {
         }
         parent.removeChild(node);
         internalNodes.remove(node);
+        clearAttributes(node);
     }
 
     /**
@@ -106,6 +107,7 @@ public class MutableRootedTree extends AbstractRootedTree {
      */
     public void setRoot(Node root) {
         this.rootNode = (MutableRootedNode)root;
+        traversal = null;
     }
 
     /**
@@ -153,9 +155,10 @@ public class MutableRootedTree extends AbstractRootedTree {
     }
 
     /**
-     * Construct a rooted sub-tree from unrooted. Done recursivly: Given an internal node N and one adjacency A to become
-     * the new parent, recursivly create subtrees for all adjacencies of N (ommiting A) using N as parent, and return
-     * an internal node with all subtrees as children. A tip simply creates an external node and returns it.
+     * Construct a rooted sub-tree from unrooted. Given an internal node N and one adjacency A to become the new
+     * parent, create subtrees for all adjacencies of N (ommiting A) using N as parent, and return an internal node
+     * with all subtrees as children. A tip simply creates an external node and returns it. Subtrees are created in
+     * postorder with an explicit stack rather than by recursion, so very deep trees can be rooted.
      *
      * @param tree   Unrooted source tree
      * @param node   span sub-tree from this node
@@ -164,18 +167,19 @@ public class MutableRootedTree extends AbstractRootedTree {
      * @throws NoEdgeException
      */
     private MutableRootedNode rootAdjacenciesWith(Tree tree, Node node, Node parent) throws NoEdgeException {
-        if( tree.isExternal(node) ) {
-            return (MutableRootedNode)createExternalNode( tree.getTaxon(node) );
-        }
+        return (MutableRootedNode) new SubtreeRooter() {
+            Node createExternalNode(Taxon taxon) {
+                return MutableRootedTree.this.createExternalNode( taxon );
+            }
 
-        List<Node> children = new ArrayList<Node>();
-        for( Node adj : tree.getAdjacencies(node) ) {
-            if( adj == parent ) continue;
-            MutableRootedNode rootedAdj = rootAdjacenciesWith(tree, adj, node);
-            setLength(rootedAdj, tree.getEdgeLength(adj, node));
-            children.add(rootedAdj);
-        }
-        return createInternalNode(children);
+            Node createInternalNode(List<Node> children) {
+                return MutableRootedTree.this.createInternalNode( children );
+            }
+
+            void setLength(Node node, double length) {
+                MutableRootedTree.this.setLength( node, length );
+            }
+        }.root(tree, parent, node);
     }
 
     /**
@@ -196,6 +200,8 @@ public class MutableRootedTree extends AbstractRootedTree {
         }
 
         if( parent.getChildren().size() == 1 ) {
+            // the old root is left out
+            clearAttributes(parent);
             parent = (MutableRootedNode)parent.getChildren().get(0);
             len += parent.getLength();
         }
@@ -721,10 +727,40 @@ public class MutableRootedTree extends AbstractRootedTree {
         return helper.getAttributeMap();
     }
 
+    /**
+     * @return traversal of the current tree structure, computed again only after the structure changes
+     */
+    RootedTreeTraversal getTraversal() {
+        RootedTreeTraversal t = traversal;
+        if (t == null) {
+            t = new RootedTreeTraversal(this);
+            traversal = t;
+        }
+        return t;
+    }
+
+    /**
+     * Releases the attribute row of a node the tree no longer holds, so its values are not kept in the columns and
+     * the row is used again.
+     */
+    private void clearAttributes(Node node) {
+        final MutableRootedNode rootedNode = (MutableRootedNode) node;
+        if (rootedNode.row >= 0) {
+            nodeAttributes.releaseRow(rootedNode.row);
+            rootedNode.row = -1;
+        }
+    }
+
     // PRIVATE members
 
     private AttributableHelper helper = null;
 
+    /** Attributes of all nodes, by node row; null until one is set */
+    private AttributeColumns nodeAttributes = null;
+
+    /** Number of nodes created, to size the attribute columns */
+    private int nodeCount = 0;
+
     protected MutableRootedNode rootNode = null;
     protected final Set<Node> internalNodes = new LinkedHashSet<Node>();
     private final Map<Taxon, Node> externalNodes = new LinkedHashMap<Taxon, Node>();
@@ -737,25 +773,35 @@ public class MutableRootedTree extends AbstractRootedTree {
 
     private boolean conceptuallyUnrooted = false;
 
-    private class MutableRootedNode extends BaseNode {
+    /** Cached traversal, null when the structure has changed */
+    private RootedTreeTraversal traversal = null;
+
+    private class MutableRootedNode implements Node, AttributeColumns.Row {
+        /** Row of this node's attributes in nodeAttributes, or -1 until the node is given one */
+        private int row = -1;
+
         public MutableRootedNode(Taxon taxon) {
+            nodeCount++;
             this.children = Collections.unmodifiableList(new ArrayList<Node>());
             this.taxon = taxon;
         }
 
         public MutableRootedNode(List<? extends Node> children) {
+            nodeCount++;
             this.children = Collections.unmodifiableList(new ArrayList<Node>(children));
             this.taxon = null;
         }
 
 
         public void removeChild(Node node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.remove(node);
             children = Collections.unmodifiableList(c);
         }
 
         public void addChild(MutableRootedNode node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.add(node);
             node.setParent(this);
@@ -763,6 +809,7 @@ public class MutableRootedTree extends AbstractRootedTree {
         }
 
         public void replaceChildren(List<MutableRootedNode> nodes) {
+            traversal = null;
             for( MutableRootedNode n : nodes ) {
                 n.setParent(this);
             }
@@ -775,6 +822,7 @@ public class MutableRootedTree extends AbstractRootedTree {
         }
 
         public void setParent(Node parent) {
+            traversal = null;
             this.parent = parent;
         }
 
@@ -840,6 +888,44 @@ public class MutableRootedTree extends AbstractRootedTree {
             taxon = to;
         }
 
+        // Attributable IMPLEMENTATION
+
+        public void setAttribute(String name, Object value) {
+            if (nodeAttributes == null) {
+                nodeAttributes = new AttributeColumns(Math.max(nodeCount, 16));
+            }
+            if (row < 0) {
+                row = nodeAttributes.addRow();
+            }
+            nodeAttributes.set(row, name, value);
+        }
+
+        public Object getAttribute(String name) {
+            return nodeAttributes == null ? null : nodeAttributes.get(row, name);
+        }
+
+        public void removeAttribute(String name) {
+            if (nodeAttributes != null) {
+                nodeAttributes.remove(row, name);
+            }
+        }
+
+        public Set<String> getAttributeNames() {
+            return nodeAttributes == null ? Collections.<String>emptySet() : nodeAttributes.getNames(row);
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return nodeAttributes == null ? Collections.<String, Object>emptyMap() : nodeAttributes.getMap(row);
+        }
+
+        public AttributeColumns getAttributeColumns() {
+            return nodeAttributes;
+        }
+
+        public int getAttributeRow() {
+            return row;
+        }
+
         private List<Node> children;
         private Taxon taxon;
 
@@ -0,0 +1,953 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.util.AttributableHelper;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable rooted tree whose edits return a new tree sharing all unchanged subtrees with the old one.
+ *
+ * An edit copies only the nodes on the path from the edited node to the root, so it costs O(depth) time and space
+ * (times the degree of the nodes on the path) instead of the O(n) of copying the whole tree, and the old tree
+ * stays valid. Many variants of a tree, such as candidate topologies during a search, can be kept in memory cheaply.
+ * Edits are available for branch lengths ({@link #withLength}), node attributes ({@link #withNodeAttribute}),
+ * re-rooting ({@link #reRoot}, {@link #reRootWithOutgroup}), resolving polytomies ({@link #refineNode},
+ * {@link #detachChildren}) and subtree pruning and regrafting ({@link #moveSubtree}). The structural edits follow
+ * the corresponding methods of {@link MutableRootedTree}.
+ *
+ * Nodes, their attributes and edges are immutable and may be shared by many trees. Nodes copied by an edit keep the
+ * identity of the original node, so {@link #findNode(Node)} gives the node of one version that corresponds to a node
+ * of another. Node heights are derived from the branch lengths when first requested, in O(n) time per tree.
+ * The attributes of the tree itself are not shared: an edited tree starts with a copy of them.
+ *
+ * @version $Id$
+ */
+public final class PersistentRootedTree extends AbstractRootedTree {
+
+    /**
+     * Make a persistent copy of the given rooted tree. If the tree has heights but no lengths the branch lengths
+     * are taken from the heights.
+     * @param tree a rooted tree
+     */
+    public PersistentRootedTree(RootedTree tree) {
+        final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+        final int nNodes = traversal.getNodeCount();
+        final boolean lengths = tree.hasLengths();
+        final boolean heights = !lengths && tree.hasHeights();
+
+        final Map<Taxon, Integer> tipIds = new LinkedHashMap<Taxon, Integer>();
+        for (int i = 0; i < nNodes; ++i) {
+            if (traversal.isExternal(i)) {
+                tipIds.put(tree.getTaxon(traversal.getNode(i)), i);
+            }
+        }
+        family = new Family(nNodes, tipIds);
+
+        // node i of the traversal gets id i; children are created before their parents
+        final Editor editor = new Editor(Entries.EMPTY);
+        final PersistentNode[] created = new PersistentNode[nNodes];
+        for (int i = nNodes - 1; i >= 0; --i) {
+            final Node node = traversal.getNode(i);
+            final Node[] children = new Node[traversal.getChildCount(i)];
+            for (int k = 0; k < children.length; ++k) {
+                final int child = traversal.getChild(i, k);
+                children[k] = created[child];
+                editor.put(created[child], i);
+                created[child] = null;
+            }
+            double length = 0.0;
+            if (i > 0) {
+                if (lengths) {
+                    length = tree.getLength(node);
+                } else if (heights) {
+                    length = tree.getHeight(traversal.getNode(traversal.getParent(i))) - tree.getHeight(node);
+                }
+            }
+            final Taxon taxon = children.length == 0 ? tree.getTaxon(node) : null;
+            created[i] = new PersistentNode(family, i, children, taxon, length, freeze(node.getAttributeMap()), i == 0);
+        }
+        editor.put(created[0], -1);
+
+        rootNode = created[0];
+        entries = editor.getEntries();
+        hasLengths = lengths || heights;
+        conceptuallyUnrooted = tree.conceptuallyUnrooted();
+        for (Map.Entry<String, Object> e : tree.getAttributeMap().entrySet()) {
+            setAttribute(e.getKey(), e.getValue());
+        }
+    }
+
+    private PersistentRootedTree(PersistentRootedTree tree, Editor editor, PersistentNode rootNode, boolean hasLengths) {
+        this.family = tree.family;
+        this.entries = editor.getEntries();
+        this.rootNode = rootNode;
+        this.hasLengths = hasLengths;
+        this.conceptuallyUnrooted = tree.conceptuallyUnrooted;
+        for (Map.Entry<String, Object> e : tree.getAttributeMap().entrySet()) {
+            setAttribute(e.getKey(), e.getValue());
+        }
+    }
+
+    // EDITS
+
+    /**
+     * @param node node of this tree
+     * @param length new length of the branch to the parent of node
+     * @return a tree with the branch length changed
+     */
+    public PersistentRootedTree withLength(Node node, double length) {
+        final PersistentNode old = check(node);
+        final Editor editor = new Editor(entries);
+        final PersistentNode root = copyPath(editor, old, old.copy(old.children, length, old.attributes, old.root));
+        return new PersistentRootedTree(this, editor, root, true);
+    }
+
+    /**
+     * @param node node of this tree
+     * @param name attribute name
+     * @param value attribute value
+     * @return a tree where the node has the attribute set
+     */
+    public PersistentRootedTree withNodeAttribute(Node node, String name, Object value) {
+        final PersistentNode old = check(node);
+        final Map<String, Object> attributes = new LinkedHashMap<String, Object>(old.attributes);
+        attributes.put(name, value);
+        final Editor editor = new Editor(entries);
+        final PersistentNode root = copyPath(editor, old, old.copy(old.children, old.length, freeze(attributes), old.root));
+        return new PersistentRootedTree(this, editor, root, hasLengths);
+    }
+
+    /**
+     * @param node node of this tree
+     * @param name attribute name
+     * @return a tree where the node does not have the attribute
+     */
+    public PersistentRootedTree withoutNodeAttribute(Node node, String name) {
+        final PersistentNode old = check(node);
+        if (!old.attributes.containsKey(name)) {
+            return this;
+        }
+        final Map<String, Object> attributes = new LinkedHashMap<String, Object>(old.attributes);
+        attributes.remove(name);
+        final Editor editor = new Editor(entries);
+        final PersistentNode root = copyPath(editor, old, old.copy(old.children, old.length, freeze(attributes), old.root));
+        return new PersistentRootedTree(this, editor, root, hasLengths);
+    }
+
+    /**
+     * Re-root the tree at an existing node: the path from the node to the old root is reversed, and an old root
+     * left with a single child is removed. Only the nodes on that path are copied.
+     *
+     * @param node the new root
+     * @param attributeNames Move those attributes (if they exist in a node on the path) to their previous parent,
+     * to preserve "branch" attributes stored in the child. May be null.
+     * @return the re-rooted tree
+     */
+    public PersistentRootedTree reRoot(Node node, Set<String> attributeNames) {
+        final PersistentNode newRoot = check(node);
+        if (newRoot == rootNode) {
+            return this;
+        }
+
+        final List<PersistentNode> path = new ArrayList<PersistentNode>();
+        for (PersistentNode n = newRoot; n != null; n = parentOf(entries, n)) {
+            path.add(n);
+        }
+
+        // going down from the old root, each node on the path loses the child below and adopts the node built above
+        final Editor editor = new Editor(entries);
+        PersistentNode adopted = null;
+        for (int i = path.size() - 1; i >= 1; --i) {
+            final PersistentNode n = path.get(i);
+            final PersistentNode below = path.get(i - 1);
+            final List<Node> children = new ArrayList<Node>(n.children.length);
+            for (Node child : n.children) {
+                if (child != below) {
+                    children.add(child);
+                }
+            }
+            if (adopted != null) {
+                children.add(adopted);
+            }
+
+            if (children.size() == 1) {
+                final PersistentNode only = (PersistentNode) children.get(0);
+                adopted = only.copy(only.children, below.length + only.length,
+                        moveAttributes(only.attributes, false, below, attributeNames), false);
+                editor.remove(n.id);
+            } else {
+                if (adopted != null) {
+                    editor.put(adopted, n.id);
+                }
+                adopted = n.copy(toArray(children), below.length,
+                        moveAttributes(n.attributes, i < path.size() - 1, below, attributeNames), false);
+            }
+        }
+
+        final List<Node> children = new ArrayList<Node>(Arrays.asList(newRoot.children));
+        children.add(adopted);
+        editor.put(adopted, newRoot.id);
+        final PersistentNode root = newRoot.copy(toArray(children), 0.0,
+                moveAttributes(newRoot.attributes, true, null, attributeNames), true);
+        editor.put(root, -1);
+        return new PersistentRootedTree(this, editor, root, hasLengths);
+    }
+
+    /**
+     * Re-root tree using an outgroup. As in {@link MutableRootedTree#reRootWithOutgroup}, the new root is the parent of
+     * the outgroup.
+     * @param outGroup an external node
+     * @param attributeNames Move those attributes (if they exist in node) to their previous parent. May be null.
+     * @return the re-rooted tree
+     */
+    public PersistentRootedTree reRootWithOutgroup(Node outGroup, Set<String> attributeNames) {
+        if (!isExternal(outGroup)) {
+            throw new IllegalArgumentException("Outgroup must be an external node");
+        }
+        final Node parent = getParent(outGroup);
+        return parent == null ? this : reRoot(parent, attributeNames);
+    }
+
+    /**
+     * Resolve a polytomy into two subtrees.
+     * @param node     Node to refine
+     * @param leftSet  indices of children in the left new subtree.
+     * @return a tree where node has two children, new internal nodes holding the left and the remaining children
+     * (unless there is only one)
+     */
+    public PersistentRootedTree refineNode(Node node, int[] leftSet) {
+        final PersistentNode old = check(node);
+        final List<Node> left = new ArrayList<Node>();
+        final List<Node> right = new ArrayList<Node>();
+        for (int n : leftSet) {
+            left.add(old.children[n]);
+        }
+        for (Node child : old.children) {
+            if (!left.contains(child)) {
+                right.add(child);
+            }
+        }
+        if (left.isEmpty() || right.isEmpty()) {
+            throw new IllegalArgumentException("Both sides of a refined node need at least one child");
+        }
+
+        final Editor editor = new Editor(entries);
+        final Node lnode = left.size() > 1 ? createInternalNode(editor, left, old.id) : left.get(0);
+        final Node rnode = right.size() > 1 ? createInternalNode(editor, right, old.id) : right.get(0);
+        final PersistentNode refined = old.copy(new Node[] { lnode, rnode }, old.length, old.attributes, old.root);
+        return new PersistentRootedTree(this, editor, copyPath(editor, old, refined), hasLengths);
+    }
+
+    /**
+     * Group some children of a node under a new internal node, which becomes the last child of the node.
+     * @param node a node of this tree
+     * @param split indices of the children to group
+     * @return a tree with the new node; use {@link #findNode(Node)} with node to find its copy
+     */
+    public PersistentRootedTree detachChildren(Node node, List<Integer> split) {
+        final PersistentNode old = check(node);
+        if (split.size() < 2) {
+            throw new IllegalArgumentException("At least two children must be detached");
+        }
+
+        final List<Node> detached = new ArrayList<Node>();
+        for (int n : split) {
+            detached.add(old.children[n]);
+        }
+        final List<Node> children = new ArrayList<Node>();
+        for (Node child : old.children) {
+            if (!detached.contains(child)) {
+                children.add(child);
+            }
+        }
+
+        final Editor editor = new Editor(entries);
+        children.add(createInternalNode(editor, detached, old.id));
+        final PersistentNode copy = old.copy(toArray(children), old.length, old.attributes, old.root);
+        return new PersistentRootedTree(this, editor, copyPath(editor, old, copy), hasLengths);
+    }
+
+    /**
+     * Subtree pruning and regrafting: cut the branch above subtree and attach it, through a new node halving the
+     * branch above target, elsewhere in the tree. A parent left with a single child is removed, merging its branch
+     * with the child's. Attaching to the root creates a new root.
+     *
+     * @param subtree node of this tree, not the root
+     * @param target node of this tree outside subtree
+     * @return a tree with the subtree moved
+     */
+    public PersistentRootedTree moveSubtree(Node subtree, Node target) {
+        final PersistentNode moved = check(subtree);
+        final PersistentNode to = check(target);
+        if (moved == rootNode) {
+            throw new IllegalArgumentException("Can't move the root");
+        }
+        for (PersistentNode n = to; n != null; n = parentOf(entries, n)) {
+            if (n == moved) {
+                throw new IllegalArgumentException("Target is inside the subtree being moved");
+            }
+        }
+
+        // prune
+        final Editor editor = new Editor(entries);
+        final PersistentNode parent = parentOf(entries, moved);
+        final List<Node> rest = new ArrayList<Node>(parent.children.length);
+        for (Node child : parent.children) {
+            if (child != moved) {
+                rest.add(child);
+            }
+        }
+        int targetId = to.id;
+        if (rest.size() == 1) {
+            final PersistentNode only = (PersistentNode) rest.get(0);
+            if (parent.root) {
+                editor.put(only.copy(only.children, 0.0, only.attributes, true), -1);
+            } else {
+                copyPath(editor, parent, only.copy(only.children, only.length + parent.length, only.attributes, false));
+            }
+            editor.remove(parent.id);
+            if (targetId == parent.id) {
+                targetId = only.id;
+            }
+        } else {
+            copyPath(editor, parent, parent.copy(toArray(rest), parent.length, parent.attributes, parent.root));
+        }
+
+        // regraft
+        final Entry entry = editor.get(targetId);
+        final PersistentNode current = entry.node;
+        final int id = family.nextId.getAndIncrement();
+        final PersistentNode root;
+        if (entry.parent < 0) {
+            final PersistentNode demoted = current.copy(current.children, 0.0, current.attributes, false);
+            root = new PersistentNode(family, id, new Node[] { demoted, moved }, null, 0.0, EMPTY_ATTRIBUTES, true);
+            editor.put(demoted, id);
+            editor.put(root, -1);
+        } else {
+            final double half = current.length / 2.0;
+            final PersistentNode shortened = current.copy(current.children, half, current.attributes, false);
+            final PersistentNode joint = new PersistentNode(family, id, new Node[] { shortened, moved }, null, half,
+                    EMPTY_ATTRIBUTES, false);
+            root = copyPath(editor, current, joint);
+            editor.put(shortened, id);
+        }
+        editor.put(moved, id);
+        return new PersistentRootedTree(this, editor, root, hasLengths);
+    }
+
+    /**
+     * @param node a node of this tree or of another version of it (a tree derived from the same original by edits)
+     * @return the node of this tree that is, or is a copy of, node; or null if this tree has no such node
+     */
+    public Node findNode(Node node) {
+        if (!(node instanceof PersistentNode) || ((PersistentNode) node).family != family) {
+            return null;
+        }
+        final Entry entry = entries.get(((PersistentNode) node).id);
+        return entry == null ? null : entry.node;
+    }
+
+    private PersistentNode check(Node node) {
+        if (!(node instanceof PersistentNode)) {
+            throw new IllegalArgumentException("Node, " + node + " is not an instance of PersistentNode");
+        }
+        final PersistentNode n = (PersistentNode) node;
+        final Entry entry = entries.get(n.id);
+        if (n.family != family || entry == null || entry.node != n) {
+            throw new IllegalArgumentException("Node, " + node + " is not in this tree");
+        }
+        return n;
+    }
+
+    private static PersistentNode parentOf(Entries entries, PersistentNode node) {
+        final int parent = entries.get(node.id).parent;
+        return parent < 0 ? null : entries.get(parent).node;
+    }
+
+    /**
+     * Put replacement in the place of node and copy the ancestors of node, all as currently in editor.
+     * @return the new root
+     */
+    private static PersistentNode copyPath(Editor editor, PersistentNode node, PersistentNode replacement) {
+        int parentId = editor.get(node.id).parent;
+        editor.put(replacement, parentId);
+        PersistentNode child = node;
+        PersistentNode newChild = replacement;
+        while (parentId >= 0) {
+            final Entry entry = editor.get(parentId);
+            final Node[] children = entry.node.children.clone();
+            for (int k = 0; k < children.length; ++k) {
+                if (children[k] == child) {
+                    children[k] = newChild;
+                    break;
+                }
+            }
+            child = entry.node;
+            newChild = child.copy(children, child.length, child.attributes, child.root);
+            editor.put(newChild, entry.parent);
+            parentId = entry.parent;
+        }
+        return newChild;
+    }
+
+    private PersistentNode createInternalNode(Editor editor, List<Node> children, int parent) {
+        final PersistentNode node = new PersistentNode(family, family.nextId.getAndIncrement(), toArray(children), null,
+                0.0, EMPTY_ATTRIBUTES, false);
+        for (Node child : children) {
+            editor.put((PersistentNode) child, node.id);
+        }
+        editor.put(node, parent);
+        return node;
+    }
+
+    /**
+     * @return attributes, without those in names if removeOwn, and with the values of from for names
+     */
+    private static Map<String, Object> moveAttributes(Map<String, Object> attributes, boolean removeOwn,
+                                                      PersistentNode from, Set<String> names) {
+        if (names == null || names.isEmpty()) {
+            return attributes;
+        }
+        final Map<String, Object> moved = new LinkedHashMap<String, Object>(attributes);
+        if (removeOwn) {
+            moved.keySet().removeAll(names);
+        }
+        if (from != null) {
+            for (String name : names) {
+                final Object value = from.attributes.get(name);
+                if (value != null) {
+                    moved.put(name, value);
+                }
+            }
+        }
+        return freeze(moved);
+    }
+
+    private static Map<String, Object> freeze(Map<String, Object> attributes) {
+        if (attributes.isEmpty()) {
+            return EMPTY_ATTRIBUTES;
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Object>(attributes));
+    }
+
+    private static Node[] toArray(List<Node> nodes) {
+        return nodes.toArray(new Node[nodes.size()]);
+    }
+
+    // RootedTree IMPLEMENTATION
+
+    /**
+     * @return the traversal of this tree, computed once
+     */
+    RootedTreeTraversal getTraversal() {
+        RootedTreeTraversal t = traversal;
+        if (t == null) {
+            t = new RootedTreeTraversal(this);
+            traversal = t;
+        }
+        return t;
+    }
+
+    public List<Node> getChildren(Node node) {
+        return new ArrayList<Node>(Arrays.asList(((PersistentNode) node).children));
+    }
+
+    @Override
+    public int getExternalNodeCount(Node node) {
+        final RootedTreeIndex index = RootedTreeIndex.getTreeIndex(this);
+        return index.getExternalNodeCount(index.getIndex(node));
+    }
+
+    @Override
+    public List<Node> getExternalNodes(Node node) {
+        final RootedTreeIndex index = RootedTreeIndex.getTreeIndex(this);
+        return index.getExternalNodes(index.getIndex(node));
+    }
+
+    public boolean hasHeights() {
+        return hasLengths;
+    }
+
+    public boolean isHeightsKnown() {
+        return heights != null;
+    }
+
+    /**
+     * @param node the node whose height is being requested.
+     * @return the height of the given node above the highest tip, computed from the branch lengths
+     */
+    public double getHeight(Node node) {
+        if (!hasLengths) throw new IllegalArgumentException("This tree has no node heights");
+        double[] h = heights;
+        final RootedTreeTraversal t = getTraversal();
+        if (h == null) {
+            final int nNodes = t.getNodeCount();
+            h = new double[nNodes];
+            double maxDepth = 0.0;
+            for (int i = 1; i < nNodes; ++i) {
+                final double length = ((PersistentNode) t.getNode(i)).length;
+                h[i] = h[t.getParent(i)] + (length > 0.0 ? length : 0.0);
+                maxDepth = Math.max(maxDepth, h[i]);
+            }
+            for (int i = 0; i < nNodes; ++i) {
+                h[i] = maxDepth - h[i];
+            }
+            heights = h;
+        }
+        return h[t.getIndex(node)];
+    }
+
+    public boolean hasLengths() {
+        return hasLengths;
+    }
+
+    public boolean isLengthsKnown() {
+        return hasLengths;
+    }
+
+    public double getLength(Node node) {
+        if (!hasLengths) throw new IllegalArgumentException("This tree has no branch lengths");
+        return ((PersistentNode) node).length;
+    }
+
+    public Node getParent(Node node) {
+        return parentOf(entries, check(node));
+    }
+
+    public Node getRootNode() {
+        return rootNode;
+    }
+
+    public void setConceptuallyUnrooted(boolean intent) {
+        conceptuallyUnrooted = intent;
+    }
+
+    public boolean conceptuallyUnrooted() {
+        return conceptuallyUnrooted;
+    }
+
+    public boolean isRoot(Node node) {
+        return node == rootNode;
+    }
+
+    // Tree IMPLEMENTATION
+
+    public Set<Node> getExternalNodes() {
+        final RootedTreeTraversal t = getTraversal();
+        final Set<Node> nodes = new LinkedHashSet<Node>();
+        for (int i = 0; i < t.getNodeCount(); ++i) {
+            if (t.isExternal(i)) {
+                nodes.add(t.getNode(i));
+            }
+        }
+        return nodes;
+    }
+
+    public Set<Node> getInternalNodes() {
+        final RootedTreeTraversal t = getTraversal();
+        final Set<Node> nodes = new LinkedHashSet<Node>();
+        for (int i = 0; i < t.getNodeCount(); ++i) {
+            if (!t.isExternal(i)) {
+                nodes.add(t.getNode(i));
+            }
+        }
+        return nodes;
+    }
+
+    public Set<Edge> getExternalEdges() {
+        final Set<Edge> edges = new LinkedHashSet<Edge>();
+        for (Node node : getExternalNodes()) {
+            if (node != rootNode) {
+                edges.add(((PersistentNode) node).edge);
+            }
+        }
+        return edges;
+    }
+
+    public Set<Edge> getInternalEdges() {
+        final Set<Edge> edges = new LinkedHashSet<Edge>();
+        for (Node node : getInternalNodes()) {
+            if (node != rootNode) {
+                edges.add(((PersistentNode) node).edge);
+            }
+        }
+        return edges;
+    }
+
+    public Set<Taxon> getTaxa() {
+        return new LinkedHashSet<Taxon>(family.tipIds.keySet());
+    }
+
+    public Taxon getTaxon(Node node) {
+        return ((PersistentNode) node).taxon;
+    }
+
+    public boolean isExternal(Node node) {
+        return ((PersistentNode) node).children.length == 0;
+    }
+
+    public Node getNode(Taxon taxon) {
+        final Integer id = family.tipIds.get(taxon);
+        return id == null ? null : entries.get(id).node;
+    }
+
+    /**
+     * Taxa are shared by all versions of the tree, so they can't be renamed.
+     * @throws UnsupportedOperationException always
+     */
+    public void renameTaxa(Taxon from, Taxon to) {
+        throw new UnsupportedOperationException("Can't rename taxa of a PersistentRootedTree");
+    }
+
+    // Graph IMPLEMENTATION
+
+    public List<Edge> getEdges(Node node) {
+        final PersistentNode n = check(node);
+        final List<Edge> edges = new ArrayList<Edge>(n.children.length + 1);
+        for (Node child : n.children) {
+            edges.add(((PersistentNode) child).edge);
+        }
+        if (!n.root) {
+            edges.add(n.edge);
+        }
+        return edges;
+    }
+
+    public List<Node> getAdjacencies(Node node) {
+        final List<Node> adjacencies = getChildren(node);
+        final Node parent = getParent(node);
+        if (parent != null) {
+            adjacencies.add(parent);
+        }
+        return adjacencies;
+    }
+
+    public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
+        if (getParent(node1) == node2) {
+            return ((PersistentNode) node1).edge;
+        } else if (getParent(node2) == node1) {
+            return ((PersistentNode) node2).edge;
+        } else {
+            throw new NoEdgeException();
+        }
+    }
+
+    public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
+        return getEdge(node1, node2).getLength();
+    }
+
+    public Node[] getNodes(Edge edge) {
+        if (!(edge instanceof PersistentEdge)) {
+            return null;
+        }
+        final Node node = ((PersistentEdge) edge).node;
+        if (findNode(node) != node || node == rootNode) {
+            return null;
+        }
+        return new Node[] { node, getParent(node) };
+    }
+
+    public Set<Node> getNodes() {
+        final RootedTreeTraversal t = getTraversal();
+        final Set<Node> nodes = new LinkedHashSet<Node>();
+        for (int i = 0; i < t.getNodeCount(); ++i) {
+            nodes.add(t.getNode(i));
+        }
+        return nodes;
+    }
+
+    public Set<Edge> getEdges() {
+        final Set<Edge> edges = new LinkedHashSet<Edge>();
+        for (Node node : getNodes()) {
+            if (node != rootNode) {
+                edges.add(((PersistentNode) node).edge);
+            }
+        }
+        return edges;
+    }
+
+    public Set<Node> getNodes(int degree) {
+        final Set<Node> nodes = new LinkedHashSet<Node>();
+        for (Node node : getNodes()) {
+            if (node.getDegree() == degree) nodes.add(node);
+        }
+        return nodes;
+    }
+
+    // Attributable IMPLEMENTATION
+
+    public void setAttribute(String name, Object value) {
+        if (helper == null) {
+            helper = new AttributableHelper();
+        }
+        helper.setAttribute(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        if (helper == null) {
+            return null;
+        }
+        return helper.getAttribute(name);
+    }
+
+    public void removeAttribute(String name) {
+        if( helper != null ) {
+            helper.removeAttribute(name);
+        }
+    }
+
+    public Set<String> getAttributeNames() {
+        if (helper == null) {
+            return Collections.emptySet();
+        }
+        return helper.getAttributeNames();
+    }
+
+    public Map<String, Object> getAttributeMap() {
+        if (helper == null) {
+            return Collections.emptyMap();
+        }
+        return helper.getAttributeMap();
+    }
+
+    // PRIVATE members
+
+    private static final Map<String, Object> EMPTY_ATTRIBUTES = Collections.emptyMap();
+
+    private final Family family;
+    private final Entries entries;
+    private final PersistentNode rootNode;
+    private final boolean hasLengths;
+    private boolean conceptuallyUnrooted;
+
+    private AttributableHelper helper = null;
+
+    private volatile RootedTreeTraversal traversal = null;
+    private volatile double[] heights = null;
+
+    /**
+     * State shared by all versions derived from one original tree
+     */
+    private static final class Family {
+        private final AtomicInteger nextId;
+        private final Map<Taxon, Integer> tipIds;
+
+        private Family(int nodeCount, Map<Taxon, Integer> tipIds) {
+            this.nextId = new AtomicInteger(nodeCount);
+            this.tipIds = tipIds;
+        }
+    }
+
+    /**
+     * The node with an id in one version, and the id of its parent (-1 for the root)
+     */
+    private static final class Entry {
+        private final PersistentNode node;
+        private final int parent;
+
+        private Entry(PersistentNode node, int parent) {
+            this.node = node;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * A block of 32 slots of an {@link Entries} trie. Blocks made by one {@link Editor} are changed in place by it,
+     * all others are copied first.
+     */
+    private static final class Block {
+        private final Object[] slots = new Object[WIDTH];
+        private final Object owner;
+
+        private Block(Object owner) {
+            this.owner = owner;
+        }
+    }
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    /**
+     * Immutable map from node id to {@link Entry}: a trie of 32 way blocks indexed by successive 5 bit digits of the id.
+     * Changing an entry copies one block per level, so versions share all other blocks.
+     */
+    private static final class Entries {
+        private static final Entries EMPTY = new Entries(new Block(null), 0);
+
+        private final Block root;
+        private final int shift;
+
+        private Entries(Block root, int shift) {
+            this.root = root;
+            this.shift = shift;
+        }
+
+        private Entry get(int id) {
+            if ((id >>> shift) >= WIDTH) {
+                return null;
+            }
+            Block block = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                block = (Block) block.slots[(id >>> level) & MASK];
+                if (block == null) {
+                    return null;
+                }
+            }
+            return (Entry) block.slots[id & MASK];
+        }
+    }
+
+    /**
+     * Changes entries for one edit, copying each block of the original at most once.
+     */
+    private static final class Editor {
+        private final Object owner = new Object();
+        private Block root;
+        private int shift;
+
+        private Editor(Entries entries) {
+            root = entries.root;
+            shift = entries.shift;
+        }
+
+        private Entry get(int id) {
+            return new Entries(root, shift).get(id);
+        }
+
+        private void put(PersistentNode node, int parent) {
+            set(node.id, new Entry(node, parent));
+        }
+
+        private void remove(int id) {
+            set(id, null);
+        }
+
+        private void set(int id, Entry entry) {
+            while ((id >>> shift) >= WIDTH) {
+                final Block grown = new Block(owner);
+                grown.slots[0] = root;
+                root = grown;
+                shift += BITS;
+            }
+            root = editable(root);
+            Block block = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                final int k = (id >>> level) & MASK;
+                final Block child = block.slots[k] == null ? new Block(owner) : editable((Block) block.slots[k]);
+                block.slots[k] = child;
+                block = child;
+            }
+            block.slots[id & MASK] = entry;
+        }
+
+        private Block editable(Block block) {
+            if (block.owner == owner) {
+                return block;
+            }
+            final Block copy = new Block(owner);
+            System.arraycopy(block.slots, 0, copy.slots, 0, WIDTH);
+            return copy;
+        }
+
+        private Entries getEntries() {
+            return new Entries(root, shift);
+        }
+    }
+
+    /**
+     * An immutable node, possibly shared by several versions of the tree. Its parent depends on the version.
+     */
+    private static final class PersistentNode implements Node {
+        private final Family family;
+        private final int id;
+        private final Node[] children;
+        private final Taxon taxon;
+        private final double length;
+        private final Map<String, Object> attributes;
+        private final boolean root;
+        private final PersistentEdge edge;
+
+        private PersistentNode(Family family, int id, Node[] children, Taxon taxon, double length,
+                               Map<String, Object> attributes, boolean root) {
+            this.family = family;
+            this.id = id;
+            this.children = children;
+            this.taxon = taxon;
+            this.length = length;
+            this.attributes = attributes;
+            this.root = root;
+            this.edge = new PersistentEdge(this);
+        }
+
+        /**
+         * @return a node with the same identity (id and taxon) and the given content
+         */
+        private PersistentNode copy(Node[] children, double length, Map<String, Object> attributes, boolean root) {
+            return new PersistentNode(family, id, children, taxon, length, attributes, root);
+        }
+
+        public int getDegree() {
+            return children.length + (root ? 0 : 1);
+        }
+
+        public void setAttribute(String name, Object value) {
+            throw new UnsupportedOperationException("Nodes of a PersistentRootedTree are immutable, use withNodeAttribute");
+        }
+
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        public void removeAttribute(String name) {
+            throw new UnsupportedOperationException("Nodes of a PersistentRootedTree are immutable, use withoutNodeAttribute");
+        }
+
+        public Set<String> getAttributeNames() {
+            return attributes.keySet();
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return attributes;
+        }
+    }
+
+    /**
+     * The immutable edge from a node to its parent
+     */
+    private static final class PersistentEdge implements Edge {
+        private final PersistentNode node;
+
+        private PersistentEdge(PersistentNode node) {
+            this.node = node;
+        }
+
+        public double getLength() {
+            return node.length;
+        }
+
+        public void setAttribute(String name, Object value) {
+            throw new UnsupportedOperationException("Edges of a PersistentRootedTree are immutable");
+        }
+
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        public void removeAttribute(String name) {
+            throw new UnsupportedOperationException("Edges of a PersistentRootedTree are immutable");
+        }
+
+        public Set<String> getAttributeNames() {
+            return Collections.emptySet();
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return Collections.emptyMap();
+        }
+    }
+}
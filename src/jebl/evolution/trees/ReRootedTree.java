@@ -4,7 +4,6 @@ import jebl.evolution.graphs.*;
 import jebl.evolution.taxa.Taxon;
 import jebl.evolution.trees.*;
 import jebl.util.AttributableHelper;
-import jebl.util.HashPair;
 
 import java.util.*;
 
@@ -30,25 +29,37 @@ final public class ReRootedTree extends AbstractRootedTree {
 		List<Node> children = new ArrayList<Node>();
 
 		Node node1 = createNodes(source, outgroupNode, ingroupNode);
-		setLength(node1, ingroupBranchLength);
+		// a binary old root is skipped over, so the branch to its other child is added on
+		setLength(node1, ingroupBranchLength + getSkippedRootLength(source, ingroupNode, outgroupNode));
 		children.add(node1);
 
 		Node node2 = createNodes(source, ingroupNode, outgroupNode);
-		double l = source.getEdgeLength(ingroupNode, outgroupNode);
-		if (outgroupNode == source.getRootNode()) {
-			// the tree is already rooted at the required location
-			for (Node adj : source.getAdjacencies(outgroupNode)) {
-				if (adj != ingroupNode) {
-					l += source.getEdgeLength(outgroupNode, adj);
-				}
-			}
-		}
+		double l = source.getEdgeLength(ingroupNode, outgroupNode) +
+				getSkippedRootLength(source, outgroupNode, ingroupNode);
 		setLength(node2, Math.max(l - ingroupBranchLength, 0.0));
 		children.add(node2);
 
 		createInternalNode(null, children);
 	}
 
+	/**
+	 * @param source the source tree
+	 * @param node a node on one side of the new root
+	 * @param other the node on the other side of the new root
+	 * @return if node is the root of the source tree and has two children, so that {@link #createNodes} skips over
+	 * it, the length of the branch to its child other than other; otherwise 0
+	 */
+	private static double getSkippedRootLength(RootedTree source, Node node, Node other) throws NoEdgeException {
+		if (node != source.getRootNode()) {
+			return 0.0;
+		}
+		final List<Node> adjacencies = source.getAdjacencies(node);
+		if (adjacencies.size() != 2) {
+			return 0.0;
+		}
+		return source.getEdgeLength(node, adjacencies.get(0) == other ? adjacencies.get(1) : adjacencies.get(0));
+	}
+
 	/**
 	 * Clones the entire tree structure from the given (unrooted) Tree.
 	 * @param tree the unrooted tree
@@ -596,78 +607,17 @@ final public class ReRootedTree extends AbstractRootedTree {
 	 * @return rooted tree
 	 */
 	public static RootedTree rootTreeAtCenter(RootedTree tree) {
-		// Method - find the pair of tips with the longest distance. It is easy to see that the center
-		// is at the midpoint of the path between them.
-
-		HashMap<HashPair<Node>, Double> dists = new LinkedHashMap<HashPair<Node>, Double>();
+		// The center is at the midpoint of the path between the pair of tips with the longest distance, found
+		// from the farthest tip distances of all edges, computed in one pass.
+		final RerootingIndex.Rooting rooting = new RerootingIndex(tree).getLongestPathMidpointRooting();
 		try {
-			double maxDistance = -Double.MAX_VALUE;
-			// node on maximal path
-			Node current = null;
-			// next node on maximal path
-			Node direction = null;
-
-			// locate one terminal node of longest path
-			for (Node e : tree.getExternalNodes()) {
-				for (Node n : tree.getAdjacencies(e)) {
-					final double d = dist(tree, e, n, dists);
-					if (d > maxDistance) {
-						maxDistance = d;
-						current = e;
-						direction = n;
-					}
-				}
-			}
-
-			// traverse along maximal path to it's middle
-			double distanceLeft = maxDistance / 2.0;
-
-			while (true) {
-				final double len = tree.getEdgeLength(current, direction);
-				if (distanceLeft <= len) {
-					//System.out.println(toNewick(rtree));
-					return new ReRootedTree(tree, current, direction, distanceLeft);
-				}
-				distanceLeft -= len;
-
-				maxDistance = -Double.MAX_VALUE;
-				Node next = null;
-				for (Node n : tree.getAdjacencies(direction)) {
-					if (n == current) continue;
-					final double d = dist(tree, direction, n, dists);
-					if (d > maxDistance) {
-						maxDistance = d;
-						next = n;
-					}
-				}
-				current = direction;
-				direction = next;
-			}
+			return new ReRootedTree(tree, rooting.getIngroupNode(), rooting.getOutgroupNode(),
+					rooting.getIngroupBranchLength());
 		} catch (Graph.NoEdgeException e1) {
 			return null; // serious bug, should not happen
 		}
 	}
 
-	private static double dist(Tree tree, Node root, Node node, Map<HashPair<Node>, Double> dists) throws Graph.NoEdgeException {
-		HashPair<Node> p = new HashPair<Node>(root, node);
-		if (dists.containsKey(p)) {
-			return dists.get(p);
-		}
-
-		// assume positive branches
-		double maxDist = 0;
-		for (Node n : tree.getAdjacencies(node)) {
-			if (n != root) {
-				double d = dist(tree, node, n, dists);
-				maxDist = Math.max(maxDist, d);
-			}
-		}
-		double dist = tree.getEdgeLength(node, root) + maxDist;
-
-		dists.put(p, dist);
-		return dist;
-	}
-
 	// PRIVATE members
 
 	private RootedTree source = null;
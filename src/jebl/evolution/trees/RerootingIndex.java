@@ -0,0 +1,583 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Graph;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * An index over the edges of an unrooted tree (or a rooted tree taken as unrooted) which finds the best place for
+ * a root by some criterion, evaluating every position on every edge in one O(n) pass, and then builds only the
+ * chosen rooted tree.
+ *
+ * For each edge the distances from one end to the tips on its side, and from the other end to the tips on the
+ * other side, are summarised by their count, maximum, sum and sum of squares (and sums with tip dates). These are
+ * computed for all edges by one pass from the tips up and one pass back down, each side of an edge being obtained
+ * from its neighbours' summaries, and a root at distance x along an edge is then scored in constant time:
+ * <ul>
+ * <li>midpoint rooting minimises the largest root to tip distance (see also {@link Utils#rootTreeAtCenter(Tree)}),</li>
+ * <li>minimum variance rooting minimises the variance of the root to tip distances,</li>
+ * <li>regression rooting minimises the mean squared residual of the regression of root to tip distance on
+ * sampling date, as when rooting a tree for a molecular clock (see {@link RootToTipRegression}).</li>
+ * </ul>
+ * The last two are quadratic in x, so the best x on each edge is found exactly.
+ *
+ * Construction and each search take O(n) time and use no recursion. The index is a snapshot of the tree when
+ * constructed; it holds the tree's nodes, but not its lengths, which are copied.
+ *
+ * @version $Id$
+ */
+public final class RerootingIndex {
+
+    /**
+     * A position for a root, between two adjacent nodes of the tree.
+     */
+    public static final class Rooting {
+        private final Node ingroupNode;
+        private final Node outgroupNode;
+        private final double ingroupBranchLength;
+        private final double outgroupBranchLength;
+        private final double score;
+
+        private Rooting(Node ingroupNode, Node outgroupNode, double ingroupBranchLength, double outgroupBranchLength,
+                        double score) {
+            this.ingroupNode = ingroupNode;
+            this.outgroupNode = outgroupNode;
+            this.ingroupBranchLength = ingroupBranchLength;
+            this.outgroupBranchLength = outgroupBranchLength;
+            this.score = score;
+        }
+
+        /**
+         * @return the node on one side of the root
+         */
+        public Node getIngroupNode() {
+            return ingroupNode;
+        }
+
+        /**
+         * @return the node on the other side of the root
+         */
+        public Node getOutgroupNode() {
+            return outgroupNode;
+        }
+
+        /**
+         * @return branch length from the root to the ingroup node
+         */
+        public double getIngroupBranchLength() {
+            return ingroupBranchLength;
+        }
+
+        /**
+         * @return branch length from the root to the outgroup node
+         */
+        public double getOutgroupBranchLength() {
+            return outgroupBranchLength;
+        }
+
+        /**
+         * @return value of the criterion at this root: the largest root to tip distance, the variance of root to
+         * tip distances, or the mean squared residual of the root to tip regression
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+
+    private static final int MIDPOINT = 0;
+    private static final int MINIMUM_VARIANCE = 1;
+    private static final int REGRESSION = 2;
+
+    private final Tree tree;
+
+    /** Nodes, each numbered after its neighbour towards node 0 */
+    private final Node[] nodes;
+
+    /** Neighbour of each node towards node 0, -1 for node 0 */
+    private final int[] parents;
+
+    /** Length of the edge from each node to its parent */
+    private final double[] lengths;
+
+    private final boolean[] external;
+
+    /** Children of node i are childIndices[childOffsets[i] .. childOffsets[i+1]-1] */
+    private final int[] childOffsets;
+    private final int[] childIndices;
+
+    /** Traversal the nodes are numbered by, for rooted trees */
+    private final RootedTreeTraversal traversal;
+
+    /** Node numbers, for unrooted trees */
+    private final Map<Node, Integer> indices;
+
+    public RerootingIndex(Tree tree) {
+        this.tree = tree;
+
+        if (tree instanceof RootedTree) {
+            final RootedTree rootedTree = (RootedTree) tree;
+            traversal = RootedTreeTraversal.getTraversal(rootedTree);
+            indices = null;
+            final int nNodes = traversal.getNodeCount();
+            nodes = new Node[nNodes];
+            lengths = new double[nNodes];
+            external = new boolean[nNodes];
+            for (int i = 0; i < nNodes; ++i) {
+                nodes[i] = traversal.getNode(i);
+                external[i] = traversal.isExternal(i);
+                if (i > 0) {
+                    lengths[i] = rootedTree.getLength(nodes[i]);
+                }
+            }
+            parents = traversal.getParents();
+            childOffsets = traversal.getChildOffsets();
+            childIndices = traversal.getChildIndices();
+            return;
+        }
+
+        // number the nodes breadth first from a tip
+        final int nNodes = tree.getNodes().size();
+        nodes = new Node[nNodes];
+        parents = new int[nNodes];
+        lengths = new double[nNodes];
+        external = new boolean[nNodes];
+        traversal = null;
+        indices = new HashMap<Node, Integer>(2 * nNodes);
+
+        nodes[0] = tree.getExternalNodes().iterator().next();
+        parents[0] = -1;
+        indices.put(nodes[0], 0);
+        int count = 1;
+        try {
+            for (int i = 0; i < count; ++i) {
+                external[i] = tree.isExternal(nodes[i]);
+                for (Node adjacent : tree.getAdjacencies(nodes[i])) {
+                    if (!indices.containsKey(adjacent)) {
+                        indices.put(adjacent, count);
+                        nodes[count] = adjacent;
+                        parents[count] = i;
+                        lengths[count] = tree.getEdgeLength(adjacent, nodes[i]);
+                        ++count;
+                    }
+                }
+            }
+        } catch (Graph.NoEdgeException e) {
+            throw new IllegalArgumentException("BUG: invalid tree");
+        }
+
+        childOffsets = new int[nNodes + 1];
+        for (int i = 1; i < nNodes; ++i) {
+            ++childOffsets[parents[i] + 1];
+        }
+        for (int i = 0; i < nNodes; ++i) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+        childIndices = new int[nNodes - 1];
+        final int[] next = Arrays.copyOf(childOffsets, nNodes);
+        for (int i = 1; i < nNodes; ++i) {
+            childIndices[next[parents[i]]++] = i;
+        }
+    }
+
+    /**
+     * @return the tree this index was built from
+     */
+    public Tree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return the root minimising the largest distance from the root to a tip
+     */
+    public Rooting getMidpointRooting() {
+        return findRooting(MIDPOINT, null);
+    }
+
+    /**
+     * Finds the midpoint root as {@link Utils#rootTreeAtCenter(Tree)} always has: from the first tip (in the tree's
+     * order) at an end of a longest path between tips, walking along that path until half its length is covered.
+     * The root is the same point as {@link #getMidpointRooting()}, but on a tie (the midpoint falling on a node) the
+     * edge chosen, and the orientation of the rooting, are those of the walk.
+     * @return the root, with the ingroup node on the side of the tip the walk started from
+     */
+    public Rooting getLongestPathMidpointRooting() {
+        final int nNodes = nodes.length;
+        if (nNodes < 2) {
+            throw new IllegalArgumentException("The tree has no edges");
+        }
+        final double[][] farthest = getFarthestTipDistances();
+
+        double maxDistance = -Double.MAX_VALUE;
+        // node on maximal path
+        int current = -1;
+        // next node on maximal path
+        int direction = -1;
+
+        // locate one terminal node of longest path
+        for (Node tip : tree.getExternalNodes()) {
+            final int i = getIndex(tip);
+            for (Node adjacent : tree.getAdjacencies(tip)) {
+                final int j = getIndex(adjacent);
+                final double d = getFarthestTipDistance(farthest, i, j);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    current = i;
+                    direction = j;
+                }
+            }
+        }
+        final double radius = maxDistance / 2.0;
+
+        // traverse along maximal path to its middle
+        double distanceLeft = radius;
+        while (true) {
+            final double len = parents[direction] == current ? lengths[direction] : lengths[current];
+            if (distanceLeft <= len) {
+                return new Rooting(nodes[current], nodes[direction], distanceLeft, len - distanceLeft, radius);
+            }
+            distanceLeft -= len;
+
+            maxDistance = -Double.MAX_VALUE;
+            int next = -1;
+            for (Node adjacent : tree.getAdjacencies(nodes[direction])) {
+                final int j = getIndex(adjacent);
+                if (j == current) continue;
+                final double d = getFarthestTipDistance(farthest, direction, j);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    next = j;
+                }
+            }
+            current = direction;
+            direction = next;
+        }
+    }
+
+    /**
+     * @return number of the node
+     */
+    private int getIndex(Node node) {
+        return traversal != null ? traversal.getIndex(node) : indices.get(node);
+    }
+
+    /**
+     * @return largest distance from node i to a tip through its neighbour j
+     */
+    private double getFarthestTipDistance(double[][] farthest, int i, int j) {
+        return parents[j] == i ? farthest[0][j] + lengths[j] : farthest[1][i] + lengths[i];
+    }
+
+    /**
+     * @return for each node, the largest distance from it to a tip below it ([0]), and from its parent to a tip
+     * not below it ([1]), as in {@link #findRooting}
+     */
+    private double[][] getFarthestTipDistances() {
+        final int nNodes = nodes.length;
+        final double[] downMax = new double[nNodes];
+        final double[] upMax = new double[nNodes];
+        final double[] best1 = new double[nNodes], best2 = new double[nNodes];
+        final int[] bestChild = new int[nNodes];
+        Arrays.fill(best1, Double.NEGATIVE_INFINITY);
+        Arrays.fill(best2, Double.NEGATIVE_INFINITY);
+
+        for (int i = nNodes - 1; i >= 0; --i) {
+            downMax[i] = Math.max(external[i] ? 0.0 : Double.NEGATIVE_INFINITY, best1[i]);
+            final int parent = parents[i];
+            if (parent >= 0) {
+                final double m = downMax[i] + lengths[i];
+                if (m > best1[parent]) {
+                    best2[parent] = best1[parent];
+                    best1[parent] = m;
+                    bestChild[parent] = i;
+                } else if (m > best2[parent]) {
+                    best2[parent] = m;
+                }
+            }
+        }
+        for (int i = 1; i < nNodes; ++i) {
+            final int parent = parents[i];
+            double max = Math.max(external[parent] ? 0.0 : Double.NEGATIVE_INFINITY,
+                    bestChild[parent] == i ? best2[parent] : best1[parent]);
+            if (parent > 0) {
+                max = Math.max(max, upMax[parent] + lengths[parent]);
+            }
+            upMax[i] = max;
+        }
+        return new double[][]{downMax, upMax};
+    }
+
+    /**
+     * @return the root minimising the variance of the distances from the root to the tips
+     */
+    public Rooting getMinimumVarianceRooting() {
+        return findRooting(MINIMUM_VARIANCE, null);
+    }
+
+    /**
+     * Finds the root minimising the mean squared residual of a linear regression of root to tip distance on tip
+     * date. Only tips with a date take part.
+     * @param dates date of tips, with later tips having larger values
+     * @return the best root
+     * @throws IllegalArgumentException if fewer than two distinct dates are given for tips of the tree
+     */
+    public Rooting getRegressionRooting(Map<Taxon, Double> dates) {
+        final double[] tipDates = new double[nodes.length];
+        Arrays.fill(tipDates, Double.NaN);
+        double sum = 0.0;
+        int count = 0;
+        for (int i = 0; i < nodes.length; ++i) {
+            final Double date = external[i] ? dates.get(tree.getTaxon(nodes[i])) : null;
+            if (date != null) {
+                tipDates[i] = date;
+                sum += date;
+                ++count;
+            }
+        }
+        // centre the dates, so sums of products with distances stay small
+        final double mean = count > 0 ? sum / count : 0.0;
+        for (int i = 0; i < nodes.length; ++i) {
+            tipDates[i] -= mean;
+        }
+        return findRooting(REGRESSION, tipDates);
+    }
+
+    /**
+     * @param rooting a root position found by this index
+     * @return a new rooted tree with the root at the given position, with the nodes' attributes. Internal nodes
+     * left with a single child (a former root, say) are removed.
+     */
+    public RootedTree reRoot(Rooting rooting) {
+        final int nNodes = nodes.length;
+        int ingroup = -1;
+        int outgroup = -1;
+        for (int i = 1; i < nNodes && ingroup < 0; ++i) {
+            if (nodes[i] == rooting.ingroupNode && nodes[parents[i]] == rooting.outgroupNode) {
+                ingroup = i;
+                outgroup = parents[i];
+            } else if (nodes[i] == rooting.outgroupNode && nodes[parents[i]] == rooting.ingroupNode) {
+                ingroup = parents[i];
+                outgroup = i;
+            }
+        }
+        if (ingroup < 0) {
+            throw new IllegalArgumentException("The rooting is not on an edge of this tree");
+        }
+
+        // order the nodes of the new tree so that each parent comes before its children, starting from the two
+        // sides of the root
+        final int[] order = new int[nNodes];
+        final int[] newParents = new int[nNodes];
+        order[0] = ingroup;
+        newParents[ingroup] = outgroup;
+        order[1] = outgroup;
+        newParents[outgroup] = ingroup;
+        int count = 2;
+        for (int k = 0; k < count; ++k) {
+            final int i = order[k];
+            for (int c = childOffsets[i]; c < childOffsets[i + 1]; ++c) {
+                final int child = childIndices[c];
+                if (child != newParents[i]) {
+                    newParents[child] = i;
+                    order[count++] = child;
+                }
+            }
+            if (parents[i] >= 0 && parents[i] != newParents[i]) {
+                newParents[parents[i]] = i;
+                order[count++] = parents[i];
+            }
+        }
+
+        // create nodes children first, passing over nodes with one child: extra[i] is the length from newNodes[i]
+        // up to node i, and up[i] from newNodes[i] up to its parent
+        final SimpleRootedTree rootedTree = new SimpleRootedTree();
+        final Node[] newNodes = new Node[nNodes];
+        final double[] extra = new double[nNodes];
+        final double[] up = new double[nNodes];
+        int maxChildren = 0;
+        for (int i = 0; i < nNodes; ++i) {
+            maxChildren = Math.max(maxChildren, childOffsets[i + 1] - childOffsets[i]);
+        }
+        final int[] newChildren = new int[maxChildren + 1];
+        for (int k = nNodes - 1; k >= 0; --k) {
+            final int i = order[k];
+            int nChildren = 0;
+            for (int c = childOffsets[i]; c < childOffsets[i + 1]; ++c) {
+                if (childIndices[c] != newParents[i]) {
+                    newChildren[nChildren++] = childIndices[c];
+                }
+            }
+            if (parents[i] >= 0 && parents[i] != newParents[i]) {
+                newChildren[nChildren++] = parents[i];
+            }
+
+            if (nChildren == 1) {
+                newNodes[i] = newNodes[newChildren[0]];
+                extra[i] = up[newChildren[0]];
+            } else {
+                if (nChildren == 0) {
+                    newNodes[i] = rootedTree.createExternalNode(tree.getTaxon(nodes[i]));
+                } else {
+                    final List<Node> childNodes = new ArrayList<Node>(nChildren);
+                    for (int c = 0; c < nChildren; ++c) {
+                        childNodes.add(newNodes[newChildren[c]]);
+                        rootedTree.setLength(newNodes[newChildren[c]], up[newChildren[c]]);
+                    }
+                    newNodes[i] = rootedTree.createInternalNode(childNodes);
+                }
+                for (Map.Entry<String, Object> e : nodes[i].getAttributeMap().entrySet()) {
+                    newNodes[i].setAttribute(e.getKey(), e.getValue());
+                }
+            }
+            if (k >= 2) {
+                up[i] = extra[i] + (parents[i] == newParents[i] ? lengths[i] : lengths[newParents[i]]);
+            }
+        }
+
+        final List<Node> rootChildren = new ArrayList<Node>(2);
+        rootChildren.add(newNodes[ingroup]);
+        rootChildren.add(newNodes[outgroup]);
+        rootedTree.setLength(newNodes[ingroup], extra[ingroup] + rooting.ingroupBranchLength);
+        rootedTree.setLength(newNodes[outgroup], extra[outgroup] + rooting.outgroupBranchLength);
+        rootedTree.createInternalNode(rootChildren);
+        return rootedTree;
+    }
+
+    /**
+     * Scores every root position by the criterion, and returns the best.
+     * @param criterion MIDPOINT, MINIMUM_VARIANCE or REGRESSION
+     * @param tipDates date of each tip relative to the mean date, NaN for tips left out, for REGRESSION only
+     */
+    private Rooting findRooting(int criterion, double[] tipDates) {
+        final int nNodes = nodes.length;
+        if (nNodes < 2) {
+            throw new IllegalArgumentException("The tree has no edges");
+        }
+
+        // Summaries of the tips on each side of the edge from node i to its parent: below (down*) measured from
+        // node i, and above (up*) measured from the parent. n counts the tips, s sums the distances, q the
+        // squared distances, t the dates and p the products of date and distance; max is the largest distance.
+        final double[] downN = new double[nNodes], downS = new double[nNodes], downQ = new double[nNodes];
+        final double[] downT = new double[nNodes], downP = new double[nNodes], downMax = new double[nNodes];
+        final double[] upN = new double[nNodes], upS = new double[nNodes], upQ = new double[nNodes];
+        final double[] upT = new double[nNodes], upP = new double[nNodes], upMax = new double[nNodes];
+
+        // largest and second largest distance from each node to tips below it through one child, and that child
+        final double[] best1 = new double[nNodes], best2 = new double[nNodes];
+        final int[] bestChild = new int[nNodes];
+        Arrays.fill(best1, Double.NEGATIVE_INFINITY);
+        Arrays.fill(best2, Double.NEGATIVE_INFINITY);
+
+        for (int i = nNodes - 1; i >= 0; --i) {
+            final double self = external[i] ? 0.0 : Double.NEGATIVE_INFINITY;
+            if (external[i] && (tipDates == null || !Double.isNaN(tipDates[i]))) {
+                downN[i] += 1;
+                if (tipDates != null) {
+                    downT[i] += tipDates[i];
+                }
+            }
+            downMax[i] = Math.max(self, best1[i]);
+
+            final int parent = parents[i];
+            if (parent >= 0) {
+                final double l = lengths[i];
+                downN[parent] += downN[i];
+                downS[parent] += downS[i] + downN[i] * l;
+                downQ[parent] += downQ[i] + 2 * l * downS[i] + downN[i] * l * l;
+                downT[parent] += downT[i];
+                downP[parent] += downP[i] + l * downT[i];
+                final double m = downMax[i] + l;
+                if (m > best1[parent]) {
+                    best2[parent] = best1[parent];
+                    best1[parent] = m;
+                    bestChild[parent] = i;
+                } else if (m > best2[parent]) {
+                    best2[parent] = m;
+                }
+            }
+        }
+
+        for (int i = 1; i < nNodes; ++i) {
+            final int parent = parents[i];
+            // all tips measured from the parent, less those below node i
+            double n = downN[parent], s = downS[parent], q = downQ[parent], t = downT[parent], p = downP[parent];
+            double max = Math.max(external[parent] ? 0.0 : Double.NEGATIVE_INFINITY,
+                    bestChild[parent] == i ? best2[parent] : best1[parent]);
+            if (parent > 0) {
+                final double l = lengths[parent];
+                n += upN[parent];
+                s += upS[parent] + upN[parent] * l;
+                q += upQ[parent] + 2 * l * upS[parent] + upN[parent] * l * l;
+                t += upT[parent];
+                p += upP[parent] + l * upT[parent];
+                max = Math.max(max, upMax[parent] + l);
+            }
+            final double l = lengths[i];
+            upN[i] = n - downN[i];
+            upS[i] = s - (downS[i] + downN[i] * l);
+            upQ[i] = q - (downQ[i] + 2 * l * downS[i] + downN[i] * l * l);
+            upT[i] = t - downT[i];
+            upP[i] = p - (downP[i] + l * downT[i]);
+            upMax[i] = max;
+        }
+
+        final double total = downN[0];
+        double dateSquares = 0.0;
+        if (criterion == REGRESSION) {
+            for (int i = 0; i < nNodes; ++i) {
+                if (external[i] && !Double.isNaN(tipDates[i])) {
+                    dateSquares += tipDates[i] * tipDates[i];
+                }
+            }
+            if (!(dateSquares > 0.0)) {
+                throw new IllegalArgumentException("At least two tips with different dates are required");
+            }
+        }
+
+        int bestNode = -1;
+        double bestX = 0.0;
+        double bestScore = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < nNodes; ++i) {
+            final double l = lengths[i];
+            double x;
+            double score;
+            if (criterion == MIDPOINT) {
+                x = Math.min(Math.max((upMax[i] + l - downMax[i]) / 2, 0.0), l);
+                score = Math.max(downMax[i] + x, upMax[i] + l - x);
+            } else {
+                // With the root at distance x from node i, the sum of distances is c0 + c1 x, the sum of squared
+                // distances d0 + d1 x + total x^2 and the sum of products of date and distance g0 + g1 x.
+                final double c0 = downS[i] + upS[i] + upN[i] * l;
+                final double c1 = downN[i] - upN[i];
+                final double d0 = downQ[i] + upQ[i] + 2 * l * upS[i] + upN[i] * l * l;
+                final double d1 = 2 * (downS[i] - upS[i] - upN[i] * l);
+
+                // total times the variance of the distances is a2 x^2 + a1 x + a0
+                double a2 = total - c1 * c1 / total;
+                double a1 = d1 - 2 * c0 * c1 / total;
+                double a0 = d0 - c0 * c0 / total;
+                if (criterion == REGRESSION) {
+                    // less the squared covariance with the (centred) dates over their sum of squares
+                    final double g0 = downP[i] + upP[i] + l * upT[i];
+                    final double g1 = downT[i] - upT[i];
+                    a2 -= g1 * g1 / dateSquares;
+                    a1 -= 2 * g0 * g1 / dateSquares;
+                    a0 -= g0 * g0 / dateSquares;
+                }
+                if (a2 > 0.0) {
+                    x = Math.min(Math.max(-a1 / (2 * a2), 0.0), l);
+                } else {
+                    x = (a2 * l + a1) * l < 0.0 ? l : 0.0;
+                }
+                score = Math.max(((a2 * x + a1) * x + a0) / total, 0.0);
+            }
+            if (score < bestScore) {
+                bestScore = score;
+                bestNode = i;
+                bestX = x;
+            }
+        }
+        return new Rooting(nodes[bestNode], nodes[parents[bestNode]], bestX, lengths[bestNode] - bestX, bestScore);
+    }
+}
@@ -13,6 +13,7 @@ import java.util.*;
 /**
  * A simple, immutable rooted tree implementation that is a subtree of an existing tree
  * subtending a specified set of taxa..
+ * {@link RootedSubtreeView} gives the same subtree without copying the nodes.
  *
  * @author Andrew Rambaut
  * @author Alexei Drummond
@@ -0,0 +1,450 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Edge;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * A view of the subtree of a rooted tree spanned by a set of taxa, with the same shape as {@link RootedSubtree}:
+ * rooted at the most recent common ancestor of the taxa, with nodes left with a single child removed, and node
+ * heights taken from the source tree. The length of a branch is the sum of the lengths of the source branches it
+ * spans. Unlike RootedSubtree nothing is copied: the nodes of the view are nodes of the source tree, and only the
+ * k tips and their k-1 or fewer common ancestors are visited.
+ *
+ * The view is built in O(k log k) time from the source tree's shared {@link RootedTreeIndex} (built once per tree
+ * in O(n log n) time): after sorting the tips in preorder, the most recent common ancestors of neighbouring tips are
+ * exactly the internal nodes of the subtree, and a stack over the sorted nodes gives each node its parent.
+ *
+ * Node and tree attributes are those of the source tree. {@link Node#getDegree()} gives a node's degree in the
+ * source tree; its degree in the view is {@link #getAdjacencies(Node)}.size(). The view does not follow later
+ * changes to the structure of the source tree.
+ *
+ * @version $Id$
+ */
+public final class RootedSubtreeView extends AbstractRootedTree {
+
+    /**
+     * @param tree a rooted tree
+     * @param includedTaxa taxa to keep; taxa not in the tree are ignored
+     * @throws IllegalArgumentException if none of the taxa are in the tree
+     */
+    public RootedSubtreeView(RootedTree tree, Set<Taxon> includedTaxa) {
+        this(tree, getTips(tree, includedTaxa));
+    }
+
+    /**
+     * @param tree a rooted tree
+     * @param tips external nodes of the tree to keep
+     * @throws IllegalArgumentException if tips is empty or has an internal node
+     */
+    public RootedSubtreeView(RootedTree tree, Collection<Node> tips) {
+        if (tips.isEmpty()) {
+            throw new IllegalArgumentException("No tips selected");
+        }
+        source = tree;
+        final RootedTreeIndex index = RootedTreeIndex.getTreeIndex(tree);
+
+        // tips in preorder, followed by the common ancestors of neighbours
+        int[] keys = new int[2 * tips.size() - 1];
+        int nTips = 0;
+        for (Node tip : tips) {
+            if (!tree.isExternal(tip)) {
+                throw new IllegalArgumentException("Node, " + tip + " is not an external node");
+            }
+            keys[nTips++] = index.getIndex(tip);
+        }
+        nTips = sortUnique(keys, nTips);
+        int nNodes = nTips;
+        for (int i = 0; i + 1 < nTips; ++i) {
+            keys[nNodes++] = index.getMRCA(keys[i], keys[i + 1]);
+        }
+        nNodes = sortUnique(keys, nNodes);
+
+        nodes = new Node[nNodes];
+        parents = new int[nNodes];
+        positions = new HashMap<Node, Integer>(2 * nNodes);
+        final int[] stack = new int[nNodes];
+        int depth = 0;
+        for (int i = 0; i < nNodes; ++i) {
+            while (depth > 0 && !index.isAncestor(keys[stack[depth - 1]], keys[i])) {
+                --depth;
+            }
+            parents[i] = depth > 0 ? stack[depth - 1] : -1;
+            stack[depth++] = i;
+            nodes[i] = index.getNode(keys[i]);
+            positions.put(nodes[i], i);
+        }
+
+        // the nodes are in preorder, so children are found after their parents, in their natural order
+        childOffsets = new int[nNodes + 1];
+        for (int i = 1; i < nNodes; ++i) {
+            childOffsets[parents[i] + 1]++;
+        }
+        for (int i = 0; i < nNodes; ++i) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+        childIndices = new int[nNodes - 1];
+        final int[] fill = Arrays.copyOf(childOffsets, nNodes);
+        for (int i = 1; i < nNodes; ++i) {
+            childIndices[fill[parents[i]]++] = i;
+        }
+
+        subtreeSizes = new int[nNodes];
+        for (int i = nNodes - 1; i >= 0; --i) {
+            subtreeSizes[i] += 1;
+            if (i > 0) {
+                subtreeSizes[parents[i]] += subtreeSizes[i];
+            }
+        }
+        externalNodeCount = nTips;
+    }
+
+    private static List<Node> getTips(RootedTree tree, Set<Taxon> taxa) {
+        final List<Node> tips = new ArrayList<Node>(taxa.size());
+        for (Taxon taxon : taxa) {
+            final Node node = tree.getNode(taxon);
+            if (node != null) {
+                tips.add(node);
+            }
+        }
+        if (tips.isEmpty()) {
+            throw new IllegalArgumentException("None of the taxa are in the tree");
+        }
+        return tips;
+    }
+
+    /**
+     * Sort keys[0 .. n-1] and remove duplicates
+     * @return number of distinct keys
+     */
+    private static int sortUnique(int[] keys, int n) {
+        Arrays.sort(keys, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; ++i) {
+            if (unique == 0 || keys[unique - 1] != keys[i]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * @return the tree viewed
+     */
+    public RootedTree getSource() {
+        return source;
+    }
+
+    private int getPosition(Node node) {
+        final Integer position = positions.get(node);
+        if (position == null) {
+            throw new IllegalArgumentException("Node, " + node + " is not in this subtree");
+        }
+        return position;
+    }
+
+    // RootedTree IMPLEMENTATION
+
+    public List<Node> getChildren(Node node) {
+        final int position = getPosition(node);
+        final List<Node> children = new ArrayList<Node>(childOffsets[position + 1] - childOffsets[position]);
+        for (int k = childOffsets[position]; k < childOffsets[position + 1]; ++k) {
+            children.add(nodes[childIndices[k]]);
+        }
+        return children;
+    }
+
+    @Override
+    public int getExternalNodeCount(Node node) {
+        final int position = getPosition(node);
+        int count = 0;
+        for (int i = position; i < position + subtreeSizes[position]; ++i) {
+            if (childOffsets[i + 1] == childOffsets[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public List<Node> getExternalNodes(Node node) {
+        final int position = getPosition(node);
+        final List<Node> tips = new ArrayList<Node>();
+        for (int i = position; i < position + subtreeSizes[position]; ++i) {
+            if (childOffsets[i + 1] == childOffsets[i]) {
+                tips.add(nodes[i]);
+            }
+        }
+        return tips;
+    }
+
+    public boolean hasHeights() {
+        return source.hasHeights();
+    }
+
+    public boolean isHeightsKnown() {
+        return source.isHeightsKnown();
+    }
+
+    public double getHeight(Node node) {
+        getPosition(node);
+        return source.getHeight(node);
+    }
+
+    /**
+     * @return Whether this tree has branch lengths available, which are summed from the source tree's branch lengths
+     */
+    public boolean hasLengths() {
+        return source.hasLengths();
+    }
+
+    public boolean isLengthsKnown() {
+        return source.isLengthsKnown();
+    }
+
+    /**
+     * Takes time proportional to the number of source branches between the node and its parent in this subtree.
+     * @param node the node whose branch length (to its parent) is being requested.
+     * @return the sum of the source tree's branch lengths from the node up to its parent in this subtree (0.0 for
+     * the root)
+     */
+    public double getLength(Node node) {
+        final int parent = parents[getPosition(node)];
+        if (parent < 0) {
+            return 0.0;
+        }
+        double length = 0.0;
+        for (Node n = node; n != nodes[parent]; n = source.getParent(n)) {
+            length += source.getLength(n);
+        }
+        return length;
+    }
+
+    public Node getParent(Node node) {
+        final int parent = parents[getPosition(node)];
+        return parent < 0 ? null : nodes[parent];
+    }
+
+    public Node getRootNode() {
+        return nodes[0];
+    }
+
+    public boolean conceptuallyUnrooted() {
+        return source.conceptuallyUnrooted();
+    }
+
+    public boolean isRoot(Node node) {
+        return node == nodes[0];
+    }
+
+    // Tree IMPLEMENTATION
+
+    public Set<Node> getExternalNodes() {
+        final Set<Node> tips = new LinkedHashSet<Node>(2 * externalNodeCount);
+        for (int i = 0; i < nodes.length; ++i) {
+            if (childOffsets[i + 1] == childOffsets[i]) {
+                tips.add(nodes[i]);
+            }
+        }
+        return tips;
+    }
+
+    public Set<Node> getInternalNodes() {
+        final Set<Node> internal = new LinkedHashSet<Node>();
+        for (int i = 0; i < nodes.length; ++i) {
+            if (childOffsets[i + 1] != childOffsets[i]) {
+                internal.add(nodes[i]);
+            }
+        }
+        return internal;
+    }
+
+    public Set<Edge> getExternalEdges() {
+        final Edge[] edges = getEdgeArray();
+        final Set<Edge> external = new LinkedHashSet<Edge>();
+        for (int i = 1; i < nodes.length; ++i) {
+            if (childOffsets[i + 1] == childOffsets[i]) {
+                external.add(edges[i]);
+            }
+        }
+        return external;
+    }
+
+    public Set<Edge> getInternalEdges() {
+        final Edge[] edges = getEdgeArray();
+        final Set<Edge> internal = new LinkedHashSet<Edge>();
+        for (int i = 1; i < nodes.length; ++i) {
+            if (childOffsets[i + 1] != childOffsets[i]) {
+                internal.add(edges[i]);
+            }
+        }
+        return internal;
+    }
+
+    public Set<Taxon> getTaxa() {
+        final Set<Taxon> taxa = new LinkedHashSet<Taxon>(2 * externalNodeCount);
+        for (Node tip : getExternalNodes()) {
+            taxa.add(source.getTaxon(tip));
+        }
+        return taxa;
+    }
+
+    public Taxon getTaxon(Node node) {
+        getPosition(node);
+        return source.getTaxon(node);
+    }
+
+    public boolean isExternal(Node node) {
+        final int position = getPosition(node);
+        return childOffsets[position + 1] == childOffsets[position];
+    }
+
+    public Node getNode(Taxon taxon) {
+        final Node node = source.getNode(taxon);
+        return node != null && positions.containsKey(node) ? node : null;
+    }
+
+    public void renameTaxa(Taxon from, Taxon to) {
+        source.renameTaxa(from, to);
+    }
+
+    // Graph IMPLEMENTATION
+
+    public List<Edge> getEdges(Node node) {
+        final int position = getPosition(node);
+        final Edge[] edges = getEdgeArray();
+        final List<Edge> adjacent = new ArrayList<Edge>();
+        for (int k = childOffsets[position]; k < childOffsets[position + 1]; ++k) {
+            adjacent.add(edges[childIndices[k]]);
+        }
+        if (position > 0) {
+            adjacent.add(edges[position]);
+        }
+        return adjacent;
+    }
+
+    public List<Node> getAdjacencies(Node node) {
+        final List<Node> adjacencies = getChildren(node);
+        final Node parent = getParent(node);
+        if (parent != null) {
+            adjacencies.add(parent);
+        }
+        return adjacencies;
+    }
+
+    public Edge getEdge(Node node1, Node node2) throws NoEdgeException {
+        if (getParent(node1) == node2) {
+            return getEdgeArray()[getPosition(node1)];
+        } else if (getParent(node2) == node1) {
+            return getEdgeArray()[getPosition(node2)];
+        } else {
+            throw new NoEdgeException();
+        }
+    }
+
+    public double getEdgeLength(Node node1, Node node2) throws NoEdgeException {
+        return getEdge(node1, node2).getLength();
+    }
+
+    public Node[] getNodes(Edge edge) {
+        if (!(edge instanceof SubtreeEdge) || ((SubtreeEdge) edge).tree() != this) {
+            return null;
+        }
+        final int position = ((SubtreeEdge) edge).position;
+        return new Node[] { nodes[position], nodes[parents[position]] };
+    }
+
+    public Set<Node> getNodes() {
+        return new LinkedHashSet<Node>(Arrays.asList(nodes));
+    }
+
+    public Set<Edge> getEdges() {
+        final Edge[] edges = getEdgeArray();
+        return new LinkedHashSet<Edge>(Arrays.asList(edges).subList(1, edges.length));
+    }
+
+    public Set<Node> getNodes(int degree) {
+        final Set<Node> selected = new LinkedHashSet<Node>();
+        for (int i = 0; i < nodes.length; ++i) {
+            if (childOffsets[i + 1] - childOffsets[i] + (i > 0 ? 1 : 0) == degree) {
+                selected.add(nodes[i]);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the edge above each node, created on first use (null for the root)
+     */
+    private synchronized Edge[] getEdgeArray() {
+        if (edges == null) {
+            edges = new Edge[nodes.length];
+            for (int i = 1; i < nodes.length; ++i) {
+                edges[i] = new SubtreeEdge(i);
+            }
+        }
+        return edges;
+    }
+
+    // Attributable IMPLEMENTATION
+
+    public void setAttribute(String name, Object value) {
+        source.setAttribute(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        return source.getAttribute(name);
+    }
+
+    public void removeAttribute(String name) {
+        source.removeAttribute(name);
+    }
+
+    public Set<String> getAttributeNames() {
+        return source.getAttributeNames();
+    }
+
+    public Map<String, Object> getAttributeMap() {
+        return source.getAttributeMap();
+    }
+
+    // PRIVATE members
+
+    private final RootedTree source;
+
+    /** Nodes in preorder */
+    private final Node[] nodes;
+
+    private final Map<Node, Integer> positions;
+
+    /** Position of parent of each node, -1 for the root */
+    private final int[] parents;
+
+    private final int[] childOffsets;
+
+    private final int[] childIndices;
+
+    private final int[] subtreeSizes;
+
+    private final int externalNodeCount;
+
+    private Edge[] edges = null;
+
+    private final class SubtreeEdge extends BaseEdge {
+        private final int position;
+
+        private SubtreeEdge(int position) {
+            this.position = position;
+        }
+
+        private RootedSubtreeView tree() {
+            return RootedSubtreeView.this;
+        }
+
+        public double getLength() {
+            return RootedSubtreeView.this.getLength(nodes[position]);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An integer index over the nodes of a rooted tree, answering most recent common ancestor (MRCA), ancestry and
+ * monophyly queries in constant time, or O(k) time for a set of k nodes.
+ *
+ * Nodes are numbered in preorder, so the root is 0 and every node is numbered lower than its descendants, and the
+ * descendants of a node form a contiguous range of numbers. Likewise the external nodes below a node are a
+ * contiguous range of the external nodes listed in preorder.
+ * The MRCA of two nodes is the lowest numbered node visited between them in an Euler tour of the tree, which is
+ * found with a sparse table range minimum query. Construction takes O(n log n) time and space and uses no recursion.
+ *
+ * Use {@link #getTreeIndex(RootedTree)} to share one index between all queries on a tree.
+ *
+ * Node numbers are those of the tree's {@link RootedTreeTraversal}. The index is a snapshot of the tree when
+ * constructed and does not reflect later changes to a mutable tree.
+ *
+ * @version $Id$
+ */
+public final class RootedTreeIndex {
+    private final RootedTreeTraversal traversal;
+
+    /** Parent of each node, -1 for the root */
+    private final int[] parents;
+
+    /** Number of external nodes in the subtree of each node */
+    private final int[] tipCounts;
+
+    /** External nodes in preorder */
+    private final int[] tips;
+
+    /** Position in tips of the first external node below each node */
+    private final int[] firstTip;
+
+    /** Position of each node's first visit in the Euler tour */
+    private final int[] firstVisit;
+
+    /** minimum[k][i] is the lowest node number in positions i .. i + 2^k - 1 of the Euler tour */
+    private final int[][] minimum;
+
+    /**
+     * @param tree a tree
+     * @return an index of the tree's current structure, kept with the tree's cached
+     * {@link RootedTreeTraversal} where the tree supports it
+     */
+    public static RootedTreeIndex getTreeIndex(RootedTree tree) {
+        return RootedTreeTraversal.getTraversal(tree).getTreeIndex();
+    }
+
+    public RootedTreeIndex(RootedTree tree) {
+        this(RootedTreeTraversal.getTraversal(tree));
+    }
+
+    /**
+     * @param traversal traversal of the tree, whose node numbers are used by the index
+     */
+    public RootedTreeIndex(RootedTreeTraversal traversal) {
+        this.traversal = traversal;
+        parents = traversal.getParents();
+        final int nNodes = parents.length;
+
+        tipCounts = new int[nNodes];
+        for (int i = nNodes - 1; i >= 0; --i) {
+            if (tipCounts[i] == 0) {
+                tipCounts[i] = 1;
+            }
+            if (i > 0) {
+                tipCounts[parents[i]] += tipCounts[i];
+            }
+        }
+
+        tips = new int[tipCounts[0]];
+        firstTip = new int[nNodes];
+        int nTips = 0;
+        for (int i = 0; i < nNodes; ++i) {
+            firstTip[i] = nTips;
+            if (traversal.isExternal(i)) {
+                tips[nTips++] = i;
+            }
+        }
+
+        // Euler tour: walk nodes in preorder, returning to the parent of each node before visiting it
+        final int tourLength = 2 * nNodes - 1;
+        final int[] tour = new int[tourLength];
+        firstVisit = new int[nNodes];
+        final int[] path = new int[nNodes];
+        int depth = 0;
+        int pos = 0;
+        for (int i = 0; i < nNodes; ++i) {
+            if (i > 0) {
+                while (path[depth - 1] != parents[i]) {
+                    --depth;
+                    tour[pos++] = path[depth - 1];
+                }
+            }
+            firstVisit[i] = pos;
+            tour[pos++] = i;
+            path[depth++] = i;
+        }
+        while (depth > 1) {
+            --depth;
+            tour[pos++] = path[depth - 1];
+        }
+        assert pos == tourLength;
+
+        final int levels = log2(tourLength) + 1;
+        minimum = new int[levels][];
+        minimum[0] = tour;
+        for (int k = 1; k < levels; ++k) {
+            final int[] prev = minimum[k - 1];
+            final int half = 1 << (k - 1);
+            final int[] level = new int[tourLength - (1 << k) + 1];
+            for (int i = 0; i < level.length; ++i) {
+                level[i] = Math.min(prev[i], prev[i + half]);
+            }
+            minimum[k] = level;
+        }
+    }
+
+    private static int log2(int n) {
+        return 31 - Integer.numberOfLeadingZeros(n);
+    }
+
+    /**
+     * @return the indexed tree
+     */
+    public RootedTree getTree() {
+        return traversal.getTree();
+    }
+
+    /**
+     * @return the traversal giving the node numbers
+     */
+    public RootedTreeTraversal getTraversal() {
+        return traversal;
+    }
+
+    /**
+     * @return number of nodes in tree
+     */
+    public int getNodeCount() {
+        return parents.length;
+    }
+
+    /**
+     * @param index node number
+     * @return the node
+     */
+    public Node getNode(int index) {
+        return traversal.getNode(index);
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return node number (preorder position)
+     * @throws IllegalArgumentException if node is not in the tree
+     */
+    public int getIndex(Node node) {
+        return traversal.getIndex(node);
+    }
+
+    /**
+     * @param index node number
+     * @return number of parent node, -1 for the root
+     */
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    /**
+     * @param index node number
+     * @return number of external nodes descendant of node (1 for an external node)
+     */
+    public int getExternalNodeCount(int index) {
+        return tipCounts[index];
+    }
+
+    /**
+     * @param index1 node number
+     * @param index2 node number
+     * @return node number of most recent common ancestor of both nodes
+     */
+    public int getMRCA(int index1, int index2) {
+        int from = firstVisit[index1];
+        int to = firstVisit[index2];
+        if (from > to) {
+            final int t = from; from = to; to = t;
+        }
+        final int k = log2(to - from + 1);
+        return Math.min(minimum[k][from], minimum[k][to - (1 << k) + 1]);
+    }
+
+    /**
+     * @param node1 node of tree
+     * @param node2 node of tree
+     * @return most recent common ancestor of both nodes
+     */
+    public Node getMRCA(Node node1, Node node2) {
+        return traversal.getNode(getMRCA(getIndex(node1), getIndex(node2)));
+    }
+
+    /**
+     * @param ancestor node number
+     * @param index node number
+     * @return true if ancestor is index or one of its ancestors
+     */
+    public boolean isAncestor(int ancestor, int index) {
+        return ancestor <= index && index < ancestor + traversal.getSubtreeSize(ancestor);
+    }
+
+    /**
+     * @param ancestor node of tree
+     * @param node node of tree
+     * @return true if ancestor is node or one of its ancestors
+     */
+    public boolean isAncestor(Node ancestor, Node node) {
+        return isAncestor(getIndex(ancestor), getIndex(node));
+    }
+
+    /**
+     * @param nodes nodes of the tree
+     * @return node number of most recent common ancestor of all the nodes
+     * @throws IllegalArgumentException if nodes is empty
+     */
+    public int getMRCA(Collection<Node> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes given");
+        }
+        int mrca = -1;
+        for (Node node : nodes) {
+            final int index = getIndex(node);
+            mrca = mrca < 0 ? index : getMRCA(mrca, index);
+        }
+        return mrca;
+    }
+
+    /**
+     * @param index node number
+     * @return the external nodes below the node, in preorder (the node itself if external)
+     */
+    public List<Node> getExternalNodes(int index) {
+        final List<Node> nodes = new ArrayList<Node>(tipCounts[index]);
+        for (int k = firstTip[index]; k < firstTip[index] + tipCounts[index]; ++k) {
+            nodes.add(traversal.getNode(tips[k]));
+        }
+        return nodes;
+    }
+
+    /**
+     * @param tipNodes a set of external nodes of the tree
+     * @return true if some node has exactly these external nodes below it
+     * @throws IllegalArgumentException if tipNodes is empty
+     */
+    public boolean isMonophyletic(Set<Node> tipNodes) {
+        return tipCounts[getMRCA(tipNodes)] == tipNodes.size();
+    }
+}
@@ -0,0 +1,335 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The structure of a rooted tree as primitive arrays, so algorithms can loop over the nodes without calling
+ * {@link RootedTree#getChildren(Node)}, allocating, or recursing.
+ *
+ * Nodes are numbered in preorder, children in their natural order: the root is 0, every node is numbered
+ * lower than its descendants, and the subtree of node i is the range i .. i + getSubtreeSize(i) - 1. So looping
+ * forwards over 0 .. n-1 visits parents before children, and looping backwards visits children before parents.
+ * The children of node i are getChildIndices()[getChildOffsets()[i] .. getChildOffsets()[i+1]-1].
+ *
+ * Use {@link #getTraversal(RootedTree)}, which keeps the traversal with trees that support it
+ * ({@link SimpleRootedTree}, {@link MutableRootedTree}, {@link CompactRootedTree} and {@link PersistentRootedTree})
+ * and computes it again only after the tree structure changes. For other trees a new traversal is computed on each call.
+ *
+ * The returned arrays are shared and must not be modified.
+ *
+ * @version $Id$
+ */
+public final class RootedTreeTraversal {
+
+    /**
+     * @param tree a tree
+     * @return the traversal of the tree's current structure
+     */
+    public static RootedTreeTraversal getTraversal(RootedTree tree) {
+        if (tree instanceof SimpleRootedTree) {
+            return ((SimpleRootedTree) tree).getTraversal();
+        }
+        if (tree instanceof MutableRootedTree) {
+            return ((MutableRootedTree) tree).getTraversal();
+        }
+        if (tree instanceof CompactRootedTree) {
+            return ((CompactRootedTree) tree).getTraversal();
+        }
+        if (tree instanceof PersistentRootedTree) {
+            return ((PersistentRootedTree) tree).getTraversal();
+        }
+        return new RootedTreeTraversal(tree);
+    }
+
+    /**
+     * @param tree a tree
+     * @return the traversal the tree keeps of its current structure, or null if the tree does not keep one, so
+     * queries on part of the tree can avoid traversing all of it
+     */
+    public static RootedTreeTraversal getCachedTraversal(RootedTree tree) {
+        if (tree instanceof SimpleRootedTree || tree instanceof MutableRootedTree ||
+                tree instanceof CompactRootedTree || tree instanceof PersistentRootedTree) {
+            return getTraversal(tree);
+        }
+        return null;
+    }
+
+    private final RootedTree tree;
+
+    /** Nodes in preorder */
+    private final Node[] nodes;
+
+    /** Index of the tree, built on first use */
+    private volatile RootedTreeIndex treeIndex = null;
+
+    /** Node numbers, built on first use */
+    private volatile Map<Node, Integer> indices = null;
+
+    /** Parent of each node, -1 for the root */
+    private final int[] parents;
+
+    private final int[] childOffsets;
+
+    private final int[] childIndices;
+
+    private final int[] subtreeSizes;
+
+    private final int[] preorder;
+
+    private final int[] postorder;
+
+    /**
+     * Computes the traversal of the tree as it is now. Prefer {@link #getTraversal(RootedTree)}.
+     * @param tree a tree
+     */
+    public RootedTreeTraversal(RootedTree tree) {
+        this.tree = tree;
+
+        // number nodes in preorder using an explicit stack
+        final List<Node> order = new ArrayList<Node>();
+        final List<Node> stack = new ArrayList<Node>();
+        int[] parentOf = new int[16];
+        int[] stackParents = new int[16];
+        stack.add(tree.getRootNode());
+        stackParents[0] = -1;
+        while (!stack.isEmpty()) {
+            final int top = stack.size() - 1;
+            final Node node = stack.remove(top);
+            final int index = order.size();
+            if (index == parentOf.length) {
+                parentOf = Arrays.copyOf(parentOf, 2 * index);
+            }
+            parentOf[index] = stackParents[top];
+            order.add(node);
+            final List<Node> children = tree.getChildren(node);
+            if (top + children.size() > stackParents.length) {
+                stackParents = Arrays.copyOf(stackParents, 2 * (top + children.size()));
+            }
+            // push in reverse so children are numbered in their natural order
+            for (int k = children.size() - 1; k >= 0; --k) {
+                stackParents[stack.size()] = index;
+                stack.add(children.get(k));
+            }
+        }
+
+        final int nNodes = order.size();
+        nodes = order.toArray(new Node[nNodes]);
+        parents = Arrays.copyOf(parentOf, nNodes);
+
+        preorder = new int[nNodes];
+        childOffsets = new int[nNodes + 1];
+        subtreeSizes = new int[nNodes];
+        for (int i = 0; i < nNodes; ++i) {
+            preorder[i] = i;
+            if (i > 0) {
+                childOffsets[parents[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < nNodes; ++i) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+
+        // children are filled in increasing order, which is their natural order
+        childIndices = new int[Math.max(nNodes - 1, 0)];
+        final int[] fill = Arrays.copyOf(childOffsets, nNodes);
+        for (int i = 1; i < nNodes; ++i) {
+            childIndices[fill[parents[i]]++] = i;
+        }
+
+        for (int i = nNodes - 1; i >= 0; --i) {
+            subtreeSizes[i] += 1;
+            if (i > 0) {
+                subtreeSizes[parents[i]] += subtreeSizes[i];
+            }
+        }
+
+        // postorder: a node goes right after the last node of its subtree in preorder, i.e. after its last child
+        postorder = new int[nNodes];
+        final int[] path = new int[nNodes];
+        int depth = 0;
+        int pos = 0;
+        for (int i = 0; i < nNodes; ++i) {
+            while (depth > 0 && path[depth - 1] != parents[i]) {
+                postorder[pos++] = path[--depth];
+            }
+            path[depth++] = i;
+        }
+        while (depth > 0) {
+            postorder[pos++] = path[--depth];
+        }
+    }
+
+    /**
+     * @return the tree
+     */
+    public RootedTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return number of nodes in tree
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * @param index node number
+     * @return the node
+     */
+    public Node getNode(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * @param node a node of the tree
+     * @return node number (preorder position)
+     * @throws IllegalArgumentException if node is not in the tree
+     */
+    public int getIndex(Node node) {
+        final Integer index = getIndices().get(node);
+        if (index == null) {
+            throw new IllegalArgumentException("Node not in tree");
+        }
+        return index;
+    }
+
+    /**
+     * @param node a node
+     * @return true if node is in the tree
+     */
+    public boolean contains(Node node) {
+        return getIndices().containsKey(node);
+    }
+
+    private Map<Node, Integer> getIndices() {
+        Map<Node, Integer> map = indices;
+        if (map == null) {
+            map = new HashMap<Node, Integer>(2 * nodes.length);
+            for (int i = 0; i < nodes.length; ++i) {
+                map.put(nodes[i], i);
+            }
+            indices = map;
+        }
+        return map;
+    }
+
+    /**
+     * @return index of the tree, built once per traversal
+     */
+    RootedTreeIndex getTreeIndex() {
+        RootedTreeIndex index = treeIndex;
+        if (index == null) {
+            index = new RootedTreeIndex(this);
+            treeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @param index node number
+     * @return number of parent node, -1 for the root
+     */
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    /**
+     * @param index node number
+     * @return number of children
+     */
+    public int getChildCount(int index) {
+        return childOffsets[index + 1] - childOffsets[index];
+    }
+
+    /**
+     * @param index node number
+     * @param k child position
+     * @return number of the k'th child
+     */
+    public int getChild(int index, int k) {
+        return childIndices[childOffsets[index] + k];
+    }
+
+    /**
+     * @param index node number
+     * @return true if node has no children
+     */
+    public boolean isExternal(int index) {
+        return childOffsets[index + 1] == childOffsets[index];
+    }
+
+    /**
+     * @param index node number
+     * @return number of nodes in the subtree of node, including the node itself
+     */
+    public int getSubtreeSize(int index) {
+        return subtreeSizes[index];
+    }
+
+    /**
+     * Gather a numeric node attribute, for reductions over all nodes. For trees keeping node attributes in
+     * {@link AttributeColumns} ({@link SimpleRootedTree}, {@link MutableRootedTree} and {@link CompactRootedTree})
+     * values are read from the columns without boxing.
+     *
+     * @param name attribute name
+     * @param missing value for nodes without the attribute, or with a value that is not a Number
+     * @return the value of the attribute for each node, by node number
+     */
+    public double[] getAttributeValues(String name, double missing) {
+        final double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; ++i) {
+            final Node node = nodes[i];
+            if (node instanceof AttributeColumns.Row) {
+                final AttributeColumns columns = ((AttributeColumns.Row) node).getAttributeColumns();
+                values[i] = columns == null ? missing :
+                        columns.getDouble(((AttributeColumns.Row) node).getAttributeRow(), name, missing);
+            } else {
+                final Object value = node.getAttribute(name);
+                values[i] = value instanceof Number ? ((Number) value).doubleValue() : missing;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return node numbers in preorder, which is simply 0 .. n-1
+     */
+    public int[] getPreorder() {
+        return preorder;
+    }
+
+    /**
+     * @return node numbers in postorder (children in their natural order, each node after its children)
+     */
+    public int[] getPostorder() {
+        return postorder;
+    }
+
+    /**
+     * @return number of the parent of each node, -1 for the root
+     */
+    public int[] getParents() {
+        return parents;
+    }
+
+    /**
+     * @return start of the children of each node in {@link #getChildIndices()}, with an extra final entry
+     */
+    public int[] getChildOffsets() {
+        return childOffsets;
+    }
+
+    /**
+     * @return the children of all nodes, grouped by parent
+     */
+    public int[] getChildIndices() {
+        return childIndices;
+    }
+}
@@ -127,6 +127,15 @@ public class RootedTreeUtils {
 	 */
 	public static Set<Node> getDescendantTips(RootedTree tree, Node node) {
 
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getCachedTraversal(tree);
+		if (traversal != null && traversal.contains(node)) {
+			final int i = traversal.getIndex(node);
+			if (traversal.isExternal(i)) {
+				return new LinkedHashSet<Node>();
+			}
+			return new LinkedHashSet<Node>(traversal.getTreeIndex().getExternalNodes(i));
+		}
+
 		Set<Node> tipNodes = new LinkedHashSet<Node>();
 		getDescendantTips(tree, node, tipNodes);
 		return tipNodes;
@@ -146,6 +155,23 @@ public class RootedTreeUtils {
 		}
 	}
 
+	/**
+	 * @return the index the tree keeps of its current structure, or null if the tree does not keep one or some
+	 * of the nodes are not in the tree
+	 */
+	private static RootedTreeIndex getCachedIndex(RootedTree tree, Set<Node> nodes) {
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getCachedTraversal(tree);
+		if (traversal == null) {
+			return null;
+		}
+		for (Node node : nodes) {
+			if (!traversal.contains(node)) {
+				return null;
+			}
+		}
+		return traversal.getTreeIndex();
+	}
+
 	/**
 	 * Gets the most recent common ancestor (MRCA) node of a set of tip nodes.
 	 * @param tree the Tree
@@ -160,6 +186,11 @@ public class RootedTreeUtils {
 
 		if (tipNodes.size() == 1) return tipNodes.iterator().next();
 
+		final RootedTreeIndex index = getCachedIndex(tree, tipNodes);
+		if (index != null) {
+			return index.getNode(index.getMRCA(tipNodes));
+		}
+
 		Node[] mrca = new Node[] { null };
 		getCommonAncestorNode(tree, tree.getRootNode(), tipNodes, mrca);
 
@@ -223,6 +254,11 @@ public class RootedTreeUtils {
 			return true;
 		}
 
+		final RootedTreeIndex index = getCachedIndex(tree, tipNodes);
+		if (index != null) {
+			return index.isMonophyletic(tipNodes);
+		}
+
 		int[] matchCount = new int[] { 0 };
 		int[] tipCount = new int[] { 0 };
 
@@ -282,31 +318,40 @@ public class RootedTreeUtils {
 	}
 
 	/**
-	 * Recursive function for constructing a newick tree representation in the given buffer.
+	 * Constructs a newick representation of the subtree of node, without branch lengths and with the children of
+	 * each node sorted, so it is the same for all trees with the same topology.
 	 */
 	public static String uniqueNewick(RootedTree tree, Node node) {
-		if (tree.isExternal(node)) {
-			return tree.getTaxon(node).getName();
-		} else {
-			StringBuffer buffer = new StringBuffer("(");
-
-			List<String> subtrees = new ArrayList<String>();
-
-			for (Node child : tree.getChildren(node)) {
-				subtrees.add(uniqueNewick(tree, child));
-			}
-			Collections.sort(subtrees);
-
-			for (int i = 0; i < subtrees.size(); i++) {
-				buffer.append(subtrees.get(i));
-				if (i < subtrees.size() - 1) {
-					buffer.append(",");
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+		final int first = traversal.getIndex(node);
+		final int end = first + traversal.getSubtreeSize(first);
+
+		// going backwards in preorder, the representations of the children of a node are ready when it is reached
+		final String[] subtrees = new String[end - first];
+		for (int i = end - 1; i >= first; --i) {
+			if (traversal.isExternal(i)) {
+				subtrees[i - first] = tree.getTaxon(traversal.getNode(i)).getName();
+			} else {
+				List<String> children = new ArrayList<String>(traversal.getChildCount(i));
+				for (int k = 0; k < traversal.getChildCount(i); k++) {
+					final int child = traversal.getChild(i, k) - first;
+					children.add(subtrees[child]);
+					subtrees[child] = null;
 				}
+				Collections.sort(children);
+
+				StringBuffer buffer = new StringBuffer("(");
+				for (int k = 0; k < children.size(); k++) {
+					buffer.append(children.get(k));
+					if (k < children.size() - 1) {
+						buffer.append(",");
+					}
+				}
+				buffer.append(")");
+				subtrees[i - first] = buffer.toString();
 			}
-			buffer.append(")");
-
-			return buffer.toString();
 		}
+		return subtrees[0];
 	}
 
 	/**
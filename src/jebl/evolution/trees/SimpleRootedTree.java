@@ -77,68 +77,75 @@ final public class SimpleRootedTree implements RootedTree {
     }
 
     /**
-     * Clones the entire tree structure from the given RootedTree.
+     * Clones the entire tree structure from the given RootedTree. Nodes are created in postorder, without
+     * recursion.
      * @param tree
      * @param node
      * @param nodeMapping may be null
      * @return
      */
     private Node createNodes(RootedTree tree, Node node, Map<Node, Node> nodeMapping) {
+        final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+        // the subtree of node is a range in preorder
+        final int first = traversal.getIndex(node);
+        final int end = first + traversal.getSubtreeSize(first);
+        final Node[] newNodes = new Node[end - first];
 
-        Node newNode;
-        if (tree.isExternal(node)) {
-            newNode = createExternalNode(tree.getTaxon(node));
+        Node newNode = null;
+        for (int i : traversal.getPostorder()) {
+            if (i < first || i >= end) {
+                continue;
+            }
+            final Node source = traversal.getNode(i);
+            if (traversal.isExternal(i)) {
+                newNode = createExternalNode(tree.getTaxon(source));
 
-        } else {
-            List<Node> children = new ArrayList<Node>();
-            for (Node child : tree.getChildren(node)) {
-                children.add(createNodes(tree, child, nodeMapping));
+            } else {
+                List<Node> children = new ArrayList<Node>(traversal.getChildCount(i));
+                for (int k = 0; k < traversal.getChildCount(i); ++k) {
+                    children.add(newNodes[traversal.getChild(i, k) - first]);
+                }
+                newNode = createInternalNode(children);
             }
-            newNode = createInternalNode(children);
-        }
+            newNodes[i - first] = newNode;
 
-        if( nodeMapping != null ) nodeMapping.put(node, newNode);
+            if( nodeMapping != null ) nodeMapping.put(source, newNode);
 
-//        final Map<String, Object> map = node.getAttributeMap();
-//        if( ! map.isEmpty() ) {
-        for( Map.Entry<String, Object> e : node.getAttributeMap().entrySet() ) {
-            newNode.setAttribute(e.getKey(), e.getValue());
-        }
-        // }
-        if (tree.hasHeights() && tree.isHeightsKnown()) {
-            setHeight(newNode, tree.getHeight(node));
-        }
-        if (tree.hasLengths() && tree.isLengthsKnown()) {
-            setLength(newNode, tree.getLength(node));
+            for( Map.Entry<String, Object> e : source.getAttributeMap().entrySet() ) {
+                newNode.setAttribute(e.getKey(), e.getValue());
+            }
+            if (tree.hasHeights() && tree.isHeightsKnown()) {
+                setHeight(newNode, tree.getHeight(source));
+            }
+            if (tree.hasLengths() && tree.isLengthsKnown()) {
+                setLength(newNode, tree.getLength(source));
+            }
         }
         return newNode;
     }
 
     /**
-     * Clones the entire tree structure from the given (unrooted) Tree.
+     * Clones the entire tree structure from the given (unrooted) Tree. Nodes are created in postorder, with an
+     * explicit stack rather than by recursion, so very deep trees can be rooted.
      * @param tree the unrooted tree
      * @param parent the parent node
      * @param child the child node
      */
     public Node createNodes(Tree tree, Node parent, Node child) throws NoEdgeException {
+        final Node newNode = new SubtreeRooter() {
+            Node createExternalNode(Taxon taxon) {
+                return SimpleRootedTree.this.createExternalNode(taxon);
+            }
 
-        Node newNode = null;
-        if (tree.isExternal(child)) {
-            newNode = createExternalNode(tree.getTaxon(child));
-        } else {
-            List<Node> adjacencies = tree.getAdjacencies(child);
-            List<Node> children = new ArrayList<Node>();
-
-            for (Node child2 : adjacencies) {
-                if (child2 != parent) {
-                    children.add(createNodes(tree, child, child2));
-                }
+            Node createInternalNode(List<Node> children) {
+                return SimpleRootedTree.this.createInternalNode(children);
             }
-            newNode = createInternalNode(children);
-        }
 
+            void setLength(Node node, double length) {
+                SimpleRootedTree.this.setLength(node, length);
+            }
+        }.root(tree, parent, child);
         setLength(newNode, tree.getEdgeLength(parent, child));
-
         return newNode;
     }
 
@@ -210,6 +217,11 @@ final public class SimpleRootedTree implements RootedTree {
                 parentNode.addChild((SimpleRootedNode) child);
             }
         }
+        if (simpleRootedNode.row >= 0) {
+            // the tree no longer holds the node, so its values need not be kept and its row is used again
+            nodeAttributes.releaseRow(simpleRootedNode.row);
+            simpleRootedNode.row = -1;
+        }
     }
 
 
@@ -661,7 +673,7 @@ final public class SimpleRootedTree implements RootedTree {
             throw new IllegalArgumentException("Can't calculate node heights because branch lengths not known");
         }
 
-        nodeLengthsToHeights(rootNode, 0.0);
+        nodeLengthsToHeights();
 
         double maxHeight = 0.0;
         for (Node externalNode : getExternalNodes()) {
@@ -681,18 +693,20 @@ final public class SimpleRootedTree implements RootedTree {
      * Set the node heights from the current node branch lengths. Actually
      * sets distance from root so the heights then need to be reversed.
      */
-    private void nodeLengthsToHeights(SimpleRootedNode node, double height) {
+    private void nodeLengthsToHeights() {
+        final RootedTreeTraversal traversal = getTraversal();
+        final int[] parents = traversal.getParents();
 
-        double newHeight = height;
+        // in preorder the parent's height is always set first
+        for (int i = 0; i < parents.length; ++i) {
+            final SimpleRootedNode node = (SimpleRootedNode) traversal.getNode(i);
+            double newHeight = parents[i] < 0 ? 0.0 : ((SimpleRootedNode) traversal.getNode(parents[i])).getHeight();
 
-        if (node.getLength() > 0.0) {
-            newHeight += node.getLength();
-        }
-
-        node.setHeight(newHeight);
+            if (node.getLength() > 0.0) {
+                newHeight += node.getLength();
+            }
 
-        for (Node child : node.getChildren()) {
-            nodeLengthsToHeights((SimpleRootedNode)child, newHeight);
+            node.setHeight(newHeight);
         }
     }
 
@@ -705,22 +719,25 @@ final public class SimpleRootedTree implements RootedTree {
             throw new IllegalArgumentException("Can't calculate branch lengths because node heights not known");
         }
 
-        nodeHeightsToLengths(rootNode, getHeight(rootNode));
+        nodeHeightsToLengths(getHeight(rootNode));
 
         lengthsKnown = true;
     }
 
     /**
      * Calculate branch lengths from the current node heights.
+     * @param rootHeight height above the root, giving the root branch length
      */
-    private void nodeHeightsToLengths(SimpleRootedNode node, double height) {
-        final double h = node.getHeight();
-        node.setLength(h >= 0 ? height - h : 1);
-
-        for (Node child : node.getChildren()) {
-            nodeHeightsToLengths((SimpleRootedNode)child, node.getHeight());
+    private void nodeHeightsToLengths(double rootHeight) {
+        final RootedTreeTraversal traversal = getTraversal();
+        final int[] parents = traversal.getParents();
+
+        for (int i = 0; i < parents.length; ++i) {
+            final SimpleRootedNode node = (SimpleRootedNode) traversal.getNode(i);
+            final double height = parents[i] < 0 ? rootHeight : ((SimpleRootedNode) traversal.getNode(parents[i])).getHeight();
+            final double h = node.getHeight();
+            node.setLength(h >= 0 ? height - h : 1);
         }
-
     }
 
     public void setConceptuallyUnrooted(boolean intent) {
@@ -771,10 +788,28 @@ final public class SimpleRootedTree implements RootedTree {
         return helper.getAttributeMap();
     }
 
+    /**
+     * @return traversal of the current tree structure, computed again only after the structure changes
+     */
+    RootedTreeTraversal getTraversal() {
+        RootedTreeTraversal t = traversal;
+        if (t == null) {
+            t = new RootedTreeTraversal(this);
+            traversal = t;
+        }
+        return t;
+    }
+
     // PRIVATE members
 
     private AttributableHelper helper = null;
 
+    /** Attributes of all nodes, by node row; null until one is set */
+    private AttributeColumns nodeAttributes = null;
+
+    /** Number of nodes created, to size the attribute columns */
+    private int nodeCount = 0;
+
     protected SimpleRootedNode rootNode = null;
     protected final Set<Node> internalNodes = new LinkedHashSet<Node>();
     private final Set<Node> externalNodes = new LinkedHashSet<Node>();
@@ -791,24 +826,34 @@ final public class SimpleRootedTree implements RootedTree {
 
     private boolean conceptuallyUnrooted = false;
 
-    private class SimpleRootedNode extends BaseNode {
+    /** Cached traversal, null when the structure has changed */
+    private RootedTreeTraversal traversal = null;
+
+    private class SimpleRootedNode implements Node, AttributeColumns.Row {
+        /** Row of this node's attributes in nodeAttributes, or -1 until the node is given one */
+        private int row = -1;
+
         public SimpleRootedNode(Taxon taxon) {
+            nodeCount++;
             this.children = Collections.unmodifiableList(new ArrayList<Node>());
             this.taxon = taxon;
         }
 
         public SimpleRootedNode(List<? extends Node> children) {
+            nodeCount++;
             this.children = Collections.unmodifiableList(new ArrayList<Node>(children));
             this.taxon = null;
         }
 
         public void removeChild(Node node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.remove(node);
             children = Collections.unmodifiableList(c);
         }
 
         public void addChild(SimpleRootedNode node) {
+            traversal = null;
             List<Node> c = new ArrayList<Node>(children);
             c.add(node);
             node.setParent(this);
@@ -816,6 +861,7 @@ final public class SimpleRootedTree implements RootedTree {
         }
 
         public void replaceChildren(List<SimpleRootedNode> nodes) {
+            traversal = null;
             for( SimpleRootedNode n : nodes ) {
                 n.setParent(this);
             }
@@ -823,6 +869,7 @@ final public class SimpleRootedTree implements RootedTree {
         }
 
         void swapChildren(int i0, int i1) {
+            traversal = null;
             ArrayList<Node> nc = new ArrayList<Node>(children);
             //there was a user reported crash where i0 was > size of the array of children nodes
             if (i0 < 0 || i0 >= nc.size() || i1 < 0 || i1 >= nc.size()) {
@@ -839,6 +886,7 @@ final public class SimpleRootedTree implements RootedTree {
         }
 
         public void setParent(Node parent) {
+            traversal = null;
             this.parent = parent;
         }
 
@@ -929,6 +977,44 @@ final public class SimpleRootedTree implements RootedTree {
             return taxon;
         }
 
+        // Attributable IMPLEMENTATION
+
+        public void setAttribute(String name, Object value) {
+            if (nodeAttributes == null) {
+                nodeAttributes = new AttributeColumns(Math.max(nodeCount, 16));
+            }
+            if (row < 0) {
+                row = nodeAttributes.addRow();
+            }
+            nodeAttributes.set(row, name, value);
+        }
+
+        public Object getAttribute(String name) {
+            return nodeAttributes == null ? null : nodeAttributes.get(row, name);
+        }
+
+        public void removeAttribute(String name) {
+            if (nodeAttributes != null) {
+                nodeAttributes.remove(row, name);
+            }
+        }
+
+        public Set<String> getAttributeNames() {
+            return nodeAttributes == null ? Collections.<String>emptySet() : nodeAttributes.getNames(row);
+        }
+
+        public Map<String, Object> getAttributeMap() {
+            return nodeAttributes == null ? Collections.<String, Object>emptyMap() : nodeAttributes.getMap(row);
+        }
+
+        public AttributeColumns getAttributeColumns() {
+            return nodeAttributes;
+        }
+
+        public int getAttributeRow() {
+            return row;
+        }
+
         private List<Node> children;
         private Taxon taxon;
 
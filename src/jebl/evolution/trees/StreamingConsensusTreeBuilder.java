@@ -0,0 +1,104 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.taxa.Taxon;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A consensus tree builder which receives the trees one at a time. Only summary statistics (clade support and
+ * heights) are kept, so a large set of trees (for example the output of a long MCMC run read through a
+ * {@link jebl.evolution.io.TreeImporter}) does not need to be held in memory. Memory use depends on the number of
+ * distinct clades seen, not on the number of trees.
+ *
+ * Typical usage:
+ * <code>
+ *  StreamingConsensusTreeBuilder builder = TreeBuilderFactory.buildRootedIncrementally(taxa, 0.5, ConsensusMethod.GREEDY);
+ *  for (Tree tree : importer) {
+ *     builder.add(tree);
+ *  }
+ *  RootedTree consensus = builder.build();
+ * </code>
+ *
+ * @version $Id$
+ */
+public abstract class StreamingConsensusTreeBuilder extends ConsensusTreeBuilder<RootedTree> {
+
+    /** Index of each taxon in {@link #taxons} */
+    private final Map<Taxon, Integer> taxonIndices;
+
+    /** Number of trees added so far */
+    private int nTrees = 0;
+
+    StreamingConsensusTreeBuilder(Tree[] trees, String supportAttributeName, boolean supportInPercent) {
+        super(trees, supportAttributeName, supportInPercent);
+        taxonIndices = indexTaxa(taxons);
+    }
+
+    StreamingConsensusTreeBuilder(List<Taxon> taxa, String supportAttributeName, boolean supportInPercent) {
+        super(taxa, supportAttributeName, supportInPercent);
+        taxonIndices = indexTaxa(taxons);
+        if (taxonIndices.size() != nExternalNodes) {
+            throw new IllegalArgumentException("Taxa must be unique");
+        }
+    }
+
+    private static Map<Taxon, Integer> indexTaxa(List<Taxon> taxa) {
+        Map<Taxon, Integer> indices = new HashMap<Taxon, Integer>(2 * taxa.size());
+        for (int i = 0; i < taxa.size(); ++i) {
+            indices.put(taxa.get(i), i);
+        }
+        return indices;
+    }
+
+    /**
+     * Add a tree to the set. The tree is not referenced after this method returns.
+     * @param tree a rooted tree with the same taxa as this builder
+     * @throws IllegalArgumentException if the tree is not rooted or its taxa differ from the builder's taxa
+     */
+    public final void add(Tree tree) throws IllegalArgumentException {
+        if (!(tree instanceof RootedTree)) {
+            throw new IllegalArgumentException("Expected a rooted tree");
+        }
+        if (tree.getExternalNodes().size() != nExternalNodes || !taxonIndices.keySet().containsAll(tree.getTaxa())) {
+            throw new IllegalArgumentException("Tree " + (nTrees + 1) + " does not have the same taxa as the consensus builder ("
+                    + nExternalNodes + " taxa expected, got " + tree.getExternalNodes().size() + ")");
+        }
+        accumulate((RootedTree) tree);
+        ++nTrees;
+    }
+
+    /**
+     * Add all trees of the sequence, for example all trees of a {@link jebl.evolution.io.TreeImporter}.
+     * @param trees sequence of trees, all with the same taxa as this builder
+     * @throws IllegalArgumentException if a tree is not rooted or its taxa differ from the builder's taxa
+     */
+    public void addAll(Iterable<? extends Tree> trees) throws IllegalArgumentException {
+        for (Tree tree : trees) {
+            add(tree);
+        }
+    }
+
+    /**
+     * @return number of trees added so far
+     */
+    public int getTreeCount() {
+        return nTrees;
+    }
+
+    /**
+     * @param taxon one of the builder's taxa
+     * @return the index of taxon in {@link #taxons}
+     */
+    protected final int taxonIndex(Taxon taxon) {
+        return taxonIndices.get(taxon);
+    }
+
+    /**
+     * Update the summary statistics with one more tree. Called once for each added tree, after
+     * its taxa have been checked.
+     * @param tree tree to add
+     */
+    protected abstract void accumulate(RootedTree tree);
+}
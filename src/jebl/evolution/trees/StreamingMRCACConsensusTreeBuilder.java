@@ -0,0 +1,183 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+import jebl.util.FixedBitSet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MRCA clustering consensus (see {@link MRCACConsensusTreeBuilder}) for trees added one at a time.
+ *
+ * Only the average height of the MRCA of every pair of tips, the average tip and root heights and the number of trees
+ * containing each clade are kept. Since the trees themselves are not available when clustering, the height of the MRCA of
+ * two clusters is approximated by the largest average height of the MRCA of a pair of tips, one from each cluster. This is
+ * exact when all trees agree and a lower bound on the average height of the clusters MRCA otherwise.
+ *
+ * @version $Id$
+ */
+class StreamingMRCACConsensusTreeBuilder extends StreamingConsensusTreeBuilder {
+    private final double supportThreshold;
+
+    /** Sum over trees of height of MRCA of tips i and j (packed lower triangle, see pairIndex) */
+    private final double[] pairHeights;
+
+    /** Sum over trees of height of each tip */
+    private final double[] tipHeights;
+
+    /** Sum over trees of root height */
+    private double rootHeight = 0.0;
+
+    /** Number of trees containing the clade */
+    private final Map<FixedBitSet, Integer> cladeCounts = new HashMap<FixedBitSet, Integer>();
+
+    public StreamingMRCACConsensusTreeBuilder(List<Taxon> taxa, double supportThreshold, String supportAttributeName, boolean asPercent) {
+        super(taxa, supportAttributeName, asPercent);
+        this.supportThreshold = supportThreshold;
+        pairHeights = new double[pairIndex(0, nExternalNodes)];
+        tipHeights = new double[nExternalNodes];
+    }
+
+    public String getMethodDescription() {
+        return getSupportDescription(supportThreshold) + " MRCACC";
+    }
+
+    private static int pairIndex(int i, int j) {
+        return i < j ? (j * (j - 1)) / 2 + i : (i * (i - 1)) / 2 + j;
+    }
+
+    protected void accumulate(RootedTree tree) {
+        final Node root = tree.getRootNode();
+        accumulate(tree, root);
+        rootHeight += tree.getHeight(root);
+    }
+
+    /**
+     * @return tips in subtree of node
+     */
+    private int[] accumulate(RootedTree tree, Node node) {
+        final double height = tree.getHeight(node);
+        if (tree.isExternal(node)) {
+            final int tip = taxonIndex(tree.getTaxon(node));
+            tipHeights[tip] += height;
+            return new int[]{tip};
+        }
+
+        final List<Node> children = tree.getChildren(node);
+        final int[][] childTips = new int[children.size()][];
+        int nTips = 0;
+        for (int k = 0; k < childTips.length; ++k) {
+            childTips[k] = accumulate(tree, children.get(k));
+            // every tip in this child has this node as MRCA with every tip in the previous children
+            for (int k1 = 0; k1 < k; ++k1) {
+                for (int t1 : childTips[k1]) {
+                    for (int t : childTips[k]) {
+                        pairHeights[pairIndex(t, t1)] += height;
+                    }
+                }
+            }
+            nTips += childTips[k].length;
+        }
+
+        final int[] tips = new int[nTips];
+        final FixedBitSet clade = new FixedBitSet(nExternalNodes);
+        int n = 0;
+        for (int[] ct : childTips) {
+            System.arraycopy(ct, 0, tips, n, ct.length);
+            n += ct.length;
+            for (int t : ct) {
+                clade.set(t);
+            }
+        }
+        final Integer count = cladeCounts.get(clade);
+        cladeCounts.put(clade, count == null ? 1 : count + 1);
+        return tips;
+    }
+
+    public RootedTree build() {
+        final int nTrees = getTreeCount();
+        if (nTrees == 0) {
+            throw new IllegalStateException("No trees added");
+        }
+
+        MutableRootedTree consensus = new MutableRootedTree();
+
+        // Cluster k is represented by the lowest tip index in it. null for indices no longer representing a cluster.
+        final Node[] subTrees = new Node[nExternalNodes];
+        final FixedBitSet[] tipsInCluster = new FixedBitSet[nExternalNodes];
+        for (int k = 0; k < nExternalNodes; ++k) {
+            tipsInCluster[k] = new FixedBitSet(nExternalNodes);
+            tipsInCluster[k].set(k);
+            subTrees[k] = consensus.createExternalNode(taxons.get(k));
+            consensus.setHeight(subTrees[k], tipHeights[k] / nTrees);
+        }
+
+        final double[] height = Arrays.copyOf(pairHeights, pairHeights.length);
+        for (int k = 0; k < height.length; ++k) {
+            height[k] /= nTrees;
+        }
+
+        for (int nClusters = nExternalNodes; nClusters > 1; --nClusters) {
+            // Find most recent ancestor of two clusters
+            double mostRecentAncestorHeight = Double.MAX_VALUE;
+            int besti = 0, bestj = 0;
+            for (int j = 1; j < nExternalNodes; ++j) {
+                if (subTrees[j] == null) continue;
+                for (int i = 0; i < j; ++i) {
+                    if (subTrees[i] != null && height[pairIndex(i, j)] < mostRecentAncestorHeight) {
+                        mostRecentAncestorHeight = height[pairIndex(i, j)];
+                        besti = i; bestj = j;
+                    }
+                }
+            }
+
+            final Node[] children = {subTrees[besti], subTrees[bestj]};
+            if (nClusters == 2) {
+                mostRecentAncestorHeight = rootHeight / nTrees;
+            }
+            final double maxChild = Math.max(consensus.getHeight(children[0]), consensus.getHeight(children[1]));
+            mostRecentAncestorHeight = Math.max(mostRecentAncestorHeight, maxChild);
+
+            final Node sub = consensus.createInternalNode(Arrays.asList(children));
+            consensus.setHeight(sub, mostRecentAncestorHeight);
+
+            tipsInCluster[besti].union(tipsInCluster[bestj]);
+            // root always 100%
+            if (nClusters > 2) {
+                final Integer count = cladeCounts.get(tipsInCluster[besti]);
+                final double supportForClade = count == null ? 0.0 : (double) count / nTrees;
+                sub.setAttribute(getSupportAttributeName(), isSupportAsPercent() ? 100 * supportForClade : supportForClade);
+            }
+
+            subTrees[besti] = sub;
+            subTrees[bestj] = null;
+            tipsInCluster[bestj] = null;
+
+            // height of joined cluster MRCA with any other cluster
+            for (int l = 0; l < nExternalNodes; ++l) {
+                if (subTrees[l] != null && l != besti) {
+                    final int il = pairIndex(besti, l);
+                    height[il] = Math.max(height[il], height[pairIndex(bestj, l)]);
+                }
+            }
+
+            if (fireSetProgress((double) (nExternalNodes - nClusters + 1) / nExternalNodes)) {
+                return null;
+            }
+        }
+
+        // Remove nodes with low support
+        double threshold = isSupportAsPercent() ? 100 * supportThreshold : supportThreshold;
+        for (Node node : consensus.getInternalNodes()) {
+            Object sup = node.getAttribute(getSupportAttributeName());
+            if (sup != null && (Double) sup < threshold) {
+                consensus.removeInternalNode(node);
+            }
+        }
+        fireSetProgress(1.0);
+        return consensus;
+    }
+}
@@ -0,0 +1,95 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Graph;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * Copies the part of an unrooted tree on one side of an edge as a rooted subtree. Nodes are created in postorder,
+ * children in the order of the adjacencies, with an explicit stack rather than by recursion, so very deep trees can
+ * be rooted. Subclasses create the nodes of the rooted tree.
+ *
+ * @version $Id$
+ */
+abstract class SubtreeRooter {
+
+    /**
+     * @param taxon taxon of a tip
+     * @return the new external node
+     */
+    abstract Node createExternalNode(Taxon taxon);
+
+    /**
+     * @param children the new children
+     * @return the new internal node
+     */
+    abstract Node createInternalNode(List<Node> children);
+
+    /**
+     * @param node a new node, other than the top of the subtree
+     * @param length length of the edge to its parent
+     */
+    abstract void setLength(Node node, double length);
+
+    /**
+     * @param tree the unrooted tree
+     * @param parent adjacency of node which serves as the parent, left out of the subtree
+     * @param node top node of the subtree
+     * @return the new top node. The length of its edge to the parent is not set.
+     * @throws Graph.NoEdgeException
+     */
+    final Node root(Tree tree, Node parent, Node node) throws Graph.NoEdgeException {
+        if (tree.isExternal(node)) {
+            return createExternalNode(tree.getTaxon(node));
+        }
+
+        // internal nodes not yet created, innermost first
+        final Deque<PendingNode> open = new ArrayDeque<PendingNode>();
+        open.push(new PendingNode(parent, node, tree.getAdjacencies(node)));
+
+        while (true) {
+            final PendingNode pending = open.peek();
+            if (pending.adjacencies.hasNext()) {
+                final Node adjacent = pending.adjacencies.next();
+                if (adjacent == pending.parent) {
+                    continue;
+                }
+                if (tree.isExternal(adjacent)) {
+                    final Node newNode = createExternalNode(tree.getTaxon(adjacent));
+                    setLength(newNode, tree.getEdgeLength(pending.node, adjacent));
+                    pending.children.add(newNode);
+                } else {
+                    open.push(new PendingNode(pending.node, adjacent, tree.getAdjacencies(adjacent)));
+                }
+                continue;
+            }
+
+            open.pop();
+            final Node newNode = createInternalNode(pending.children);
+            if (open.isEmpty()) {
+                return newNode;
+            }
+            setLength(newNode, tree.getEdgeLength(pending.parent, pending.node));
+            open.peek().children.add(newNode);
+        }
+    }
+
+    /**
+     * An internal node of the unrooted tree being rooted, with the adjacencies still to visit and the children
+     * created so far.
+     */
+    private static final class PendingNode {
+        final Node parent;
+        final Node node;
+        final Iterator<Node> adjacencies;
+        final List<Node> children = new ArrayList<Node>();
+
+        PendingNode(Node parent, Node node, List<Node> adjacencies) {
+            this.parent = parent;
+            this.node = node;
+            this.adjacencies = adjacencies.iterator();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.taxa.Taxon;
+
+import java.util.*;
+
+/**
+ * Counts the distinct topologies in a stream of trees, keeping one representative tree per topology. Topologies are
+ * identified by {@link TopologyHash}, so each tree costs O(n) time and no strings, and only the representatives
+ * are kept, so 100k posterior trees can be counted in one pass while reading them.
+ *
+ * Taxa are given indices in the order they are first seen (or given to the constructor); all trees should have
+ * the same taxa.
+ *
+ * @version $Id$
+ */
+public final class TopologyCache {
+
+    /**
+     * One distinct topology
+     */
+    public static final class Entry {
+        private final TopologyHash hash;
+        private final Tree representative;
+        private final int firstIndex;
+        private int count = 0;
+
+        private Entry(TopologyHash hash, Tree representative, int firstIndex) {
+            this.hash = hash;
+            this.representative = representative;
+            this.firstIndex = firstIndex;
+        }
+
+        public TopologyHash getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the first tree added with this topology
+         */
+        public Tree getRepresentative() {
+            return representative;
+        }
+
+        /**
+         * @return number of trees added before the representative
+         */
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        /**
+         * @return number of trees added with this topology
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private final Map<Taxon, Integer> taxonIndices = new HashMap<Taxon, Integer>();
+
+    private final Map<TopologyHash, Entry> entries = new LinkedHashMap<TopologyHash, Entry>();
+
+    private int treeCount = 0;
+
+    public TopologyCache() {
+    }
+
+    /**
+     * @param taxa taxa of the trees, indexed in this order
+     */
+    public TopologyCache(Collection<Taxon> taxa) {
+        for (Taxon taxon : taxa) {
+            addTaxon(taxon);
+        }
+    }
+
+    private void addTaxon(Taxon taxon) {
+        if (!taxonIndices.containsKey(taxon)) {
+            taxonIndices.put(taxon, taxonIndices.size());
+        }
+    }
+
+    /**
+     * @param tree a tree
+     * @return hash of the tree's topology, using this cache's taxon indices
+     */
+    public TopologyHash getHash(Tree tree) {
+        for (Taxon taxon : tree.getTaxa()) {
+            addTaxon(taxon);
+        }
+        return TopologyHash.getHash(tree, taxonIndices);
+    }
+
+    /**
+     * Count a tree, making it the representative of its topology if it is the first with it.
+     * @param tree a tree
+     * @return the entry of the tree's topology
+     */
+    public Entry add(Tree tree) {
+        final TopologyHash hash = getHash(tree);
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            entry = new Entry(hash, tree, treeCount);
+            entries.put(hash, entry);
+        }
+        entry.count++;
+        treeCount++;
+        return entry;
+    }
+
+    /**
+     * @param tree a tree
+     * @return the entry of the tree's topology, or null if no tree with it was added
+     */
+    public Entry get(Tree tree) {
+        return entries.get(getHash(tree));
+    }
+
+    /**
+     * @return number of trees added
+     */
+    public int getTreeCount() {
+        return treeCount;
+    }
+
+    /**
+     * @return number of distinct topologies
+     */
+    public int getTopologyCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the topologies in the order they were first seen
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * @return the topologies from most to least frequent; equally frequent ones in the order they were first seen
+     */
+    public List<Entry> getEntriesByCount() {
+        final List<Entry> sorted = getEntries();
+        Collections.sort(sorted, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return e2.count - e1.count;
+            }
+        });
+        return sorted;
+    }
+}
@@ -0,0 +1,125 @@
+package jebl.evolution.trees;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.taxa.Taxon;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A 128 bit canonical hash of the topology of a tree: trees with the same topology over the same taxa have the
+ * same hash, whatever the order of children, branch lengths or attributes. It is computed bottom-up in O(n) time
+ * from a map of taxa to indices, without building strings: each clade gets two 64 bit hashes, the exclusive or of
+ * keys of its taxa, and the topology hash is the sum of a mixing function of the hashes of all clades. Nodes with a
+ * single child are ignored. With 128 bits, different topologies have the same hash with negligible probability
+ * (about 2^-64 for a billion distinct topologies).
+ *
+ * Rooted trees are hashed as rooted. Unrooted trees are first rooted at the node next to the tip of the taxon with
+ * the smallest index in the map, so all unrooted trees over the same taxa are rooted alike.
+ *
+ * @version $Id$
+ * @see TopologyCache
+ */
+public final class TopologyHash {
+
+    private final long hash1;
+    private final long hash2;
+
+    private TopologyHash(long hash1, long hash2) {
+        this.hash1 = hash1;
+        this.hash2 = hash2;
+    }
+
+    /**
+     * @param tree a tree
+     * @param taxonIndices index of each taxon of the tree
+     * @return hash of the topology of the tree
+     * @throws IllegalArgumentException if a taxon of the tree is not in taxonIndices
+     */
+    public static TopologyHash getHash(Tree tree, Map<Taxon, Integer> taxonIndices) {
+        if (tree instanceof RootedTree) {
+            return getHash((RootedTree) tree, taxonIndices);
+        }
+
+        // root at the internal node next to the lowest indexed taxon
+        Taxon first = null;
+        int firstIndex = Integer.MAX_VALUE;
+        for (Taxon taxon : tree.getTaxa()) {
+            final int index = getIndex(taxonIndices, taxon);
+            if (index < firstIndex) {
+                first = taxon;
+                firstIndex = index;
+            }
+        }
+        final List<Node> adjacent = tree.getAdjacencies(tree.getNode(first));
+        return getHash(new RootedFromUnrooted(tree, adjacent.get(0), true), taxonIndices);
+    }
+
+    /**
+     * @param tree a rooted tree
+     * @param taxonIndices index of each taxon of the tree
+     * @return hash of the rooted topology of the tree
+     * @throws IllegalArgumentException if a taxon of the tree is not in taxonIndices
+     */
+    public static TopologyHash getHash(RootedTree tree, Map<Taxon, Integer> taxonIndices) {
+        final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+        final int[] parents = traversal.getParents();
+        final int nNodes = parents.length;
+
+        // going backwards in preorder every node comes after its descendants
+        final long[] clade1 = new long[nNodes];
+        final long[] clade2 = new long[nNodes];
+        long hash1 = 0;
+        long hash2 = 0;
+        for (int i = nNodes - 1; i >= 0; --i) {
+            if (traversal.isExternal(i)) {
+                final int index = getIndex(taxonIndices, tree.getTaxon(traversal.getNode(i)));
+                clade1[i] = mix(2L * index + 1);
+                clade2[i] = mix(2L * index + 2 + 0x9e3779b97f4a7c15L);
+            } else if (traversal.getChildCount(i) > 1) {
+                hash1 += mix(clade1[i]);
+                hash2 += mix(clade2[i] ^ 0x632be59bd9b4e019L);
+            }
+            if (parents[i] >= 0) {
+                clade1[parents[i]] ^= clade1[i];
+                clade2[parents[i]] ^= clade2[i];
+            }
+        }
+        return new TopologyHash(hash1, hash2);
+    }
+
+    private static int getIndex(Map<Taxon, Integer> taxonIndices, Taxon taxon) {
+        final Integer index = taxonIndices.get(taxon);
+        if (index == null) {
+            throw new IllegalArgumentException("Taxon " + taxon + " is not in the taxon list");
+        }
+        return index;
+    }
+
+    /**
+     * A fixed 64 bit mixing function (SplitMix64 finalizer).
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TopologyHash)) return false;
+        final TopologyHash other = (TopologyHash) o;
+        return hash1 == other.hash1 && hash2 == other.hash2;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash1 ^ (hash1 >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", hash1, hash2);
+    }
+}
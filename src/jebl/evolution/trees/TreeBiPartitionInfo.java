@@ -20,18 +20,25 @@ public class TreeBiPartitionInfo {
             this.n = n;
         }
 
-        Node n;
-        public boolean has;
+        final Node n;
     }
 
-    final List<Taxon> taxa;
+    final Map<Taxon, Integer> taxa;
     final RootedTree t;
     final int        nTips;
-    HashMap<FixedBitSet, BiPartiotionInfo> all;
+    final HashMap<FixedBitSet, BiPartiotionInfo> all;
 
+    /**
+     * Not modified after construction, so distances to other trees may be computed concurrently.
+     * @param t tree
+     * @param taxa taxa of tree. All trees compared must use the same order.
+     */
     public TreeBiPartitionInfo(RootedTree t, List<Taxon> taxa) {
         this.t = t;
-        this.taxa = taxa;
+        this.taxa = new HashMap<Taxon, Integer>(2 * taxa.size());
+        for( int i = 0; i < taxa.size(); ++i ) {
+            this.taxa.put(taxa.get(i), i);
+        }
         nTips = t.getExternalNodes().size();
         all = new LinkedHashMap<FixedBitSet, BiPartiotionInfo>();
         forNode(t.getRootNode());
@@ -41,7 +48,7 @@ public class TreeBiPartitionInfo {
 //    BiPartiotionInfo forNode(Node n) {
 //        final BiPartiotionInfo p = new BiPartiotionInfo(n);
 //        if( t.isExternal(n) ) {
-//            final int pos = taxa.indexOf(t.getTaxon(n));
+//            final int pos = taxa.get(t.getTaxon(n));
 //            p.partition.set(pos);
 //
 //        } else {
@@ -62,7 +69,7 @@ public class TreeBiPartitionInfo {
     private FixedBitSet forNode(Node n) {
         final FixedBitSet p = new FixedBitSet(nTips);
         if( t.isExternal(n) ) {
-            final int pos = taxa.indexOf(t.getTaxon(n));
+            final int pos = taxa.get(t.getTaxon(n));
             p.set(pos);
 
         } else {
@@ -72,17 +79,13 @@ public class TreeBiPartitionInfo {
                 p.union(info);
             }
         }
-        boolean wasComplemented = false;
+        // key is a copy when complemented, since p itself goes on to be merged into the parent's set
+        FixedBitSet key = p;
         if( t.getParent(n) != t.getRootNode() && ! p.contains(0)  ) {
-            p.complement();
-            wasComplemented = true;
+            key = FixedBitSet.complement(p);
         }
 
-        all.put(p, new BiPartiotionInfo(n));
-
-        if( wasComplemented ) {
-            p.complement();
-        }
+        all.put(key, new BiPartiotionInfo(n));
         return p;
     }
 
@@ -93,9 +96,6 @@ public class TreeBiPartitionInfo {
 
     public static double distance(TreeBiPartitionInfo t1, TreeBiPartitionInfo t2, DistanceNorm norm) {
 
-        for( BiPartiotionInfo k : t2.all.values() ) {
-            k.has = false;
-        }
         double din = 0;
         double dout = 0;
 
@@ -106,7 +106,6 @@ public class TreeBiPartitionInfo {
             if( info != null ) {
 
                 final double b2 = t2.t.getLength(info.n);
-                info.has = true;
 
                 dif = Math.abs(b1 - b2);
             } else {
@@ -121,9 +120,9 @@ public class TreeBiPartitionInfo {
             }
         }
 
-        for( BiPartiotionInfo info : t2.all.values() ) {
-            if( !info.has ) {
-                final double dif = t2.t.getLength(info.n);
+        for( Map.Entry<FixedBitSet, BiPartiotionInfo> k : t2.all.entrySet() ) {
+            if( !t1.all.containsKey(k.getKey()) ) {
+                final double dif = t2.t.getLength(k.getValue().n);
                 if( norm == DistanceNorm.NORM1 ) {
                     //d += dif;
                     dout += dif;
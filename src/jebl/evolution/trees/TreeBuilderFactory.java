@@ -3,6 +3,10 @@ package jebl.evolution.trees;
 import jebl.evolution.distances.DistanceMatrix;
 import jebl.evolution.taxa.Taxon;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * A meeting point for tree building from sequence data. A very initial form which will develope to encompass more
  * methods and distances. Currently only pairwise distance methods are implemented.
@@ -127,4 +131,53 @@ public class TreeBuilderFactory {
         }
         return buildRooted(rtrees, supportThreshold, method);
     }
+
+    /**
+     * Consensus builder for trees which are added one at a time, so that the set of trees need not be in memory.
+     * See {@link StreamingConsensusTreeBuilder}.
+     * @param taxa taxa of all trees to be added
+     * @param supportThreshold minimum required consensus support (in [01])
+     * @param method which consensus method to use
+     * @return consensus tree builder with no trees added
+     */
+    static public StreamingConsensusTreeBuilder buildRootedIncrementally(List<Taxon> taxa, double supportThreshold, ConsensusMethod method) {
+        if( ! (supportThreshold >= 0 && supportThreshold <= 1) ) {
+             throw new IllegalArgumentException("Expected support value in [0..1], got " + String.format("%.3f", supportThreshold));
+        }
+
+        switch (method) {
+            case GREEDY:
+                return new GreedyRootedConsensusTreeBuilder(taxa, supportThreshold,
+                        ConsensusTreeBuilder.DEFAULT_SUPPORT_ATTRIBUTE_NAME, true);
+            case MRCAC:
+                return new StreamingMRCACConsensusTreeBuilder(taxa, supportThreshold,
+                        ConsensusTreeBuilder.DEFAULT_SUPPORT_ATTRIBUTE_NAME, true);
+            default:
+                throw new IllegalArgumentException("Unknown consensus method: " + method);
+        }
+    }
+
+    /**
+     * Consensus builder over a sequence of trees (such as a {@link jebl.evolution.io.TreeImporter}) which is
+     * read once, keeping only the clade statistics.
+     * @param trees rooted trees - all must have the same taxa
+     * @param supportThreshold minimum required consensus support (in [01])
+     * @param method which consensus method to use
+     * @return consensus tree builder with all trees added
+     * @throws IllegalArgumentException if there are no trees, or they don't have the same taxa
+     */
+    static public StreamingConsensusTreeBuilder buildRooted(Iterable<? extends Tree> trees, double supportThreshold, ConsensusMethod method) {
+        Iterator<? extends Tree> iterator = trees.iterator();
+        if( ! iterator.hasNext() ) {
+            throw new IllegalArgumentException("Expected at least one tree, but got none");
+        }
+        Tree first = iterator.next();
+        StreamingConsensusTreeBuilder builder =
+                buildRootedIncrementally(new ArrayList<Taxon>(first.getTaxa()), supportThreshold, method);
+        builder.add(first);
+        while( iterator.hasNext() ) {
+            builder.add(iterator.next());
+        }
+        return builder;
+    }
 }
@@ -84,32 +84,55 @@ public final class Utils {
 
 	//  simplified this on to produce the straight Newick format.
 
+	/**
+	 * Writes the subtree of node in preorder, without recursion: an internal node's bracket is opened when it is
+	 * reached, and closed once the walk leaves its subtree.
+	 */
 	private static void toNewick(RootedTree tree, Node node, StringBuilder buffer) {
-		if (tree.isExternal(node)) {
-			String name = tree.getTaxon(node).getName();
-			if (!name.matches("^(\\w|-)+$")) {
-				name = "\'" + name + "\'";
-			}
-			buffer.append(name);
-			if (tree.hasLengths()) {
-				buffer.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(node)));
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+		final int[] parents = traversal.getParents();
+		final int first = traversal.getIndex(node);
+		final int end = first + traversal.getSubtreeSize(first);
+
+		// internal nodes with an open bracket, innermost last
+		final int[] open = new int[end - first];
+		int depth = 0;
+		for (int i = first; i < end; ++i) {
+			while (depth > 0 && open[depth - 1] != parents[i]) {
+				closeNewick(tree, traversal, open[--depth], buffer);
 			}
-		} else {
-			buffer.append('(');
-			List<Node> children = tree.getChildren(node);
-			final int last = children.size() - 1;
-			for (int i = 0; i < children.size(); i++) {
-				toNewick(tree, children.get(i), buffer);
-				buffer.append(i == last ? ')' : ',');
+			// a first child comes right after its parent
+			if (depth > 0 && i != parents[i] + 1) {
+				buffer.append(',');
 			}
 
-			Node parent = tree.getParent(node);
-			// Don't write root length. This is ignored elsewhere and the nexus importer fails
-			// whet it is present.
-			if (parent != null && tree.hasLengths()) {
-				buffer.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(node)));
+			final Node n = traversal.getNode(i);
+			if (traversal.isExternal(i)) {
+				String name = tree.getTaxon(n).getName();
+				if (!name.matches("^(\\w|-)+$")) {
+					name = "\'" + name + "\'";
+				}
+				buffer.append(name);
+				if (tree.hasLengths()) {
+					buffer.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(n)));
+				}
+			} else {
+				buffer.append('(');
+				open[depth++] = i;
 			}
 		}
+		while (depth > 0) {
+			closeNewick(tree, traversal, open[--depth], buffer);
+		}
+	}
+
+	private static void closeNewick(RootedTree tree, RootedTreeTraversal traversal, int index, StringBuilder buffer) {
+		buffer.append(')');
+		// Don't write root length. This is ignored elsewhere and the nexus importer fails
+		// whet it is present.
+		if (traversal.getParent(index) >= 0 && tree.hasLengths()) {
+			buffer.append(":").append(String.format(BRANCH_LENGTH_FORMAT, tree.getLength(traversal.getNode(index))));
+		}
 	}
 
 	private static void branchesMinMax(RootedTree tree, Node node, double[] bounds) {
@@ -330,56 +353,11 @@ public final class Utils {
 	 * @return rooted tree
 	 */
 	public static RootedTree rootTreeAtCenter(Tree tree) {
-		// Method - find the pair of tips with the longest distance. It is easy to see that the center
-		// is at the midpoint of the path between them.
-
-		HashMap<HashPair<Node>, Double> dists = new LinkedHashMap<HashPair<Node>, Double>();
-		try {
-			double maxDistance = -Double.MAX_VALUE;
-			// node on maximal path
-			Node current = null;
-			// next node on maximal path
-			Node direction = null;
-
-			// locate one terminal node of longest path
-			for (Node e : tree.getExternalNodes()) {
-				for (Node n : tree.getAdjacencies(e)) {
-					final double d = dist(tree, e, n, dists);
-					if (d > maxDistance) {
-						maxDistance = d;
-						current = e;
-						direction = n;
-					}
-				}
-			}
-
-			// traverse along maximal path to it's middle
-			double distanceLeft = maxDistance / 2.0;
-
-			while (true) {
-				final double len = tree.getEdgeLength(current, direction);
-				if (distanceLeft <= len) {
-					//System.out.println(toNewick(rtree));
-					return new RootedFromUnrooted(tree, current, direction, distanceLeft);
-				}
-				distanceLeft -= len;
-
-				maxDistance = -Double.MAX_VALUE;
-				Node next = null;
-				for (Node n : tree.getAdjacencies(direction)) {
-					if (n == current) continue;
-					final double d = dist(tree, direction, n, dists);
-					if (d > maxDistance) {
-						maxDistance = d;
-						next = n;
-					}
-				}
-				current = direction;
-				direction = next;
-			}
-		} catch (Graph.NoEdgeException e1) {
-			return null; // serious bug, should not happen
-		}
+		// The center is at the midpoint of the path between the pair of tips with the longest distance, found
+		// from the farthest tip distances of all edges, computed in one pass.
+		final RerootingIndex.Rooting rooting = new RerootingIndex(tree).getLongestPathMidpointRooting();
+		return new RootedFromUnrooted(tree, rooting.getIngroupNode(), rooting.getOutgroupNode(),
+				rooting.getIngroupBranchLength());
 	}
 
 	/**
@@ -469,13 +447,29 @@ public final class Utils {
 	 * @return nodes in pre-order
 	 */
 	public static List<Node> getNodes(RootedTree tree, Node node) {
-		final List<Node> nodes = new ArrayList<Node>();
-		nodes.add(node);
-
-		for (Node child : tree.getChildren(node)) {
-			nodes.addAll(getNodes(tree, child));
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getCachedTraversal(tree);
+		if (traversal == null) {
+			// walk only the subtree rather than traverse the whole tree
+			final List<Node> nodes = new ArrayList<Node>();
+			final Deque<Node> stack = new ArrayDeque<Node>();
+			stack.push(node);
+			while (!stack.isEmpty()) {
+				final Node n = stack.pop();
+				nodes.add(n);
+				final List<Node> children = tree.getChildren(n);
+				for (int k = children.size() - 1; k >= 0; k--) {
+					stack.push(children.get(k));
+				}
+			}
+			return nodes;
+		}
+		// the subtree of a node is a contiguous range in preorder
+		final int start = traversal.getIndex(node);
+		final int end = start + traversal.getSubtreeSize(start);
+		final List<Node> nodes = new ArrayList<Node>(end - start);
+		for (int i = start; i < end; ++i) {
+			nodes.add(traversal.getNode(i));
 		}
-
 		return nodes;
 	}
 
@@ -677,46 +671,51 @@ public final class Utils {
 	 * @return tree representation
 	 */
 	private static String toUniqueNewickByAttribute(RootedTree tree, Node node, String attribute) {
-		StringBuilder buffer = new StringBuilder();
-		if (tree.isExternal(node)) {
-			final Taxon taxon = tree.getTaxon(node);
-			final String name = attribute != null ? (String) taxon.getAttribute(attribute) : taxon.getName();
-			buffer.append(name);
-			if (tree.hasLengths()) {
-				buffer.append(':');
-				buffer.append(tree.getLength(node));
-			}
-		} else {
-			buffer.append('(');
-			List<Node> children = tree.getChildren(node);
-//        	 if( children.size() == 1)
-//        		 return toUniqueNewickByAttribute(tree,children.get(0),attribute);
-//
-
-
-			final int last = children.size() - 1;
-			// Generate a uniquely sorted list of children
-			List<String> childStrings = new ArrayList<String>();
-			for (Node aChildren : children) {
-				childStrings.add(toUniqueNewickByAttribute(tree, aChildren, attribute));
-			}
-			Collections.sort(childStrings,
-					new Comparator<String>() {
-						public int compare(String arg0, String arg1) {
-							return arg1.compareTo(arg0);
-						}
-					});
-			for (int i = 0; i <= last; i++) {
-				buffer.append(childStrings.get(i));
-				buffer.append(i == last ? ')' : ',');
-			}
+		final RootedTreeTraversal traversal = RootedTreeTraversal.getTraversal(tree);
+		final int first = traversal.getIndex(node);
+		final int end = first + traversal.getSubtreeSize(first);
+
+		// going backwards in preorder, the representations of the children of a node are ready when it is reached
+		final String[] subtrees = new String[end - first];
+		for (int i = end - 1; i >= first; --i) {
+			final Node n = traversal.getNode(i);
+			StringBuilder buffer = new StringBuilder();
+			if (traversal.isExternal(i)) {
+				final Taxon taxon = tree.getTaxon(n);
+				final String name = attribute != null ? (String) taxon.getAttribute(attribute) : taxon.getName();
+				buffer.append(name);
+				if (tree.hasLengths()) {
+					buffer.append(':');
+					buffer.append(tree.getLength(n));
+				}
+			} else {
+				buffer.append('(');
+				final int last = traversal.getChildCount(i) - 1;
+				// Generate a uniquely sorted list of children
+				List<String> childStrings = new ArrayList<String>(last + 1);
+				for (int k = 0; k <= last; k++) {
+					final int child = traversal.getChild(i, k) - first;
+					childStrings.add(subtrees[child]);
+					subtrees[child] = null;
+				}
+				Collections.sort(childStrings,
+						new Comparator<String>() {
+							public int compare(String arg0, String arg1) {
+								return arg1.compareTo(arg0);
+							}
+						});
+				for (int k = 0; k <= last; k++) {
+					buffer.append(childStrings.get(k));
+					buffer.append(k == last ? ')' : ',');
+				}
 
-			final Node parent = tree.getParent(node);
-			if (parent != null && tree.hasLengths()) {
-				buffer.append(":").append(tree.getLength(node));
+				if (traversal.getParent(i) >= 0 && tree.hasLengths()) {
+					buffer.append(":").append(tree.getLength(n));
+				}
 			}
+			subtrees[i - first] = buffer.toString();
 		}
-		return buffer.toString();
+		return subtrees[0];
 	}
 
 	// debug aid - print a representetion of node omitting branches